@@ -48,9 +48,6 @@ public class Action {
     private static final String DROPRxp = "^DROP[\\s]{1}([^\\s]+)$";
     private static Pattern patternDROP = Pattern.compile(DROPRxp);
 
-    private static final String secondActionDirRxp = "^(north|south|west|east)$";
-    private static Pattern pattern2ndActionDir = Pattern.compile(secondActionDirRxp);
-
     private static final String secondActionDigitRxp = "^(-?[0-9]+)$";
     private static Pattern pattern2ndActionDigit = Pattern.compile(secondActionDigitRxp);
 
@@ -135,16 +132,30 @@ public class Action {
         String line;
         try {
             line = reader.readLine();
-            if (line == null) {
-                return null;
-            }
-
-            if (line.length() == 0) {
-                return null;
-            }
         } catch (IOException ioe) {
             throw new ActionFormatException();
         }
+        return parseAction(line);
+    }
+
+    /**
+     * Create a single Action from one line of an action file, as loadAction() does for the line
+     * it reads.
+     *
+     * @param line the line, without its line terminator
+     * @return the created action, or null if line is null or empty
+     * @throws ActionFormatException if the line has invalid contents and the action cannot be
+     * created
+     */
+    static Action parseAction(String line)
+        throws ActionFormatException {
+        if (line == null) {
+            return null;
+        }
+
+        if (line.length() == 0) {
+            return null;
+        }
 
         Matcher matcherMOVE_BUILDER = patternMOVE_BUILDER.matcher(line);
         if (matcherMOVE_BUILDER.find()) {
@@ -208,7 +219,13 @@ public class Action {
      * </ul>
      *
      * Each line printed to the console should have a trailing newline (i.e., use
-     * System.out.println()).
+     * System.out.println()). <br>
+     *
+     * If the map has a heat tracker (WorldMap.setHeatTracker()), the position of the builder's
+     * tile is recorded for every MOVE_BLOCK, DIG and DROP action, before it is performed. If it has
+     * an action history (WorldMap.setActionHistory()), every action that succeeds is recorded so
+     * that it can be undone. If it keeps versions (WorldMap.setWorldVersions()), every action makes
+     * a new version.
      *
      * @param action the action to be done on the map
      * @param map the map to perform the action ons
@@ -226,20 +243,35 @@ public class Action {
         Builder builder = map.getBuilder();
         Tile currentTile = builder.getCurrentTile();
         String secondAction = action.getSecondaryAction();
-        Matcher matcher2ndActionDir = null;
+        Direction direction = null;
+        ActionHistory history = map.getActionHistory();
+        int builderOrdinal = history == null ? -1 : map.getBuilderOrdinal();
+
+        TileHeatTracker heatTracker = map.getHeatTracker();
+        if (heatTracker != null && (action.getPrimaryAction() == MOVE_BLOCK
+            || action.getPrimaryAction() == DIG || action.getPrimaryAction() == DROP)) {
+            Position builderPosition = map.getBuilderPosition();
+            if (builderPosition != null) {
+                heatTracker.record(builderPosition);
+            }
+        }
 
         switch (action.getPrimaryAction()) {
             case MOVE_BUILDER:
-                matcher2ndActionDir = pattern2ndActionDir.matcher(secondAction);
-                if (!matcher2ndActionDir.find()) {
+                direction = Direction.fromExitName(secondAction);
+                if (direction == null) {
                     System.out.println("Error: Invalid action");
                     break;
                 }
 
-                if (currentTile.getExits().containsKey(secondAction)) {
-                    Tile targetTile = currentTile.getExits().get(secondAction);
+                Tile targetTile = map.getExit(currentTile, direction);
+                if (targetTile != null) {
                     try {
                         builder.moveTo(targetTile);
+                        map.builderMoved(targetTile, direction);
+                        if (history != null) {
+                            history.recordMoveBuilder(builderOrdinal, direction);
+                        }
                         System.out.println("Moved builder " + secondAction);
                     } catch (NoExitException e) {
                         System.out.println("No exit this way");
@@ -250,14 +282,19 @@ public class Action {
                 break;
 
             case MOVE_BLOCK:
-                matcher2ndActionDir = pattern2ndActionDir.matcher(secondAction);
-                if (!matcher2ndActionDir.find()) {
+                direction = Direction.fromExitName(secondAction);
+                if (direction == null) {
                     System.out.println("Error: Invalid action");
                     break;
                 }
 
                 try {
                     currentTile.moveBlock(secondAction);
+                    map.tileChanged(currentTile);
+                    map.tileChanged(map.getExit(currentTile, direction));
+                    if (history != null) {
+                        history.recordMoveBlock(builderOrdinal, direction);
+                    }
                     System.out.println("Moved block " + secondAction);
                 } catch (TooHighException e) {
                     System.out.println("Too high");
@@ -270,7 +307,15 @@ public class Action {
 
             case DIG:
                 try {
+                    Block dugBlock = currentTile.getTopBlock();
+                    int inventorySize = builder.getInventory().size();
                     builder.digOnCurrentTile();
+                    map.tileChanged(currentTile);
+                    map.inventoryChanged();
+                    if (history != null) {
+                        history.recordDig(builderOrdinal, dugBlock.getBlockType(),
+                            builder.getInventory().size() > inventorySize);
+                    }
                     System.out.println("Top block on current tile removed");
                 } catch (TooLowException e) {
                     System.out.println("Too low");
@@ -290,6 +335,11 @@ public class Action {
                 inventoryIndex = Integer.parseInt(matcher2ndActionDigit.group(1));
                 try {
                     builder.dropFromInventory(inventoryIndex);
+                    map.tileChanged(currentTile);
+                    map.inventoryChanged();
+                    if (history != null) {
+                        history.recordDrop(builderOrdinal, inventoryIndex);
+                    }
                     System.out.println("Dropped a block from inventory");
                 } catch (TooHighException e) {
                     System.out.println("Too high");
@@ -302,6 +352,11 @@ public class Action {
                 System.out.println("Error: Invalid action");
                 break;
         }
+
+        WorldVersions versions = map.getWorldVersions();
+        if (versions != null) {
+            versions.nextVersion();
+        }
     }
 
     /**
@@ -395,4 +450,58 @@ public class Action {
             }
         } while (action != null);
     }
+
+    /**
+     * Read all the actions from the given reader and perform them on the given block world map,
+     * appending each action to a journal before it is performed (see ActionJournal). <br>
+     *
+     * Otherwise the same as processActions(BufferedReader, WorldMap). The journal forces its
+     * records in groups, so a crash may lose the last group interval of performed actions, whose
+     * lines a resumed run then reads again. All journaled actions are committed before returning.
+     *
+     * @param reader the reader to read actions from
+     * @param startingMap the starting map that actions will be applied to
+     * @param journal the journal to record the actions in
+     * @throws ActionFormatException if loadAction throws an ActionFormatException
+     * @throws IOException if an action cannot be written to the journal
+     */
+    public static void processActions(java.io.BufferedReader reader,
+        WorldMap startingMap, ActionJournal journal)
+        throws ActionFormatException, IOException {
+        processActions(reader, startingMap, journal, false);
+    }
+
+    /**
+     * Read all the actions from the given reader and perform them on the given block world map,
+     * appending each action to a journal before it is performed, as
+     * processActions(BufferedReader, WorldMap, ActionJournal) does. <br>
+     *
+     * If isCommittedEachAction, each action is committed to the journal before it is performed,
+     * so no performed action is lost in a crash. This forces the journal once per action, which
+     * is many times slower than forcing it in groups.
+     *
+     * @param reader the reader to read actions from
+     * @param startingMap the starting map that actions will be applied to
+     * @param journal the journal to record the actions in
+     * @param isCommittedEachAction whether to commit each action before performing it
+     * @throws ActionFormatException if loadAction throws an ActionFormatException
+     * @throws IOException if an action cannot be written to the journal
+     */
+    public static void processActions(java.io.BufferedReader reader,
+        WorldMap startingMap, ActionJournal journal, boolean isCommittedEachAction)
+        throws ActionFormatException, IOException {
+        Action action = null;
+
+        do {
+            action = Action.loadAction(reader);
+            if (action != null) {
+                journal.append(action);
+                if (isCommittedEachAction) {
+                    journal.commit();
+                }
+            }
+            Action.processAction(action, startingMap);
+        } while (action != null);
+        journal.commit();
+    }
 }
@@ -0,0 +1,468 @@
+package csse2002.block.world;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Follows an action file that another program appends to, like tail -f, and performs each new
+ * action on a WorldMap that stays in memory. <br> The directory of the file is watched with a
+ * WatchService, so new lines are read as soon as they are written; the file is also checked every
+ * MAX_WAIT_MILLIS in case an event is missed. Only whole lines are performed: a line still being
+ * written waits for its line terminator. If the file is created again, or becomes shorter than
+ * the part already read, the new contents are followed from the start. <br>
+ *
+ * The map is checkpointed on a schedule: after getCheckpointIntervalMillis() have passed since
+ * the last checkpoint, or after getCheckpointActionCount() actions, whichever comes first, and
+ * when following stops. A checkpoint saves the map and then records, in
+ * &lt;outputMap&gt;.offset, how far the action file had been read and the builder's tile id (its
+ * index in getTiles()), together with a checksum of the saved map:
+ * <pre>&lt;offset&gt; &lt;checksum&gt; &lt;builder tile id&gt;</pre>
+ * A saved map only records the starting position, so a restart loads the saved map and puts the
+ * builder back with WorldMap.placeBuilder(), as ActionReplay does. readCheckpoint() uses the
+ * checksum to tell which offset the saved map belongs to, so a restart resumes exactly after the
+ * last action in the saved map, even if the previous run stopped in the middle of a checkpoint.
+ * The action file itself is the log of actions, so no ActionJournal is needed.
+ */
+public class ActionFileFollower implements Closeable {
+
+    /**
+     * Checkpoint interval used when none is set, in milliseconds
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 10000;
+
+    /**
+     * Longest time between checks of the file when no event arrives, in milliseconds
+     */
+    public static final long MAX_WAIT_MILLIS = 1000;
+
+    private static final String OFFSET_SUFFIX = ".offset";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final WorldMap map;
+    private final Path actionsPath;
+    private final String outputMapFilename;
+    private final WatchService watchService;
+    private FileChannel channel = null;
+    // Identifies the file channel reads, to tell a new file from the creation of this one
+    private Object channelFileKey = null;
+
+    private long offset;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    // Start of a line whose terminator has not been read yet
+    private byte[] partialLine = new byte[256];
+    private int partialLength = 0;
+
+    private long checkpointIntervalNanos =
+        TimeUnit.MILLISECONDS.toNanos(DEFAULT_CHECKPOINT_INTERVAL_MILLIS);
+    private long checkpointActionCount = 0;
+    private long lastCheckpointNanos = System.nanoTime();
+    private long uncheckpointedCount = 0;
+    private volatile long processedCount = 0;
+    private volatile boolean isStopped = false;
+
+    /**
+     * Start following an action file.
+     *
+     * @param map the map to perform the actions on
+     * @param actionsFilename the action file, which need not exist yet
+     * @param outputMapFilename the file checkpoints save the map to
+     * @param startOffset the number of bytes of the action file already performed on the map,
+     * usually 0 or the result of readCheckpoint()
+     * @throws IOException if the directory of the action file cannot be watched
+     */
+    public ActionFileFollower(WorldMap map, String actionsFilename, String outputMapFilename,
+        long startOffset) throws IOException {
+        this.map = map;
+        this.actionsPath = new File(actionsFilename).getAbsoluteFile().toPath();
+        this.outputMapFilename = outputMapFilename;
+        this.offset = startOffset;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            actionsPath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Find the checkpoint that the map saved to outputMapFilename belongs to.
+     *
+     * @param outputMapFilename the file checkpoints saved the map to
+     * @return the checkpoint, or null if no checkpoint matches the saved map
+     * @throws IOException if a file exists but cannot be read
+     */
+    public static Checkpoint readCheckpoint(String outputMapFilename) throws IOException {
+        byte[] savedMap;
+        try {
+            savedMap = Files.readAllBytes(new File(outputMapFilename).toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        long savedMapChecksum = checksumOf(savedMap);
+
+        // The offset is renamed into place after the map, so a newer one may be left over
+        for (String offsetFilename : new String[] {outputMapFilename + OFFSET_SUFFIX,
+            outputMapFilename + OFFSET_SUFFIX + TEMPORARY_SUFFIX}) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(new File(offsetFilename).toPath(),
+                    StandardCharsets.UTF_8);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            String[] fields = lines.isEmpty() ? new String[0] : lines.get(0).split(" ");
+            try {
+                if (fields.length == 3 && Long.parseLong(fields[1]) == savedMapChecksum) {
+                    return new Checkpoint(Long.parseLong(fields[0]),
+                        Integer.parseInt(fields[2]));
+                }
+            } catch (NumberFormatException e) {
+                // Not a whole offset file
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set when checkpoints are made.
+     *
+     * @param intervalMillis the longest time between checkpoints while actions are performed,
+     * in milliseconds
+     * @param actionCount the most actions between checkpoints, or 0 for no limit
+     * @throws IllegalArgumentException if intervalMillis is not positive or actionCount is
+     * negative
+     */
+    public void setCheckpointSchedule(long intervalMillis, long actionCount) {
+        if (intervalMillis <= 0 || actionCount < 0) {
+            throw new IllegalArgumentException();
+        }
+        checkpointIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        checkpointActionCount = actionCount;
+    }
+
+    /**
+     * Get the longest time between checkpoints.
+     *
+     * @return the interval in milliseconds
+     */
+    public long getCheckpointIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(checkpointIntervalNanos);
+    }
+
+    /**
+     * Get the most actions between checkpoints.
+     *
+     * @return the action count, or 0 for no limit
+     */
+    public long getCheckpointActionCount() {
+        return checkpointActionCount;
+    }
+
+    /**
+     * Get the number of bytes of the action file performed so far, up to the end of the last
+     * whole line.
+     *
+     * @return the offset
+     */
+    public long getOffset() {
+        return offset - partialLength;
+    }
+
+    /**
+     * Get the number of actions performed since following started.
+     *
+     * @return the action count
+     */
+    public long getProcessedCount() {
+        return processedCount;
+    }
+
+    /**
+     * Follow the file until stop() is called, and then checkpoint.
+     *
+     * @throws ActionFormatException if a line is not a valid action, or the file cannot be read
+     * @throws IOException if a checkpoint fails
+     * @throws InterruptedException if the thread is interrupted while waiting for the file
+     */
+    public void follow() throws ActionFormatException, IOException, InterruptedException {
+        while (!isStopped) {
+            poll();
+            WatchKey key = watchService.poll(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        && actionsPath.getFileName().equals(event.context())
+                        && isReplaced()) {
+                        reopen();
+                    }
+                }
+                key.reset();
+            }
+        }
+        poll();
+        if (uncheckpointedCount > 0) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Make follow() return, after performing what has been written and making a checkpoint. May
+     * be called from any thread.
+     */
+    public void stop() {
+        isStopped = true;
+    }
+
+    /**
+     * Perform the whole lines written since the last poll(), and checkpoint if one is due.
+     *
+     * @return the number of actions performed
+     * @throws ActionFormatException if a line is not a valid action, or the file cannot be read
+     * @throws IOException if a checkpoint fails
+     */
+    public int poll() throws ActionFormatException, IOException {
+        int performedCount = 0;
+        try {
+            if (channel == null) {
+                if (!Files.exists(actionsPath)) {
+                    return checkpointIfDue(0);
+                }
+                channel = FileChannel.open(actionsPath, StandardOpenOption.READ);
+                channelFileKey = readFileKey();
+            }
+            if (channel.size() < offset) {
+                // Replaced or truncated: follow the new contents from the start
+                offset = 0;
+                partialLength = 0;
+            }
+
+            while (true) {
+                readBuffer.clear();
+                int readCount = channel.read(readBuffer, offset);
+                if (readCount <= 0) {
+                    break;
+                }
+                offset += readCount;
+                performedCount += performLines(readBuffer.array(), readCount);
+            }
+        } catch (IOException e) {
+            throw new ActionFormatException(e.getMessage());
+        }
+        return checkpointIfDue(performedCount);
+    }
+
+    /**
+     * Save the map and record the offset it belongs to.
+     *
+     * @throws IOException if the builder is not on a tile of the map, or the map or the offset
+     * cannot be saved
+     */
+    public void checkpoint() throws IOException {
+        int builderTileId = map.getBuilderOrdinal();
+        if (builderTileId < 0) {
+            throw new IOException("Builder is not on a tile of the map");
+        }
+        File outputFile = new File(outputMapFilename);
+        File temporaryMapFile = new File(outputMapFilename + TEMPORARY_SUFFIX);
+        File offsetFile = new File(outputMapFilename + OFFSET_SUFFIX);
+        File temporaryOffsetFile = new File(offsetFile.getPath() + TEMPORARY_SUFFIX);
+
+        map.saveMap(temporaryMapFile.getPath());
+        long savedMapChecksum = checksumOf(Files.readAllBytes(temporaryMapFile.toPath()));
+        FileWriter fw = new FileWriter(temporaryOffsetFile);
+        try {
+            fw.write(getOffset() + " " + savedMapChecksum + " " + builderTileId
+                + System.lineSeparator());
+        } finally {
+            fw.close();
+        }
+
+        // Either file in place matches the map in place; see readCheckpoint()
+        Files.move(temporaryMapFile.toPath(), outputFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temporaryOffsetFile.toPath(), offsetFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        lastCheckpointNanos = System.nanoTime();
+        uncheckpointedCount = 0;
+    }
+
+    /**
+     * Stop watching the file and close it. Does not checkpoint.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            watchService.close();
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /*
+     * Whether the file at actionsPath is not the one being read. The creation event of the file
+     * being read can arrive after poll() has opened it, and must not make it be read again.
+     */
+    private boolean isReplaced() {
+        if (channel == null) {
+            return false;
+        }
+        Object fileKey = readFileKey();
+        return channelFileKey == null || fileKey == null || !channelFileKey.equals(fileKey);
+    }
+
+    /*
+     * The file key of the file at actionsPath, or null if it is gone or the file system has
+     * none.
+     */
+    private Object readFileKey() {
+        try {
+            return Files.readAttributes(actionsPath, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Follow a new file created in place of the old one from its start.
+     */
+    private void reopen() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            channelFileKey = null;
+        }
+        offset = 0;
+        partialLength = 0;
+    }
+
+    private int checkpointIfDue(int performedCount) throws IOException {
+        if (uncheckpointedCount > 0 && (System.nanoTime() - lastCheckpointNanos
+            >= checkpointIntervalNanos || (checkpointActionCount > 0
+            && uncheckpointedCount >= checkpointActionCount))) {
+            checkpoint();
+        }
+        return performedCount;
+    }
+
+    /*
+     * Perform every line ended in bytes, keeping the unfinished last line for later.
+     */
+    private int performLines(byte[] bytes, int length) throws ActionFormatException, IOException {
+        int performedCount = 0;
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            String line;
+            if (partialLength > 0) {
+                appendPartial(bytes, lineStart, i - lineStart);
+                line = decodeLine(partialLine, 0, partialLength);
+                partialLength = 0;
+            } else {
+                line = decodeLine(bytes, lineStart, i - lineStart);
+            }
+            lineStart = i + 1;
+
+            Action action = Action.parseAction(line);
+            if (action != null) {
+                Action.processAction(action, map);
+                performedCount++;
+                processedCount++;
+                uncheckpointedCount++;
+                if (checkpointActionCount > 0 && uncheckpointedCount >= checkpointActionCount) {
+                    // Checkpoint exactly after the line just performed
+                    long readOffset = offset;
+                    offset -= length - lineStart;
+                    checkpoint();
+                    offset = readOffset;
+                }
+            }
+        }
+        appendPartial(bytes, lineStart, length - lineStart);
+        return performedCount;
+    }
+
+    private void appendPartial(byte[] bytes, int start, int length) {
+        if (partialLength + length > partialLine.length) {
+            partialLine = Arrays.copyOf(partialLine,
+                Math.max(partialLine.length * 2, partialLength + length));
+        }
+        System.arraycopy(bytes, start, partialLine, partialLength, length);
+        partialLength += length;
+    }
+
+    private static String decodeLine(byte[] bytes, int start, int length) {
+        if (length > 0 && bytes[start + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, start, length, StandardCharsets.UTF_8);
+    }
+
+    private static long checksumOf(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Where a checkpoint left off: the offset of the action file the saved map belongs to, and
+     * the tile the builder was on.
+     */
+    public static class Checkpoint {
+
+        private final long offset;
+        private final int builderTileId;
+
+        Checkpoint(long offset, int builderTileId) {
+            this.offset = offset;
+            this.builderTileId = builderTileId;
+        }
+
+        /**
+         * Get the number of bytes of the action file performed on the saved map.
+         *
+         * @return the offset, to pass to the ActionFileFollower constructor
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Get the tile the builder was on when the map was saved.
+         *
+         * @return the index of the tile in getTiles(), to pass to WorldMap.placeBuilder()
+         */
+        public int getBuilderTileId() {
+            return builderTileId;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package csse2002.block.world;
+
+import java.util.List;
+
+/**
+ * Undo and redo of the actions applied to a WorldMap. <br> Set a history with
+ * WorldMap.setActionHistory(), and Action.processAction() records every action that succeeds.
+ * undo() reverses the most recent recorded action and redo() applies an undone one again;
+ * recording a new action discards the actions that were undone. <br>
+ *
+ * Each action is recorded as one long holding what is needed to reverse it: the builder's tile
+ * (as its ordinal in WorldMap.getTiles()), the direction of a move, the type of a dug block and
+ * whether it went to the inventory, and the inventory index of a dropped block. The blocks
+ * themselves are found on the tiles and in the inventory, so no part of the world is copied. The
+ * deltas are kept in a ring buffer of fixed capacity, which drops the oldest action when full,
+ * and each undo or redo step takes constant time. <br>
+ *
+ * Steps assume the world is as the recorded actions left it: between actions, it should only be
+ * changed by undo() and redo(). A step that finds otherwise throws an IllegalStateException and
+ * clears the history.
+ */
+public class ActionHistory {
+
+    private static final int KIND_BITS = 2;
+    private static final int DIRECTION_SHIFT = KIND_BITS;
+    private static final int BLOCK_CODE_SHIFT = DIRECTION_SHIFT + 2;
+    private static final int CARRIED_SHIFT = BLOCK_CODE_SHIFT + 2;
+    private static final int INVENTORY_INDEX_SHIFT = 8;
+    private static final int INVENTORY_INDEX_MASK = 0xffffff;
+    private static final int ORDINAL_SHIFT = 32;
+
+    private final long[] deltas;
+    // Index of the delta the next redo() applies (and the next record() overwrites)
+    private int head = 0;
+    private int undoCount = 0;
+    private int redoCount = 0;
+
+    /**
+     * Create an empty history.
+     *
+     * @param capacity the number of actions that can be undone
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public ActionHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        deltas = new long[capacity];
+    }
+
+    /**
+     * Get the number of actions that can be undone.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return deltas.length;
+    }
+
+    /**
+     * Get the number of actions undo() can reverse now.
+     *
+     * @return the number of recorded actions not undone
+     */
+    public int getUndoCount() {
+        return undoCount;
+    }
+
+    /**
+     * Get the number of actions redo() can apply again now.
+     *
+     * @return the number of undone actions
+     */
+    public int getRedoCount() {
+        return redoCount;
+    }
+
+    /**
+     * Forget every recorded action.
+     */
+    public void clear() {
+        head = 0;
+        undoCount = 0;
+        redoCount = 0;
+    }
+
+    /**
+     * Reverse the most recent action that has not been undone.
+     *
+     * @param map the map the history is set on
+     * @return true if an action was undone, false if there was none to undo
+     * @throws IllegalStateException if the world no longer matches the history
+     */
+    public boolean undo(WorldMap map) {
+        if (undoCount == 0) {
+            return false;
+        }
+        int index = (head + deltas.length - 1) % deltas.length;
+        try {
+            reverse(map, deltas[index]);
+        } catch (BlockWorldException e) {
+            clear();
+            throw new IllegalStateException("The world does not match the history", e);
+        }
+        head = index;
+        undoCount--;
+        redoCount++;
+        return true;
+    }
+
+    /**
+     * Apply the most recently undone action again.
+     *
+     * @param map the map the history is set on
+     * @return true if an action was redone, false if there was none to redo
+     * @throws IllegalStateException if the world no longer matches the history
+     */
+    public boolean redo(WorldMap map) {
+        if (redoCount == 0) {
+            return false;
+        }
+        try {
+            apply(map, deltas[head]);
+        } catch (BlockWorldException e) {
+            clear();
+            throw new IllegalStateException("The world does not match the history", e);
+        }
+        head = (head + 1) % deltas.length;
+        redoCount--;
+        undoCount++;
+        return true;
+    }
+
+    /**
+     * Record a MOVE_BUILDER action.
+     *
+     * @param fromOrdinal the ordinal of the tile the builder moved from
+     * @param direction the direction moved
+     */
+    void recordMoveBuilder(int fromOrdinal, Direction direction) {
+        record(Action.MOVE_BUILDER, fromOrdinal, direction, 0, false, 0);
+    }
+
+    /**
+     * Record a MOVE_BLOCK action.
+     *
+     * @param ordinal the ordinal of the builder's tile
+     * @param direction the direction the block moved
+     */
+    void recordMoveBlock(int ordinal, Direction direction) {
+        record(Action.MOVE_BLOCK, ordinal, direction, 0, false, 0);
+    }
+
+    /**
+     * Record a DIG action.
+     *
+     * @param ordinal the ordinal of the builder's tile
+     * @param blockType the type of the dug block
+     * @param isCarried whether the block was added to the inventory
+     */
+    void recordDig(int ordinal, String blockType, boolean isCarried) {
+        record(Action.DIG, ordinal, null, PackedBlockStack.blockCodeOf(blockType), isCarried, 0);
+    }
+
+    /**
+     * Record a DROP action.
+     *
+     * @param ordinal the ordinal of the builder's tile
+     * @param inventoryIndex the index the block was dropped from
+     */
+    void recordDrop(int ordinal, int inventoryIndex) {
+        record(Action.DROP, ordinal, null, 0, false, inventoryIndex);
+    }
+
+    private void record(int kind, int ordinal, Direction direction, int blockCode,
+        boolean isCarried, int inventoryIndex) {
+        // Actions on tiles outside the map, or with an index too large to pack, cannot be undone
+        if (ordinal < 0 || blockCode < 0 || inventoryIndex > INVENTORY_INDEX_MASK) {
+            clear();
+            return;
+        }
+
+        deltas[head] = kind
+            | (direction == null ? 0 : direction.ordinal()) << DIRECTION_SHIFT
+            | blockCode << BLOCK_CODE_SHIFT
+            | (isCarried ? 1 : 0) << CARRIED_SHIFT
+            | (long) inventoryIndex << INVENTORY_INDEX_SHIFT
+            | (long) ordinal << ORDINAL_SHIFT;
+        head = (head + 1) % deltas.length;
+        undoCount = Math.min(undoCount + 1, deltas.length);
+        redoCount = 0;
+    }
+
+    private static void reverse(WorldMap map, long delta) throws BlockWorldException {
+        int ordinal = (int) (delta >>> ORDINAL_SHIFT);
+        Builder builder = map.getBuilder();
+        Tile currentTile = builder.getCurrentTile();
+
+        switch (getKind(delta)) {
+            case Action.MOVE_BUILDER:
+                Tile fromTile = map.getTileAt(ordinal);
+                if (map.getExit(fromTile, getDirection(delta)) != currentTile) {
+                    throw new NoExitException();
+                }
+                map.returnBuilder(ordinal);
+                break;
+
+            case Action.MOVE_BLOCK:
+                checkBuilderOrdinal(map, ordinal);
+                Tile targetTile = map.getExit(currentTile, getDirection(delta));
+                if (targetTile == null) {
+                    throw new NoExitException();
+                }
+                Block movedBlock = targetTile.getTopBlock();
+                targetTile.removeTopBlock();
+                currentTile.placeBlock(movedBlock);
+                map.tileChanged(currentTile);
+                map.tileChanged(targetTile);
+                break;
+
+            case Action.DIG:
+                checkBuilderOrdinal(map, ordinal);
+                if (isCarried(delta)) {
+                    builder.dropFromInventory(builder.getInventory().size() - 1);
+                    map.inventoryChanged();
+                } else {
+                    currentTile.placeBlock(PackedBlockStack.createBlock(
+                        getBlockCode(delta), map.isSharingBlocks()));
+                }
+                map.tileChanged(currentTile);
+                break;
+
+            case Action.DROP:
+            default:
+                checkBuilderOrdinal(map, ordinal);
+                List<Block> inventory = builder.getInventory();
+                int inventoryIndex = getInventoryIndex(delta);
+                if (inventoryIndex > inventory.size()) {
+                    throw new InvalidBlockException();
+                }
+                Block droppedBlock = currentTile.getTopBlock();
+                currentTile.removeTopBlock();
+                inventory.add(inventoryIndex, droppedBlock);
+                map.tileChanged(currentTile);
+                map.inventoryChanged();
+                break;
+        }
+    }
+
+    private static void apply(WorldMap map, long delta) throws BlockWorldException {
+        int ordinal = (int) (delta >>> ORDINAL_SHIFT);
+        Builder builder = map.getBuilder();
+        Tile currentTile = builder.getCurrentTile();
+        checkBuilderOrdinal(map, ordinal);
+
+        switch (getKind(delta)) {
+            case Action.MOVE_BUILDER:
+                Tile targetTile = map.getExit(currentTile, getDirection(delta));
+                builder.moveTo(targetTile);
+                map.builderMoved(targetTile, getDirection(delta));
+                break;
+
+            case Action.MOVE_BLOCK:
+                currentTile.moveBlock(getDirection(delta).getExitName());
+                map.tileChanged(currentTile);
+                map.tileChanged(map.getExit(currentTile, getDirection(delta)));
+                break;
+
+            case Action.DIG:
+                builder.digOnCurrentTile();
+                map.tileChanged(currentTile);
+                map.inventoryChanged();
+                break;
+
+            case Action.DROP:
+            default:
+                builder.dropFromInventory(getInventoryIndex(delta));
+                map.tileChanged(currentTile);
+                map.inventoryChanged();
+                break;
+        }
+    }
+
+    private static void checkBuilderOrdinal(WorldMap map, int ordinal)
+        throws InvalidBlockException {
+        if (map.getBuilderOrdinal() != ordinal) {
+            throw new InvalidBlockException();
+        }
+    }
+
+    private static int getKind(long delta) {
+        return (int) delta & ((0x1 << KIND_BITS) - 1);
+    }
+
+    private static Direction getDirection(long delta) {
+        return Direction.all()[(int) (delta >> DIRECTION_SHIFT) & 0x3];
+    }
+
+    private static int getBlockCode(long delta) {
+        return (int) (delta >> BLOCK_CODE_SHIFT) & 0x3;
+    }
+
+    private static boolean isCarried(long delta) {
+        return ((delta >> CARRIED_SHIFT) & 0x1) != 0;
+    }
+
+    private static int getInventoryIndex(long delta) {
+        return (int) (delta >> INVENTORY_INDEX_SHIFT) & INVENTORY_INDEX_MASK;
+    }
+}
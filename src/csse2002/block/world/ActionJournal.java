@@ -0,0 +1,447 @@
+package csse2002.block.world;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the actions applied to a WorldMap since it was last saved. <br> Each
+ * action is appended before it is applied, so that if the process dies before the map is saved,
+ * the saved map plus a replay of the journal gives back the lost state. <br>
+ *
+ * append() only copies the record into memory, and a committer thread writes and forces (fsyncs)
+ * the records in groups, once groupSize records are waiting or groupIntervalMillis after the first
+ * of them was appended. commit() waits until everything appended so far is forced, so an action
+ * is only durable once commit() has returned. Action.processActions() appends each record before
+ * applying its action without waiting, so one force covers a whole group, and commits before it
+ * returns; a caller that cannot lose the last group interval of actions commits each record
+ * before applying its action instead. <br>
+ *
+ * The file starts with a header naming the map the journal applies to, followed by records of the
+ * form:
+ * <pre>
+ * &lt;type byte&gt; &lt;primary action byte&gt; &lt;secondary length short&gt; &lt;secondary UTF-8 bytes&gt; &lt;CRC32 int&gt;
+ * </pre>
+ * A record torn by a crash fails its checksum, and the journal is truncated back to the last whole
+ * record when it is opened. checkpoint() is called once the map has been saved; it records that
+ * the journaled actions are now in the saved map, and then empties the journal. <br>
+ *
+ * Each action record stands for one line read from the actions source, so the number of actions
+ * replay() returns is also the number of lines of that source already consumed, which a resumed
+ * run skips. <br>
+ *
+ * A journal is written by one thread at a time.
+ */
+public class ActionJournal implements Closeable {
+
+    /**
+     * Number of records forced together when none is given
+     */
+    public static final int DEFAULT_GROUP_SIZE = 256;
+
+    /**
+     * Longest time records wait to be forced when none is given, in milliseconds
+     */
+    public static final long DEFAULT_GROUP_INTERVAL_MILLIS = 10;
+
+    private static final int MAGIC = 0x424a524e;
+    private static final byte RECORD_ACTION = 1;
+    private static final byte RECORD_CHECKPOINT = 2;
+    // Type, primary action and secondary length
+    private static final int RECORD_HEADER_SIZE = 1 + 1 + 2;
+    private static final int RECORD_CRC_SIZE = 4;
+    private static final int MAX_SECONDARY_LENGTH = 0x7fff;
+    // append() waits for the committer once this many bytes are waiting
+    private static final int MAX_PENDING_BYTES = 0x1 << 20;
+
+    private RandomAccessFile journalFile = null;
+    private FileChannel channel = null;
+    private String mapName = null;
+    private List<Action> pendingActions = null;
+    private CRC32 crc = new CRC32();
+
+    // Guards everything below, which is shared with the committer thread
+    private final Object lock = new Object();
+    private ByteBuffer appendBuffer = ByteBuffer.allocate(4096);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(4096);
+    private long appendedCount = 0;
+    private long committedCount = 0;
+    private boolean isFlushRequested = false;
+    private boolean isClosed = false;
+    private IOException commitFailure = null;
+    private int groupSize = DEFAULT_GROUP_SIZE;
+    private long groupIntervalNanos = DEFAULT_GROUP_INTERVAL_MILLIS * 1000000L;
+    private Thread committerThread = null;
+
+    /**
+     * Open the journal for a map, creating it if it does not exist. <br> Records left by an
+     * earlier run (since its last checkpoint) are kept for replay(), and a torn record at the end
+     * is cut off.
+     *
+     * @param filename the journal file
+     * @param mapName the name of the saved map the journal applies to (e.g. its filename)
+     * @throws IOException if the journal cannot be opened, or belongs to a different map
+     */
+    public ActionJournal(String filename, String mapName)
+        throws IOException {
+        this.mapName = mapName;
+        journalFile = new RandomAccessFile(new File(filename), "rw");
+        channel = journalFile.getChannel();
+        pendingActions = new ArrayList<Action>();
+
+        try {
+            if (channel.size() == 0) {
+                writeHeader();
+            } else {
+                recover();
+            }
+            channel.position(channel.size());
+        } catch (IOException e) {
+            journalFile.close();
+            throw e;
+        }
+
+        committerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runCommitter();
+            }
+        }, "action-journal");
+        committerThread.setDaemon(true);
+        committerThread.start();
+    }
+
+    /**
+     * Set how records are grouped before they are forced to the storage device.
+     *
+     * @param groupSize force once this many records are waiting (1 forces every record)
+     * @param groupIntervalMillis force once the oldest waiting record is this old
+     */
+    public void setGroupCommit(int groupSize, long groupIntervalMillis) {
+        synchronized (lock) {
+            this.groupSize = Math.max(1, groupSize);
+            this.groupIntervalNanos = Math.max(0, groupIntervalMillis) * 1000000L;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Get the actions left by an earlier run that have not been checkpointed.
+     *
+     * @return the actions, oldest first
+     */
+    public List<Action> getPendingActions() {
+        return pendingActions;
+    }
+
+    /**
+     * Apply the actions left by an earlier run to a map, which should be the map that was loaded
+     * from mapName. The actions print their results as they did originally. The replayed actions
+     * stay in the journal until the next checkpoint().
+     *
+     * @param map the map to apply the actions to
+     * @return the number of actions replayed, i.e. the number of action lines the earlier run
+     * consumed
+     */
+    public int replay(WorldMap map) {
+        for (Action action : pendingActions) {
+            Action.processAction(action, map);
+        }
+        int replayCount = pendingActions.size();
+        pendingActions = new ArrayList<Action>();
+        return replayCount;
+    }
+
+    /**
+     * Append an action to the journal. Call this before applying the action; the action is
+     * durable once commit() returns, or once its group has been forced.
+     *
+     * @param action the action to record
+     * @throws IOException if the action cannot be recorded, or an earlier group failed to commit
+     */
+    public void append(Action action)
+        throws IOException {
+        byte[] secondary = action.getSecondaryAction().getBytes(StandardCharsets.UTF_8);
+        if (secondary.length > MAX_SECONDARY_LENGTH) {
+            throw new IOException("Secondary action too long");
+        }
+
+        synchronized (lock) {
+            checkOpen();
+            try {
+                while (appendBuffer.position() >= MAX_PENDING_BYTES && commitFailure == null) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkOpen();
+
+            appendBuffer = putRecord(appendBuffer, RECORD_ACTION, action.getPrimaryAction(),
+                secondary);
+            // Wake the committer to start a new group, or when the group is full
+            long waitingCount = ++appendedCount - committedCount;
+            if (waitingCount == 1 || waitingCount >= groupSize) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until every appended record has been forced to the storage device.
+     *
+     * @throws IOException if the records cannot be forced
+     */
+    public void commit()
+        throws IOException {
+        synchronized (lock) {
+            long target = appendedCount;
+            isFlushRequested = true;
+            lock.notifyAll();
+            try {
+                while (committedCount < target && commitFailure == null) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (commitFailure != null) {
+                throw new IOException(commitFailure);
+            }
+        }
+    }
+
+    /**
+     * Record that the map, including every journaled action, has been saved, and empty the
+     * journal. If the process dies while emptying the journal, the checkpoint record stops the
+     * actions from being replayed twice.
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    public void checkpoint()
+        throws IOException {
+        commit();
+
+        synchronized (lock) {
+            ByteBuffer record = putRecord(ByteBuffer.allocate(RECORD_HEADER_SIZE
+                + RECORD_CRC_SIZE), RECORD_CHECKPOINT, 0, new byte[0]);
+            record.flip();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+
+            channel.truncate(0);
+            writeHeader();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Commit any waiting records, stop the committer thread and close the journal file.
+     *
+     * @throws IOException if the records cannot be forced or the file cannot be closed
+     */
+    @Override
+    public void close()
+        throws IOException {
+        try {
+            if (committerThread.isAlive()) {
+                commit();
+            }
+        } finally {
+            synchronized (lock) {
+                isClosed = true;
+                lock.notifyAll();
+            }
+            try {
+                committerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            journalFile.close();
+        }
+    }
+
+    private void checkOpen()
+        throws IOException {
+        if (commitFailure != null) {
+            throw new IOException(commitFailure);
+        }
+        if (isClosed) {
+            throw new IOException("Journal closed");
+        }
+    }
+
+    /*
+     * Write groups of records until the journal is closed or a write fails.
+     */
+    private void runCommitter() {
+        while (true) {
+            long groupEnd;
+            synchronized (lock) {
+                try {
+                    while (!isClosed && appendedCount == committedCount) {
+                        isFlushRequested = false;
+                        lock.wait();
+                    }
+                    if (appendedCount == committedCount) {
+                        return;
+                    }
+
+                    // Give the group time to fill up
+                    long deadline = System.nanoTime() + groupIntervalNanos;
+                    long remaining;
+                    while (!isClosed && !isFlushRequested
+                        && appendedCount - committedCount < groupSize
+                        && (remaining = deadline - System.nanoTime()) > 0) {
+                        lock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    // Commit what is waiting, then carry on
+                }
+
+                ByteBuffer group = appendBuffer;
+                appendBuffer = writeBuffer;
+                appendBuffer.clear();
+                writeBuffer = group;
+                groupEnd = appendedCount;
+                isFlushRequested = false;
+                lock.notifyAll();
+            }
+
+            try {
+                writeBuffer.flip();
+                while (writeBuffer.hasRemaining()) {
+                    channel.write(writeBuffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    commitFailure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (lock) {
+                committedCount = groupEnd;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeHeader()
+        throws IOException {
+        byte[] name = mapName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + name.length);
+        header.putInt(MAGIC);
+        header.putInt(name.length);
+        header.put(name);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /*
+     * Put one record at the end of a heap buffer, growing it if needed.
+     */
+    private ByteBuffer putRecord(ByteBuffer buffer, byte type, int primaryAction,
+        byte[] secondary) {
+        int recordSize = RECORD_HEADER_SIZE + secondary.length + RECORD_CRC_SIZE;
+        if (buffer.remaining() < recordSize) {
+            ByteBuffer grown = ByteBuffer.allocate(
+                Math.max(buffer.capacity() * 2, buffer.position() + recordSize));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+
+        int recordStart = buffer.position();
+        buffer.put(type);
+        buffer.put((byte) primaryAction);
+        buffer.putShort((short) secondary.length);
+        buffer.put(secondary);
+
+        crc.reset();
+        crc.update(buffer.array(), recordStart, buffer.position() - recordStart);
+        buffer.putInt((int) crc.getValue());
+        return buffer;
+    }
+    /*
+     * Read the records of an earlier run, keeping the actions after its last checkpoint, and cut
+     * off anything after the last whole record.
+     */
+    private void recover()
+        throws IOException {
+        long fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("Journal too large");
+        }
+        ByteBuffer contents = ByteBuffer.allocate((int) fileSize);
+        channel.position(0);
+        while (contents.hasRemaining() && channel.read(contents) >= 0) {
+        }
+        contents.flip();
+
+        if (contents.remaining() < 8 || contents.getInt() != MAGIC) {
+            throw new IOException("Not an action journal");
+        }
+        int nameLength = contents.getInt();
+        if (nameLength < 0 || nameLength > contents.remaining()) {
+            throw new IOException("Not an action journal");
+        }
+        byte[] name = new byte[nameLength];
+        contents.get(name);
+        if (!new String(name, StandardCharsets.UTF_8).equals(mapName)) {
+            throw new IOException("Journal belongs to " + new String(name, StandardCharsets.UTF_8));
+        }
+
+        long validSize = contents.position();
+        while (contents.remaining() >= RECORD_HEADER_SIZE + RECORD_CRC_SIZE) {
+            int recordStart = contents.position();
+            byte type = contents.get();
+            int primaryAction = contents.get();
+            int secondaryLength = contents.getShort();
+            if (secondaryLength < 0
+                || contents.remaining() < secondaryLength + RECORD_CRC_SIZE) {
+                break;
+            }
+            byte[] secondary = new byte[secondaryLength];
+            contents.get(secondary);
+
+            crc.reset();
+            crc.update(contents.array(), recordStart, RECORD_HEADER_SIZE + secondaryLength);
+            if (contents.getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            if (type == RECORD_ACTION) {
+                pendingActions.add(
+                    new Action(primaryAction, new String(secondary, StandardCharsets.UTF_8)));
+            } else if (type == RECORD_CHECKPOINT) {
+                pendingActions.clear();
+            } else {
+                break;
+            }
+            validSize = contents.position();
+        }
+
+        if (validSize < fileSize) {
+            channel.truncate(validSize);
+            channel.force(false);
+        }
+    }
+}
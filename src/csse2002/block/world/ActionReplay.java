@@ -0,0 +1,303 @@
+package csse2002.block.world;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays an action file against a map with seeking. <br> index() replays the whole file once,
+ * saving a snapshot of the world every snapshotInterval actions, along with the byte offset of the
+ * next action in the action file. seek() can then produce the world after any number of actions
+ * by loading the nearest snapshot before it and replaying at most snapshotInterval - 1 actions.
+ * <br> The index directory contains:
+ * <ul>
+ * <li> index.txt: "interval:&lt;snapshotInterval&gt;", "actions:&lt;number of actions&gt;",
+ * then one line per snapshot: &lt;action number&gt; &lt;byte offset&gt; &lt;builder tile id&gt;
+ * </li>
+ * <li> snapshot_&lt;action number&gt;.txt.gz: the world after that many actions, in the
+ * WorldMap.saveMap() format, gzip-compressed (see MapFileCompression) </li>
+ * </ul>
+ * A saved map only records the starting position, so the builder's tile id (its index in
+ * getTiles()) is kept in the index and restored after the snapshot is loaded. <br>
+ *
+ * Actions are counted the way Action.processActions() reads them: the file ends at its end, at
+ * an empty line, or at a line that is not a valid action.
+ */
+public class ActionReplay {
+
+    private static final String INDEX_FILE_NAME = "index.txt";
+    private static final String SNAPSHOT_FILE_PREFIX = "snapshot_";
+    private static final String SNAPSHOT_FILE_SUFFIX = ".txt" + MapFileCompression.GZIP_SUFFIX;
+
+    private static final String IntervalRxp = "^interval:([0-9]+)$";
+    private static Pattern patternInterval = Pattern.compile(IntervalRxp);
+    private static final String ActionsRxp = "^actions:([0-9]+)$";
+    private static Pattern patternActions = Pattern.compile(ActionsRxp);
+    private static final String SnapshotRxp = "^([0-9]+) ([0-9]+) ([0-9]+)$";
+    private static Pattern patternSnapshot = Pattern.compile(SnapshotRxp);
+
+    private static final int USAGE_ERROR = 1;
+    private static final int REPLAY_ERROR = 2;
+
+    private ActionReplay() {
+    }
+
+    /**
+     * Replay an action file against a map, writing a snapshot every snapshotInterval actions and
+     * the index of the snapshots.
+     *
+     * @param mapFilename the map the actions start from
+     * @param actionsFilename the action file
+     * @param indexDirectoryName the directory to write the index and snapshots to (created if
+     * needed)
+     * @param snapshotInterval the number of actions between snapshots
+     * @return the number of actions replayed
+     * @throws WorldMapFormatException if the map is incorrectly formatted
+     * @throws WorldMapInconsistentException if the map has inconsistencies
+     * @throws IOException if a file cannot be read or written
+     */
+    public static long index(String mapFilename, String actionsFilename,
+        String indexDirectoryName, int snapshotInterval)
+        throws WorldMapFormatException, WorldMapInconsistentException, IOException {
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("snapshotInterval must be positive");
+        }
+        File indexDirectory = new File(indexDirectoryName);
+        if (!indexDirectory.isDirectory() && !indexDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + indexDirectoryName);
+        }
+
+        WorldMap map = new WorldMap(mapFilename);
+        StringBuilder indexLines = new StringBuilder();
+        long actionCount = 0;
+        long offset = 0;
+
+        InputStream in = new BufferedInputStream(new FileInputStream(actionsFilename));
+        try {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (actionCount % snapshotInterval == 0) {
+                    writeSnapshot(indexDirectory, map, actionCount, offset, indexLines);
+                }
+
+                long lineLength = readLine(in, line);
+                Action action;
+                try {
+                    action = lineLength < 0 ? null : Action.parseAction(line.toString());
+                } catch (ActionFormatException e) {
+                    action = null;
+                }
+                if (action == null) {
+                    break;
+                }
+                Action.processAction(action, map);
+                actionCount++;
+                offset += lineLength;
+            }
+        } finally {
+            in.close();
+        }
+
+        BufferedWriter bw = new BufferedWriter(
+            new FileWriter(new File(indexDirectory, INDEX_FILE_NAME)));
+        try {
+            bw.write("interval:" + snapshotInterval);
+            bw.newLine();
+            bw.write("actions:" + actionCount);
+            bw.newLine();
+            bw.write(indexLines.toString());
+        } finally {
+            bw.close();
+        }
+        return actionCount;
+    }
+
+    /**
+     * Get the world after a number of actions, using an index written by index().
+     *
+     * @param indexDirectoryName the directory holding the index and snapshots
+     * @param actionsFilename the action file that was indexed
+     * @param actionNumber the number of actions to apply, between 0 and the number indexed
+     * @return the world after actionNumber actions
+     * @throws WorldMapFormatException if a snapshot is incorrectly formatted
+     * @throws WorldMapInconsistentException if a snapshot has inconsistencies
+     * @throws IOException if the index is missing or incorrectly formatted, or a file cannot be
+     * read
+     */
+    public static WorldMap seek(String indexDirectoryName, String actionsFilename,
+        long actionNumber)
+        throws WorldMapFormatException, WorldMapInconsistentException, IOException {
+        File indexDirectory = new File(indexDirectoryName);
+
+        // Find the snapshot at or before actionNumber
+        long snapshotAction = -1;
+        long snapshotOffset = 0;
+        int builderTileId = 0;
+        BufferedReader br = new BufferedReader(
+            new FileReader(new File(indexDirectory, INDEX_FILE_NAME)));
+        try {
+            Matcher matcherInterval = patternInterval.matcher(readIndexLine(br));
+            Matcher matcherActions = patternActions.matcher(readIndexLine(br));
+            if (!matcherInterval.find() || !matcherActions.find()) {
+                throw new IOException("Invalid replay index");
+            }
+            long snapshotInterval = Long.parseLong(matcherInterval.group(1));
+            long actionCount = Long.parseLong(matcherActions.group(1));
+            if (actionNumber < 0 || actionNumber > actionCount) {
+                throw new IllegalArgumentException("actionNumber must be between 0 and "
+                    + actionCount);
+            }
+
+            // Snapshots are written at every multiple of the interval
+            long wantedAction = actionNumber - actionNumber % snapshotInterval;
+            String line;
+            while ((line = br.readLine()) != null) {
+                Matcher matcherSnapshot = patternSnapshot.matcher(line);
+                if (!matcherSnapshot.find()) {
+                    throw new IOException("Invalid replay index: " + line);
+                }
+                if (Long.parseLong(matcherSnapshot.group(1)) == wantedAction) {
+                    snapshotAction = wantedAction;
+                    snapshotOffset = Long.parseLong(matcherSnapshot.group(2));
+                    builderTileId = Integer.parseInt(matcherSnapshot.group(3));
+                    break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid replay index");
+        } finally {
+            br.close();
+        }
+        if (snapshotAction < 0) {
+            throw new IOException("Missing snapshot before action " + actionNumber);
+        }
+
+        WorldMap map = new WorldMap(getSnapshotFile(indexDirectory, snapshotAction).getPath());
+        map.placeBuilder(builderTileId);
+
+        // Replay the rest from the snapshot's offset
+        InputStream in = new FileInputStream(actionsFilename);
+        try {
+            long skipped = 0;
+            while (skipped < snapshotOffset) {
+                long step = in.skip(snapshotOffset - skipped);
+                if (step <= 0) {
+                    throw new IOException("Action file is shorter than the index");
+                }
+                skipped += step;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            for (long i = snapshotAction; i < actionNumber; i++) {
+                Action action = Action.loadAction(reader);
+                if (action == null) {
+                    throw new IOException("Action file is shorter than the index");
+                }
+                Action.processAction(action, map);
+            }
+        } catch (ActionFormatException e) {
+            throw new IOException("Action file does not match the index");
+        } finally {
+            in.close();
+        }
+        return map;
+    }
+
+    /**
+     * Command line entry point. <br> Usage:
+     * <pre>
+     * ActionReplay index &lt;inputMap&gt; &lt;actions&gt; &lt;indexDirectory&gt; &lt;snapshotInterval&gt;
+     * ActionReplay seek &lt;indexDirectory&gt; &lt;actions&gt; &lt;actionNumber&gt; &lt;outputMap&gt;
+     * </pre>
+     * Exits with status 1 for incorrect usage, and 2 if the replay fails.
+     *
+     * @param args the input arguments to the program
+     */
+    public static void main(String[] args) {
+        try {
+            if (args.length == 5 && args[0].equals("index")) {
+                index(args[1], args[2], args[3], Integer.parseInt(args[4]));
+                return;
+            }
+            if (args.length == 5 && args[0].equals("seek")) {
+                seek(args[1], args[2], Long.parseLong(args[3])).saveMap(args[4]);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the usage message
+        } catch (Exception e) {
+            System.err.println(e);
+            System.exit(REPLAY_ERROR);
+        }
+        System.err.println("Usage: ActionReplay index inputMap actions indexDirectory interval");
+        System.err.println("       ActionReplay seek indexDirectory actions actionNumber outputMap");
+        System.exit(USAGE_ERROR);
+    }
+
+    private static void writeSnapshot(File indexDirectory, WorldMap map, long actionCount,
+        long offset, StringBuilder indexLines)
+        throws IOException {
+        int builderTileId = map.getBuilderOrdinal();
+        if (builderTileId < 0) {
+            throw new IOException("Builder is not on a tile of the map");
+        }
+        map.saveMap(getSnapshotFile(indexDirectory, actionCount).getPath());
+
+        indexLines.append(actionCount);
+        indexLines.append(' ');
+        indexLines.append(offset);
+        indexLines.append(' ');
+        indexLines.append(builderTileId);
+        indexLines.append(System.lineSeparator());
+    }
+
+    private static File getSnapshotFile(File indexDirectory, long actionCount) {
+        return new File(indexDirectory,
+            SNAPSHOT_FILE_PREFIX + actionCount + SNAPSHOT_FILE_SUFFIX);
+    }
+
+    private static String readIndexLine(BufferedReader br)
+        throws IOException {
+        String line = br.readLine();
+        if (line == null) {
+            throw new IOException("Invalid replay index");
+        }
+        return line;
+    }
+
+    /*
+     * Read one line (as BufferedReader.readLine() would) into line, and return the number of bytes
+     * it took up including its terminator, or -1 at the end of the stream.
+     */
+    private static long readLine(InputStream in, StringBuilder line)
+        throws IOException {
+        line.setLength(0);
+        long length = 0;
+        int c;
+        while ((c = in.read()) >= 0) {
+            length++;
+            if (c == '\n') {
+                return length;
+            }
+            if (c == '\r') {
+                in.mark(1);
+                if (in.read() == '\n') {
+                    length++;
+                } else {
+                    in.reset();
+                }
+                return length;
+            }
+            line.append((char) c);
+        }
+        return length == 0 ? -1 : length;
+    }
+}
@@ -0,0 +1,284 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the actions of many sessions on one WorldMap, fairly, in ticks of fixed duration. <br>
+ * Clients open a Session each and submit actions to it from their own threads; one thread calls
+ * run() (or runTick()) and performs them with Action.processAction(). A tick performs at most
+ * actionsPerTick actions and stops early when its duration is used up; run() then waits for the
+ * start of the next tick. <br>
+ *
+ * Sessions take turns by deficit round-robin. A session with queued actions joins the end of the
+ * active list; at the start of each of its turns it is given its weight in credit, and performs
+ * one action per credit. A session whose queue empties leaves the list and loses its unused
+ * credit, and a turn cut short by the end of a tick carries on at the start of the next one. A
+ * heavy session therefore gets its share and no more, and an action waits for at most (actions
+ * queued ahead of it in its session / its weight) rounds of the active list. <br>
+ *
+ * Each session's queue is bounded, so a client that submits faster than its share waits in
+ * submit() (or is refused by offer()) instead of growing the queue.
+ */
+public class ActionScheduler {
+
+    private final WorldMap map;
+    private final long tickNanos;
+    private final int actionsPerTick;
+
+    // Sessions that became active since the last round; written by submitting threads
+    private final ConcurrentLinkedQueue<Session> newlyActiveSessions =
+        new ConcurrentLinkedQueue<Session>();
+    // Only used by the thread running ticks
+    private final ArrayDeque<Session> activeSessions = new ArrayDeque<Session>();
+    private volatile boolean isShutdown = false;
+    private long tickCount = 0;
+
+    /**
+     * Create a scheduler for a map.
+     *
+     * @param map the map to perform the actions on
+     * @param tickMillis the duration of a tick, in milliseconds
+     * @param actionsPerTick the most actions performed in one tick
+     * @throws IllegalArgumentException if map is null, or tickMillis or actionsPerTick is not
+     * positive
+     */
+    public ActionScheduler(WorldMap map, long tickMillis, int actionsPerTick) {
+        if (map == null || tickMillis <= 0 || actionsPerTick <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.map = map;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.actionsPerTick = actionsPerTick;
+    }
+
+    /**
+     * Open a session for one client.
+     *
+     * @param weight the number of actions the session may perform in each of its turns
+     * @param queueCapacity the most actions the session can have waiting
+     * @return the new session
+     * @throws IllegalArgumentException if weight or queueCapacity is not positive
+     */
+    public Session openSession(int weight, int queueCapacity) {
+        if (weight <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return new Session(weight, queueCapacity);
+    }
+
+    /**
+     * Get the number of ticks run so far.
+     *
+     * @return the tick count
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    /**
+     * Run ticks until shutdown() is called, waiting for the start of each tick.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void run() throws InterruptedException {
+        long tickStart = System.nanoTime();
+        while (!isShutdown) {
+            runTick();
+            tickStart += tickNanos;
+            long waitNanos = tickStart - System.nanoTime();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } else {
+                // The tick overran; start the next one now rather than catching up
+                tickStart = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Make run() return after its current tick.
+     */
+    public void shutdown() {
+        isShutdown = true;
+    }
+
+    /**
+     * Run one tick now: perform queued actions, in turn, until actionsPerTick have been
+     * performed, the tick duration has passed, or no session has actions queued.
+     *
+     * @return the number of actions performed
+     */
+    public int runTick() {
+        long deadline = System.nanoTime() + tickNanos;
+        int performedCount = 0;
+        tickCount++;
+
+        addNewlyActiveSessions();
+        while (performedCount < actionsPerTick && !activeSessions.isEmpty()
+            && System.nanoTime() - deadline < 0) {
+            Session session = activeSessions.peekFirst();
+            if (!session.isInTurn) {
+                session.deficit += session.weight;
+                session.isInTurn = true;
+            }
+
+            while (session.deficit > 0 && performedCount < actionsPerTick) {
+                Action action = session.queue.poll();
+                if (action == null) {
+                    break;
+                }
+                Action.processAction(action, map);
+                session.processedCount++;
+                session.deficit--;
+                performedCount++;
+                if (System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+            }
+
+            if (session.queue.isEmpty()) {
+                activeSessions.pollFirst();
+                session.deficit = 0;
+                session.isInTurn = false;
+                session.deactivate();
+            } else if (session.deficit == 0) {
+                activeSessions.addLast(activeSessions.pollFirst());
+                session.isInTurn = false;
+            }
+            addNewlyActiveSessions();
+        }
+        return performedCount;
+    }
+
+    private void addNewlyActiveSessions() {
+        Session session;
+        while ((session = newlyActiveSessions.poll()) != null) {
+            activeSessions.addLast(session);
+        }
+    }
+
+    /**
+     * The actions of one client. Actions are performed in the order they are submitted.
+     */
+    public final class Session {
+
+        private final int weight;
+        private final BlockingQueue<Action> queue;
+        // Set while the session is in (or about to join) the active list
+        private final AtomicBoolean isActive = new AtomicBoolean(false);
+        private volatile boolean isClosed = false;
+
+        // Only used by the thread running ticks
+        private int deficit = 0;
+        private boolean isInTurn = false;
+        private volatile long processedCount = 0;
+
+        private Session(int weight, int queueCapacity) {
+            this.weight = weight;
+            this.queue = new ArrayBlockingQueue<Action>(queueCapacity);
+        }
+
+        /**
+         * Queue an action, waiting while the queue is full.
+         *
+         * @param action the action to perform
+         * @throws InterruptedException if the thread is interrupted while waiting
+         * @throws IllegalStateException if the session is closed
+         */
+        public void submit(Action action) throws InterruptedException {
+            checkOpen();
+            queue.put(action);
+            activate();
+        }
+
+        /**
+         * Queue an action if there is room for it.
+         *
+         * @param action the action to perform
+         * @return true if the action was queued, false if the queue is full
+         * @throws IllegalStateException if the session is closed
+         */
+        public boolean offer(Action action) {
+            checkOpen();
+            if (!queue.offer(action)) {
+                return false;
+            }
+            activate();
+            return true;
+        }
+
+        /**
+         * Queue every action read from a reader, waiting while the queue is full, until the end
+         * of the reader.
+         *
+         * @param reader the reader of actions, in the format of Action.processActions()
+         * @return the number of actions queued
+         * @throws ActionFormatException if a line is not a valid action
+         * @throws InterruptedException if the thread is interrupted while waiting
+         * @throws IllegalStateException if the session is closed
+         */
+        public long submitAll(BufferedReader reader)
+            throws ActionFormatException, InterruptedException {
+            long submittedCount = 0;
+            Action action;
+            while ((action = Action.loadAction(reader)) != null) {
+                submit(action);
+                submittedCount++;
+            }
+            return submittedCount;
+        }
+
+        /**
+         * Get the number of actions waiting to be performed.
+         *
+         * @return the queued action count
+         */
+        public int getQueuedCount() {
+            return queue.size();
+        }
+
+        /**
+         * Get the number of actions of this session performed so far.
+         *
+         * @return the processed action count
+         */
+        public long getProcessedCount() {
+            return processedCount;
+        }
+
+        /**
+         * Refuse further actions. Actions already queued are still performed.
+         */
+        public void close() {
+            isClosed = true;
+        }
+
+        private void checkOpen() {
+            if (isClosed) {
+                throw new IllegalStateException("Session closed");
+            }
+        }
+
+        private void activate() {
+            if (isActive.compareAndSet(false, true)) {
+                newlyActiveSessions.add(this);
+            }
+        }
+
+        /*
+         * Leave the active list after the queue emptied, unless an action was queued meanwhile.
+         */
+        private void deactivate() {
+            isActive.set(false);
+            if (!queue.isEmpty()) {
+                activate();
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many (inputMap, actions, outputMap) jobs, each as Main would, on a fixed pool of worker
+ * threads in one JVM, so that start-up and JIT warm-up are paid once. <br>
+ *
+ * The manifest has one job per line: the three arguments of Main, separated by whitespace.
+ * Blank lines and lines starting with "#" are skipped. Jobs must not share an output map. <br>
+ *
+ * The report has one line per job, in manifest order, written as soon as the jobs before it
+ * have finished:
+ * <pre>
+ * &lt;status&gt;\t&lt;manifest line number&gt;\t&lt;manifest line&gt;\t&lt;message&gt;
+ * </pre>
+ * where status is 0 for a job that succeeded, or the exit status Main would have exited with
+ * (1 to 5, see Main.main()), and message is what Main would have printed to System.err. <br>
+ *
+ * What the actions print to System.out is discarded while the batch runs, since the jobs would
+ * otherwise print over each other. <br>
+ *
+ * Jobs run without the action journal of Main. A job that fails, or a batch that is killed, never
+ * leaves an &lt;outputMap&gt;.journal that a later run of Main would replay; a killed batch is
+ * run again from the start.
+ */
+public class BatchRunner {
+
+    private static final int BATCH_ARG_LENGTH_INCORRECT = 1;
+    private static final int BATCH_MANIFEST_ERROR = 2;
+    private static final int BATCH_REPORT_ERROR = 5;
+    private static final String COMMENT_PREFIX = "#";
+    // Status of a job that died with an unexpected exception, as Main processing actions would
+    private static final int JOB_CRASHED = 4;
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Run a batch. <br>
+     *
+     * Takes a manifest file (args[0]), a report file (args[1]) and optionally the number of
+     * worker threads (args[2], by default the number of processors). Prints the number of jobs
+     * and failed jobs, and exits with status 0 once the report is written, whatever the status of
+     * the jobs. Exits with status 1 if the arguments are wrong, 2 if the manifest cannot be read
+     * and 5 if the report cannot be written.
+     *
+     * @param args the arguments
+     */
+    public static void main(String[] args) {
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        if (args.length == 3) {
+            try {
+                workerCount = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                workerCount = 0;
+            }
+        }
+        if ((args.length != 2 && args.length != 3) || workerCount <= 0) {
+            System.err.println("Usage: program manifest report [workers]");
+            System.exit(BATCH_ARG_LENGTH_INCORRECT);
+        }
+
+        List<String> manifestLines = null;
+        try {
+            manifestLines = readManifest(args[0]);
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(BATCH_MANIFEST_ERROR);
+        }
+
+        int failedCount = 0;
+        try {
+            failedCount = run(manifestLines, args[1], workerCount);
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(BATCH_REPORT_ERROR);
+        }
+        int jobCount = 0;
+        for (String line : manifestLines) {
+            if (isJob(line)) {
+                jobCount++;
+            }
+        }
+        System.out.println(jobCount + " jobs, " + failedCount + " failed");
+    }
+
+    /**
+     * Run the jobs of a manifest and write the report.
+     *
+     * @param manifestLines the lines of the manifest, including blank lines and comments
+     * @param reportFilename the file to write the report to
+     * @param workerCount the number of jobs run at the same time
+     * @return the number of jobs that failed
+     * @throws IOException if the report cannot be written
+     */
+    static int run(List<String> manifestLines, String reportFilename, int workerCount)
+        throws IOException {
+        BufferedWriter report = new BufferedWriter(new FileWriter(reportFilename));
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+        PrintStream out = System.out;
+        System.setOut(new DiscardingPrintStream());
+        int failedCount = 0;
+
+        try {
+            List<Integer> lineNumbers = new ArrayList<Integer>();
+            List<Future<JobResult>> results = new ArrayList<Future<JobResult>>();
+            for (int i = 0; i < manifestLines.size(); i++) {
+                if (!isJob(manifestLines.get(i))) {
+                    continue;
+                }
+                final String line = manifestLines.get(i).trim();
+                lineNumbers.add(i + 1);
+                results.add(workers.submit(new Callable<JobResult>() {
+                    @Override
+                    public JobResult call() {
+                        return runJob(line.split("\\s+"));
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                JobResult result = getResult(results.get(i));
+                if (result.status != 0) {
+                    failedCount++;
+                }
+                report.write(result.status + "\t" + lineNumbers.get(i) + "\t"
+                    + manifestLines.get(lineNumbers.get(i) - 1).trim() + "\t" + result.message);
+                report.newLine();
+                report.flush();
+            }
+        } finally {
+            workers.shutdownNow();
+            System.setOut(out);
+            report.close();
+        }
+        return failedCount;
+    }
+
+    /**
+     * Read the lines of a manifest.
+     *
+     * @param manifestFilename the manifest file
+     * @return its lines
+     * @throws IOException if the manifest cannot be read
+     */
+    static List<String> readManifest(String manifestFilename) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(manifestFilename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static boolean isJob(String manifestLine) {
+        String line = manifestLine.trim();
+        return !line.isEmpty() && !line.startsWith(COMMENT_PREFIX);
+    }
+
+    private static JobResult runJob(String[] args) {
+        ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(errBytes);
+        int status;
+        try {
+            status = Main.run(args, err, false);
+        } catch (RuntimeException e) {
+            err.println(e);
+            status = JOB_CRASHED;
+        }
+        err.flush();
+        // Keep the message on the job's one line of the report
+        return new JobResult(status, errBytes.toString().trim().replaceAll("\\s*[\\r\\n]+\\s*",
+            " "));
+    }
+
+    private static JobResult getResult(Future<JobResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for jobs");
+        } catch (ExecutionException e) {
+            // runJob() catches everything but Errors
+            return new JobResult(JOB_CRASHED, String.valueOf(e.getCause()));
+        }
+    }
+
+    private static final class JobResult {
+
+        final int status;
+        final String message;
+
+        JobResult(int status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    /*
+     * Takes the place of System.out while jobs run. PrintStream locks itself for every print,
+     * so the print methods the actions use are overridden to return at once, and workers do not
+     * wait for each other to print.
+     */
+    private static final class DiscardingPrintStream extends PrintStream {
+
+        DiscardingPrintStream() {
+            super(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            });
+        }
+
+        @Override
+        public void println(String x) {
+        }
+
+        @Override
+        public void println(Object x) {
+        }
+
+        @Override
+        public void println() {
+        }
+
+        @Override
+        public void print(String s) {
+        }
+
+        @Override
+        public void print(Object obj) {
+        }
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package csse2002.block.world;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Finds paths for the builder through a world. <br> A step follows an exit, and is only possible
+ * when the heights (numbers of blocks) of the two tiles differ by at most one, as
+ * Builder.canEnter() requires. Tiles are identified by their ordinal, i.e. their index in
+ * WorldMap.getTiles(). <br>
+ *
+ * One-off queries are answered by an A* search, estimating the steps left by the Manhattan
+ * distance between tile positions. Targets asked for more than once get a distance field: the
+ * number of steps from every tile to the target, from one breadth-first search backwards from
+ * the target. A few fields are cached. When an action changes the height of a tile, only the
+ * fields whose distances could change through the exits of that tile are dropped. A change to
+ * the exits could change any field, so WorldMap.exitsChanged() replaces the whole pathfinder.
+ * <br>
+ *
+ * Use WorldMap.getPathfinder(), so that the pathfinder hears about the tiles actions change.
+ */
+public class BuilderPathfinder {
+
+    // Queries for a target before its distance field is computed
+    private static final int FIELD_QUERY_THRESHOLD = 2;
+    private static final int MAX_CACHED_FIELDS = 8;
+    private static final int MAX_COUNTED_TARGETS = 64;
+    private static final int MAX_HEIGHT_DIFFERENCE = 1;
+    private static final int UNREACHABLE = -1;
+    private static final int DIRECTION_BITS = 2;
+    private static final int DIRECTION_MASK = (0x1 << DIRECTION_BITS) - 1;
+
+    private final SparseTileArray tiles;
+    private final TileGraph graph;
+    private final int[] heights;
+    private final int[] positionsX;
+    private final int[] positionsY;
+
+    // Exits leading into tile t: (source ordinal << DIRECTION_BITS) | direction, from
+    // incomingEdges[incomingOffsets[t]] to incomingEdges[incomingOffsets[t + 1] - 1]
+    private final int[] incomingOffsets;
+    private final int[] incomingEdges;
+
+    // Distance fields by target ordinal, least recently used first
+    private final Map<Integer, int[]> distanceFields =
+        new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > MAX_CACHED_FIELDS;
+            }
+        };
+    private final Map<Integer, Integer> targetQueryCounts =
+        new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                return size() > MAX_COUNTED_TARGETS;
+            }
+        };
+
+    // A* state, valid for the tiles whose searchMarks equal searchMark
+    private int[] searchMarks = null;
+    private int[] searchSteps = null;
+    private int[] searchParents = null;
+    private int searchMark = 0;
+
+    /**
+     * Build a pathfinder over linked tiles.
+     *
+     * @param tiles the linked tiles
+     * @param graph the exits between the tiles
+     */
+    BuilderPathfinder(SparseTileArray tiles, TileGraph graph) {
+        this.tiles = tiles;
+        this.graph = graph;
+
+        int tileCount = graph.getTileCount();
+        heights = new int[tileCount];
+        positionsX = new int[tileCount];
+        positionsY = new int[tileCount];
+        incomingOffsets = new int[tileCount + 1];
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            heights[ordinal] = PackedBlockStack.getHeight(tiles.getStackAt(ordinal));
+            Position position = tiles.getPositionAt(ordinal);
+            positionsX[ordinal] = position.getX();
+            positionsY[ordinal] = position.getY();
+            for (int edge = graph.getEdgeStart(ordinal); edge < graph.getEdgeEnd(ordinal);
+                edge++) {
+                incomingOffsets[graph.getEdgeTarget(edge) + 1]++;
+            }
+        }
+
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            incomingOffsets[ordinal + 1] += incomingOffsets[ordinal];
+        }
+        incomingEdges = new int[graph.getEdgeCount()];
+        int[] nextIncoming = new int[tileCount];
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            for (int edge = graph.getEdgeStart(ordinal); edge < graph.getEdgeEnd(ordinal);
+                edge++) {
+                int target = graph.getEdgeTarget(edge);
+                incomingEdges[incomingOffsets[target] + nextIncoming[target]++] =
+                    (ordinal << DIRECTION_BITS) | graph.getEdgeDirection(edge).ordinal();
+            }
+        }
+    }
+
+    /**
+     * Find the shortest path for the builder between two positions.
+     *
+     * @param from the position to start at
+     * @param to the position to get to
+     * @return the exits to take in order (empty if from and to are the same tile), or null if
+     * there is no tile at either position or the builder cannot get from one to the other
+     */
+    public List<Direction> findPath(Position from, Position to) {
+        int fromOrdinal = tiles.getOrdinalAt(from);
+        int toOrdinal = tiles.getOrdinalAt(to);
+        if (fromOrdinal < 0 || toOrdinal < 0) {
+            return null;
+        }
+        return findPath(fromOrdinal, toOrdinal);
+    }
+
+    /**
+     * Get the number of steps the builder needs between two positions.
+     *
+     * @param from the position to start at
+     * @param to the position to get to
+     * @return the number of exits to take, or -1 if there is no tile at either position or the
+     * builder cannot get from one to the other
+     */
+    public int getDistance(Position from, Position to) {
+        List<Direction> path = findPath(from, to);
+        return path == null ? UNREACHABLE : path.size();
+    }
+
+    /**
+     * Turn a path into the MOVE_BUILDER actions that follow it.
+     *
+     * @param path the exits to take
+     * @return one action per exit
+     */
+    public static List<Action> toActions(List<Direction> path) {
+        List<Action> actions = new ArrayList<Action>();
+        for (Direction direction : path) {
+            actions.add(new Action(Action.MOVE_BUILDER, direction.getExitName()));
+        }
+        return actions;
+    }
+
+    /**
+     * Write a path as MOVE_BUILDER lines in the format of an action file, ready for
+     * Action.processActions().
+     *
+     * @param path the exits to take
+     * @param writer the writer to write the lines to
+     * @throws IOException if writing fails
+     */
+    public static void writeActions(List<Direction> path, Writer writer)
+        throws IOException {
+        for (Direction direction : path) {
+            writer.write("MOVE_BUILDER " + direction.getExitName());
+            writer.write(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Find the shortest path for the builder between two tiles.
+     *
+     * @param fromOrdinal the index in getTiles() of the tile to start at
+     * @param toOrdinal the index in getTiles() of the tile to get to
+     * @return the exits to take in order, or null if there is no such path
+     */
+    List<Direction> findPath(int fromOrdinal, int toOrdinal) {
+        int[] distances = distanceFields.get(toOrdinal);
+        if (distances == null && countQuery(toOrdinal) >= FIELD_QUERY_THRESHOLD) {
+            distances = computeDistanceField(toOrdinal);
+            distanceFields.put(toOrdinal, distances);
+        }
+        if (distances == null) {
+            return searchPath(fromOrdinal, toOrdinal);
+        }
+        if (distances[fromOrdinal] == UNREACHABLE) {
+            return null;
+        }
+
+        // Walk down the field, taking the first exit that gets one step closer
+        List<Direction> path = new ArrayList<Direction>(distances[fromOrdinal]);
+        int ordinal = fromOrdinal;
+        while (ordinal != toOrdinal) {
+            for (int edge = graph.getEdgeStart(ordinal); edge < graph.getEdgeEnd(ordinal);
+                edge++) {
+                int target = graph.getEdgeTarget(edge);
+                if (distances[target] == distances[ordinal] - 1 && canStep(ordinal, target)) {
+                    path.add(graph.getEdgeDirection(edge));
+                    ordinal = target;
+                    break;
+                }
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Record that the blocks on a tile changed. Drops the distance fields that the new height
+     * could make wrong.
+     *
+     * @param ordinal the index in getTiles() of the tile
+     */
+    void tileChanged(int ordinal) {
+        int oldHeight = heights[ordinal];
+        int newHeight = PackedBlockStack.getHeight(tiles.getStackAt(ordinal));
+        if (newHeight == oldHeight) {
+            return;
+        }
+
+        Iterator<int[]> fieldIterator = distanceFields.values().iterator();
+        while (fieldIterator.hasNext()) {
+            int[] distances = fieldIterator.next();
+            if (isFieldChangedBy(distances, ordinal, oldHeight, newHeight)) {
+                fieldIterator.remove();
+            }
+        }
+        heights[ordinal] = newHeight;
+    }
+
+    /*
+     * Whether a field can change when the tile at ordinal goes from oldHeight to newHeight.
+     * Only steps into and out of the tile change. A step that opens changes the field if it is
+     * a shortcut; a step that closes changes it if some shortest path may use it.
+     */
+    private boolean isFieldChangedBy(int[] distances, int ordinal, int oldHeight,
+        int newHeight) {
+        for (int edge = graph.getEdgeStart(ordinal); edge < graph.getEdgeEnd(ordinal); edge++) {
+            int target = graph.getEdgeTarget(edge);
+            if (isStepChanged(distances, ordinal, target, heights[target] - oldHeight,
+                heights[target] - newHeight)) {
+                return true;
+            }
+        }
+        for (int edge = incomingOffsets[ordinal]; edge < incomingOffsets[ordinal + 1]; edge++) {
+            int source = incomingEdges[edge] >>> DIRECTION_BITS;
+            if (isStepChanged(distances, source, ordinal, oldHeight - heights[source],
+                newHeight - heights[source])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isStepChanged(int[] distances, int from, int to,
+        int oldClimb, int newClimb) {
+        boolean wasOpen = Math.abs(oldClimb) <= MAX_HEIGHT_DIFFERENCE;
+        boolean isOpen = Math.abs(newClimb) <= MAX_HEIGHT_DIFFERENCE;
+        if (wasOpen == isOpen || distances[to] == UNREACHABLE) {
+            return false;
+        }
+        if (isOpen) {
+            return distances[from] == UNREACHABLE || distances[to] + 1 < distances[from];
+        }
+        return distances[from] == distances[to] + 1;
+    }
+
+    private boolean canStep(int fromOrdinal, int toOrdinal) {
+        return Math.abs(heights[toOrdinal] - heights[fromOrdinal]) <= MAX_HEIGHT_DIFFERENCE;
+    }
+
+    private int countQuery(int toOrdinal) {
+        Integer count = targetQueryCounts.get(toOrdinal);
+        int newCount = count == null ? 1 : count + 1;
+        targetQueryCounts.put(toOrdinal, newCount);
+        return newCount;
+    }
+
+    /*
+     * Steps from every tile to toOrdinal, by a breadth-first search over the incoming exits.
+     */
+    private int[] computeDistanceField(int toOrdinal) {
+        int tileCount = graph.getTileCount();
+        int[] distances = new int[tileCount];
+        java.util.Arrays.fill(distances, UNREACHABLE);
+        int[] queue = new int[tileCount];
+        int tail = 0;
+
+        distances[toOrdinal] = 0;
+        queue[tail++] = toOrdinal;
+        for (int head = 0; head < tail; head++) {
+            int ordinal = queue[head];
+            for (int edge = incomingOffsets[ordinal]; edge < incomingOffsets[ordinal + 1];
+                edge++) {
+                int source = incomingEdges[edge] >>> DIRECTION_BITS;
+                if (distances[source] == UNREACHABLE && canStep(source, ordinal)) {
+                    distances[source] = distances[ordinal] + 1;
+                    queue[tail++] = source;
+                }
+            }
+        }
+        return distances;
+    }
+
+    /*
+     * A* search from fromOrdinal to toOrdinal. Each step moves one position, so the Manhattan
+     * distance never overestimates, and a tile's steps are final once it is taken off the queue.
+     */
+    private List<Direction> searchPath(int fromOrdinal, int toOrdinal) {
+        if (searchMarks == null) {
+            searchMarks = new int[graph.getTileCount()];
+            searchSteps = new int[graph.getTileCount()];
+            searchParents = new int[graph.getTileCount()];
+        }
+        searchMark++;
+
+        // Entries are (estimated total steps << 32) | ordinal, so the queue orders by estimate
+        PriorityQueue<Long> open = new PriorityQueue<Long>();
+        visit(fromOrdinal, 0, UNREACHABLE);
+        open.add(((long) estimate(fromOrdinal, toOrdinal) << 32) | fromOrdinal);
+
+        while (!open.isEmpty()) {
+            long entry = open.poll();
+            int ordinal = (int) entry;
+            int steps = searchSteps[ordinal];
+            if ((int) (entry >>> 32) > steps + estimate(ordinal, toOrdinal)) {
+                // A shorter way to this tile was queued after this entry
+                continue;
+            }
+            if (ordinal == toOrdinal) {
+                return tracePath(toOrdinal);
+            }
+
+            for (int edge = graph.getEdgeStart(ordinal); edge < graph.getEdgeEnd(ordinal);
+                edge++) {
+                int target = graph.getEdgeTarget(edge);
+                if (!canStep(ordinal, target)) {
+                    continue;
+                }
+                if (searchMarks[target] != searchMark || steps + 1 < searchSteps[target]) {
+                    visit(target, steps + 1,
+                        (ordinal << DIRECTION_BITS) | graph.getEdgeDirection(edge).ordinal());
+                    open.add(((long) (steps + 1 + estimate(target, toOrdinal)) << 32) | target);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void visit(int ordinal, int steps, int parent) {
+        searchMarks[ordinal] = searchMark;
+        searchSteps[ordinal] = steps;
+        searchParents[ordinal] = parent;
+    }
+
+    private int estimate(int fromOrdinal, int toOrdinal) {
+        return Math.abs(positionsX[toOrdinal] - positionsX[fromOrdinal])
+            + Math.abs(positionsY[toOrdinal] - positionsY[fromOrdinal]);
+    }
+
+    private List<Direction> tracePath(int toOrdinal) {
+        List<Direction> path = new ArrayList<Direction>();
+        int ordinal = toOrdinal;
+        while (searchParents[ordinal] != UNREACHABLE) {
+            path.add(Direction.all()[searchParents[ordinal] & DIRECTION_MASK]);
+            ordinal = searchParents[ordinal] >>> DIRECTION_BITS;
+        }
+        Collections.reverse(path);
+        return path;
+    }
+}
@@ -0,0 +1,100 @@
+package csse2002.block.world;
+
+/**
+ * The four cardinal exits of a tile. <br> Directions are declared in the order "north", "east",
+ * "south", "west", which is the order exits are searched and written to a map file.
+ */
+public enum Direction {
+
+    /**
+     * The "north" exit, one step towards negative y
+     */
+    NORTH("north", 0, -1),
+    /**
+     * The "east" exit, one step towards positive x
+     */
+    EAST("east", 1, 0),
+    /**
+     * The "south" exit, one step towards positive y
+     */
+    SOUTH("south", 0, 1),
+    /**
+     * The "west" exit, one step towards negative x
+     */
+    WEST("west", -1, 0);
+
+    private static final Direction[] DIRECTIONS = values();
+
+    private final String exitName;
+    private final int deltaX;
+    private final int deltaY;
+
+    Direction(String exitName, int deltaX, int deltaY) {
+        this.exitName = exitName;
+        this.deltaX = deltaX;
+        this.deltaY = deltaY;
+    }
+
+    /**
+     * Get the name of this exit as used by Tile.getExits() and in map files.
+     *
+     * @return "north", "east", "south" or "west"
+     */
+    public String getExitName() {
+        return exitName;
+    }
+
+    /**
+     * Get the change in x coordinate when moving through this exit.
+     *
+     * @return -1, 0 or 1
+     */
+    public int getDeltaX() {
+        return deltaX;
+    }
+
+    /**
+     * Get the change in y coordinate when moving through this exit.
+     *
+     * @return -1, 0 or 1
+     */
+    public int getDeltaY() {
+        return deltaY;
+    }
+
+    /**
+     * Get the exit pointing back the other way.
+     *
+     * @return the opposite direction
+     */
+    public Direction getOpposite() {
+        return DIRECTIONS[(ordinal() + 2) % DIRECTIONS.length];
+    }
+
+    /**
+     * Get the direction for an exit name.
+     *
+     * @param exitName the exit name
+     * @return the direction, or null if exitName is not "north", "east", "south" or "west"
+     */
+    public static Direction fromExitName(String exitName) {
+        if (exitName == null) {
+            return null;
+        }
+        for (Direction direction : DIRECTIONS) {
+            if (direction.exitName.equals(exitName)) {
+                return direction;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get all directions without copying the values() array.
+     *
+     * @return the shared array of directions, which must not be modified
+     */
+    static Direction[] all() {
+        return DIRECTIONS;
+    }
+}
@@ -1,9 +1,12 @@
 package csse2002.block.world;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -17,6 +20,8 @@ public class Main {
     private static final int MAIN_PROCESS_ACTIONS_ERROR = 4;
     private static final int MAIN_WORLD_MAP_SAVE_ERROR = 5;
     private static final String INPUT_STREAM_READER_NAME = "System.in";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String FOLLOW_OPTION = "--follow";
 
     /**
      * The entry point of the application.<br>
@@ -34,70 +39,300 @@ public class Main {
      * <li> Create a new WorldMap using the input map file. If an
      * exception is thrown, print the exception to the console using System.err.println(), and then
      * exit with status 2. </li>
+     * <li> Open the action journal &lt;outputMap&gt;.journal (see ActionJournal), and replay any
+     * actions an earlier run journaled but did not save; the lines of the actions those came from
+     * are skipped below. If an exception is thrown, print the exception to the console using
+     * System.err.println(), and then exit with status 2. </li>
      * <li> Create a BufferedReader to read actions. If parameter 2 is
      * a filename, the BufferedReader should be initialised using a new FileReader. If parameter 2
      * is the string "System.in", the buffered reader should be initialised using System.in and a
      * new InputStreamReader. If an exception is thrown, print the exception to the console using
      * System.err.println, and then exit with status 3. </li>
-     * <li> Call Action.processActions() using the created BufferedReader
-     * and WorldMap. If an exception is thrown, print the exception to the console using
-     * System.err.println, and then exit with status 4. </li>
+     * <li> Call Action.processActions() using the created BufferedReader,
+     * WorldMap and journal. If an exception is thrown, print the exception to the console using
+     * System.err.println, and then exit with status 4, or with status 5 if the journal cannot be
+     * written. </li>
      * <li> Call WorldMap.saveMap() using the 3rd parameter to save the map
-     * to an output file. If an exception is thrown, print the exception to the console using
-     * System.err.println() and then exit with status 5.
+     * to an output file, then checkpoint and remove the journal. If an exception is thrown, print
+     * the exception to the console using System.err.println() and then exit with status 5.
      * </li>
      * </ol>
      *
      * To print an exception to System.err, use System.err.println(e), where e is the caught
-     * exception.
+     * exception. The journal is removed before exiting with any of the statuses 2 to 5. <br>
+     *
+     * An optional 4th parameter "--follow" (or "--follow=&lt;seconds&gt;") follows the actions
+     * file instead (see ActionFileFollower and follow()), checkpointing to the output map every
+     * 10 (or &lt;seconds&gt;) seconds. The exit statuses are the same.
      *
      * @param args the input arguments to the program
      */
     public static void main(@NotNull java.lang.String[] args) {
-        BufferedReader br = null;
-        WorldMap instanceWorldMap = null;
+        if (args.length == 4) {
+            long checkpointMillis = parseFollowOption(args[3]);
+            if (checkpointMillis > 0) {
+                follow(args, checkpointMillis);
+                return;
+            }
+        }
+
+        int status = run(args, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Perform the steps of main() (without "--follow") and return the exit status instead of
+     * exiting, so that many runs can share one JVM (see BatchRunner). Files opened by the run
+     * are closed before it returns. The journal is removed when the run fails, so only a run
+     * that is killed leaves one for the next run to replay.
+     *
+     * @param args the input map, actions and output map
+     * @param err the stream to print the usage message or the exception to
+     * @return 0 on success, or the exit status main() would exit with
+     */
+    static int run(String[] args, PrintStream err) {
+        return run(args, err, true);
+    }
+
+    /**
+     * Perform the steps of main() as run(String[], PrintStream) does, optionally without the
+     * action journal. A run without the journal neither replays nor leaves
+     * &lt;outputMap&gt;.journal, so a run that is killed must be started again from the
+     * beginning.
+     *
+     * @param args the input map, actions and output map
+     * @param err the stream to print the usage message or the exception to
+     * @param isJournaled whether to journal the actions
+     * @return 0 on success, or the exit status main() would exit with
+     */
+    static int run(String[] args, PrintStream err, boolean isJournaled) {
         if (args.length != 3) {
-            System.err.println("Usage: program inputMap actions outputMap");
-            System.exit(MAIN_ARG_LENGTH_INCORRECT);
+            err.println("Usage: program inputMap actions outputMap");
+            return MAIN_ARG_LENGTH_INCORRECT;
         }
 
+        File journalFile = isJournaled ? new File(args[2] + JOURNAL_SUFFIX) : null;
+        WorldMap instanceWorldMap = null;
         try {
             instanceWorldMap = new WorldMap(args[0]);
         } catch (Exception e) {
-            System.err.println(e);
-            System.exit(MAIN_INPUT_MAP_FILE_ERROR);
+            err.println(e);
+            discardJournal(null, journalFile);
+            return MAIN_INPUT_MAP_FILE_ERROR;
+        }
+
+        ActionJournal journal = null;
+        int consumedCount = 0;
+        if (isJournaled) {
+            try {
+                journal = new ActionJournal(journalFile.getPath(), args[0]);
+                consumedCount = journal.replay(instanceWorldMap);
+            } catch (IOException e) {
+                err.println(e);
+                discardJournal(journal, journalFile);
+                return MAIN_INPUT_MAP_FILE_ERROR;
+            }
         }
 
         String bufferReaderSourceName = args[1];
+        BufferedReader br = null;
 
         if (bufferReaderSourceName.equals(INPUT_STREAM_READER_NAME)) {
             try {
                 br = new BufferedReader(new InputStreamReader(System.in));
             } catch (Exception e) {
-                System.err.println(e);
-                System.exit(MAIN_CREATE_BUFFERED_READER_ERROR);
+                err.println(e);
+                discardJournal(journal, journalFile);
+                return MAIN_CREATE_BUFFERED_READER_ERROR;
             }
         } else {
             try {
                 br = new BufferedReader(new FileReader(bufferReaderSourceName));
             } catch (Exception e) {
-                System.err.println(e);
-                System.exit(MAIN_CREATE_BUFFERED_READER_ERROR);
+                err.println(e);
+                discardJournal(journal, journalFile);
+                return MAIN_CREATE_BUFFERED_READER_ERROR;
             }
         }
 
         try {
-            Action.processActions(br, instanceWorldMap);
+            // The replayed actions came from these lines
+            skipLines(br, consumedCount);
+        } catch (IOException e) {
+            err.println(e);
+            discardJournal(journal, journalFile);
+            closeQuietly(br);
+            return MAIN_PROCESS_ACTIONS_ERROR;
+        }
+
+        try {
+            if (journal == null) {
+                Action.processActions(br, instanceWorldMap);
+            } else {
+                Action.processActions(br, instanceWorldMap, journal);
+            }
         } catch (ActionFormatException e) {
-            System.err.println(e);
-            System.exit(MAIN_PROCESS_ACTIONS_ERROR);
+            err.println(e);
+            discardJournal(journal, journalFile);
+            return MAIN_PROCESS_ACTIONS_ERROR;
+        } catch (IOException e) {
+            // The journal could not be written
+            err.println(e);
+            discardJournal(journal, journalFile);
+            return MAIN_WORLD_MAP_SAVE_ERROR;
+        } finally {
+            if (!bufferReaderSourceName.equals(INPUT_STREAM_READER_NAME)) {
+                closeQuietly(br);
+            }
         }
 
         try {
             instanceWorldMap.saveMap(args[2]);
+            if (journal != null) {
+                journal.checkpoint();
+                journal.close();
+                journalFile.delete();
+            }
+        } catch (IOException e) {
+            err.println(e);
+            discardJournal(journal, journalFile);
+            return MAIN_WORLD_MAP_SAVE_ERROR;
+        }
+        return 0;
+    }
+
+    /*
+     * Close and remove the journal of a failed run. Its actions were never saved, so a later
+     * run must not replay them on top of its own.
+     */
+    private static void discardJournal(ActionJournal journal, File journalFile) {
+        closeQuietly(journal);
+        if (journalFile != null) {
+            journalFile.delete();
+        }
+    }
+
+    /*
+     * Read and drop up to count lines from the reader, stopping early at the end of input.
+     */
+    private static void skipLines(BufferedReader reader, int count) throws IOException {
+        int skippedCount = 0;
+        while (skippedCount < count && reader.readLine() != null) {
+            skippedCount++;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // The run has already failed
+        }
+    }
+
+    /**
+     * Follow the actions file args[1], performing each action appended to it, until the process
+     * is stopped (for example with Ctrl-C), and then checkpoint. <br>
+     *
+     * The map is loaded from the output map args[2] if it was saved by a checkpoint, with the
+     * builder put back on its tile, and following resumes after the last action in it;
+     * otherwise it is loaded from the input map args[0] and the actions file is followed from
+     * its start. Exits with status 2 if the map cannot be loaded, 3 if the actions file cannot
+     * be watched, 4 if an action is invalid or the file cannot be read, and 5 if a checkpoint
+     * fails.
+     *
+     * @param args the input map, actions file and output map
+     * @param checkpointMillis the time between checkpoints, in milliseconds
+     */
+    private static void follow(String[] args, long checkpointMillis) {
+        WorldMap instanceWorldMap = null;
+        ActionFileFollower.Checkpoint checkpoint = null;
+        try {
+            checkpoint = ActionFileFollower.readCheckpoint(args[2]);
+            if (checkpoint == null) {
+                instanceWorldMap = new WorldMap(args[0]);
+            } else {
+                instanceWorldMap = new WorldMap(args[2]);
+                instanceWorldMap.placeBuilder(checkpoint.getBuilderTileId());
+            }
+        } catch (Exception e) {
+            System.err.println(e);
+            System.exit(MAIN_INPUT_MAP_FILE_ERROR);
+        }
+
+        ActionFileFollower follower = null;
+        try {
+            follower = new ActionFileFollower(instanceWorldMap, args[1], args[2],
+                checkpoint == null ? 0 : checkpoint.getOffset());
+            follower.setCheckpointSchedule(checkpointMillis, 0);
         } catch (IOException e) {
             System.err.println(e);
-            System.exit(MAIN_WORLD_MAP_SAVE_ERROR);
+            System.exit(MAIN_CREATE_BUFFERED_READER_ERROR);
+        }
+
+        final ActionFileFollower stoppedFollower = follower;
+        final Thread followThread = Thread.currentThread();
+        Thread shutdownHook = new Thread() {
+            @Override
+            public void run() {
+                stoppedFollower.stop();
+                try {
+                    // Let the final checkpoint finish
+                    followThread.join();
+                } catch (InterruptedException e) {
+                    // Exit anyway
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        int status = 0;
+        try {
+            follower.follow();
+            follower.close();
+        } catch (ActionFormatException e) {
+            System.err.println(e);
+            status = MAIN_PROCESS_ACTIONS_ERROR;
+        } catch (IOException e) {
+            System.err.println(e);
+            status = MAIN_WORLD_MAP_SAVE_ERROR;
+        } catch (InterruptedException e) {
+            System.err.println(e);
+            status = MAIN_PROCESS_ACTIONS_ERROR;
+        }
+
+        if (status != 0) {
+            try {
+                // The hook waits for this thread, so it must not run on this exit
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down, which decides the exit status
+                return;
+            }
+            System.exit(status);
+        }
+    }
+
+    /*
+     * The checkpoint interval in milliseconds given by a "--follow" option, or -1 if option is
+     * not one.
+     */
+    private static long parseFollowOption(String option) {
+        if (option.equals(FOLLOW_OPTION)) {
+            return ActionFileFollower.DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+        }
+        if (!option.startsWith(FOLLOW_OPTION + "=")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(option.substring(FOLLOW_OPTION.length() + 1)) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 }
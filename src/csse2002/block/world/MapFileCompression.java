@@ -0,0 +1,243 @@
+package csse2002.block.world;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Opens map files that may be compressed. <br> Compressed maps are recognised by their first
+ * bytes, so a map file can be plain text, gzip, or zlib-wrapped deflate whatever its name is (a
+ * plain map always starts with a digit or '-', which neither format does). Maps are written
+ * compressed when the filename ends in ".gz" (gzip) or ".zz" (zlib-wrapped deflate). <br>
+ *
+ * Both directions stream. When writing, compression runs on its own thread: the text is handed
+ * over in chunks, so formatting the next chunk overlaps with compressing the last one.
+ */
+public final class MapFileCompression {
+
+    /**
+     * Filename suffix of gzip-compressed maps
+     */
+    public static final String GZIP_SUFFIX = ".gz";
+
+    /**
+     * Filename suffix of zlib-compressed (deflate) maps
+     */
+    public static final String DEFLATE_SUFFIX = ".zz";
+
+    private static final int GZIP_MAGIC = 0x1f8b;
+    private static final int ZLIB_CMF = 0x78;
+    private static final int CHUNK_SIZE = 0x1 << 16;
+    // Chunks waiting to be compressed; the writer blocks once this many are queued
+    private static final int MAX_QUEUED_CHUNKS = 4;
+
+    private MapFileCompression() {
+    }
+
+    /**
+     * Open a map file for reading, decompressing it if it is compressed.
+     *
+     * @param filename the map file
+     * @return the stream of map text
+     * @throws java.io.FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static InputStream openInput(String filename)
+        throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(filename), CHUNK_SIZE);
+        try {
+            in.mark(2);
+            int magic = (in.read() << 8) | in.read();
+            in.reset();
+
+            if (magic == GZIP_MAGIC) {
+                return new GZIPInputStream(in, CHUNK_SIZE);
+            }
+            if (isZlibHeader(magic)) {
+                return new InflaterInputStream(in);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a map file for writing, compressing it if the filename ends in GZIP_SUFFIX or
+     * DEFLATE_SUFFIX. Closing the stream waits for the compression thread to finish.
+     *
+     * @param filename the map file
+     * @return the stream to write map text to
+     * @throws java.io.FileNotFoundException if the file cannot be created
+     * @throws IOException if the file cannot be opened
+     */
+    public static OutputStream openOutput(String filename)
+        throws IOException {
+        OutputStream out = new FileOutputStream(filename);
+        try {
+            if (filename.endsWith(GZIP_SUFFIX)) {
+                return new BackgroundCompressingStream(new GZIPOutputStream(
+                    new BufferedOutputStream(out, CHUNK_SIZE), CHUNK_SIZE));
+            }
+            if (filename.endsWith(DEFLATE_SUFFIX)) {
+                return new BackgroundCompressingStream(new DeflaterOutputStream(
+                    new BufferedOutputStream(out, CHUNK_SIZE), new java.util.zip.Deflater(),
+                    CHUNK_SIZE));
+            }
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        return new BufferedOutputStream(out, CHUNK_SIZE);
+    }
+
+    /*
+     * A zlib header is CMF and FLG, where CMF * 256 + FLG is a multiple of 31. Only CMF 0x78
+     * (deflate with a 32K window, as java.util.zip writes) is accepted, since other CMF values
+     * include digits that a plain map can start with.
+     */
+    private static boolean isZlibHeader(int magic) {
+        return (magic >> 8) == ZLIB_CMF && magic % 31 == 0;
+    }
+
+    /*
+     * Collects written bytes into chunks, and compresses them on another thread.
+     */
+    private static class BackgroundCompressingStream extends OutputStream {
+
+        private static final byte[] END_OF_STREAM = new byte[0];
+
+        private final BlockingQueue<byte[]> chunkQueue =
+            new ArrayBlockingQueue<byte[]>(MAX_QUEUED_CHUNKS);
+        private final OutputStream compressedOut;
+        private final Thread compressorThread;
+        private volatile IOException compressFailure = null;
+
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int chunkLength = 0;
+        private boolean isClosed = false;
+
+        BackgroundCompressingStream(OutputStream compressedOut) {
+            this.compressedOut = compressedOut;
+            compressorThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runCompressor();
+                }
+            }, "map-compressor");
+            compressorThread.setDaemon(true);
+            compressorThread.start();
+        }
+
+        @Override
+        public void write(int b)
+            throws IOException {
+            if (chunkLength == chunk.length) {
+                handOver();
+            }
+            chunk[chunkLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length)
+            throws IOException {
+            while (length > 0) {
+                if (chunkLength == chunk.length) {
+                    handOver();
+                }
+                int copyLength = Math.min(length, chunk.length - chunkLength);
+                System.arraycopy(bytes, offset, chunk, chunkLength, copyLength);
+                chunkLength += copyLength;
+                offset += copyLength;
+                length -= copyLength;
+            }
+        }
+
+        @Override
+        public void close()
+            throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+
+            try {
+                if (chunkLength > 0) {
+                    handOver();
+                }
+                put(END_OF_STREAM);
+                compressorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                if (compressorThread.isAlive()) {
+                    compressorThread.interrupt();
+                }
+            }
+            if (compressFailure != null) {
+                throw compressFailure;
+            }
+        }
+
+        private void handOver()
+            throws IOException {
+            if (chunkLength < chunk.length) {
+                byte[] partial = new byte[chunkLength];
+                System.arraycopy(chunk, 0, partial, 0, chunkLength);
+                put(partial);
+            } else {
+                put(chunk);
+                chunk = new byte[CHUNK_SIZE];
+            }
+            chunkLength = 0;
+        }
+
+        private void put(byte[] bytes)
+            throws IOException {
+            try {
+                // Stop handing over chunks once the compressor has failed
+                while (!chunkQueue.offer(bytes, 10, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+                    if (compressFailure != null) {
+                        throw compressFailure;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (compressFailure != null) {
+                throw compressFailure;
+            }
+        }
+
+        private void runCompressor() {
+            try {
+                try {
+                    byte[] bytes;
+                    while ((bytes = chunkQueue.take()) != END_OF_STREAM) {
+                        compressedOut.write(bytes);
+                    }
+                } finally {
+                    compressedOut.close();
+                }
+            } catch (IOException e) {
+                compressFailure = e;
+            } catch (InterruptedException e) {
+                compressFailure = new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package csse2002.block.world;
+
+import csse2002.block.world.Block;
+import csse2002.block.world.NoExitException;
+import csse2002.block.world.Tile;
+import csse2002.block.world.TooHighException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the tiles of a world outside the Java heap. <br> Block stacks, exit ids and coordinates
+ * of every tile are kept in direct buffers, indexed by the tile id used in the map file. Tile
+ * objects are only created for the tiles that are handed out (see getTile()), so heap usage does
+ * not grow with the size of the world. <br>
+ */
+public class OffHeapTileStore implements TileStore {
+
+    private static final int NO_TILE = -1;
+
+    // Record layout (one record per tile id)
+    private static final int X_OFFSET = 0;
+    private static final int Y_OFFSET = 4;
+    private static final int ORDER_OFFSET = 8;
+    private static final int STACK_OFFSET = 12;
+    private static final int FLAGS_OFFSET = 16;
+    private static final int EXITS_OFFSET = 20;
+    private static final int RECORD_SIZE = 36;
+
+    // Position index slot layout
+    private static final int SLOT_X_OFFSET = 0;
+    private static final int SLOT_Y_OFFSET = 4;
+    private static final int SLOT_ID_OFFSET = 8;
+    private static final int SLOT_SIZE = 12;
+
+    private static final byte FLAG_PLACED = 0x1;
+
+    private static final int EXIT_COUNT = 4;
+
+    private int tileCount = 0;
+    private int placedCount = 0;
+    private ByteBuffer records = null;
+    private ByteBuffer bfsOrder = null;
+    private ByteBuffer positionIndex = null;
+    private int positionIndexMask = 0;
+    private boolean isSharingBlocks = false;
+
+    // On-heap views of the tiles that have been handed out
+    private Map<Integer, Tile> id2ViewMap = null;
+    private Map<Tile, Integer> view2IdMap = null;
+    private Map<Integer, Boolean> linkedViewMap = null;
+
+    /**
+     * Allocate a store for tileCount tiles, with ids between 0 and tileCount - 1. Every tile
+     * starts with no blocks and no exits.
+     *
+     * @param tileCount the number of tiles in the world
+     */
+    public OffHeapTileStore(int tileCount) {
+        this.tileCount = tileCount;
+        records = ByteBuffer.allocateDirect(Math.max(1, tileCount) * RECORD_SIZE)
+            .order(ByteOrder.nativeOrder());
+        bfsOrder = ByteBuffer.allocateDirect(Math.max(1, tileCount) * 4)
+            .order(ByteOrder.nativeOrder());
+
+        for (int id = 0; id < tileCount; id++) {
+            for (int i = 0; i < EXIT_COUNT; i++) {
+                records.putInt(recordOffset(id) + EXITS_OFFSET + i * 4, NO_TILE);
+            }
+            records.putInt(recordOffset(id) + ORDER_OFFSET, NO_TILE);
+        }
+        resetViews();
+    }
+
+    /**
+     * Get the number of tiles this store was allocated for, including unreachable tiles.
+     *
+     * @return the number of tiles
+     */
+    public int getCapacity() {
+        return tileCount;
+    }
+
+    /**
+     * Get the number of tiles reachable from the starting tile after link() has been called.
+     *
+     * @return the number of placed tiles
+     */
+    public int getPlacedCount() {
+        return placedCount;
+    }
+
+    @Override
+    public int getTileCount() {
+        return placedCount;
+    }
+
+    @Override
+    public int lookupOrdinal(int x, int y) {
+        int tileId = lookup(x, y);
+        return tileId == NO_TILE ? NO_TILE : getOrdinal(tileId);
+    }
+
+    @Override
+    public Tile getTileAt(int ordinal) {
+        return getView(getTileIdAt(ordinal));
+    }
+
+    @Override
+    public Tile getExistingTileAt(int ordinal) {
+        return getExistingView(getTileIdAt(ordinal));
+    }
+
+    @Override
+    public int getStackAt(int ordinal) {
+        return getStack(getTileIdAt(ordinal));
+    }
+
+    @Override
+    public int getExitOrdinal(int ordinal, Direction direction) {
+        int exitId = getExit(getTileIdAt(ordinal), direction);
+        return exitId == NO_TILE ? NO_TILE : getOrdinal(exitId);
+    }
+
+    @Override
+    public Position getPositionAt(int ordinal) {
+        return getPosition(getTileIdAt(ordinal));
+    }
+
+    /**
+     * Append a block to the stack of the given tile.
+     *
+     * @param tileId the tile id
+     * @param blockType one of "soil", "grass", "stone" or "wood"
+     * @return false if the type is unknown or the stack is already full
+     */
+    public boolean addBlock(int tileId, String blockType) {
+        int stack = PackedBlockStack.push(getStack(tileId), blockType);
+        if (stack == PackedBlockStack.INVALID) {
+            return false;
+        }
+        setStack(tileId, stack);
+        return true;
+    }
+
+    /**
+     * Replace the stored block stack of a tile.
+     *
+     * @param tileId the tile id
+     * @param stack the packed stack (see PackedBlockStack)
+     */
+    public void setStack(int tileId, int stack) {
+        records.putInt(recordOffset(tileId) + STACK_OFFSET, stack);
+    }
+
+    /**
+     * Get the stored block stack of a tile.
+     *
+     * @param tileId the tile id
+     * @return the packed stack (see PackedBlockStack)
+     */
+    public int getStack(int tileId) {
+        return records.getInt(recordOffset(tileId) + STACK_OFFSET);
+    }
+
+    /**
+     * Set whether views are built from the shared Block instances of PackedBlockStack.
+     *
+     * @param isSharingBlocks true to share block instances between views
+     */
+    public void setSharingBlocks(boolean isSharingBlocks) {
+        this.isSharingBlocks = isSharingBlocks;
+    }
+
+    /**
+     * Set the exit of a tile in the given direction.
+     *
+     * @param tileId the tile id
+     * @param direction the exit direction
+     * @param targetTileId the id of the tile that the exit leads to
+     */
+    public void setExit(int tileId, Direction direction, int targetTileId) {
+        records.putInt(recordOffset(tileId) + EXITS_OFFSET + direction.ordinal() * 4,
+            targetTileId);
+    }
+
+    /**
+     * Get the tile id that the exit in the given direction leads to.
+     *
+     * @param tileId the tile id
+     * @param direction the exit direction
+     * @return the target tile id or -1 if there is no such exit
+     */
+    public int getExit(int tileId, Direction direction) {
+        return records.getInt(recordOffset(tileId) + EXITS_OFFSET + direction.ordinal() * 4);
+    }
+
+    /**
+     * Get the number of blocks stored for a tile.
+     *
+     * @param tileId the tile id
+     * @return the stack height
+     */
+    public int getHeight(int tileId) {
+        return PackedBlockStack.getHeight(getStack(tileId));
+    }
+
+    /**
+     * Get the block type at index of the stored stack of a tile (0 is the bottom).
+     *
+     * @param tileId the tile id
+     * @param index the block index
+     * @return the block type name
+     */
+    public String getBlockType(int tileId, int index) {
+        return PackedBlockStack.getBlockType(getStack(tileId), index);
+    }
+
+    /**
+     * Get the id of the tile at ordinal in breadth-first-search order.
+     *
+     * @param ordinal the index in getTiles() order
+     * @return the tile id
+     */
+    public int getTileIdAt(int ordinal) {
+        return bfsOrder.getInt(ordinal * 4);
+    }
+
+    /**
+     * Get the index of a tile in breadth-first-search order.
+     *
+     * @param tileId the tile id
+     * @return the ordinal or -1 if the tile is not reachable from the starting tile
+     */
+    public int getOrdinal(int tileId) {
+        return records.getInt(recordOffset(tileId) + ORDER_OFFSET);
+    }
+
+    /**
+     * Get the position of a placed tile.
+     *
+     * @param tileId the tile id
+     * @return the position of the tile
+     */
+    public Position getPosition(int tileId) {
+        return new Position(records.getInt(recordOffset(tileId) + X_OFFSET),
+            records.getInt(recordOffset(tileId) + Y_OFFSET));
+    }
+
+    /**
+     * Give every tile reachable from startingTileId a position and a breadth-first-search
+     * ordinal, following the rules of SparseTileArray.addLinkedTiles(). <br> The search order
+     * expands the "north", "east", "south" and "west" exits of each tile in turn.
+     *
+     * @param startingTileId the id of the starting tile
+     * @param startingX the x coordinate of the starting tile
+     * @param startingY the y coordinate of the starting tile
+     * @throws WorldMapInconsistentException if the tiles are not geometrically consistent
+     */
+    public void link(int startingTileId, int startingX, int startingY)
+        throws WorldMapInconsistentException {
+        int capacity = 2;
+        while (capacity < tileCount * 2) {
+            capacity <<= 1;
+        }
+        positionIndex = ByteBuffer.allocateDirect(capacity * SLOT_SIZE)
+            .order(ByteOrder.nativeOrder());
+        positionIndexMask = capacity - 1;
+        for (int slot = 0; slot < capacity; slot++) {
+            positionIndex.putInt(slot * SLOT_SIZE + SLOT_ID_OFFSET, NO_TILE);
+        }
+        placedCount = 0;
+        resetViews();
+
+        place(startingTileId, startingX, startingY);
+
+        // The ordinal list doubles as the search queue
+        for (int head = 0; head < placedCount; head++) {
+            int tileId = getTileIdAt(head);
+            int x = records.getInt(recordOffset(tileId) + X_OFFSET);
+            int y = records.getInt(recordOffset(tileId) + Y_OFFSET);
+
+            for (Direction direction : Direction.all()) {
+                int childId = getExit(tileId, direction);
+                if (childId == NO_TILE) {
+                    continue;
+                }
+
+                int childX = x + direction.getDeltaX();
+                int childY = y + direction.getDeltaY();
+
+                if (isPlaced(childId)) {
+                    // Check is the position match
+                    if (records.getInt(recordOffset(childId) + X_OFFSET) != childX
+                        || records.getInt(recordOffset(childId) + Y_OFFSET) != childY) {
+                        resetStateAndThrowException();
+                    }
+                } else if (lookup(childX, childY) != NO_TILE) {
+                    // Another tile already occupies this position
+                    resetStateAndThrowException();
+                } else {
+                    place(childId, childX, childY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the id of the tile at (x, y).
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the tile id or -1 if no tile was placed there
+     */
+    public int lookup(int x, int y) {
+        if (positionIndex == null) {
+            return NO_TILE;
+        }
+        int slot = hash(x, y) & positionIndexMask;
+        while (true) {
+            int id = positionIndex.getInt(slot * SLOT_SIZE + SLOT_ID_OFFSET);
+            if (id == NO_TILE) {
+                return NO_TILE;
+            }
+            if (positionIndex.getInt(slot * SLOT_SIZE + SLOT_X_OFFSET) == x
+                && positionIndex.getInt(slot * SLOT_SIZE + SLOT_Y_OFFSET) == y) {
+                return id;
+            }
+            slot = (slot + 1) & positionIndexMask;
+        }
+    }
+
+    /**
+     * Get an on-heap view of a placed tile, with all of its exits linked. <br> Tiles reached
+     * through those exits are created without their own exits until they are linked themselves,
+     * either by getView() or linkView().
+     *
+     * @param tileId the tile id
+     * @return the tile view
+     */
+    public Tile getView(int tileId) {
+        linkView(tileId);
+        return id2ViewMap.get(tileId);
+    }
+
+    @Override
+    public int getOrdinalOfView(Tile tile) {
+        Integer tileId = view2IdMap.get(tile);
+        return tileId == null ? NO_TILE : getOrdinal(tileId);
+    }
+
+    @Override
+    public void linkView(Tile tile) {
+        Integer tileId = view2IdMap.get(tile);
+        if (tileId != null) {
+            linkView(tileId);
+        }
+    }
+
+    /**
+     * Get the view of a tile if it has already been created.
+     *
+     * @param tileId the tile id
+     * @return the view, or null if the tile has never been handed out
+     */
+    public Tile getExistingView(int tileId) {
+        return id2ViewMap.get(tileId);
+    }
+
+    /**
+     * Check whether the tile can be built from its stored blocks (see Tile(List)).
+     *
+     * @param tileId the tile id
+     * @return false if the Tile constructor rejects the stored stack
+     */
+    public boolean isStackValid(int tileId) {
+        try {
+            new Tile(createBlocks(tileId));
+        } catch (TooHighException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Create the Block instances of the stored stack of a tile.
+     *
+     * @param tileId the tile id
+     * @return a new list of blocks from bottom to top
+     */
+    public List<Block> createBlocks(int tileId) {
+        return PackedBlockStack.unpack(getStack(tileId), isSharingBlocks);
+    }
+
+    private void linkView(int tileId) {
+        Tile view = createView(tileId);
+        if (linkedViewMap.containsKey(tileId)) {
+            return;
+        }
+        linkedViewMap.put(tileId, Boolean.TRUE);
+
+        for (Direction direction : Direction.all()) {
+            int childId = getExit(tileId, direction);
+            if (childId == NO_TILE) {
+                continue;
+            }
+            try {
+                view.addExit(direction.getExitName(), createView(childId));
+            } catch (NoExitException e) {
+
+            }
+        }
+    }
+
+    private Tile createView(int tileId) {
+        Tile view = id2ViewMap.get(tileId);
+        if (view != null) {
+            return view;
+        }
+
+        try {
+            view = new Tile(createBlocks(tileId));
+        } catch (TooHighException e) {
+            // Stacks are validated when the store is loaded
+            view = new Tile();
+        }
+        id2ViewMap.put(tileId, view);
+        view2IdMap.put(view, tileId);
+        return view;
+    }
+
+    private void resetViews() {
+        id2ViewMap = new HashMap<Integer, Tile>();
+        view2IdMap = new IdentityHashMap<Tile, Integer>();
+        linkedViewMap = new HashMap<Integer, Boolean>();
+    }
+
+    private void place(int tileId, int x, int y) {
+        int offset = recordOffset(tileId);
+        records.putInt(offset + X_OFFSET, x);
+        records.putInt(offset + Y_OFFSET, y);
+        records.putInt(offset + ORDER_OFFSET, placedCount);
+        records.put(offset + FLAGS_OFFSET, (byte) (records.get(offset + FLAGS_OFFSET) | FLAG_PLACED));
+        bfsOrder.putInt(placedCount * 4, tileId);
+        placedCount++;
+
+        int slot = hash(x, y) & positionIndexMask;
+        while (positionIndex.getInt(slot * SLOT_SIZE + SLOT_ID_OFFSET) != NO_TILE) {
+            slot = (slot + 1) & positionIndexMask;
+        }
+        positionIndex.putInt(slot * SLOT_SIZE + SLOT_X_OFFSET, x);
+        positionIndex.putInt(slot * SLOT_SIZE + SLOT_Y_OFFSET, y);
+        positionIndex.putInt(slot * SLOT_SIZE + SLOT_ID_OFFSET, tileId);
+    }
+
+    private boolean isPlaced(int tileId) {
+        return (records.get(recordOffset(tileId) + FLAGS_OFFSET) & FLAG_PLACED) != 0;
+    }
+
+    private void resetStateAndThrowException()
+        throws WorldMapInconsistentException {
+        for (int id = 0; id < tileCount; id++) {
+            int offset = recordOffset(id);
+            records.put(offset + FLAGS_OFFSET, (byte) (records.get(offset + FLAGS_OFFSET) & ~FLAG_PLACED));
+            records.putInt(offset + ORDER_OFFSET, NO_TILE);
+        }
+        positionIndex = null;
+        placedCount = 0;
+        throw new WorldMapInconsistentException();
+    }
+
+    private static int recordOffset(int tileId) {
+        return tileId * RECORD_SIZE;
+    }
+
+    private static int hash(int x, int y) {
+        int h = x * 0x9E3779B1 + y * 0x85EBCA6B;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,208 @@
+package csse2002.block.world;
+
+import csse2002.block.world.Block;
+import csse2002.block.world.GrassBlock;
+import csse2002.block.world.SoilBlock;
+import csse2002.block.world.StoneBlock;
+import csse2002.block.world.WoodBlock;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs the block stack of a tile into a single int. <br> The lowest 4 bits hold the height of
+ * the stack, followed by 2 bits per block from the bottom of the stack to the top. A tile holds at
+ * most 8 blocks of 4 types, so every stack fits in 20 bits. <br>
+ */
+public final class PackedBlockStack {
+
+    /**
+     * The packed value of a stack with no blocks
+     */
+    public static final int EMPTY = 0;
+
+    /**
+     * The value returned when a stack cannot be packed
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * The maximum number of blocks in a packed stack
+     */
+    public static final int MAX_BLOCKS = 8;
+
+    private static final int HEIGHT_BITS = 4;
+    private static final int HEIGHT_MASK = (0x1 << HEIGHT_BITS) - 1;
+    private static final int BITS_PER_BLOCK = 2;
+    private static final int BLOCK_MASK = (0x1 << BITS_PER_BLOCK) - 1;
+
+    private static final String[] BLOCK_TYPES = {"soil", "grass", "stone", "wood"};
+
+    // Blocks carry no state, so one instance of each type can be shared by every tile
+    private static final Block[] SHARED_BLOCKS = {new SoilBlock(), new GrassBlock(),
+        new StoneBlock(), new WoodBlock()};
+
+    private PackedBlockStack() {
+    }
+
+    /**
+     * Get the code of a block type.
+     *
+     * @param blockType one of "soil", "grass", "stone" or "wood"
+     * @return the block code between 0 and 3, or -1 if the type is unknown
+     */
+    public static int blockCodeOf(String blockType) {
+        for (int i = 0; i < BLOCK_TYPES.length; i++) {
+            if (BLOCK_TYPES[i].equals(blockType)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the block type of a block code.
+     *
+     * @param blockCode the block code between 0 and 3
+     * @return the block type name
+     */
+    public static String blockTypeOf(int blockCode) {
+        return BLOCK_TYPES[blockCode];
+    }
+
+    /**
+     * Get a block of the given code.
+     *
+     * @param blockCode the block code between 0 and 3
+     * @param isShared whether to return the shared instance instead of a new block
+     * @return the block
+     */
+    public static Block createBlock(int blockCode, boolean isShared) {
+        if (isShared) {
+            return SHARED_BLOCKS[blockCode];
+        }
+
+        switch (blockCode) {
+            case 0:
+                return new SoilBlock();
+            case 1:
+                return new GrassBlock();
+            case 2:
+                return new StoneBlock();
+            default:
+                return new WoodBlock();
+        }
+    }
+
+    /**
+     * Put a block on top of a packed stack.
+     *
+     * @param stack the packed stack
+     * @param blockType one of "soil", "grass", "stone" or "wood"
+     * @return the new packed stack, or INVALID if the type is unknown or the stack is full
+     */
+    public static int push(int stack, String blockType) {
+        int blockCode = blockCodeOf(blockType);
+        int height = getHeight(stack);
+        if (stack == INVALID || blockCode < 0 || height >= MAX_BLOCKS) {
+            return INVALID;
+        }
+
+        int blockShift = HEIGHT_BITS + height * BITS_PER_BLOCK;
+        return ((stack & ~HEIGHT_MASK) | (blockCode << blockShift)) | (height + 1);
+    }
+
+    /**
+     * Pack a list of blocks.
+     *
+     * @param blocks the blocks from bottom to top
+     * @return the packed stack, or INVALID if there are too many blocks or an unknown type
+     */
+    public static int pack(List<Block> blocks) {
+        int stack = EMPTY;
+        for (Block block : blocks) {
+            stack = push(stack, block.getBlockType());
+            if (stack == INVALID) {
+                return INVALID;
+            }
+        }
+        return stack;
+    }
+
+    /**
+     * Create the blocks of a packed stack.
+     *
+     * @param stack the packed stack
+     * @param isShared whether to use the shared block instances
+     * @return a new list of blocks from bottom to top
+     */
+    public static List<Block> unpack(int stack, boolean isShared) {
+        int height = getHeight(stack);
+        List<Block> blocks = new ArrayList<Block>(height);
+        for (int i = 0; i < height; i++) {
+            blocks.add(createBlock(getBlockCode(stack, i), isShared));
+        }
+        return blocks;
+    }
+
+    /**
+     * Get the number of blocks in a packed stack.
+     *
+     * @param stack the packed stack
+     * @return the height of the stack
+     */
+    public static int getHeight(int stack) {
+        return stack & HEIGHT_MASK;
+    }
+
+    /**
+     * Get the code of the block at index (0 is the bottom of the stack).
+     *
+     * @param stack the packed stack
+     * @param index the block index
+     * @return the block code between 0 and 3
+     */
+    public static int getBlockCode(int stack, int index) {
+        return (stack >>> (HEIGHT_BITS + index * BITS_PER_BLOCK)) & BLOCK_MASK;
+    }
+
+    /**
+     * Get the type of the block at index (0 is the bottom of the stack).
+     *
+     * @param stack the packed stack
+     * @param index the block index
+     * @return the block type name
+     */
+    public static String getBlockType(int stack, int index) {
+        return BLOCK_TYPES[getBlockCode(stack, index)];
+    }
+
+    /**
+     * Get the type of the top block.
+     *
+     * @param stack the packed stack
+     * @return the block type name, or null if the stack is empty
+     */
+    public static String getTopBlockType(int stack) {
+        int height = getHeight(stack);
+        if (height == 0) {
+            return null;
+        }
+        return getBlockType(stack, height - 1);
+    }
+
+    /**
+     * Append the comma separated block types of a packed stack, as written in a map file.
+     *
+     * @param stBuilder the builder to append to
+     * @param stack the packed stack
+     */
+    public static void appendBlockTypes(StringBuilder stBuilder, int stack) {
+        int height = getHeight(stack);
+        for (int i = 0; i < height; i++) {
+            if (i > 0) {
+                stBuilder.append(',');
+            }
+            stBuilder.append(BLOCK_TYPES[getBlockCode(stack, i)]);
+        }
+    }
+}
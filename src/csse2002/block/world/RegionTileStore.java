@@ -0,0 +1,838 @@
+package csse2002.block.world;
+
+import csse2002.block.world.NoExitException;
+import csse2002.block.world.Tile;
+import csse2002.block.world.TooHighException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stores a world as region files, loading regions on demand. <br> The world is split into square
+ * regions of regionSize x regionSize coordinates, each kept in its own file in a directory. A
+ * region is loaded when one of its tiles is looked up, and the least recently used regions are
+ * evicted once the resident regions exceed the memory budget. The budget covers the packed tiles
+ * of the resident regions, the Tile views handed out for them, and the record kept of each view of
+ * an evicted region (see below), so a caller walking getTileAt() across the world only keeps the
+ * regions that fit. Regions whose tiles were changed are written back when they are evicted and on
+ * flush(). <br> The directory contains:
+ * <ul>
+ * <li> regions.txt: "region:&lt;regionSize&gt;" and "total:&lt;number of tiles&gt;" </li>
+ * <li> order.dat: the (x, y) position of each tile, in getTiles() order </li>
+ * <li> region_&lt;regionX&gt;_&lt;regionY&gt;.dat: the ordinal, block stack and exits of each
+ * tile in one region </li>
+ * </ul>
+ * Regions without a file hold no tiles; they are never loaded, and take no part in eviction. <br>
+ * When a region is evicted, its views lose their exits, but a view that is still held keeps its
+ * blocks: looking its tile up again returns the same Tile object, linked again, and changes made
+ * to it in the meantime are written back then or by flush(). A view that is dropped while its
+ * region is evicted takes any such changes with it, and its record is forgotten once the view has
+ * been garbage collected; until then the record still counts against the budget. If the regions
+ * that must stay leave no room in the budget for the records, the oldest records are dropped, and
+ * their views are not reattached either: looking their tiles up gives new Tile objects. The
+ * region of the tile most recently passed to linkView() (the builder's tile) and the regions
+ * around it are never evicted.
+ */
+public class RegionTileStore implements TileStore {
+
+    /**
+     * Region width and height used when none is given
+     */
+    public static final int DEFAULT_REGION_SIZE = 64;
+
+    /**
+     * Memory budget for resident regions used when none is given, in bytes
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 0x1L << 26;
+
+    private static final String HEADER_FILE_NAME = "regions.txt";
+    private static final String ORDER_FILE_NAME = "order.dat";
+    private static final String REGION_FILE_PREFIX = "region_";
+    private static final String REGION_FILE_SUFFIX = ".dat";
+
+    private static final String RegionSizeRxp = "^region:([0-9]+)$";
+    private static Pattern patternRegionSize = Pattern.compile(RegionSizeRxp);
+    private static final String TotalRxp = "^total:([0-9]+)$";
+    private static Pattern patternTotal = Pattern.compile(TotalRxp);
+    private static final String RegionFileRxp = "^region_(-?[0-9]+)_(-?[0-9]+)\\.dat$";
+    private static Pattern patternRegionFile = Pattern.compile(RegionFileRxp);
+
+    private static final int NO_TILE = -1;
+    private static final int ORDER_BLOCK_SIZE = 1024;
+    // A tile and its exits span at most three regions, which must stay while it is linked
+    private static final int MIN_RECENT_REGIONS = 3;
+
+    // Ordinal, stack, view reference, exit mask and linked flag of one slot
+    static final int BYTES_PER_SLOT = 4 + 4 + 8 + 1 + 1;
+    // A view handed out: the Tile, its block list, its exit map with up to four exits, and its
+    // entry in view2PositionMap (estimated)
+    static final int BYTES_PER_VIEW = 384;
+    // The record of a view of an evicted region: the weak reference and its map entry (estimated)
+    static final int BYTES_PER_DETACHED_VIEW = 104;
+
+    private File directory = null;
+    private int regionSize = DEFAULT_REGION_SIZE;
+    private int tileCount = 0;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private boolean isSharingBlocks = false;
+
+    private Map<Long, Region> residentRegionMap = null;
+    // Slots and views of the resident regions
+    private long residentSlotCount = 0;
+    private long residentViewCount = 0;
+    private Map<Tile, Long> view2PositionMap = null;
+    // Keys of the regions that have a file
+    private Set<Long> regionKeySet = null;
+    // Stands in for every region without a file
+    private Region emptyRegion = null;
+    // Views of evicted regions that may still be held, by packed position
+    private Map<Long, DetachedView> detachedViewMap = null;
+    private ReferenceQueue<Tile> detachedViewQueue = null;
+    private long pinnedRegionKey = 0;
+    private boolean isPinned = false;
+
+    private RandomAccessFile orderFile = null;
+    private int cachedOrderBlock = NO_TILE;
+    private long[] cachedOrderPositions = new long[ORDER_BLOCK_SIZE];
+
+    /**
+     * Open the region files in a directory written by writeRegions().
+     *
+     * @param directoryName the directory holding the region files
+     * @throws FileNotFoundException if the directory or its header does not exist
+     * @throws IOException if the header cannot be read or is incorrectly formatted
+     */
+    public RegionTileStore(String directoryName)
+        throws IOException {
+        directory = new File(directoryName);
+
+        BufferedReader br = new BufferedReader(
+            new FileReader(new File(directory, HEADER_FILE_NAME)));
+        try {
+            Matcher matcherRegionSize = patternRegionSize.matcher(readHeaderLine(br));
+            Matcher matcherTotal = patternTotal.matcher(readHeaderLine(br));
+            if (!matcherRegionSize.find() || !matcherTotal.find()) {
+                throw new IOException("Invalid region header");
+            }
+            regionSize = Integer.parseInt(matcherRegionSize.group(1));
+            tileCount = Integer.parseInt(matcherTotal.group(1));
+            if (regionSize <= 0) {
+                throw new IOException("Invalid region size");
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid region header");
+        } finally {
+            br.close();
+        }
+
+        orderFile = new RandomAccessFile(new File(directory, ORDER_FILE_NAME), "r");
+        initRegionState();
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + directoryName);
+        }
+        for (File file : files) {
+            Matcher matcherRegionFile = patternRegionFile.matcher(file.getName());
+            if (matcherRegionFile.find()) {
+                regionKeySet.add(regionKey(Integer.parseInt(matcherRegionFile.group(1)),
+                    Integer.parseInt(matcherRegionFile.group(2))));
+            }
+        }
+    }
+
+    /**
+     * Write the tiles of a sparse tile array as region files. The regions are built and written
+     * one at a time, so only the array and one region need to fit in memory.
+     *
+     * @param directoryName the directory to write to, created if needed
+     * @param regionSize the width and height of each region
+     * @param tiles the tiles to write
+     * @throws IOException if the files cannot be written
+     */
+    public static void writeRegions(String directoryName,
+        int regionSize,
+        SparseTileArray tiles)
+        throws IOException {
+        File directory = new File(directoryName);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directoryName);
+        }
+
+        // Remove region files of a previous world
+        File[] oldFiles = directory.listFiles();
+        if (oldFiles != null) {
+            for (File oldFile : oldFiles) {
+                if (oldFile.getName().startsWith(REGION_FILE_PREFIX)) {
+                    oldFile.delete();
+                }
+            }
+        }
+
+        // Each ordinal tagged with the index of its region, so that sorting groups them by region
+        int tileCount = tiles.getTileCount();
+        long[] regionOrdinals = new long[tileCount];
+        Map<Long, Integer> regionIndexMap = new HashMap<Long, Integer>();
+        List<Long> regionKeys = new ArrayList<Long>();
+        DataOutputStream orderOutput = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(directory, ORDER_FILE_NAME))));
+        try {
+            for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+                Position position = tiles.getPositionAt(ordinal);
+                orderOutput.writeInt(position.getX());
+                orderOutput.writeInt(position.getY());
+
+                long key = regionKey(Math.floorDiv(position.getX(), regionSize),
+                    Math.floorDiv(position.getY(), regionSize));
+                Integer regionIndex = regionIndexMap.get(key);
+                if (regionIndex == null) {
+                    regionIndex = regionKeys.size();
+                    regionIndexMap.put(key, regionIndex);
+                    regionKeys.add(key);
+                }
+                regionOrdinals[ordinal] = ((long) regionIndex << 32) | ordinal;
+            }
+        } finally {
+            orderOutput.close();
+        }
+        Arrays.sort(regionOrdinals);
+
+        // Build and write one region at a time
+        RegionTileStore regionStore = new RegionTileStore(directory, regionSize, tileCount);
+        int regionStart = 0;
+        while (regionStart < tileCount) {
+            int regionIndex = (int) (regionOrdinals[regionStart] >>> 32);
+            long key = regionKeys.get(regionIndex);
+            Region region = regionStore.new Region(unpackX(key), unpackY(key), true);
+
+            int regionEnd = regionStart;
+            while (regionEnd < tileCount
+                && (int) (regionOrdinals[regionEnd] >>> 32) == regionIndex) {
+                int ordinal = (int) regionOrdinals[regionEnd];
+                Position position = tiles.getPositionAt(ordinal);
+                byte exitMask = 0;
+                for (Direction direction : Direction.all()) {
+                    if (tiles.getExitOrdinal(ordinal, direction) >= 0) {
+                        exitMask |= (byte) (0x1 << direction.ordinal());
+                    }
+                }
+
+                int slot = regionStore.slotOf(position.getX(), position.getY());
+                region.ordinals[slot] = ordinal;
+                region.stacks[slot] = tiles.getStackAt(ordinal);
+                region.exitMasks[slot] = exitMask;
+                regionEnd++;
+            }
+            regionStore.writeRegion(region);
+            regionStart = regionEnd;
+        }
+
+        BufferedWriter bw = new BufferedWriter(
+            new FileWriter(new File(directory, HEADER_FILE_NAME)));
+        try {
+            bw.write("region:" + regionSize);
+            bw.newLine();
+            bw.write("total:" + tileCount);
+            bw.newLine();
+        } finally {
+            bw.close();
+        }
+    }
+
+    /*
+     * Create an empty store, used while writing regions.
+     */
+    private RegionTileStore(File directory, int regionSize, int tileCount) {
+        this.directory = directory;
+        this.regionSize = regionSize;
+        this.tileCount = tileCount;
+        initRegionState();
+    }
+
+    private void initRegionState() {
+        residentRegionMap = new LinkedHashMap<Long, Region>(16, 0.75f, true);
+        view2PositionMap = new IdentityHashMap<Tile, Long>();
+        regionKeySet = new HashSet<Long>();
+        emptyRegion = new Region(0, 0, false);
+        detachedViewMap = new LinkedHashMap<Long, DetachedView>();
+        detachedViewQueue = new ReferenceQueue<Tile>();
+    }
+
+    /**
+     * Set the number of bytes resident regions may use before the least recently used regions
+     * are evicted.
+     *
+     * @param memoryBudget the budget in bytes
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evictRegions();
+    }
+
+    /**
+     * Set whether views are built from the shared Block instances of PackedBlockStack.
+     *
+     * @param isSharingBlocks true to share block instances between views
+     */
+    public void setSharingBlocks(boolean isSharingBlocks) {
+        this.isSharingBlocks = isSharingBlocks;
+    }
+
+    /**
+     * Get the number of regions currently loaded.
+     *
+     * @return the number of resident regions
+     */
+    public int getResidentRegionCount() {
+        return residentRegionMap.size();
+    }
+
+    /**
+     * Write every resident region whose tiles have changed back to its file, along with the
+     * regions of held views that were changed after their region was evicted.
+     *
+     * @throws IOException if a region file cannot be written
+     */
+    public void flush()
+        throws IOException {
+        pollDetachedViews();
+        List<Long> changedPositions = new ArrayList<Long>();
+        for (DetachedView detachedView : detachedViewMap.values()) {
+            Tile view = detachedView.get();
+            if (view != null && PackedBlockStack.pack(view.getBlocks()) != detachedView.stack) {
+                changedPositions.add(detachedView.position);
+            }
+        }
+        // Reattaching a view copies its blocks into its region
+        for (long position : changedPositions) {
+            int x = unpackX(position);
+            int y = unpackY(position);
+            try {
+                createView(getRegion(x, y), x, y);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        for (Region region : residentRegionMap.values()) {
+            syncViews(region);
+            if (region.isDirty) {
+                writeRegion(region);
+            }
+        }
+    }
+
+    /**
+     * Flush all changed regions and close the order file.
+     *
+     * @throws IOException if a region file cannot be written
+     */
+    public void close()
+        throws IOException {
+        flush();
+        orderFile.close();
+    }
+
+    @Override
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    @Override
+    public int lookupOrdinal(int x, int y) {
+        Region region = getRegion(x, y);
+        int ordinal = region.ordinals == null ? NO_TILE : region.ordinals[slotOf(x, y)];
+        evictRegions();
+        return ordinal;
+    }
+
+    @Override
+    public Tile getTileAt(int ordinal) {
+        long position = readPosition(ordinal);
+        int x = unpackX(position);
+        int y = unpackY(position);
+        Region region = getRegion(x, y);
+        Tile view = linkView(region, x, y);
+        evictRegions();
+        return view;
+    }
+
+    @Override
+    public Tile getExistingTileAt(int ordinal) {
+        long position = readPosition(ordinal);
+        Region region = getRegion(unpackX(position), unpackY(position));
+        Tile view = region.views[slotOf(unpackX(position), unpackY(position))];
+        evictRegions();
+        return view;
+    }
+
+    @Override
+    public int getStackAt(int ordinal) {
+        long position = readPosition(ordinal);
+        Region region = getRegion(unpackX(position), unpackY(position));
+        int stack = region.stacks[slotOf(unpackX(position), unpackY(position))];
+        evictRegions();
+        return stack;
+    }
+
+    @Override
+    public int getExitOrdinal(int ordinal, Direction direction) {
+        long position = readPosition(ordinal);
+        int x = unpackX(position);
+        int y = unpackY(position);
+        Region region = getRegion(x, y);
+        if ((region.exitMasks[slotOf(x, y)] & (0x1 << direction.ordinal())) == 0) {
+            evictRegions();
+            return NO_TILE;
+        }
+        return lookupOrdinal(x + direction.getDeltaX(), y + direction.getDeltaY());
+    }
+
+    @Override
+    public Position getPositionAt(int ordinal) {
+        long position = readPosition(ordinal);
+        return new Position(unpackX(position), unpackY(position));
+    }
+
+    @Override
+    public int getOrdinalOfView(Tile tile) {
+        Long position = view2PositionMap.get(tile);
+        if (position == null) {
+            return NO_TILE;
+        }
+        return lookupOrdinal(unpackX(position), unpackY(position));
+    }
+
+    @Override
+    public void linkView(Tile tile) {
+        Long position = view2PositionMap.get(tile);
+        if (position == null) {
+            return;
+        }
+
+        int x = unpackX(position);
+        int y = unpackY(position);
+        pinnedRegionKey = regionKey(regionOf(x), regionOf(y));
+        isPinned = true;
+        linkView(getRegion(x, y), x, y);
+        evictRegions();
+    }
+
+    private Tile linkView(Region region, int x, int y) {
+        int slot = slotOf(x, y);
+        Tile view = createView(region, x, y);
+        if (region.isLinked[slot]) {
+            return view;
+        }
+        region.isLinked[slot] = true;
+
+        for (Direction direction : Direction.all()) {
+            if ((region.exitMasks[slot] & (0x1 << direction.ordinal())) == 0) {
+                continue;
+            }
+            int exitX = x + direction.getDeltaX();
+            int exitY = y + direction.getDeltaY();
+            Region exitRegion = getRegion(exitX, exitY);
+            if (exitRegion.ordinals == null || exitRegion.ordinals[slotOf(exitX, exitY)] < 0) {
+                continue;
+            }
+            try {
+                view.addExit(direction.getExitName(), createView(exitRegion, exitX, exitY));
+            } catch (NoExitException e) {
+
+            }
+        }
+        return view;
+    }
+
+    private Tile createView(Region region, int x, int y) {
+        int slot = slotOf(x, y);
+        if (region.views[slot] != null) {
+            return region.views[slot];
+        }
+
+        Tile view = reattachView(region, slot, pack(x, y));
+        if (view == null) {
+            try {
+                view = new Tile(PackedBlockStack.unpack(region.stacks[slot], isSharingBlocks));
+            } catch (TooHighException e) {
+                view = new Tile();
+            }
+        }
+        region.views[slot] = view;
+        residentViewCount++;
+        view2PositionMap.put(view, pack(x, y));
+        return view;
+    }
+
+    /*
+     * The view a slot had before its region was evicted, if it is still held, with any blocks
+     * changed since then copied into the region.
+     */
+    private Tile reattachView(Region region, int slot, long position) {
+        pollDetachedViews();
+        DetachedView detachedView = detachedViewMap.remove(position);
+        Tile view = detachedView == null ? null : detachedView.get();
+        if (view == null) {
+            return null;
+        }
+        int stack = PackedBlockStack.pack(view.getBlocks());
+        if (stack != PackedBlockStack.INVALID && stack != region.stacks[slot]) {
+            region.stacks[slot] = stack;
+            region.isDirty = true;
+        }
+        return view;
+    }
+
+    /*
+     * Forget the detached views that have been garbage collected.
+     */
+    private void pollDetachedViews() {
+        Reference<? extends Tile> reference;
+        while ((reference = detachedViewQueue.poll()) != null) {
+            DetachedView detachedView = (DetachedView) reference;
+            detachedViewMap.remove(detachedView.position, detachedView);
+        }
+    }
+
+    /*
+     * Copy the blocks of the views of a region back into its stacks.
+     */
+    private void syncViews(Region region) {
+        if (region.views == null) {
+            return;
+        }
+        for (int slot = 0; slot < region.views.length; slot++) {
+            if (region.views[slot] == null) {
+                continue;
+            }
+            int stack = PackedBlockStack.pack(region.views[slot].getBlocks());
+            if (stack != PackedBlockStack.INVALID && stack != region.stacks[slot]) {
+                region.stacks[slot] = stack;
+                region.isDirty = true;
+            }
+        }
+    }
+
+    private Region getRegion(int x, int y) {
+        int regionX = regionOf(x);
+        int regionY = regionOf(y);
+        long key = regionKey(regionX, regionY);
+        Region region = residentRegionMap.get(key);
+        if (region != null) {
+            return region;
+        }
+        if (!regionKeySet.contains(key)) {
+            return emptyRegion;
+        }
+
+        try {
+            region = readRegion(regionX, regionY);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        residentRegionMap.put(key, region);
+        residentSlotCount += region.ordinals.length;
+        return region;
+    }
+
+    /*
+     * Evict least recently used regions until the resident regions fit in the
+     * budget. The pinned regions and the most recently used regions stay; if
+     * they alone are over the budget, the oldest detached views are dropped.
+     * Called as each public method finishes with its regions, so that a region
+     * is never evicted while views are being created in it.
+     */
+    private void evictRegions() {
+        while (getResidentBytes() > memoryBudget) {
+            Region victim = null;
+            int candidates = residentRegionMap.size() - MIN_RECENT_REGIONS;
+            Iterator<Region> iterator = residentRegionMap.values().iterator();
+            for (int i = 0; i < candidates && iterator.hasNext(); i++) {
+                Region region = iterator.next();
+                if (!isRegionPinned(region)) {
+                    victim = region;
+                    break;
+                }
+            }
+            if (victim == null) {
+                break;
+            }
+            evictRegion(victim);
+        }
+
+        Iterator<DetachedView> detachedIterator = detachedViewMap.values().iterator();
+        while (countResidentBytes() > memoryBudget && detachedIterator.hasNext()) {
+            detachedIterator.next();
+            detachedIterator.remove();
+        }
+    }
+
+    private void evictRegion(Region region) {
+        residentRegionMap.remove(regionKey(region.regionX, region.regionY));
+        if (region.ordinals == null) {
+            return;
+        }
+        residentSlotCount -= region.ordinals.length;
+
+        syncViews(region);
+        if (region.isDirty) {
+            try {
+                writeRegion(region);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Detach the views, and unlink views in other regions that lead into this region
+        pollDetachedViews();
+        for (int slot = 0; slot < region.views.length; slot++) {
+            Tile view = region.views[slot];
+            if (view == null) {
+                continue;
+            }
+            residentViewCount--;
+            view2PositionMap.remove(view);
+
+            int x = region.regionX * regionSize + slot % regionSize;
+            int y = region.regionY * regionSize + slot / regionSize;
+            long position = pack(x, y);
+            detachedViewMap.put(position, new DetachedView(view, position, region.stacks[slot],
+                detachedViewQueue));
+            for (String exitName : new ArrayList<String>(view.getExits().keySet())) {
+                try {
+                    view.removeExit(exitName);
+                } catch (NoExitException e) {
+
+                }
+            }
+
+            for (Direction direction : Direction.all()) {
+                int neighbourX = x + direction.getDeltaX();
+                int neighbourY = y + direction.getDeltaY();
+                Region neighbourRegion = residentRegionMap.get(
+                    regionKey(regionOf(neighbourX), regionOf(neighbourY)));
+                if (neighbourRegion == null || neighbourRegion.views == null) {
+                    continue;
+                }
+                int neighbourSlot = slotOf(neighbourX, neighbourY);
+                Tile neighbourView = neighbourRegion.views[neighbourSlot];
+                String backExitName = direction.getOpposite().getExitName();
+                if (neighbourView != null && neighbourView.getExits().get(backExitName) == view) {
+                    try {
+                        neighbourView.removeExit(backExitName);
+                    } catch (NoExitException e) {
+
+                    }
+                    neighbourRegion.isLinked[neighbourSlot] = false;
+                }
+            }
+        }
+    }
+
+    private boolean isRegionPinned(Region region) {
+        if (!isPinned) {
+            return false;
+        }
+        return Math.abs(region.regionX - unpackX(pinnedRegionKey)) <= 1
+            && Math.abs(region.regionY - unpackY(pinnedRegionKey)) <= 1;
+    }
+
+    /**
+     * Get the number of bytes counted against the memory budget.
+     *
+     * @return the bytes of the resident regions, their views and the records of detached views
+     */
+    long getResidentBytes() {
+        pollDetachedViews();
+        return countResidentBytes();
+    }
+
+    private long countResidentBytes() {
+        return residentSlotCount * BYTES_PER_SLOT + residentViewCount * BYTES_PER_VIEW
+            + (long) detachedViewMap.size() * BYTES_PER_DETACHED_VIEW;
+    }
+
+    private Region readRegion(int regionX, int regionY)
+        throws IOException {
+        File regionFile = getRegionFile(regionX, regionY);
+        Region region = new Region(regionX, regionY, true);
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(regionFile)));
+        try {
+            int slotCount = input.readInt();
+            for (int i = 0; i < slotCount; i++) {
+                int slot = input.readInt();
+                region.ordinals[slot] = input.readInt();
+                region.stacks[slot] = input.readInt();
+                region.exitMasks[slot] = input.readByte();
+            }
+        } finally {
+            input.close();
+        }
+        return region;
+    }
+
+    private void writeRegion(Region region)
+        throws IOException {
+        int slotCount = 0;
+        for (int ordinal : region.ordinals) {
+            if (ordinal >= 0) {
+                slotCount++;
+            }
+        }
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(getRegionFile(region.regionX, region.regionY))));
+        try {
+            output.writeInt(slotCount);
+            for (int slot = 0; slot < region.ordinals.length; slot++) {
+                if (region.ordinals[slot] < 0) {
+                    continue;
+                }
+                output.writeInt(slot);
+                output.writeInt(region.ordinals[slot]);
+                output.writeInt(region.stacks[slot]);
+                output.writeByte(region.exitMasks[slot]);
+            }
+        } finally {
+            output.close();
+        }
+        region.isDirty = false;
+        regionKeySet.add(regionKey(region.regionX, region.regionY));
+    }
+
+    /*
+     * Read the position of a tile from the order file, one block of positions
+     * at a time.
+     */
+    private long readPosition(int ordinal) {
+        int block = ordinal / ORDER_BLOCK_SIZE;
+        if (block != cachedOrderBlock) {
+            int first = block * ORDER_BLOCK_SIZE;
+            int count = Math.min(ORDER_BLOCK_SIZE, tileCount - first);
+            byte[] bytes = new byte[count * 8];
+            try {
+                orderFile.seek((long) first * 8);
+                orderFile.readFully(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < count; i++) {
+                cachedOrderPositions[i] = pack(buffer.getInt(), buffer.getInt());
+            }
+            cachedOrderBlock = block;
+        }
+        return cachedOrderPositions[ordinal % ORDER_BLOCK_SIZE];
+    }
+
+    private File getRegionFile(int regionX, int regionY) {
+        return new File(directory,
+            REGION_FILE_PREFIX + regionX + "_" + regionY + REGION_FILE_SUFFIX);
+    }
+
+    private int regionOf(int coordinate) {
+        return Math.floorDiv(coordinate, regionSize);
+    }
+
+    private int slotOf(int x, int y) {
+        return Math.floorMod(y, regionSize) * regionSize + Math.floorMod(x, regionSize);
+    }
+
+    private static String readHeaderLine(BufferedReader br)
+        throws IOException {
+        String line = br.readLine();
+        if (line == null) {
+            throw new IOException("Invalid region header");
+        }
+        return line;
+    }
+
+    private static long regionKey(int regionX, int regionY) {
+        return pack(regionX, regionY);
+    }
+
+    private static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static int unpackX(long position) {
+        return (int) (position >> 32);
+    }
+
+    private static int unpackY(long position) {
+        return (int) position;
+    }
+
+    private class Region {
+
+        private int regionX = 0;
+        private int regionY = 0;
+        private int[] ordinals = null;
+        private int[] stacks = null;
+        private byte[] exitMasks = null;
+        private Tile[] views = null;
+        private boolean[] isLinked = null;
+        private boolean isDirty = false;
+
+        public Region(int regionXInput, int regionYInput, boolean hasTiles) {
+            regionX = regionXInput;
+            regionY = regionYInput;
+            if (!hasTiles) {
+                return;
+            }
+
+            int slotCount = regionSize * regionSize;
+            ordinals = new int[slotCount];
+            stacks = new int[slotCount];
+            exitMasks = new byte[slotCount];
+            views = new Tile[slotCount];
+            isLinked = new boolean[slotCount];
+            Arrays.fill(ordinals, NO_TILE);
+        }
+    }
+
+    /*
+     * A view of an evicted region, with the stack it had when the region was written.
+     */
+    private static class DetachedView extends WeakReference<Tile> {
+
+        private final long position;
+        private final int stack;
+
+        public DetachedView(Tile view, long position, int stack, ReferenceQueue<Tile> queue) {
+            super(view, queue);
+            this.position = position;
+            this.stack = stack;
+        }
+    }
+}
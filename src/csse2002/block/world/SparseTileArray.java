@@ -1,16 +1,13 @@
 package csse2002.block.world;
 
 import csse2002.block.world.Tile;
-import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A sparse representation of tiles in an Array. <br> Contains Tiless stored with an associated
@@ -18,19 +15,42 @@ import java.util.Set;
  */
 public class SparseTileArray {
 
-    private static final byte WEST_DIR = 0x1;
-    private static final byte SOUTH_DIR = 0x1 << 1;
-    private static final byte EAST_DIR = 0x1 << 2;
-    private static final byte NORTH_DIR = 0x1 << 3;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY_SLOT = 0;
+    private static final int EXIT_COUNT = 4;
+    private static final int NO_EXIT = -1;
+    // Levels of the search with fewer tiles are read on one thread
+    static final int PARALLEL_LEVEL_MIN_TILES = 0x1 << 10;
+    // Tiles read by one task of a parallel level
+    private static final int PARALLEL_LEVEL_RANGE_TILES = 0x1 << 8;
 
-    private static final String WEST_EXIT_NAME = "west";
-    private static final String SOUTH_EXIT_NAME = "south";
-    private static final String EAST_EXIT_NAME = "east";
-    private static final String NORTH_EXIT_NAME = "north";
+    // Tiles and their packed (x, y) positions, in breadth-first-search order
+    private Tile[] orderedTiles = null;
+    private long[] orderedPositions = null;
+    private int tileCount = 0;
 
-    private static int TREE_SIGNATURE_LEN = 20;
+    // Ordinals of the tiles at the four exits of each tile, indexed by ordinal * 4 + direction
+    private int[] orderedExitOrdinals = null;
 
-    private Map<Position, TileAdapter> position2TileAdapterMap = null;
+    // Open addressing index from packed position to (ordinal + 1), 0 marks an empty slot
+    private long[] indexPositions = null;
+    private int[] indexOrdinals = null;
+    private int indexMask = 0;
+
+    // Identity index from tile to ordinal, only built once getOrdinalOf() is needed
+    private volatile Map<Tile, Integer> tile2OrdinalMap = null;
+
+    // Only used when the tiles are kept in a TileStore (e.g. off-heap)
+    private TileStore tileStore = null;
+
+    // Built by the first range query after the tiles are linked
+    private SpatialTileIndex spatialIndex = null;
+
+    // Pool that reads large levels of the search; null means the common pool
+    private ForkJoinPool levelPool = null;
+
+    // Set by a ReadLevelTask which finds a tile at two positions
+    private volatile boolean isLevelInconsistent = false;
 
     /**
      * Constructor for a SparseTileArray. Initializes an empty SparseTileArray, such that
@@ -38,7 +58,7 @@ public class SparseTileArray {
      * list.
      */
     public SparseTileArray() {
-        position2TileAdapterMap = new HashMap<Position, TileAdapter>();
+        resetState();
     }
 
     /**
@@ -54,10 +74,19 @@ public class SparseTileArray {
             return null;
         }
 
-        if( position2TileAdapterMap.get(position) == null )
-            return null;
+        if (tileStore != null) {
+            int ordinal = tileStore.lookupOrdinal(position.getX(), position.getY());
+            if (ordinal < 0) {
+                return null;
+            }
+            return tileStore.getTileAt(ordinal);
+        }
 
-        return position2TileAdapterMap.get(position).getTile();
+        int ordinal = lookup(pack(position.getX(), position.getY()));
+        if (ordinal < 0) {
+            return null;
+        }
+        return orderedTiles[ordinal];
     }
 
     /**
@@ -66,23 +95,51 @@ public class SparseTileArray {
      * tiles should be the tiles at the "north", "east", "south" and "west" exits from the starting
      * tile, if they exist. <br> Then for each of those tiles, the next tiles will be their "north",
      * "east", "south" and "west" exits, if they exist. The order should continue in the same way
-     * through all the tiles that are linked to startingTile. <br> The list returned by getTiles may
-     * be immutable, and if not, changing the list (i.e., adding or removing elements) should not
-     * change that returned by subsequent calls to getTiles().
+     * through all the tiles that are linked to startingTile. A tile at the exits of several tiles
+     * of one level is listed with the exits of the first of them, e.g. a tile east of one tile
+     * and north of the next is listed before the "west" exit of the first. <br> The list returned
+     * by getTiles may be immutable, and if not, changing the list (i.e., adding or removing
+     * elements) should not change that returned by subsequent calls to getTiles().
      *
      * @return a list of tiles in breadth-first-search order.
      */
     public List<Tile> getTiles() {
-        List<TileAdapter> tileAdapterValuesList = new ArrayList<TileAdapter>(
-            position2TileAdapterMap.values());
-        Collections.sort(tileAdapterValuesList);
-        List<Tile> targetList = new ArrayList<>();
-
-        for (TileAdapter tileAdapter : tileAdapterValuesList) {
-            targetList.add(tileAdapter.getTile());
+        if (tileStore != null) {
+            List<Tile> targetList = new ArrayList<>();
+            for (int i = 0; i < tileStore.getTileCount(); i++) {
+                targetList.add(tileStore.getTileAt(i));
+            }
+            return targetList;
         }
 
-        return targetList;
+        return new ArrayList<Tile>(Arrays.asList(orderedTiles).subList(0, tileCount));
+    }
+
+    /**
+     * Get the tiles in a rectangle, whose opposite corners are corner1 and corner2 (both
+     * included). <br> The tiles are found through an index of the tile positions in Morton
+     * order (see SpatialTileIndex), built on the first query, so that a query takes time in
+     * proportion to the number of tiles found rather than to the size of the world or of the
+     * rectangle.
+     *
+     * @param corner1 one corner of the rectangle
+     * @param corner2 the opposite corner of the rectangle
+     * @return the tiles in the rectangle, in Morton order of their positions
+     */
+    public List<Tile> getTilesInRange(Position corner1, Position corner2) {
+        return getTilesAt(getOrdinalsInRange(corner1, corner2));
+    }
+
+    /**
+     * Get the tiles at most radius away from centre, by straight line distance between
+     * positions. See getTilesInRange().
+     *
+     * @param centre the position at the centre of the circle
+     * @param radius the largest distance from centre
+     * @return the tiles in the circle, in Morton order of their positions
+     */
+    public List<Tile> getTilesWithinRadius(Position centre, int radius) {
+        return getTilesAt(getOrdinalsWithinRadius(centre, radius));
     }
 
     /**
@@ -119,6 +176,8 @@ public class SparseTileArray {
      * tile1 exits in two different places in this case.
      * </li>
      * </ol>
+     * A tile reached at two different positions always throws, whichever exits it is reached
+     * through, rather than being listed twice by getTiles().
      * </li>
      * <li> getTiles() should return a list of each accessible tile in a
      * breadth-first search order (see getTiles()) </li>
@@ -138,321 +197,524 @@ public class SparseTileArray {
         int startingX,
         int startingY)
         throws WorldMapInconsistentException {
-        Queue<TileAdapter> nodesToVisit = new LinkedList<>();
-        Set<Tile> alreadyVisited = new HashSet<>();
-        position2TileAdapterMap = new HashMap<Position, TileAdapter>();
+        resetState();
 
         // Used to check whether this tile has multiple Positions
-        Map<Tile, Position> tile2PositionMap = new HashMap<>();
-
-        byte[] rootByteSignature = {0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-        TileAdapter rootTileAdapter = new TileAdapter(0, NORTH_DIR, rootByteSignature,
-            new Position(startingX, startingY), startingTile);
-        nodesToVisit.add(rootTileAdapter);
-        tile2PositionMap.put(startingTile, rootTileAdapter.getSelfPosition());
-        position2TileAdapterMap
-            .put(rootTileAdapter.getSelfPosition(), rootTileAdapter);
-
-        while (nodesToVisit.size() != 0) {
-            TileAdapter targetTileAdapter = nodesToVisit.remove();
-
-            if (!alreadyVisited.contains(targetTileAdapter.getTile())) {
-
-                Position childPosition = null;
-                Tile childTile = null;
-                TileAdapter childTileAdapter = null;
-
-                alreadyVisited.add(targetTileAdapter.getTile());
-
-                // Check is consistent
-                if (!targetTileAdapter.isConsistent()) {
-                    resetStateAndThrowException();
-                }
-
-                // West
-                if ((childTile = targetTileAdapter.getTile().getExits().get(WEST_EXIT_NAME))
-                    != null) {
-                    childTileAdapter = new TileAdapter(childTile,
-                        targetTileAdapter,
-                        WEST_DIR);
-
-                    // Check is the position match
-                    if ((childPosition = tile2PositionMap.get(childTile)) != null) {
-                        if (!childPosition.equals(childTileAdapter.getSelfPosition())) {
-                            resetStateAndThrowException();
-                        }
-                    }
+        Map<Tile, Integer> tile2OrdinalMap = new IdentityHashMap<>();
+
+        place(startingTile, pack(startingX, startingY));
+        tile2OrdinalMap.put(startingTile, 0);
+
+        // The ordered tiles double as the search queue, taken one level at a time
+        int levelStart = 0;
+        while (levelStart < tileCount) {
+            int levelEnd = tileCount;
+            Tile[] newExits = new Tile[(levelEnd - levelStart) * EXIT_COUNT];
+
+            isLevelInconsistent = false;
+            ReadLevelTask readLevelTask = new ReadLevelTask(tile2OrdinalMap, newExits,
+                levelStart, levelStart, levelEnd);
+            ForkJoinPool pool = levelPool == null ? ForkJoinPool.commonPool() : levelPool;
+            if (levelEnd - levelStart >= PARALLEL_LEVEL_MIN_TILES && pool.getParallelism() > 1) {
+                pool.invoke(readLevelTask);
+            } else {
+                readLevelTask.compute();
+            }
+            if (isLevelInconsistent) {
+                resetStateAndThrowException();
+            }
 
-                    // Grasp west child into queues
-                    if (!position2TileAdapterMap.containsKey(childTileAdapter.getSelfPosition())) {
-                        position2TileAdapterMap
-                            .put(childTileAdapter.getSelfPosition(), childTileAdapter);
-                        nodesToVisit.add(childTileAdapter);
+            // Place the tiles first reached from this level, in search order
+            for (int head = levelStart; head < levelEnd; head++) {
+                long parentPosition = orderedPositions[head];
+                for (Direction direction : Direction.all()) {
+                    Tile childTile = newExits[(head - levelStart) * EXIT_COUNT
+                        + direction.ordinal()];
+                    if (childTile == null) {
+                        continue;
                     }
-                }
 
-                // South
-                if ((childTile = targetTileAdapter.getTile().getExits().get(SOUTH_EXIT_NAME))
-                    != null) {
-                    childTileAdapter = new TileAdapter(childTile,
-                        targetTileAdapter,
-                        SOUTH_DIR);
+                    long childPosition = pack(unpackX(parentPosition) + direction.getDeltaX(),
+                        unpackY(parentPosition) + direction.getDeltaY());
+                    Integer childOrdinal = tile2OrdinalMap.get(childTile);
 
-                    // Check is the position match
-                    if ((childPosition = tile2PositionMap.get(childTile)) != null) {
-                        if (!childPosition.equals(childTileAdapter.getSelfPosition())) {
+                    if (childOrdinal != null) {
+                        // Reached earlier in this level; check is the position match
+                        if (orderedPositions[childOrdinal] != childPosition) {
                             resetStateAndThrowException();
                         }
+                    } else if (lookup(childPosition) >= 0) {
+                        // Another tile already occupies this position
+                        resetStateAndThrowException();
+                    } else {
+                        childOrdinal = tileCount;
+                        tile2OrdinalMap.put(childTile, childOrdinal);
+                        place(childTile, childPosition);
                     }
-
-                    // Grasp south child into queues
-                    if (!position2TileAdapterMap.containsKey(childTileAdapter.getSelfPosition())) {
-                        position2TileAdapterMap
-                            .put(childTileAdapter.getSelfPosition(), childTileAdapter);
-                        nodesToVisit.add(childTileAdapter);
-                        tile2PositionMap.put(childTile, childTileAdapter.getSelfPosition());
-                    }
+                    orderedExitOrdinals[head * EXIT_COUNT + direction.ordinal()] = childOrdinal;
                 }
+            }
+            levelStart = levelEnd;
+        }
 
-                // East
-                if ((childTile = targetTileAdapter.getTile().getExits().get(EAST_EXIT_NAME))
-                    != null) {
-                    childTileAdapter = new TileAdapter(childTile,
-                        targetTileAdapter,
-                        EAST_DIR);
-
-                    // Check is the position match
-                    if ((childPosition = tile2PositionMap.get(childTile)) != null) {
-                        if (!childPosition.equals(childTileAdapter.getSelfPosition())) {
-                            resetStateAndThrowException();
-                        }
-                    }
+        orderedTiles = Arrays.copyOf(orderedTiles, tileCount);
+        orderedPositions = Arrays.copyOf(orderedPositions, tileCount);
+        orderedExitOrdinals = Arrays.copyOf(orderedExitOrdinals, tileCount * EXIT_COUNT);
+    }
 
-                    // Grasp east child into queues
-                    if (!position2TileAdapterMap.containsKey(childTileAdapter.getSelfPosition())) {
-                        position2TileAdapterMap
-                            .put(childTileAdapter.getSelfPosition(), childTileAdapter);
-                        nodesToVisit.add(childTileAdapter);
-                        tile2PositionMap.put(childTile, childTileAdapter.getSelfPosition());
-                    }
-                }
+    /**
+     * Set the pool that addLinkedTiles(Tile, int, int) reads levels of at least
+     * PARALLEL_LEVEL_MIN_TILES tiles on. Levels are read on the calling thread if the pool has a
+     * parallelism of 1.
+     *
+     * @param pool the pool, or null for the common pool
+     */
+    void setLevelPool(ForkJoinPool pool) {
+        levelPool = pool;
+    }
 
-                // North
-                if ((childTile = targetTileAdapter.getTile().getExits().get(NORTH_EXIT_NAME))
-                    != null) {
-                    childTileAdapter = new TileAdapter(childTile,
-                        targetTileAdapter,
-                        NORTH_DIR);
+    /**
+     * Add the tiles of an off-heap store to the sparse tilemap. <br> This behaves like
+     * addLinkedTiles(Tile, int, int), but the tiles are positioned and checked inside the store,
+     * and Tile objects are only created for the tiles returned by getTile() and getTiles().
+     *
+     * @param tileStore the store holding the blocks and exits of every tile
+     * @param startingTileId the id of the starting tile in the store
+     * @param startingX the x coordinate of the starting tile in the array
+     * @param startingY the y coordinate of the starting tile in the array
+     * @throws WorldMapInconsistentException if the tiles in the store are not Geometrically
+     * consistent
+     */
+    public void addLinkedTiles(OffHeapTileStore tileStore,
+        int startingTileId,
+        int startingX,
+        int startingY)
+        throws WorldMapInconsistentException {
+        resetState();
 
-                    // Check is the position match
-                    if ((childPosition = tile2PositionMap.get(childTile)) != null) {
-                        if (!childPosition.equals(childTileAdapter.getSelfPosition())) {
-                            resetStateAndThrowException();
-                        }
-                    }
+        tileStore.link(startingTileId, startingX, startingY);
+        this.tileStore = tileStore;
+    }
 
-                    // Grasp north child into queues
-                    if (!position2TileAdapterMap.containsKey(childTileAdapter.getSelfPosition())) {
-                        position2TileAdapterMap
-                            .put(childTileAdapter.getSelfPosition(), childTileAdapter);
-                        nodesToVisit.add(childTileAdapter);
-                        tile2PositionMap.put(childTile, childTileAdapter.getSelfPosition());
-                    }
-                }
-            }
-        }
+    /**
+     * Use the tiles of a store whose tiles already have positions (such as a RegionTileStore)
+     * as the contents of this array. Any tiles already in the array are removed.
+     *
+     * @param tileStore the store holding the tiles
+     */
+    public void addStoredTiles(TileStore tileStore) {
+        resetState();
+        this.tileStore = tileStore;
+    }
 
+    /**
+     * Get the store backing this array.
+     *
+     * @return the store, or null if the tiles are kept as linked Tile objects
+     */
+    TileStore getTileStore() {
+        return tileStore;
     }
 
-    private void resetStateAndThrowException()
-        throws WorldMapInconsistentException {
-        position2TileAdapterMap = new HashMap<Position, TileAdapter>();
-        throw new WorldMapInconsistentException();
+    /**
+     * Make sure all exits of a tile that has been handed out are linked. Only needed when the
+     * tiles are kept in a TileStore, where tiles reached through exits are created lazily.
+     *
+     * @param tile the tile which is about to be used
+     */
+    void linkTile(Tile tile) {
+        if (tileStore != null && tile != null) {
+            tileStore.linkView(tile);
+        }
     }
 
+    /**
+     * Get the number of tiles linked by addLinkedTiles(), i.e. getTiles().size().
+     *
+     * @return the number of tiles
+     */
+    int getTileCount() {
+        if (tileStore != null) {
+            return tileStore.getTileCount();
+        }
+        return tileCount;
+    }
 
-    private class TileAdapter implements Comparable<TileAdapter> {
+    /**
+     * Get the tile at ordinal in getTiles() order, without copying the tile list.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     * @return the tile
+     */
+    Tile getTileAt(int ordinal) {
+        if (tileStore != null) {
+            return tileStore.getTileAt(ordinal);
+        }
+        return orderedTiles[ordinal];
+    }
 
-        private Position selfPosition = null;
-        private Tile selfTile = null;
-        private byte[] treeSignatureByteArray = new byte[TREE_SIGNATURE_LEN];  //	20 bytes
-        private int selfLevel = 0;
+    /**
+     * Get the ordinal of the tile at a position.
+     *
+     * @param position the tile position
+     * @return the index of the tile in getTiles(), or -1 if there is no tile at the position
+     */
+    int getOrdinalAt(Position position) {
+        if (tileStore != null) {
+            return tileStore.lookupOrdinal(position.getX(), position.getY());
+        }
+        return lookup(pack(position.getX(), position.getY()));
+    }
 
-        private Position northPosition = null;
-        private Position eastPosition = null;
-        private Position southPosition = null;
-        private Position westPosition = null;
+    /**
+     * Get the ordinals of the tiles in a rectangle. See getTilesInRange().
+     *
+     * @param corner1 one corner of the rectangle
+     * @param corner2 the opposite corner of the rectangle
+     * @return the indexes in getTiles() of the tiles in the rectangle
+     */
+    int[] getOrdinalsInRange(Position corner1, Position corner2) {
+        return getSpatialIndex().findInRange(Math.min(corner1.getX(), corner2.getX()),
+            Math.min(corner1.getY(), corner2.getY()), Math.max(corner1.getX(), corner2.getX()),
+            Math.max(corner1.getY(), corner2.getY()));
+    }
 
-        private boolean isNorthConsistent = true;
-        private boolean isEastConsistent = true;
-        private boolean isSouthConsistent = true;
-        private boolean isWestConsistent = true;
+    /**
+     * Get the ordinals of the tiles in a circle. See getTilesWithinRadius().
+     *
+     * @param centre the position at the centre of the circle
+     * @param radius the largest distance from centre
+     * @return the indexes in getTiles() of the tiles in the circle
+     */
+    int[] getOrdinalsWithinRadius(Position centre, int radius) {
+        return getSpatialIndex().findWithinRadius(centre.getX(), centre.getY(), radius);
+    }
 
-        public TileAdapter(Tile selfTileInput,
-            TileAdapter parentTileAdapter,
-            byte selfDirInput) {
-            this(parentTileAdapter.getLevel() + 1,
-                selfDirInput,
-                parentTileAdapter.getTreeSignature(),
-                parentTileAdapter.getChildPosition(selfDirInput),
-                selfTileInput);
+    /**
+     * Find the ordinal of a tile by identity. The identity index is built on the first call, so
+     * callers should still try cheaper lookups first.
+     *
+     * @param tile the tile to look for
+     * @return the index of the tile in getTiles(), or -1 if it is not in this array
+     */
+    int getOrdinalOf(Tile tile) {
+        if (tileStore != null) {
+            return tileStore.getOrdinalOfView(tile);
         }
+        Integer ordinal = getTile2OrdinalMap().get(tile);
+        return ordinal == null ? -1 : ordinal;
+    }
 
-        public TileAdapter(int selfLevelInput,      // root	: 0
-            byte selfDirInput,      // root : NORTH_DIR
-            byte[] parentTreeSignatureInput,  // root : {0x00,0x00....(x20)}
-            Position selfPositionInput,
-            Tile selfTileInput) {
-            if (selfTileInput == null) {
-                return;
+    /**
+     * Get the block stack of the tile at ordinal in getTiles() order.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     * @return the packed stack (see PackedBlockStack)
+     */
+    int getStackAt(int ordinal) {
+        Tile tile;
+        if (tileStore != null) {
+            tile = tileStore.getExistingTileAt(ordinal);
+            if (tile == null) {
+                return tileStore.getStackAt(ordinal);
             }
+        } else {
+            tile = orderedTiles[ordinal];
+        }
+        return PackedBlockStack.pack(tile.getBlocks());
+    }
 
-            if (selfPositionInput == null) {
-                return;
-            }
+    /**
+     * Get the ordinal of the tile at the exit of another tile. <br> Exits are cached by ordinal
+     * when the tiles are linked, and a lookup only reads the cache. Exits changed with
+     * Tile.addExit() or Tile.removeExit() after linking are seen once refreshExits() or
+     * refreshAllExits() has been called (WorldMap.exitsChanged() calls the latter). Tiles kept in
+     * a TileStore use the exits of the store; exits of the tiles it has handed out are not
+     * written back to it.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     * @param direction the exit direction
+     * @return the ordinal of the exit tile, or -1 if there is no such exit or it leads to a tile
+     * that is not in this array
+     */
+    int getExitOrdinal(int ordinal, Direction direction) {
+        if (tileStore != null) {
+            return tileStore.getExitOrdinal(ordinal, direction);
+        }
 
-            selfLevel = selfLevelInput;
-            selfPosition = selfPositionInput;
-            selfTile = selfTileInput;
-            treeSignatureByteArray = new byte[TREE_SIGNATURE_LEN];
+        return orderedExitOrdinals[ordinal * EXIT_COUNT + direction.ordinal()];
+    }
 
-            for (int i = 0; i < selfLevel; i++) {
-                treeSignatureByteArray[i] = parentTreeSignatureInput[i];
-            }
+    /**
+     * Reload the exit cache of one tile from its Tile.getExits().
+     *
+     * @param ordinal the index of the tile in getTiles()
+     */
+    void refreshExits(int ordinal) {
+        if (tileStore != null) {
+            return;
+        }
 
-            treeSignatureByteArray[selfLevel] = selfDirInput;
+        Tile[] exits = readExits(orderedTiles[ordinal]);
+        for (Direction direction : Direction.all()) {
+            Tile exit = exits[direction.ordinal()];
+            orderedExitOrdinals[ordinal * EXIT_COUNT + direction.ordinal()] =
+                exit == null ? NO_EXIT : findExitOrdinal(ordinal, direction, exit);
+        }
+    }
 
-            southPosition = new Position(selfPosition.getX(), selfPosition.getY() + 1);
-            northPosition = new Position(selfPosition.getX(), selfPosition.getY() - 1);
-            eastPosition = new Position(selfPosition.getX() + 1, selfPosition.getY());
-            westPosition = new Position(selfPosition.getX() - 1, selfPosition.getY());
+    /**
+     * Reload the exit cache of every tile from its Tile.getExits().
+     */
+    void refreshAllExits() {
+        if (tileStore != null) {
+            return;
+        }
 
-            // South
-            TileAdapter southTileAdapter = position2TileAdapterMap.get(southPosition);
-            if (southTileAdapter != null) {
-                if (this.getTile().getExits().containsKey(SOUTH_EXIT_NAME)) {
-                    Tile southOfThisTile = this.getTile().getExits().get(SOUTH_EXIT_NAME);
-                    if (southOfThisTile != null && southOfThisTile != southTileAdapter.getTile()) {
-                        isSouthConsistent = false;
-                    }
-                }
-                if (southTileAdapter.getTile().getExits().containsKey(NORTH_EXIT_NAME)) {
-                    Tile northOfSouthTile = southTileAdapter.getTile().getExits()
-                        .get(NORTH_EXIT_NAME);
-                    if (northOfSouthTile != null && this.getTile() != northOfSouthTile) {
-                        isSouthConsistent = false;
-                    }
-                }
-            }
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            refreshExits(ordinal);
+        }
+    }
 
-            // North
-            TileAdapter northTileAdapter = position2TileAdapterMap.get(northPosition);
-            if (northTileAdapter != null) {
-                if (this.getTile().getExits().containsKey(NORTH_EXIT_NAME)) {
-                    Tile northOfThisTile = this.getTile().getExits().get(NORTH_EXIT_NAME);
-                    if (northOfThisTile != null && northOfThisTile != northTileAdapter.getTile()) {
-                        isSouthConsistent = false;
-                    }
-                }
-                if (northTileAdapter.getTile().getExits().containsKey(SOUTH_EXIT_NAME)) {
-                    Tile southOfNorthTile = northTileAdapter.getTile().getExits()
-                        .get(SOUTH_EXIT_NAME);
-                    if (southOfNorthTile != null && this.getTile() != southOfNorthTile) {
-                        isNorthConsistent = false;
-                    }
-                }
+    /**
+     * Add a tile after the linked tiles, at a position without a tile. Its exits are not read;
+     * call refreshExits() for it, and for the tiles with exits to it, once they are linked.
+     *
+     * @param tile the tile to add
+     * @param position the position of the tile
+     * @return the ordinal of the tile, i.e. its index in getTiles()
+     */
+    int appendTile(Tile tile, Position position) {
+        place(tile, pack(position.getX(), position.getY()));
+        spatialIndex = null;
+        return tileCount - 1;
+    }
 
-            }
+    /**
+     * Get the position of the tile at ordinal in getTiles() order.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     * @return the position of the tile
+     */
+    Position getPositionAt(int ordinal) {
+        if (tileStore != null) {
+            return tileStore.getPositionAt(ordinal);
+        }
+        return new Position(unpackX(orderedPositions[ordinal]), unpackY(orderedPositions[ordinal]));
+    }
 
-            // East
-            TileAdapter eastTileAdapter = position2TileAdapterMap.get(eastPosition);
-            if (eastTileAdapter != null) {
-                if (this.getTile().getExits().containsKey(EAST_EXIT_NAME)) {
-                    Tile eastOfThisTile = this.getTile().getExits().get(EAST_EXIT_NAME);
-                    if (eastOfThisTile != null && eastOfThisTile != eastTileAdapter.getTile()) {
-                        isEastConsistent = false;
-                    }
-                }
-                if (eastTileAdapter.getTile().getExits().containsKey(WEST_EXIT_NAME)) {
-                    Tile westOfEastTile = eastTileAdapter.getTile().getExits().get(WEST_EXIT_NAME);
-                    if (westOfEastTile != null && this.getTile() != westOfEastTile) {
-                        isEastConsistent = false;
-                    }
-                }
-            }
+    private SpatialTileIndex getSpatialIndex() {
+        if (spatialIndex == null) {
+            spatialIndex = new SpatialTileIndex(this);
+        }
+        return spatialIndex;
+    }
 
-            //West
-            TileAdapter westTileAdapter = position2TileAdapterMap.get(westPosition);
-            if (westTileAdapter != null) {
-                if (this.getTile().getExits().containsKey(WEST_EXIT_NAME)) {
-                    Tile westOfThisTile = this.getTile().getExits().get(WEST_EXIT_NAME);
-                    if (westOfThisTile != null && westOfThisTile != westTileAdapter.getTile()) {
-                        isWestConsistent = false;
-                    }
-                }
-                if (westTileAdapter.getTile().getExits().containsKey(EAST_EXIT_NAME)) {
-                    Tile eastOfWestTile = westTileAdapter.getTile().getExits().get(EAST_EXIT_NAME);
-                    if (eastOfWestTile != null
-                        && this.getTile() != eastOfWestTile) {
-                        isWestConsistent = false;
-                    }
-                }
+    /*
+     * Parallel saves may look tiles up concurrently, so the index is only published once it is
+     * complete.
+     */
+    private synchronized Map<Tile, Integer> getTile2OrdinalMap() {
+        if (tile2OrdinalMap == null) {
+            Map<Tile, Integer> map = new IdentityHashMap<Tile, Integer>(tileCount);
+            for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+                map.put(orderedTiles[ordinal], ordinal);
             }
+            tile2OrdinalMap = map;
+        }
+        return tile2OrdinalMap;
+    }
 
+    private List<Tile> getTilesAt(int[] ordinals) {
+        List<Tile> targetList = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals) {
+            targetList.add(getTileAt(ordinal));
         }
+        return targetList;
+    }
 
-        public int getLevel() {
-            return selfLevel;
+    private void place(Tile tile, long position) {
+        if (tileCount == orderedTiles.length) {
+            int capacity = orderedTiles.length + (orderedTiles.length >> 1) + 1;
+            orderedTiles = Arrays.copyOf(orderedTiles, capacity);
+            orderedPositions = Arrays.copyOf(orderedPositions, capacity);
+            int exitCapacity = capacity * EXIT_COUNT;
+            orderedExitOrdinals = Arrays.copyOf(orderedExitOrdinals, exitCapacity);
+            Arrays.fill(orderedExitOrdinals, tileCount * EXIT_COUNT, exitCapacity, NO_EXIT);
         }
 
-        public Tile getTile() {
-            return selfTile;
+        // Keep the index at most 3/4 full
+        if ((tileCount + 1) * 4 > indexPositions.length * 3) {
+            resizeIndex(indexPositions.length * 2);
         }
 
-        @Override
-        public int compareTo(TileAdapter targetTileAdapter) {
-            if (this.getLevel() < targetTileAdapter.getLevel()) {
-                return -1;
-            }
+        orderedTiles[tileCount] = tile;
+        orderedPositions[tileCount] = position;
+        insert(position, tileCount);
+        if (tile2OrdinalMap != null) {
+            tile2OrdinalMap.put(tile, tileCount);
+        }
+        tileCount++;
+    }
 
-            if (this.getLevel() > targetTileAdapter.getLevel()) {
-                return 1;
+    /*
+     * Read the four cardinal exits of a tile in one pass over its exit map.
+     */
+    private static Tile[] readExits(Tile tile) {
+        Tile[] exits = new Tile[EXIT_COUNT];
+        for (Map.Entry<String, Tile> exit : tile.getExits().entrySet()) {
+            Direction direction = Direction.fromExitName(exit.getKey());
+            if (direction != null) {
+                exits[direction.ordinal()] = exit.getValue();
             }
+        }
+        return exits;
+    }
 
-            BigInteger targetBig = new BigInteger(targetTileAdapter.getTreeSignature());
-            BigInteger selfBig = new BigInteger(this.getTreeSignature());
-            return selfBig.compareTo(targetBig) * (-1);
+    /*
+     * The ordinal of exit, which leads from the tile at ordinal in direction. The tile at the
+     * position the exit points to is tried first; an exit that breaks the geometry falls back
+     * to a search by identity.
+     */
+    private int findExitOrdinal(int ordinal, Direction direction, Tile exit) {
+        long position = orderedPositions[ordinal];
+        int exitOrdinal = lookup(pack(unpackX(position) + direction.getDeltaX(),
+            unpackY(position) + direction.getDeltaY()));
+        if (exitOrdinal >= 0 && orderedTiles[exitOrdinal] == exit) {
+            return exitOrdinal;
         }
+        return getOrdinalOf(exit);
+    }
 
-        public boolean isConsistent() {
-            return (isNorthConsistent && isEastConsistent && isSouthConsistent && isWestConsistent);
+    private int lookup(long position) {
+        int slot = hash(position) & indexMask;
+        while (indexOrdinals[slot] != EMPTY_SLOT) {
+            if (indexPositions[slot] == position) {
+                return indexOrdinals[slot] - 1;
+            }
+            slot = (slot + 1) & indexMask;
         }
+        return -1;
+    }
+
+    private void insert(long position, int ordinal) {
+        int slot = hash(position) & indexMask;
+        while (indexOrdinals[slot] != EMPTY_SLOT) {
+            slot = (slot + 1) & indexMask;
+        }
+        indexPositions[slot] = position;
+        indexOrdinals[slot] = ordinal + 1;
+    }
 
-        public byte[] getTreeSignature() {
-            return treeSignatureByteArray;
+    private void resizeIndex(int capacity) {
+        indexPositions = new long[capacity];
+        indexOrdinals = new int[capacity];
+        indexMask = capacity - 1;
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            insert(orderedPositions[ordinal], ordinal);
         }
+    }
+
+    private void resetState() {
+        orderedTiles = new Tile[INITIAL_CAPACITY];
+        orderedPositions = new long[INITIAL_CAPACITY];
+        orderedExitOrdinals = new int[INITIAL_CAPACITY * EXIT_COUNT];
+        Arrays.fill(orderedExitOrdinals, NO_EXIT);
+        tileCount = 0;
+        indexPositions = new long[INITIAL_CAPACITY];
+        indexOrdinals = new int[INITIAL_CAPACITY];
+        indexMask = INITIAL_CAPACITY - 1;
+        tileStore = null;
+        spatialIndex = null;
+        tile2OrdinalMap = null;
+    }
+
+    private void resetStateAndThrowException()
+        throws WorldMapInconsistentException {
+        resetState();
+        throw new WorldMapInconsistentException();
+    }
+
+    private static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
 
-        public Position getChildPosition(byte childDir) {
-            switch (childDir) {
-                case SOUTH_DIR:
-                    return southPosition;
+    private static int unpackX(long position) {
+        return (int) (position >> 32);
+    }
 
-                case NORTH_DIR:
-                    return northPosition;
+    private static int unpackY(long position) {
+        return (int) position;
+    }
 
-                case EAST_DIR:
-                    return eastPosition;
+    private static int hash(long position) {
+        long h = position * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
 
-                case WEST_DIR:
-                    return westPosition;
-            }
-            return null;
+    /*
+     * Reads the exits of the tiles of one search level (ordinals fromHead to toHead - 1, in a
+     * level starting at levelStart), splitting the range in half on the fork/join pool until it
+     * is small. Exits to tiles placed before the level are checked and cached here, since
+     * nothing is placed while a level is read; exits to other tiles are left in newExits for
+     * addLinkedTiles() to place in order.
+     */
+    private class ReadLevelTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Map<Tile, Integer> tile2OrdinalMap;
+        private final Tile[] newExits;
+        private final int levelStart;
+        private final int fromHead;
+        private final int toHead;
+
+        ReadLevelTask(Map<Tile, Integer> tile2OrdinalMap, Tile[] newExits, int levelStart,
+            int fromHead, int toHead) {
+            this.tile2OrdinalMap = tile2OrdinalMap;
+            this.newExits = newExits;
+            this.levelStart = levelStart;
+            this.fromHead = fromHead;
+            this.toHead = toHead;
         }
 
-        public Position getSelfPosition() {
-            return selfPosition;
+        @Override
+        protected void compute() {
+            if (toHead - fromHead > PARALLEL_LEVEL_RANGE_TILES && getPool() != null) {
+                int middleHead = (fromHead + toHead) >>> 1;
+                invokeAll(new ReadLevelTask(tile2OrdinalMap, newExits, levelStart, fromHead,
+                        middleHead),
+                    new ReadLevelTask(tile2OrdinalMap, newExits, levelStart, middleHead,
+                        toHead));
+                return;
+            }
+
+            for (int head = fromHead; head < toHead && !isLevelInconsistent; head++) {
+                int x = unpackX(orderedPositions[head]);
+                int y = unpackY(orderedPositions[head]);
+                Tile[] exits = readExits(orderedTiles[head]);
+
+                for (Direction direction : Direction.all()) {
+                    Tile childTile = exits[direction.ordinal()];
+                    if (childTile == null) {
+                        continue;
+                    }
+
+                    Integer childOrdinal = tile2OrdinalMap.get(childTile);
+                    if (childOrdinal == null) {
+                        newExits[(head - levelStart) * EXIT_COUNT + direction.ordinal()] =
+                            childTile;
+                        continue;
+                    }
+                    // Check is the position match
+                    if (orderedPositions[childOrdinal]
+                        != pack(x + direction.getDeltaX(), y + direction.getDeltaY())) {
+                        isLevelInconsistent = true;
+                        return;
+                    }
+                    orderedExitOrdinals[head * EXIT_COUNT + direction.ordinal()] = childOrdinal;
+                }
+            }
         }
     }
-
 }
@@ -0,0 +1,238 @@
+package csse2002.block.world;
+
+import java.util.Arrays;
+
+/**
+ * An index of tile positions in Morton (Z-curve) order, for rectangle and radius queries. <br>
+ * Each position (x, y) gets a 64-bit key that interleaves the bits of x and y, so that tiles
+ * close together in the world are mostly close together in the sorted keys. A rectangle query
+ * scans the keys between the corners of the rectangle, and whenever it meets a key outside the
+ * rectangle it jumps straight to the next key inside it (BIGMIN, Tropf and Herzog). The work is
+ * proportional to the number of tiles found, plus one binary search per jump. <br>
+ *
+ * Positions do not change once tiles are linked, so the index is built once, by a radix sort.
+ */
+final class SpatialTileIndex {
+
+    private static final int RADIX_BITS = 16;
+    private static final int RADIX_SIZE = 0x1 << RADIX_BITS;
+    private static final long EVEN_BITS = 0x5555555555555555L;
+
+    // Morton keys in unsigned order, and the ordinal of the tile at each key
+    private final long[] keys;
+    private final int[] ordinals;
+
+    /**
+     * Build the index over the positions of linked tiles.
+     *
+     * @param tiles the linked tiles
+     */
+    SpatialTileIndex(SparseTileArray tiles) {
+        int tileCount = tiles.getTileCount();
+        long[] unsortedKeys = new long[tileCount];
+        int[] unsortedOrdinals = new int[tileCount];
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            Position position = tiles.getPositionAt(ordinal);
+            unsortedKeys[ordinal] = key(position.getX(), position.getY());
+            unsortedOrdinals[ordinal] = ordinal;
+        }
+
+        // LSD radix sort, which is also unsigned order
+        long[] sortedKeys = new long[tileCount];
+        int[] sortedOrdinals = new int[tileCount];
+        int[] counts = new int[RADIX_SIZE + 1];
+        for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (long key : unsortedKeys) {
+                counts[digit(key, shift) + 1]++;
+            }
+            for (int digit = 0; digit < RADIX_SIZE; digit++) {
+                counts[digit + 1] += counts[digit];
+            }
+            for (int i = 0; i < tileCount; i++) {
+                int slot = counts[digit(unsortedKeys[i], shift)]++;
+                sortedKeys[slot] = unsortedKeys[i];
+                sortedOrdinals[slot] = unsortedOrdinals[i];
+            }
+
+            long[] swapKeys = unsortedKeys;
+            unsortedKeys = sortedKeys;
+            sortedKeys = swapKeys;
+            int[] swapOrdinals = unsortedOrdinals;
+            unsortedOrdinals = sortedOrdinals;
+            sortedOrdinals = swapOrdinals;
+        }
+        keys = unsortedKeys;
+        ordinals = unsortedOrdinals;
+    }
+
+    /**
+     * Find the tiles in a rectangle (corners included).
+     *
+     * @param minX the smallest x of the rectangle
+     * @param minY the smallest y of the rectangle
+     * @param maxX the largest x of the rectangle
+     * @param maxY the largest y of the rectangle
+     * @return the ordinals of the tiles in the rectangle, in Morton order
+     */
+    int[] findInRange(int minX, int minY, int maxX, int maxY) {
+        return find(minX, minY, maxX, maxY, 0, 0, -1L);
+    }
+
+    /**
+     * Find the tiles at most radius away (by straight line distance) from a centre.
+     *
+     * @param centreX the x of the centre
+     * @param centreY the y of the centre
+     * @param radius the largest distance from the centre
+     * @return the ordinals of the tiles in the circle, in Morton order
+     */
+    int[] findWithinRadius(int centreX, int centreY, int radius) {
+        if (radius < 0) {
+            return new int[0];
+        }
+        // Scan the circle's bounding box, leaving out its corners
+        return find((int) Math.max((long) centreX - radius, Integer.MIN_VALUE),
+            (int) Math.max((long) centreY - radius, Integer.MIN_VALUE),
+            (int) Math.min((long) centreX + radius, Integer.MAX_VALUE),
+            (int) Math.min((long) centreY + radius, Integer.MAX_VALUE),
+            centreX, centreY, (long) radius * radius);
+    }
+
+    /*
+     * Scan the Z curve between the rectangle's corners. When radiusSquared is not negative,
+     * only tiles within that squared distance of (centreX, centreY) are kept.
+     */
+    private int[] find(int minX, int minY, int maxX, int maxY, int centreX, int centreY,
+        long radiusSquared) {
+        if (minX > maxX || minY > maxY) {
+            return new int[0];
+        }
+        long minKey = key(minX, minY);
+        long maxKey = key(maxX, maxY);
+
+        int[] found = new int[16];
+        int foundCount = 0;
+        int index = lowerBound(minKey, 0);
+        while (index < keys.length && Long.compareUnsigned(keys[index], maxKey) <= 0) {
+            long currentKey = keys[index];
+            int x = unkey(currentKey);
+            int y = unkey(currentKey >>> 1);
+            if (x < minX || x > maxX || y < minY || y > maxY) {
+                index = lowerBound(bigMin(currentKey, minKey, maxKey), index + 1);
+                continue;
+            }
+
+            long dx = (long) x - centreX;
+            long dy = (long) y - centreY;
+            if (radiusSquared < 0 || dx * dx + dy * dy <= radiusSquared) {
+                if (foundCount == found.length) {
+                    found = Arrays.copyOf(found, foundCount * 2);
+                }
+                found[foundCount++] = ordinals[index];
+            }
+            index++;
+        }
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    /*
+     * The first index at or after from whose key is not below key.
+     */
+    private int lowerBound(long key, int from) {
+        int low = from;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(keys[middle], key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * The smallest key above currentKey that lies in the rectangle with corner keys minKey and
+     * maxKey, where currentKey is between them but outside the rectangle.
+     */
+    private static long bigMin(long currentKey, long minKey, long maxKey) {
+        long bigMin = maxKey;
+        for (int bit = Long.SIZE - 1; bit >= 0; bit--) {
+            long mask = 0x1L << bit;
+            int pattern = ((currentKey & mask) != 0 ? 4 : 0) | ((minKey & mask) != 0 ? 2 : 0)
+                | ((maxKey & mask) != 0 ? 1 : 0);
+            switch (pattern) {
+                case 0x1:
+                    bigMin = setBitClearBelow(minKey, bit);
+                    maxKey = clearBitSetBelow(maxKey, bit);
+                    break;
+                case 0x3:
+                    return minKey;
+                case 0x4:
+                    return bigMin;
+                case 0x5:
+                    minKey = setBitClearBelow(minKey, bit);
+                    break;
+                default:
+                    // 0x0 and 0x7 go on to the next bit; 0x2 and 0x6 cannot happen
+                    break;
+            }
+        }
+        return bigMin;
+    }
+
+    /*
+     * Set bit, and clear the lower bits of the same coordinate.
+     */
+    private static long setBitClearBelow(long key, int bit) {
+        return (key | (0x1L << bit)) & ~lowerBitsOfSameCoordinate(bit);
+    }
+
+    /*
+     * Clear bit, and set the lower bits of the same coordinate.
+     */
+    private static long clearBitSetBelow(long key, int bit) {
+        return (key & ~(0x1L << bit)) | lowerBitsOfSameCoordinate(bit);
+    }
+
+    private static long lowerBitsOfSameCoordinate(int bit) {
+        return (EVEN_BITS << (bit & 0x1)) & ((0x1L << bit) - 1);
+    }
+
+    /*
+     * Interleave x (even bits) and y (odd bits). Flipping the sign bits makes the unsigned order
+     * of each coordinate match its signed order.
+     */
+    private static long key(int x, int y) {
+        return spread(x ^ Integer.MIN_VALUE) | (spread(y ^ Integer.MIN_VALUE) << 1);
+    }
+
+    private static long spread(int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits << 2)) & 0x3333333333333333L;
+        bits = (bits | (bits << 1)) & EVEN_BITS;
+        return bits;
+    }
+
+    /*
+     * The coordinate held in the even bits of key.
+     */
+    private static int unkey(long key) {
+        long bits = key & EVEN_BITS;
+        bits = (bits | (bits >>> 1)) & 0x3333333333333333L;
+        bits = (bits | (bits >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits >>> 4)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits >>> 8)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) bits ^ Integer.MIN_VALUE;
+    }
+
+    private static int digit(long key, int shift) {
+        return (int) (key >>> shift) & (RADIX_SIZE - 1);
+    }
+}
@@ -0,0 +1,244 @@
+package csse2002.block.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * World statistics kept per chunk, with a rollup to super chunks and the whole world. <br> A
+ * chunk is a 16 by 16 square of positions, and a super chunk a 16 by 16 square of chunks. Each
+ * tile is counted in its chunk, its super chunk and the world totals, so a change to one tile
+ * updates three sets of totals. <br>
+ *
+ * A rectangle query adds up the super chunks and chunks the rectangle covers completely, and
+ * counts single tiles only in the chunks along its edges. Only stacks are updated in place; the
+ * exit counts are rebuilt, with the whole instance, after WorldMap.exitsChanged().
+ */
+final class TileAggregates {
+
+    private static final int CHUNK_BITS = 4;
+    private static final int CHUNK_MASK = (0x1 << CHUNK_BITS) - 1;
+    private static final int SUPER_CHUNK_BITS = 4;
+
+    private final SparseTileArray tiles;
+    private final int[] stacks;
+    private final byte[] exitMasks;
+    // Position of each tile within its chunk: x in the low 4 bits, y in the high 4 bits
+    private final byte[] chunkOffsets;
+    private final Chunk[] chunkOfOrdinal;
+    private final WorldStatistics worldStatistics = new WorldStatistics();
+    private final Map<Long, SuperChunk> superChunks = new HashMap<Long, SuperChunk>();
+
+    /**
+     * Count every linked tile.
+     *
+     * @param tiles the linked tiles
+     * @param graph the exits between the tiles
+     */
+    TileAggregates(SparseTileArray tiles, TileGraph graph) {
+        this.tiles = tiles;
+        int tileCount = tiles.getTileCount();
+        stacks = new int[tileCount];
+        exitMasks = new byte[tileCount];
+        chunkOffsets = new byte[tileCount];
+        chunkOfOrdinal = new Chunk[tileCount];
+
+        Map<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            for (int edge = graph.getEdgeStart(ordinal); edge < graph.getEdgeEnd(ordinal);
+                edge++) {
+                exitMasks[ordinal] |= 0x1 << graph.getEdgeDirection(edge).ordinal();
+            }
+            stacks[ordinal] = tiles.getStackAt(ordinal);
+
+            Position position = tiles.getPositionAt(ordinal);
+            int chunkX = position.getX() >> CHUNK_BITS;
+            int chunkY = position.getY() >> CHUNK_BITS;
+            Chunk chunk = chunks.get(pack(chunkX, chunkY));
+            if (chunk == null) {
+                chunk = new Chunk(chunkX, chunkY, getSuperChunk(chunkX >> SUPER_CHUNK_BITS,
+                    chunkY >> SUPER_CHUNK_BITS));
+                chunks.put(pack(chunkX, chunkY), chunk);
+            }
+            chunkOfOrdinal[ordinal] = chunk;
+            chunk.add(ordinal);
+            chunkOffsets[ordinal] = (byte) ((position.getX() & CHUNK_MASK)
+                | (position.getY() & CHUNK_MASK) << CHUNK_BITS);
+
+            chunk.statistics.addTile(stacks[ordinal], exitMasks[ordinal], 1);
+            chunk.parent.statistics.addTile(stacks[ordinal], exitMasks[ordinal], 1);
+            worldStatistics.addTile(stacks[ordinal], exitMasks[ordinal], 1);
+        }
+    }
+
+    /**
+     * Recount a tile after its blocks changed.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     */
+    void tileChanged(int ordinal) {
+        int oldStack = stacks[ordinal];
+        int newStack = tiles.getStackAt(ordinal);
+        if (oldStack == newStack) {
+            return;
+        }
+
+        Chunk chunk = chunkOfOrdinal[ordinal];
+        chunk.statistics.replaceStack(oldStack, newStack);
+        chunk.parent.statistics.replaceStack(oldStack, newStack);
+        worldStatistics.replaceStack(oldStack, newStack);
+        stacks[ordinal] = newStack;
+    }
+
+    /**
+     * Get the totals of the whole world.
+     *
+     * @return a copy of the world totals
+     */
+    WorldStatistics getStatistics() {
+        WorldStatistics statistics = new WorldStatistics();
+        statistics.add(worldStatistics);
+        return statistics;
+    }
+
+    /**
+     * Get the totals of the tiles in a rectangle (corners included).
+     *
+     * @param minX the smallest x of the rectangle
+     * @param minY the smallest y of the rectangle
+     * @param maxX the largest x of the rectangle
+     * @param maxY the largest y of the rectangle
+     * @return the totals of the tiles in the rectangle
+     */
+    WorldStatistics getStatistics(int minX, int minY, int maxX, int maxY) {
+        WorldStatistics statistics = new WorldStatistics();
+        int superMinX = minX >> (CHUNK_BITS + SUPER_CHUNK_BITS);
+        int superMinY = minY >> (CHUNK_BITS + SUPER_CHUNK_BITS);
+        int superMaxX = maxX >> (CHUNK_BITS + SUPER_CHUNK_BITS);
+        int superMaxY = maxY >> (CHUNK_BITS + SUPER_CHUNK_BITS);
+
+        // Look up the super chunks in the rectangle, or go through all of them if there are fewer
+        long superArea = ((long) superMaxX - superMinX + 1) * ((long) superMaxY - superMinY + 1);
+        if (superArea <= superChunks.size()) {
+            for (long superX = superMinX; superX <= superMaxX; superX++) {
+                for (long superY = superMinY; superY <= superMaxY; superY++) {
+                    SuperChunk superChunk = superChunks.get(pack((int) superX, (int) superY));
+                    if (superChunk != null) {
+                        addSuperChunk(statistics, superChunk, minX, minY, maxX, maxY);
+                    }
+                }
+            }
+        } else {
+            for (SuperChunk superChunk : superChunks.values()) {
+                if (superChunk.x >= superMinX && superChunk.x <= superMaxX
+                    && superChunk.y >= superMinY && superChunk.y <= superMaxY) {
+                    addSuperChunk(statistics, superChunk, minX, minY, maxX, maxY);
+                }
+            }
+        }
+        return statistics;
+    }
+
+    private void addSuperChunk(WorldStatistics statistics, SuperChunk superChunk, int minX,
+        int minY, int maxX, int maxY) {
+        int shift = CHUNK_BITS + SUPER_CHUNK_BITS;
+        if (isCovered(superChunk.x, superChunk.y, shift, minX, minY, maxX, maxY)) {
+            statistics.add(superChunk.statistics);
+            return;
+        }
+
+        for (Chunk chunk : superChunk.chunks) {
+            long chunkMinX = (long) chunk.x << CHUNK_BITS;
+            long chunkMinY = (long) chunk.y << CHUNK_BITS;
+            long chunkMaxX = chunkMinX + (0x1 << CHUNK_BITS) - 1;
+            long chunkMaxY = chunkMinY + (0x1 << CHUNK_BITS) - 1;
+            if (chunkMaxX < minX || chunkMinX > maxX || chunkMaxY < minY || chunkMinY > maxY) {
+                continue;
+            }
+            if (isCovered(chunk.x, chunk.y, CHUNK_BITS, minX, minY, maxX, maxY)) {
+                statistics.add(chunk.statistics);
+                continue;
+            }
+
+            // The rectangle edge runs through this chunk, so count its tiles one by one
+            int offsetMinX = (int) (Math.max(chunkMinX, minX) - chunkMinX);
+            int offsetMinY = (int) (Math.max(chunkMinY, minY) - chunkMinY);
+            int offsetMaxX = (int) (Math.min(chunkMaxX, maxX) - chunkMinX);
+            int offsetMaxY = (int) (Math.min(chunkMaxY, maxY) - chunkMinY);
+            for (int i = 0; i < chunk.size; i++) {
+                int ordinal = chunk.ordinals[i];
+                int offsetX = chunkOffsets[ordinal] & CHUNK_MASK;
+                int offsetY = (chunkOffsets[ordinal] >> CHUNK_BITS) & CHUNK_MASK;
+                if (offsetX >= offsetMinX && offsetX <= offsetMaxX && offsetY >= offsetMinY
+                    && offsetY <= offsetMaxY) {
+                    statistics.addTile(stacks[ordinal], exitMasks[ordinal], 1);
+                }
+            }
+        }
+    }
+
+    /*
+     * Whether the square of side 2^shift at (x, y) in units of that side lies inside the
+     * rectangle.
+     */
+    private static boolean isCovered(int x, int y, int shift, int minX, int minY, int maxX,
+        int maxY) {
+        long squareMinX = (long) x << shift;
+        long squareMinY = (long) y << shift;
+        long side = 0x1L << shift;
+        return squareMinX >= minX && squareMinY >= minY && squareMinX + side - 1 <= maxX
+            && squareMinY + side - 1 <= maxY;
+    }
+
+    private SuperChunk getSuperChunk(int superX, int superY) {
+        SuperChunk superChunk = superChunks.get(pack(superX, superY));
+        if (superChunk == null) {
+            superChunk = new SuperChunk(superX, superY);
+            superChunks.put(pack(superX, superY), superChunk);
+        }
+        return superChunk;
+    }
+
+    private static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static final class Chunk {
+
+        final int x;
+        final int y;
+        final SuperChunk parent;
+        final WorldStatistics statistics = new WorldStatistics();
+        int[] ordinals = new int[4];
+        int size = 0;
+
+        Chunk(int x, int y, SuperChunk parent) {
+            this.x = x;
+            this.y = y;
+            this.parent = parent;
+            parent.chunks.add(this);
+        }
+
+        void add(int ordinal) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            ordinals[size++] = ordinal;
+        }
+    }
+
+    private static final class SuperChunk {
+
+        final int x;
+        final int y;
+        final List<Chunk> chunks = new ArrayList<Chunk>();
+        final WorldStatistics statistics = new WorldStatistics();
+
+        SuperChunk(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
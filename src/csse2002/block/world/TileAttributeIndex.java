@@ -0,0 +1,176 @@
+package csse2002.block.world;
+
+import java.util.Arrays;
+
+/**
+ * Secondary indexes of the tiles of a world by stack height and by top block type. <br> Each
+ * index keeps one bucket of tile ordinals (indexes in WorldMap.getTiles()) per key, and the slot
+ * of every tile in its bucket. Moving a tile to another bucket when its blocks change swaps the
+ * last member of the old bucket into its slot, so an update takes constant time, and a query
+ * copies only the buckets it asks for. <br>
+ *
+ * The indexes are built from the stacks of the tiles when a map is loaded, and kept up to date
+ * by WorldMap for the tiles that actions change.
+ */
+final class TileAttributeIndex {
+
+    // Top block bucket of tiles without blocks, after the block codes 0 to 3
+    private static final int NO_TOP_BLOCK = 4;
+    private static final int TOP_BLOCK_BUCKETS = NO_TOP_BLOCK + 1;
+
+    private final SparseTileArray tiles;
+    private final Buckets heightBuckets;
+    private final Buckets topBlockBuckets;
+
+    /**
+     * Build the indexes from the current stacks of linked tiles.
+     *
+     * @param tiles the linked tiles
+     */
+    TileAttributeIndex(SparseTileArray tiles) {
+        this.tiles = tiles;
+        int tileCount = tiles.getTileCount();
+        heightBuckets = new Buckets(PackedBlockStack.MAX_BLOCKS + 1, tileCount);
+        topBlockBuckets = new Buckets(TOP_BLOCK_BUCKETS, tileCount);
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            int stack = tiles.getStackAt(ordinal);
+            heightBuckets.add(ordinal, heightBucketOf(stack));
+            topBlockBuckets.add(ordinal, topBlockBucketOf(stack));
+        }
+    }
+
+    /**
+     * Move a tile to the buckets of its current stack, after its blocks changed.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     */
+    void tileChanged(int ordinal) {
+        int stack = tiles.getStackAt(ordinal);
+        heightBuckets.move(ordinal, heightBucketOf(stack));
+        topBlockBuckets.move(ordinal, topBlockBucketOf(stack));
+    }
+
+    /**
+     * Get the tiles with a number of blocks.
+     *
+     * @param height the number of blocks
+     * @return the ordinals of the tiles, in no particular order
+     */
+    int[] findWithHeight(int height) {
+        if (height < 0 || height > PackedBlockStack.MAX_BLOCKS) {
+            return new int[0];
+        }
+        return heightBuckets.copyOf(height, height);
+    }
+
+    /**
+     * Get the tiles with more than a number of blocks.
+     *
+     * @param height the number of blocks
+     * @return the ordinals of the tiles, in no particular order
+     */
+    int[] findTallerThan(int height) {
+        return heightBuckets.copyOf(Math.max(height + 1, 0), PackedBlockStack.MAX_BLOCKS);
+    }
+
+    /**
+     * Get the tiles with a type of block on top.
+     *
+     * @param blockType one of "soil", "grass", "stone" or "wood", or null for tiles without
+     * blocks
+     * @return the ordinals of the tiles, in no particular order
+     */
+    int[] findWithTopBlock(String blockType) {
+        int bucket = blockType == null ? NO_TOP_BLOCK : PackedBlockStack.blockCodeOf(blockType);
+        if (bucket < 0) {
+            return new int[0];
+        }
+        return topBlockBuckets.copyOf(bucket, bucket);
+    }
+
+    /**
+     * Check whether the top block of a tile can be dug, from the index alone.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     * @return true if the tile has a top block and it is diggable
+     */
+    boolean isDiggable(int ordinal) {
+        int bucket = topBlockBuckets.bucketOf(ordinal);
+        return bucket != NO_TOP_BLOCK && PackedBlockStack.createBlock(bucket, true).isDiggable();
+    }
+
+    private static int heightBucketOf(int stack) {
+        return PackedBlockStack.getHeight(stack);
+    }
+
+    private static int topBlockBucketOf(int stack) {
+        int height = PackedBlockStack.getHeight(stack);
+        return height == 0 ? NO_TOP_BLOCK : PackedBlockStack.getBlockCode(stack, height - 1);
+    }
+
+    /*
+     * Tile ordinals grouped by a small key, with the slot of each tile in its group.
+     */
+    private static final class Buckets {
+
+        private final int[][] members;
+        private final int[] sizes;
+        private final byte[] bucketOfOrdinal;
+        private final int[] slotOfOrdinal;
+
+        Buckets(int bucketCount, int tileCount) {
+            members = new int[bucketCount][];
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                members[bucket] = new int[4];
+            }
+            sizes = new int[bucketCount];
+            bucketOfOrdinal = new byte[tileCount];
+            slotOfOrdinal = new int[tileCount];
+        }
+
+        int bucketOf(int ordinal) {
+            return bucketOfOrdinal[ordinal];
+        }
+
+        void add(int ordinal, int bucket) {
+            if (sizes[bucket] == members[bucket].length) {
+                members[bucket] = Arrays.copyOf(members[bucket], sizes[bucket] * 2);
+            }
+            members[bucket][sizes[bucket]] = ordinal;
+            bucketOfOrdinal[ordinal] = (byte) bucket;
+            slotOfOrdinal[ordinal] = sizes[bucket]++;
+        }
+
+        void move(int ordinal, int bucket) {
+            int oldBucket = bucketOfOrdinal[ordinal];
+            if (oldBucket == bucket) {
+                return;
+            }
+
+            // Fill the slot with the last member of the old bucket
+            int slot = slotOfOrdinal[ordinal];
+            int lastOrdinal = members[oldBucket][--sizes[oldBucket]];
+            members[oldBucket][slot] = lastOrdinal;
+            slotOfOrdinal[lastOrdinal] = slot;
+
+            add(ordinal, bucket);
+        }
+
+        /*
+         * The members of buckets fromBucket to toBucket (both included).
+         */
+        int[] copyOf(int fromBucket, int toBucket) {
+            int count = 0;
+            for (int bucket = fromBucket; bucket <= toBucket; bucket++) {
+                count += sizes[bucket];
+            }
+            int[] ordinals = new int[count];
+            int offset = 0;
+            for (int bucket = fromBucket; bucket <= toBucket; bucket++) {
+                System.arraycopy(members[bucket], 0, ordinals, offset, sizes[bucket]);
+                offset += sizes[bucket];
+            }
+            return ordinals;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package csse2002.block.world;
+
+import java.util.Arrays;
+
+/**
+ * The connected components of the tiles in a map file, and the tiles that are not connected to
+ * tile 0. <br> Tiles are identified by their id in the file. Two tiles are connected when one has
+ * an exit to the other, in either direction, so a tile outside the component of tile 0 can never
+ * be reached from it: such tiles are not part of the world (see SparseTileArray.addLinkedTiles())
+ * and are usually a mistake in the file. <br>
+ *
+ * Components are labelled by union-find (union by rank, path halving) while the exits are read,
+ * which takes near-linear time in the number of tiles and exits.
+ */
+public final class TileComponents {
+
+    private final int tileCount;
+    // Union-find forest while exits are added; null once finished
+    private int[] parents;
+    private byte[] ranks;
+    private int componentCount = 0;
+    private int[] unreachableTileIds = null;
+
+    /**
+     * Start labelling tiles 0 to tileCount - 1, each in a component of its own.
+     *
+     * @param tileCount the number of tiles in the file
+     */
+    TileComponents(int tileCount) {
+        this.tileCount = tileCount;
+        parents = new int[tileCount];
+        ranks = new byte[tileCount];
+        for (int tileId = 0; tileId < tileCount; tileId++) {
+            parents[tileId] = tileId;
+        }
+    }
+
+    /**
+     * Join the components of a tile and the target of one of its exits. Ids outside the file are
+     * ignored, since the parser reports them.
+     *
+     * @param tileId the id of the tile with the exit
+     * @param targetTileId the id of the tile the exit leads to, or -1 for no exit
+     */
+    void addExit(int tileId, int targetTileId) {
+        if (targetTileId < 0 || targetTileId >= tileCount) {
+            return;
+        }
+        int root = find(tileId);
+        int targetRoot = find(targetTileId);
+        if (root == targetRoot) {
+            return;
+        }
+        if (ranks[root] < ranks[targetRoot]) {
+            parents[root] = targetRoot;
+        } else {
+            parents[targetRoot] = root;
+            if (ranks[root] == ranks[targetRoot]) {
+                ranks[root]++;
+            }
+        }
+    }
+
+    /**
+     * Count the components and list the tiles outside the component of tile 0, after all the
+     * exits have been added.
+     */
+    void finish() {
+        int startingRoot = tileCount == 0 ? -1 : find(0);
+        int unreachableCount = 0;
+        for (int tileId = 0; tileId < tileCount; tileId++) {
+            if (parents[tileId] == tileId) {
+                componentCount++;
+            }
+            if (find(tileId) != startingRoot) {
+                unreachableCount++;
+            }
+        }
+
+        unreachableTileIds = new int[unreachableCount];
+        int count = 0;
+        for (int tileId = 0; tileId < tileCount; tileId++) {
+            if (find(tileId) != startingRoot) {
+                unreachableTileIds[count++] = tileId;
+            }
+        }
+        parents = null;
+        ranks = null;
+    }
+
+    /**
+     * Get the number of tiles in the file.
+     *
+     * @return the number of tiles
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Get the number of connected components, including the one of tile 0.
+     *
+     * @return the number of components
+     */
+    public int getComponentCount() {
+        return componentCount;
+    }
+
+    /**
+     * Get the number of tiles that are not connected to tile 0.
+     *
+     * @return the number of unreachable tiles
+     */
+    public int getUnreachableTileCount() {
+        return unreachableTileIds.length;
+    }
+
+    /**
+     * Get the ids of the tiles that are not connected to tile 0.
+     *
+     * @return the ids, in increasing order
+     */
+    public int[] getUnreachableTileIds() {
+        return unreachableTileIds.clone();
+    }
+
+    /**
+     * Check whether a tile is connected to tile 0.
+     *
+     * @param tileId the id of the tile in the file
+     * @return true if the tile is in the file and connected to tile 0
+     */
+    public boolean isReachable(int tileId) {
+        return tileId >= 0 && tileId < tileCount
+            && Arrays.binarySearch(unreachableTileIds, tileId) < 0;
+    }
+
+    private int find(int tileId) {
+        while (parents[tileId] != tileId) {
+            parents[tileId] = parents[parents[tileId]];
+            tileId = parents[tileId];
+        }
+        return tileId;
+    }
+}
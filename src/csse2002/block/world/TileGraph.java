@@ -0,0 +1,152 @@
+package csse2002.block.world;
+
+import java.util.Arrays;
+
+/**
+ * A compressed sparse row (CSR) view of the exits between the tiles of a world. <br> Tiles are
+ * identified by dense ids: their ordinal, i.e. their index in WorldMap.getTiles(). The exits of
+ * tile t are the edges getEdgeStart(t) to getEdgeEnd(t) - 1, in north, east, south, west order.
+ * Each edge packs the ordinal of the tile it leads to with the Direction of the exit into one
+ * int. <br>
+ *
+ * Graph algorithms (breadth-first searches, components, distances) can walk these two int arrays
+ * instead of the exit maps of Tile objects. The graph is a snapshot of the exits when it was
+ * built; WorldMap drops it in exitsChanged() and builds it again on next use.
+ */
+public final class TileGraph {
+
+    private static final int DIRECTION_BITS = 2;
+    private static final int DIRECTION_MASK = (0x1 << DIRECTION_BITS) - 1;
+    private static final int NO_TILE = -1;
+
+    // Edges of tile t are edges[edgeOffsets[t]] to edges[edgeOffsets[t + 1] - 1]
+    private final int[] edgeOffsets;
+    // (target ordinal << DIRECTION_BITS) | direction ordinal
+    private final int[] edges;
+
+    /**
+     * Build the graph from the exit cache of a sparse tile array.
+     *
+     * @param tiles the linked tiles
+     */
+    TileGraph(SparseTileArray tiles) {
+        int tileCount = tiles.getTileCount();
+        edgeOffsets = new int[tileCount + 1];
+
+        // Each exit lookup can be costly for stored tiles, so read every exit once
+        int[] allEdges = new int[tileCount * Direction.all().length];
+        int edgeCount = 0;
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            for (Direction direction : Direction.all()) {
+                int exitOrdinal = tiles.getExitOrdinal(ordinal, direction);
+                if (exitOrdinal >= 0) {
+                    allEdges[edgeCount++] = (exitOrdinal << DIRECTION_BITS) | direction.ordinal();
+                }
+            }
+            edgeOffsets[ordinal + 1] = edgeCount;
+        }
+        edges = Arrays.copyOf(allEdges, edgeCount);
+    }
+
+    /**
+     * Get the number of tiles, i.e. WorldMap.getTiles().size().
+     *
+     * @return the number of tiles
+     */
+    public int getTileCount() {
+        return edgeOffsets.length - 1;
+    }
+
+    /**
+     * Get the number of exits between the tiles.
+     *
+     * @return the number of edges
+     */
+    public int getEdgeCount() {
+        return edges.length;
+    }
+
+    /**
+     * Get the first edge of a tile.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     * @return the index of the first edge leaving the tile
+     */
+    public int getEdgeStart(int ordinal) {
+        return edgeOffsets[ordinal];
+    }
+
+    /**
+     * Get the end (exclusive) of the edges of a tile.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     * @return one past the index of the last edge leaving the tile
+     */
+    public int getEdgeEnd(int ordinal) {
+        return edgeOffsets[ordinal + 1];
+    }
+
+    /**
+     * Get the tile an edge leads to.
+     *
+     * @param edge the edge index
+     * @return the ordinal of the target tile
+     */
+    public int getEdgeTarget(int edge) {
+        return edges[edge] >>> DIRECTION_BITS;
+    }
+
+    /**
+     * Get the direction of the exit an edge stands for.
+     *
+     * @param edge the edge index
+     * @return the exit direction
+     */
+    public Direction getEdgeDirection(int edge) {
+        return Direction.all()[edges[edge] & DIRECTION_MASK];
+    }
+
+    /**
+     * Get the tile at the exit of another tile.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     * @param direction the exit direction
+     * @return the ordinal of the exit tile, or -1 if there is no such exit
+     */
+    public int getExit(int ordinal, Direction direction) {
+        for (int edge = edgeOffsets[ordinal]; edge < edgeOffsets[ordinal + 1]; edge++) {
+            if ((edges[edge] & DIRECTION_MASK) == direction.ordinal()) {
+                return edges[edge] >>> DIRECTION_BITS;
+            }
+        }
+        return NO_TILE;
+    }
+
+    /**
+     * Get the number of exits the builder has to take to get from one tile to every other tile,
+     * following exits one way only.
+     *
+     * @param ordinal the index of the starting tile in getTiles()
+     * @return the distance to each tile by ordinal, or -1 for tiles that cannot be reached
+     */
+    public int[] getDistancesFrom(int ordinal) {
+        int[] distances = new int[getTileCount()];
+        Arrays.fill(distances, NO_TILE);
+        int[] queue = new int[getTileCount()];
+        int tail = 0;
+
+        distances[ordinal] = 0;
+        queue[tail++] = ordinal;
+        for (int head = 0; head < tail; head++) {
+            int tile = queue[head];
+            for (int edge = edgeOffsets[tile]; edge < edgeOffsets[tile + 1]; edge++) {
+                int target = edges[edge] >>> DIRECTION_BITS;
+                if (distances[target] == NO_TILE) {
+                    distances[target] = distances[tile] + 1;
+                    queue[tail++] = target;
+                }
+            }
+        }
+        return distances;
+    }
+}
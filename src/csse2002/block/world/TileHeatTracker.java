@@ -0,0 +1,323 @@
+package csse2002.block.world;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Counts the actions performed on each tile and region, to find the hottest ones over a sliding
+ * window of recent actions. <br> Set a tracker with WorldMap.setHeatTracker(), and
+ * Action.processAction() records the builder's tile for every DIG, DROP and MOVE_BLOCK action,
+ * whether or not the action succeeds. A region is a square of REGION_SIZE by REGION_SIZE
+ * positions, the same chunks WorldMap.getStatistics() totals by. <br>
+ *
+ * Counts are kept in count-min sketches, so memory is fixed however many tiles are touched and
+ * a count is never below the true count (it may be above it, when tiles share counters). The
+ * window is split into WINDOW_STEPS steps, each with its own sketch, and slides one step at a
+ * time: the oldest step is subtracted from the running totals and cleared. The hottest keys are
+ * kept in a small min-heap, so recording an action takes a fixed number of counter updates plus
+ * a scan of the heap.
+ */
+public class TileHeatTracker {
+
+    private static final int REGION_BITS = 4;
+
+    /**
+     * The width and height of a region, in positions
+     */
+    public static final int REGION_SIZE = 0x1 << REGION_BITS;
+    /**
+     * The number of steps in the window, which slides by getWindowLength() / WINDOW_STEPS
+     * actions at a time
+     */
+    public static final int WINDOW_STEPS = 8;
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH_BITS = 9;
+    private static final long HASH_SEED = 0x9E3779B97F4A7C15L;
+
+    private final int stepLength;
+    private final HeavyHitters tileCounts;
+    private final HeavyHitters regionCounts;
+    private int actionsInStep = 0;
+
+    /**
+     * Create a tracker of the hottest tiles and regions.
+     *
+     * @param hottestCount the number of hottest tiles (and regions) to report
+     * @param windowLength the number of recent actions counted, rounded up to a multiple of
+     * WINDOW_STEPS
+     * @throws IllegalArgumentException if hottestCount or windowLength is not positive
+     */
+    public TileHeatTracker(int hottestCount, int windowLength) {
+        if (hottestCount <= 0 || windowLength <= 0) {
+            throw new IllegalArgumentException();
+        }
+        stepLength = (windowLength + WINDOW_STEPS - 1) / WINDOW_STEPS;
+        tileCounts = new HeavyHitters(hottestCount);
+        regionCounts = new HeavyHitters(hottestCount);
+    }
+
+    /**
+     * Get the number of recent actions counted.
+     *
+     * @return the window length
+     */
+    public int getWindowLength() {
+        return stepLength * WINDOW_STEPS;
+    }
+
+    /**
+     * Record an action performed on the tile at a position.
+     *
+     * @param position the position of the tile
+     */
+    public void record(Position position) {
+        if (actionsInStep == stepLength) {
+            tileCounts.slide();
+            regionCounts.slide();
+            actionsInStep = 0;
+        }
+        actionsInStep++;
+
+        int x = position.getX();
+        int y = position.getY();
+        tileCounts.add(pack(x, y));
+        regionCounts.add(pack(x >> REGION_BITS, y >> REGION_BITS));
+    }
+
+    /**
+     * Get the hottest tiles in the window, hottest first.
+     *
+     * @return up to hottestCount positions of tiles, with their estimated counts
+     */
+    public List<HotSpot> getHottestTiles() {
+        return tileCounts.getHottest(0);
+    }
+
+    /**
+     * Get the hottest regions in the window, hottest first.
+     *
+     * @return up to hottestCount regions, each given by the position of its corner with the
+     * smallest x and y, with their estimated counts
+     */
+    public List<HotSpot> getHottestRegions() {
+        return regionCounts.getHottest(REGION_BITS);
+    }
+
+    /**
+     * Write the hottest tiles and regions, one per line as "x,y count", under the headings
+     * "tiles" and "regions".
+     *
+     * @param writer the writer to write the report to
+     * @throws IOException if the writer throws an IOException
+     */
+    public void writeReport(Writer writer) throws IOException {
+        writeHotSpots(writer, "tiles", getHottestTiles());
+        writeHotSpots(writer, "regions", getHottestRegions());
+    }
+
+    private static void writeHotSpots(Writer writer, String heading, List<HotSpot> hotSpots)
+        throws IOException {
+        writer.write(heading);
+        writer.write(System.lineSeparator());
+        for (HotSpot hotSpot : hotSpots) {
+            writer.write(hotSpot.getPosition().getX() + "," + hotSpot.getPosition().getY() + " "
+                + hotSpot.getCount());
+            writer.write(System.lineSeparator());
+        }
+    }
+
+    private static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A tile or region and its estimated number of actions in the window.
+     */
+    public static final class HotSpot {
+
+        private final Position position;
+        private final int count;
+
+        private HotSpot(Position position, int count) {
+            this.position = position;
+            this.count = count;
+        }
+
+        /**
+         * Get the position of the tile, or of the corner of the region.
+         *
+         * @return the position
+         */
+        public Position getPosition() {
+            return position;
+        }
+
+        /**
+         * Get the estimated number of actions in the window.
+         *
+         * @return the count, never below the true count
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /*
+     * A windowed count-min sketch over packed (x, y) keys, with a min-heap of the keys with the
+     * largest estimates.
+     */
+    private static final class HeavyHitters {
+
+        // Counters of each window step, and their sums, row by row
+        private final int[][] stepCounters = new int[WINDOW_STEPS][SKETCH_DEPTH
+            << SKETCH_WIDTH_BITS];
+        private final int[] windowCounters = new int[SKETCH_DEPTH << SKETCH_WIDTH_BITS];
+        private int currentStep = 0;
+
+        // Min-heap on estimate; the heap is small, so keys are found by scanning it
+        private final long[] heapKeys;
+        private final int[] heapEstimates;
+        private int heapSize = 0;
+
+        HeavyHitters(int capacity) {
+            heapKeys = new long[capacity];
+            heapEstimates = new int[capacity];
+        }
+
+        void add(long key) {
+            int estimate = Integer.MAX_VALUE;
+            int[] counters = stepCounters[currentStep];
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                int counter = counterOf(key, row);
+                counters[counter]++;
+                estimate = Math.min(estimate, ++windowCounters[counter]);
+            }
+
+            for (int slot = 0; slot < heapSize; slot++) {
+                if (heapKeys[slot] == key) {
+                    heapEstimates[slot] = estimate;
+                    siftDown(slot);
+                    return;
+                }
+            }
+            if (heapSize < heapKeys.length) {
+                heapKeys[heapSize] = key;
+                heapEstimates[heapSize] = estimate;
+                siftUp(heapSize++);
+            } else if (estimate > heapEstimates[0]) {
+                heapKeys[0] = key;
+                heapEstimates[0] = estimate;
+                siftDown(0);
+            }
+        }
+
+        /*
+         * Drop the oldest step from the window, and re-estimate the keys in the heap.
+         */
+        void slide() {
+            currentStep = (currentStep + 1) % WINDOW_STEPS;
+            int[] counters = stepCounters[currentStep];
+            for (int i = 0; i < counters.length; i++) {
+                windowCounters[i] -= counters[i];
+            }
+            Arrays.fill(counters, 0);
+
+            int keptCount = 0;
+            for (int slot = 0; slot < heapSize; slot++) {
+                int estimate = estimate(heapKeys[slot]);
+                if (estimate > 0) {
+                    heapKeys[keptCount] = heapKeys[slot];
+                    heapEstimates[keptCount++] = estimate;
+                }
+            }
+            heapSize = keptCount;
+            for (int slot = heapSize / 2 - 1; slot >= 0; slot--) {
+                siftDown(slot);
+            }
+        }
+
+        List<HotSpot> getHottest(int shift) {
+            List<HotSpot> hottest = new ArrayList<HotSpot>(heapSize);
+            for (int slot = 0; slot < heapSize; slot++) {
+                int x = (int) (heapKeys[slot] >> 32);
+                int y = (int) heapKeys[slot];
+                hottest.add(new HotSpot(new Position(x << shift, y << shift),
+                    heapEstimates[slot]));
+            }
+            Collections.sort(hottest, new Comparator<HotSpot>() {
+                @Override
+                public int compare(HotSpot first, HotSpot second) {
+                    if (first.getCount() != second.getCount()) {
+                        return Integer.compare(second.getCount(), first.getCount());
+                    }
+                    return first.getPosition().compareTo(second.getPosition());
+                }
+            });
+            return hottest;
+        }
+
+        private int estimate(long key) {
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                estimate = Math.min(estimate, windowCounters[counterOf(key, row)]);
+            }
+            return estimate;
+        }
+
+        private void siftUp(int slot) {
+            while (slot > 0) {
+                int parent = (slot - 1) / 2;
+                if (heapEstimates[parent] <= heapEstimates[slot]) {
+                    return;
+                }
+                swap(slot, parent);
+                slot = parent;
+            }
+        }
+
+        private void siftDown(int slot) {
+            while (true) {
+                int smallest = slot;
+                int left = 2 * slot + 1;
+                int right = left + 1;
+                if (left < heapSize && heapEstimates[left] < heapEstimates[smallest]) {
+                    smallest = left;
+                }
+                if (right < heapSize && heapEstimates[right] < heapEstimates[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == slot) {
+                    return;
+                }
+                swap(slot, smallest);
+                slot = smallest;
+            }
+        }
+
+        private void swap(int first, int second) {
+            long key = heapKeys[first];
+            heapKeys[first] = heapKeys[second];
+            heapKeys[second] = key;
+            int estimate = heapEstimates[first];
+            heapEstimates[first] = heapEstimates[second];
+            heapEstimates[second] = estimate;
+        }
+    }
+
+    /*
+     * The counter of key in a row of the sketch, from a different hash for each row.
+     */
+    private static int counterOf(long key, int row) {
+        long hash = key + (row + 1) * HASH_SEED;
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        hash ^= hash >>> 31;
+        return (row << SKETCH_WIDTH_BITS) | (int) (hash >>> (Long.SIZE - SKETCH_WIDTH_BITS));
+    }
+}
@@ -0,0 +1,85 @@
+package csse2002.block.world;
+
+import csse2002.block.world.Tile;
+
+/**
+ * Storage for the tiles of a SparseTileArray that are not kept as a graph of Tile objects. <br>
+ * Tiles are addressed by ordinal, their index in SparseTileArray.getTiles(). Tile objects
+ * (views) are only created for the tiles that are handed out.
+ */
+public interface TileStore {
+
+    /**
+     * Get the number of tiles in the store.
+     *
+     * @return the number of tiles, i.e. getTiles().size()
+     */
+    int getTileCount();
+
+    /**
+     * Get the ordinal of the tile at (x, y).
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the ordinal, or -1 if there is no tile at (x, y)
+     */
+    int lookupOrdinal(int x, int y);
+
+    /**
+     * Get the view of a tile, with all of its exits linked.
+     *
+     * @param ordinal the ordinal of the tile
+     * @return the tile view
+     */
+    Tile getTileAt(int ordinal);
+
+    /**
+     * Get the view of a tile only if it has already been created.
+     *
+     * @param ordinal the ordinal of the tile
+     * @return the tile view, or null if the tile has not been handed out
+     */
+    Tile getExistingTileAt(int ordinal);
+
+    /**
+     * Get the stored block stack of a tile. Views may have been changed since the stack was
+     * stored, so check getExistingTileAt() first.
+     *
+     * @param ordinal the ordinal of the tile
+     * @return the packed stack (see PackedBlockStack)
+     */
+    int getStackAt(int ordinal);
+
+    /**
+     * Get the ordinal of the tile at an exit of a tile.
+     *
+     * @param ordinal the ordinal of the tile
+     * @param direction the exit direction
+     * @return the ordinal of the exit tile, or -1 if there is no such exit
+     */
+    int getExitOrdinal(int ordinal, Direction direction);
+
+    /**
+     * Get the position of a tile.
+     *
+     * @param ordinal the ordinal of the tile
+     * @return the position of the tile
+     */
+    Position getPositionAt(int ordinal);
+
+    /**
+     * Get the ordinal of a tile view handed out by this store.
+     *
+     * @param tile the tile view
+     * @return the ordinal of the tile, or -1 if the tile is not a current view of this store
+     */
+    int getOrdinalOfView(Tile tile);
+
+    /**
+     * Link the exits of a tile that has already been handed out. Does nothing if the tile is not
+     * a view of this store.
+     *
+     * @param tile the tile view
+     */
+    void linkView(Tile tile);
+}
@@ -2,26 +2,30 @@ package csse2002.block.world;
 
 import csse2002.block.world.Block;
 import csse2002.block.world.Builder;
-import csse2002.block.world.GrassBlock;
 import csse2002.block.world.InvalidBlockException;
 import csse2002.block.world.NoExitException;
-import csse2002.block.world.SoilBlock;
-import csse2002.block.world.StoneBlock;
 import csse2002.block.world.Tile;
 import csse2002.block.world.TooHighException;
-import csse2002.block.world.WoodBlock;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,17 +33,111 @@ import java.util.regex.Pattern;
  *A class to store a world maps
  */
 public class WorldMap {
+    /**
+     * Load flag which keeps the blocks, exits and positions of all tiles in an
+     * OffHeapTileStore, so that Tile objects are only created for the tiles
+     * that are handed out. The tile and exit lines are scanned straight into
+     * the store, so the heap used while loading does not grow with the world
+     * either (see LOAD_LAZY).
+     */
+    public static final int LOAD_OFF_HEAP = 0x1;
+
+    /**
+     * Load flag which builds every tile and the builder's inventory from one
+     * shared Block instance per block type, instead of a new Block for every
+     * block in the file.
+     */
+    public static final int LOAD_SHARED_BLOCKS = 0x1 << 1;
+
+    /**
+     * Load flag which treats the filename as a directory written by
+     * saveRegions(), and loads its regions on demand (see RegionTileStore).
+     */
+    public static final int LOAD_REGIONS = 0x1 << 2;
+
+    /**
+     * Load flag which indexes the tile and exit sections with a single
+     * allocation-free scan straight into an OffHeapTileStore. Tile objects are
+     * only created when they are handed out. LOAD_OFF_HEAP loads the same way.
+     */
+    public static final int LOAD_LAZY = 0x1 << 3;
+
+    /**
+     * Load flag which leaves out the tiles that are not connected to tile 0
+     * (see getTileComponents()) before the tiles are linked, so that no Tile
+     * object or store record is kept for them.
+     */
+    public static final int LOAD_DROP_UNREACHABLE = 0x1 << 4;
+
+    private static final String REGION_BUILDER_FILE_NAME = "builder.txt";
+
     private static String WEST_EXIT_NAME	=	"west";
     private static String SOUTH_EXIT_NAME	=	"south";
     private static String EAST_EXIT_NAME	=	"east";
     private static String NORTH_EXIT_NAME	=	"north";
+    private static final int WRITE_CHUNK_SIZE = 0x1 << 16;
+    private static final String LAZY_TOTAL_TITLE = "total:";
+    private static final String[] LAZY_BLOCK_TYPES = {"soil", "grass", "stone", "wood"};
+    private static final String[] LAZY_EXIT_NAMES = {NORTH_EXIT_NAME, EAST_EXIT_NAME,
+        SOUTH_EXIT_NAME, WEST_EXIT_NAME};
+    // Longest id accepted by the LOAD_LAZY scanner, so that ids always fit in an int
+    private static final int LAZY_MAX_DIGITS = 9;
+    // Worlds with fewer tiles are saved on one thread
+    private static final int PARALLEL_SAVE_MIN_TILES = 0x1 << 14;
+    // Tiles formatted by one task of a parallel save
+    private static final int PARALLEL_SAVE_RANGE_TILES = 0x1 << 12;
 
     private Tile startingTileSaved =	null;
     private	Position startPositionSaved			=	null;
     private Builder builderSaved				=	null;
     private Map<Integer,TileParserResult> tileParserResultHashMap	=	null;
     private SparseTileArray sparseTileArray = null;
+    // Built on first use, and dropped by exitsChanged()
+    private TileGraph tileGraph = null;
+    // Built on first use, then told about every tile that actions change
+    private BuilderPathfinder pathfinder = null;
+    // Built when a map file is loaded (otherwise on first use), then told
+    // about every tile that actions change
+    private TileAttributeIndex attributeIndex = null;
+    // Built on first use, then told about every tile that actions change
+    private TileAggregates tileAggregates = null;
+    // Told about the builder's tile by Action.processAction(), if set
+    private TileHeatTracker heatTracker = null;
+    // Undo and redo of actions, or null if not recorded
+    private ActionHistory actionHistory = null;
+    // Past versions of the tiles, or null if not kept
+    private WorldVersions worldVersions = null;
+    // Set when a transaction changes exits, which a delta cannot hold
+    private boolean isExitsChanged = false;
+    // Components of the tiles in the map file, or null if not loaded from one
+    private TileComponents tileComponents = null;
     private BuilderParserResult builderParserResult	=	null;
+    private boolean isSharingBlocks = false;
+    // Pool and sizes of parallel saves; a null pool means the common pool
+    private ForkJoinPool parallelSavePool = null;
+    private int parallelSaveMinTiles = PARALLEL_SAVE_MIN_TILES;
+    private int parallelSaveRangeTiles = PARALLEL_SAVE_RANGE_TILES;
+    private String regionDirectoryName = null;
+
+    // Ordinal (index in getTiles()) of the builder's tile, or -1 if unknown
+    private int builderOrdinal = 0;
+
+    // Tiles (by ordinal) and inventory changed by actions since the last
+    // checkpoint, i.e. the last saveMap() or saveDelta()
+    private BitSet changedTileSet = new BitSet();
+    private int[] changedOrdinals = new int[16];
+    private int changedTileCount = 0;
+    private boolean isInventoryChanged = false;
+
+    private static final String DELTA_HEADER = "delta";
+    private static final String DELTA_TOTALRxp = "^total:([0-9]+)$";
+    private static Pattern patternDeltaTotal = Pattern.compile(DELTA_TOTALRxp);
+    private static final String DELTA_INVENTORYRxp = "^inventory:(.*)$";
+    private static Pattern patternDeltaInventory = Pattern.compile(DELTA_INVENTORYRxp);
+    private static final String DELTA_CHANGEDRxp = "^changed:([0-9]+)$";
+    private static Pattern patternDeltaChanged = Pattern.compile(DELTA_CHANGEDRxp);
+    private static final String DELTA_TILERxp = "^([0-9]+) ((?:[a-z]+)(?:,[a-z]+)*)?$";
+    private static Pattern patternDeltaTile = Pattern.compile(DELTA_TILERxp);
 
     /**
      *sConstructs a new block world map from a startingTile, position and
@@ -170,7 +268,50 @@ public class WorldMap {
         throws WorldMapFormatException,
         WorldMapInconsistentException,
         java.io.FileNotFoundException{
-        FileReader fr = null;
+        this(filename, 0);
+    }
+
+    /**
+     *Construct a block world map from the given filename, using the given
+     *  load flags. <br>
+     *
+     *  See WorldMap(String) for the format of the file and the exceptions
+     *  thrown. Supported flags:
+     *  <ul>
+     *      <li> LOAD_OFF_HEAP: store the tiles in an OffHeapTileStore.
+     *           Tiles returned by getTile() and getTiles(), and tiles the
+     *           builder moves onto, get on-heap Tile objects; the rest of
+     *           the world stays in direct buffers. The tile and exit lines
+     *           are read as for LOAD_LAZY, so only files the scanner does
+     *           not accept keep a parse record per tile while loading. </li>
+     *      <li> LOAD_SHARED_BLOCKS: share one immutable Block instance per
+     *           block type between all loaded tiles and the inventory. </li>
+     *      <li> LOAD_REGIONS: filename is a directory written by
+     *           saveRegions(). Regions are loaded when they are used and
+     *           evicted under the budget set by setRegionMemoryBudget().
+     *           saveMap() also writes changed regions back to the
+     *           directory. </li>
+     *      <li> LOAD_LAZY: as LOAD_OFF_HEAP. The tile and exit lines are
+     *           read by a scanner that keeps no per-tile objects. Files the
+     *           scanner does not accept are loaded by the regular parser, so
+     *           the result and the exceptions thrown are the same. </li>
+     *      <li> LOAD_DROP_UNREACHABLE: do not create or store the tiles that
+     *           are not connected to tile 0. They are still checked, so the
+     *           exceptions thrown are the same. </li>
+     *  </ul>
+     *  The connected components of the tiles in the file are labelled while
+     *  loading; see getTileComponents().
+     * @param filename the name to load the file from
+     * @param loadFlags a combination of the LOAD_* flags, or 0
+     * @throws WorldMapFormatException if the file is incorrectly formatted
+     * @throws WorldMapInconsistentException if the file is correctly formatted, but has inconsistencies (such as overlapping tiles)s
+     * @throws java.io.FileNotFoundException if the file does not exist
+     */
+    public WorldMap(String filename, int loadFlags)
+        throws WorldMapFormatException,
+        WorldMapInconsistentException,
+        java.io.FileNotFoundException{
+        java.io.Reader fr = null;
         BufferedReader br;
         AbstractParser parser;
         AbstractParser	schemaSectionParser = new SchemaSectionParser();
@@ -179,13 +320,34 @@ public class WorldMap {
 
         schemaSectionParser.setNextParser(totalSectionParser);
         totalSectionParser.setNextParser(exitsSectionParser);
+        isSharingBlocks = (loadFlags & LOAD_SHARED_BLOCKS) != 0;
         builderParserResult = new BuilderParserResult();
+
+        if( (loadFlags & LOAD_REGIONS) != 0 ) {
+            createRegionInstance(filename);
+            return;
+        }
+
+        if( (loadFlags & (LOAD_LAZY | LOAD_OFF_HEAP)) != 0 ) {
+            if( createLazyInstance(filename, loadFlags) )
+                return;
+            // Let the regular parser load (or reject) the file
+            builderParserResult = new BuilderParserResult();
+            loadFlags |= LOAD_OFF_HEAP;
+        }
+
         tileParserResultHashMap	=	new HashMap<Integer,TileParserResult>();
 
         String currentLine = "";
 
         try {
-            fr = new FileReader(filename);
+            try {
+                fr = new java.io.InputStreamReader(MapFileCompression.openInput(filename));
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new WorldMapFormatException();
+            }
             br = new BufferedReader(fr);
 
             // Starting Parser
@@ -228,12 +390,27 @@ public class WorldMap {
             }
         }
 
+        labelTileComponents();
+        boolean isDroppingUnreachable = (loadFlags & LOAD_DROP_UNREACHABLE) != 0
+            && tileComponents.getUnreachableTileCount() > 0;
+
+        if( (loadFlags & LOAD_OFF_HEAP) != 0 ) {
+            createOffHeapInstance(currentLine,
+                isDroppingUnreachable ? createStoreIds(tileComponents) : null);
+            return;
+        }
+
         // Check result and create instance
         // Generate tile first
+        BitSet checkedStackSet = new BitSet();
+        BitSet validStackSet = new BitSet();
         for(TileParserResult tileResult : tileParserResultHashMap.values() ) {
             if( !tileResult.isFormatCorrect() )
                 throw new WorldMapFormatException("" + tileResult.getSelfTileId());
-            tileResult.generateTile();
+            if( isDroppingUnreachable && !tileComponents.isReachable(tileResult.getSelfTileId()) )
+                tileResult.checkTile(checkedStackSet, validStackSet);
+            else
+                tileResult.generateTile();
             if( !tileResult.isFormatCorrect() )
                 throw new WorldMapFormatException("" + tileResult.getSelfTileId());
         }
@@ -242,7 +419,10 @@ public class WorldMap {
         for(TileParserResult tileResult : tileParserResultHashMap.values() ) {
             if( !tileResult.isFormatCorrect() )
                 throw new WorldMapFormatException("" + tileResult.getSelfTileId());
-            tileResult.generateNeighbor();
+            if( isDroppingUnreachable && !tileComponents.isReachable(tileResult.getSelfTileId()) )
+                tileResult.checkNeighbor();
+            else
+                tileResult.generateNeighbor();
             if( !tileResult.isFormatCorrect() )
                 throw new WorldMapFormatException("" + tileResult.getSelfTileId());
         }
@@ -259,251 +439,1644 @@ public class WorldMap {
         sparseTileArray = new SparseTileArray();
 
         sparseTileArray.addLinkedTiles(startingTileSaved,startPositionSaved.getX(),startPositionSaved.getY()) ;
+        attributeIndex = new TileAttributeIndex(sparseTileArray);
     }
 
-    /**
-     * Gets the builder associated with this block world.
-     * @return the builder object
+    /*
+     * Copy the parsed tiles into an OffHeapTileStore. storeIds maps the id
+     * of each tile in the file to its id in the store, or to -1 to leave the
+     * tile out; null keeps every tile under its own id.
      */
-    public Builder getBuilder(){
-        return builderSaved;
+    private void createOffHeapInstance(String currentLine, int[] storeIds)
+        throws WorldMapFormatException,
+        WorldMapInconsistentException{
+        if( tileParserResultHashMap.get(0) == null )
+            throw new WorldMapFormatException(currentLine);
+
+        OffHeapTileStore tileStore = new OffHeapTileStore(tileParserResultHashMap.size()
+            - (storeIds == null ? 0 : tileComponents.getUnreachableTileCount()));
+        tileStore.setSharingBlocks(isSharingBlocks);
+
+        // Copy blocks first
+        BitSet checkedStackSet = new BitSet();
+        BitSet validStackSet = new BitSet();
+        for(TileParserResult tileResult : tileParserResultHashMap.values() ) {
+            if( !tileResult.isFormatCorrect() )
+                throw new WorldMapFormatException("" + tileResult.getSelfTileId());
+            tileResult.copyBlocksToStore(tileStore, storeIds, checkedStackSet, validStackSet);
+            if( !tileResult.isFormatCorrect() )
+                throw new WorldMapFormatException("" + tileResult.getSelfTileId());
+        }
+
+        // Copy exits later
+        for(TileParserResult tileResult : tileParserResultHashMap.values() ) {
+            tileResult.copyNeighborToStore(tileStore, storeIds);
+            if( !tileResult.isFormatCorrect() )
+                throw new WorldMapFormatException("" + tileResult.getSelfTileId());
+        }
+
+        if( !builderParserResult.isFormatCorrect() )
+            throw new WorldMapFormatException(currentLine);
+
+        // The parse results are no longer needed
+        tileParserResultHashMap = null;
+
+        linkOffHeapInstance(tileStore);
     }
 
-    /**
-     * Gets the starting position.
-     * @return the starting position.
+    /*
+     * Label the connected components of the parsed tiles.
      */
-    public Position getStartPosition(){
-        return startPositionSaved;
+    private void labelTileComponents(){
+        tileComponents = new TileComponents(tileParserResultHashMap.size());
+        for(TileParserResult tileResult : tileParserResultHashMap.values() ) {
+            int tileId = tileResult.getSelfTileId();
+            tileComponents.addExit(tileId, tileResult.getNorthId());
+            tileComponents.addExit(tileId, tileResult.getEastId());
+            tileComponents.addExit(tileId, tileResult.getSouthId());
+            tileComponents.addExit(tileId, tileResult.getWestId());
+        }
+        tileComponents.finish();
     }
 
-    /**
-     *Get a tile by position. <br>
-     *  Hint: call SparseTileArray.getTile()
-     * @param position get the Tile at this position
-     * @return the tile at that positions
+    /*
+     * Label the connected components of the tiles in a store filled by the
+     * LOAD_LAZY scanner.
      */
-    public Tile getTile(Position position){
-        return sparseTileArray.getTile(position);
+    private void labelTileComponents(OffHeapTileStore tileStore, int tileCount){
+        tileComponents = new TileComponents(tileCount);
+        for( int tileId = 0; tileId < tileCount; tileId++ ) {
+            for(Direction direction : Direction.all()) {
+                tileComponents.addExit(tileId, tileStore.getExit(tileId, direction));
+            }
+        }
+        tileComponents.finish();
     }
 
-    /**
-     *Get a list of tiles in a breadth-first-search
-     *  order (see <a href="../../../csse2002/block/world/SparseTileArray.html" title="class in csse2002.block.world"><code>SparseTileArray.getTiles()</code></a>
-     *  for details). <br>
-     *  Hint: call SparseTileArray.getTiles().
-     * @return a list of ordered tiless
+    /*
+     * Number the tiles connected to tile 0 from 0 up, in the order of their
+     * ids in the file; the other tiles get -1.
      */
-    public List<Tile>	getTiles(){
-        return sparseTileArray.getTiles();
+    private static int[] createStoreIds(TileComponents components){
+        int[] storeIds = new int[components.getTileCount()];
+        int[] unreachableTileIds = components.getUnreachableTileIds();
+        int nextStoreId = 0;
+        int unreachableIndex = 0;
+        for( int tileId = 0; tileId < storeIds.length; tileId++ ) {
+            if( unreachableIndex < unreachableTileIds.length
+                && unreachableTileIds[unreachableIndex] == tileId ) {
+                storeIds[tileId] = -1;
+                unreachableIndex++;
+            } else {
+                storeIds[tileId] = nextStoreId++;
+            }
+        }
+        return storeIds;
     }
 
-    /**
-     *Saves the given WorldMap to a file specified by the filename. <br>
-     *  See the WorldMap(filename) constructor for the format of the map. <br>
-     *  The Tile IDs need to relate to the ordering of tiles returned by getTiles()
-     *  i.e. tile 0 is getTiles().get(0) <br>
-     *  The function should do the following:
-     *  <ol>
-     *      <li> Open the filename and write a map in the format
-     *      given in the WorldMap constructor. </li>
-     *      <li> Write the starting position (given by getStartPosition())
-     *      </li>
-     *      <li> Write the current builder's (given by getBuilder()) name
-     *      and inventory.</li>
-     *      <li> Write the number of tiles </li>
-     *      <li> Write the index, and then each tile as given by
-     *      getTiles() (in the same order). </li>
-     *      <li> Write each tile's exits, as given by
-     *      getTiles().get(id).getExits() </li>
-     *      <li> Throw an IOException if the file cannot be opened for
-     *      writing, or if writing fails. </li>
-     *
-     *  </ol>
-     *
-     *  Hint: call getTiles()
-     * @param filename the filename to be written to
-     * @throws java.io.IOException if the file cannot be opened or written to.
+    /*
+     * Copy the tiles that storeIds keeps into a smaller store.
      */
-    public void saveMap(String filename)
-        throws java.io.IOException{
-        FileWriter fw = null;
-        BufferedWriter bw;
-
-        try {
-            fw = new FileWriter(filename);
-            bw = new BufferedWriter(fw);
+    private OffHeapTileStore compactStore(OffHeapTileStore tileStore, int[] storeIds){
+        OffHeapTileStore compactedStore = new OffHeapTileStore(storeIds.length
+            - tileComponents.getUnreachableTileCount());
+        compactedStore.setSharingBlocks(isSharingBlocks);
+        for( int tileId = 0; tileId < storeIds.length; tileId++ ) {
+            if( storeIds[tileId] < 0 )
+                continue;
+            int stack = tileStore.getStack(tileId);
+            if( stack != PackedBlockStack.EMPTY )
+                compactedStore.setStack(storeIds[tileId], stack);
+            for(Direction direction : Direction.all()) {
+                int targetTileId = tileStore.getExit(tileId, direction);
+                if( targetTileId >= 0 )
+                    compactedStore.setExit(storeIds[tileId], direction, storeIds[targetTileId]);
+            }
+        }
+        return compactedStore;
+    }
 
-            try {
+    private void linkOffHeapInstance(OffHeapTileStore tileStore)
+        throws WorldMapInconsistentException{
+        startPositionSaved = builderParserResult.generateStartinPosition();
 
-                // StartinxX StartingY
-                bw.write(String.valueOf(startPositionSaved.getX()));
-                bw.newLine();
+        sparseTileArray = new SparseTileArray();
+        sparseTileArray.addLinkedTiles(tileStore, 0, startPositionSaved.getX(), startPositionSaved.getY());
 
-                bw.write(String.valueOf(startPositionSaved.getY()));
-                bw.newLine();
+        startingTileSaved = tileStore.getView(0);
+        builderParserResult.setTile(startingTileSaved);
+        builderSaved = builderParserResult.generateBuilder();
+        attributeIndex = new TileAttributeIndex(sparseTileArray);
+    }
 
-                // Builder's name
-                bw.write(builderSaved.getName());
-                bw.newLine();
+    /*
+     * Load the map for LOAD_LAZY. The schema section goes through the regular
+     * parser; the tile and exit lines are scanned by hand into an
+     * OffHeapTileStore, without a TileParserResult, regex match or Tile per
+     * tile. Only the lines saveMap() writes are accepted: anything else
+     * returns false, and the caller loads the file with the regular parser
+     * instead, which also reports any error in it.
+     */
+    private boolean createLazyInstance(String filename, int loadFlags)
+        throws WorldMapInconsistentException,
+        java.io.FileNotFoundException{
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new java.io.InputStreamReader(
+                MapFileCompression.openInput(filename)));
+
+            AbstractParser schemaSectionParser = new SchemaSectionParser();
+            String line;
+            while( !schemaSectionParser.isEndState() ) {
+                if( (line = br.readLine()) == null )
+                    return false;
+                schemaSectionParser.doParsing(line);
+                if( schemaSectionParser.isFormatWrong() )
+                    return false;
+            }
+            if( !builderParserResult.isFormatCorrect() )
+                return false;
+
+            // total section
+            if( !"".equals(br.readLine()) )
+                return false;
+            line = br.readLine();
+            if( line == null || !line.startsWith(LAZY_TOTAL_TITLE) )
+                return false;
+            int tileCount = scanLazyNumber(line, LAZY_TOTAL_TITLE.length(), line.length());
+            if( tileCount <= 0 )
+                return false;
+
+            // Grown as lines are read, so that a bad total does not allocate
+            int[] stacks = new int[Math.min(tileCount, WRITE_CHUNK_SIZE)];
+            BitSet seenTileSet = new BitSet();
+            BitSet checkedStackSet = new BitSet();
+            BitSet validStackSet = new BitSet();
+            for( int i = 0; i < tileCount; i++ ) {
+                if( (line = br.readLine()) == null )
+                    return false;
+                int idEnd = scanLazyDigits(line, 0);
+                int tileId = scanLazyNumber(line, 0, idEnd);
+                if( tileId < 0 || tileId >= tileCount || seenTileSet.get(tileId)
+                    || idEnd == line.length() || line.charAt(idEnd) != ' ' )
+                    return false;
+                int stack = scanLazyBlocks(line, idEnd + 1);
+                if( stack == PackedBlockStack.INVALID || !isLazyStackValid(stack, checkedStackSet, validStackSet) )
+                    return false;
+
+                if( tileId >= stacks.length )
+                    stacks = java.util.Arrays.copyOf(stacks,
+                        (int) Math.min(tileCount, Math.max(tileId + 1L, 2L * stacks.length)));
+                stacks[tileId] = stack;
+                seenTileSet.set(tileId);
+            }
 
-                //inventory
-                StringBuilder stBsuilder = new StringBuilder();
-                boolean isFirstEnter = true;
+            // Every id below tileCount has a tile line, so the store can be allocated
+            OffHeapTileStore tileStore = new OffHeapTileStore(tileCount);
+            tileStore.setSharingBlocks(isSharingBlocks);
+            for( int tileId = 0; tileId < tileCount; tileId++ ) {
+                if( tileId < stacks.length && stacks[tileId] != PackedBlockStack.EMPTY )
+                    tileStore.setStack(tileId, stacks[tileId]);
+            }
+            stacks = null;
+
+            // exits section
+            if( !"".equals(br.readLine()) || !"exits".equals(br.readLine()) )
+                return false;
+            seenTileSet.clear();
+            for( int i = 0; i < tileCount; i++ ) {
+                if( (line = br.readLine()) == null )
+                    return false;
+                int idEnd = scanLazyDigits(line, 0);
+                int tileId = scanLazyNumber(line, 0, idEnd);
+                if( tileId < 0 || tileId >= tileCount || seenTileSet.get(tileId)
+                    || idEnd == line.length() || line.charAt(idEnd) != ' '
+                    || !scanLazyExits(line, idEnd + 1, tileId, tileCount, tileStore) )
+                    return false;
+                seenTileSet.set(tileId);
+            }
+            if( br.readLine() != null )
+                return false;
+
+            labelTileComponents(tileStore, tileCount);
+            if( (loadFlags & LOAD_DROP_UNREACHABLE) != 0
+                && tileComponents.getUnreachableTileCount() > 0 )
+                tileStore = compactStore(tileStore, createStoreIds(tileComponents));
+            linkOffHeapInstance(tileStore);
+            return true;
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if( br != null ) {
+                try {
+                    br.close();
+                }catch(IOException e) {
 
-                for(Block block : builderSaved.getInventory()) {
-                    if( isFirstEnter ) {
-                        isFirstEnter = false;
-                    } else {
-                        stBsuilder.append(',');
-                    }
-                    stBsuilder.append(block.getBlockType());
                 }
-                bw.write(stBsuilder.toString());
-                bw.newLine();
-
-                //(blank)
-                bw.newLine();
-
-                List<Tile> tileList = sparseTileArray.getTiles();
-
-                //total:<number of tiles>
-                stBsuilder = new StringBuilder();
-                stBsuilder.append("total:");
-                stBsuilder.append(String.valueOf(tileList.size()));
-                bw.write(stBsuilder.toString());
-                bw.newLine();
-
-                //<tile0 id> <block1>,<block2>, ... ,<blockN>
-                Map<Tile,Integer> tile2IntegerMap = new HashMap<>();
-                stBsuilder = new StringBuilder();
-                int tileId  =   0;
-
-                for(Tile tile : tileList) {
-                    isFirstEnter = true;
+            }
+        }
+    }
 
-                    tile2IntegerMap.put(tile,tileId);
+    /*
+     * Index of the first non-digit of line at or after from.
+     */
+    private static int scanLazyDigits(String line, int from){
+        int index = from;
+        while( index < line.length() && line.charAt(index) >= '0' && line.charAt(index) <= '9' )
+            index++;
+        return index;
+    }
 
-                    // Tile id
-                    stBsuilder.append(String.valueOf(tileId++));
+    /*
+     * The value of the digits between from and to, or -1 if there are none
+     * or too many to be sure that they fit in an int.
+     */
+    private static int scanLazyNumber(String line, int from, int to){
+        if( to <= from || to - from > LAZY_MAX_DIGITS || scanLazyDigits(line, from) < to )
+            return -1;
+        int value = 0;
+        for( int index = from; index < to; index++ )
+            value = value * 10 + (line.charAt(index) - '0');
+        return value;
+    }
 
-                    // Space
-                    stBsuilder.append(' ');
+    /*
+     * The packed stack of the comma separated block types from index to the
+     * end of line, or PackedBlockStack.INVALID.
+     */
+    private static int scanLazyBlocks(String line, int from){
+        int stack = PackedBlockStack.EMPTY;
+        if( from == line.length() )
+            return stack;
+        int index = from;
+        while( true ) {
+            int end = line.indexOf(',', index);
+            if( end < 0 )
+                end = line.length();
+            String blockType = scanLazyName(line, index, end, LAZY_BLOCK_TYPES);
+            if( blockType == null )
+                return PackedBlockStack.INVALID;
+            stack = PackedBlockStack.push(stack, blockType);
+            if( stack == PackedBlockStack.INVALID || end == line.length() )
+                return stack;
+            index = end + 1;
+        }
+    }
 
-                    // Block lists
-                    for(Block block : tile.getBlocks()) {
-                        if( isFirstEnter ) {
-                            isFirstEnter = false;
-                        } else {
-                            stBsuilder.append(',');
-                        }
-                        stBsuilder.append(block.getBlockType());
-                    }
+    /*
+     * Store the exits listed from index to the end of line. Returns false
+     * unless there are at most one per direction, each to an id below
+     * tileCount.
+     */
+    private static boolean scanLazyExits(String line, int from, int tileId,
+        int tileCount, OffHeapTileStore tileStore){
+        if( from == line.length() )
+            return true;
+        int index = from;
+        int exitCount = 0;
+        while( true ) {
+            int nameEnd = line.indexOf(':', index);
+            if( nameEnd < 0 || ++exitCount > Direction.all().length )
+                return false;
+            String exitName = scanLazyName(line, index, nameEnd, LAZY_EXIT_NAMES);
+            if( exitName == null )
+                return false;
+            Direction direction = Direction.fromExitName(exitName);
+
+            int end = scanLazyDigits(line, nameEnd + 1);
+            int childId = scanLazyNumber(line, nameEnd + 1, end);
+            if( childId < 0 || childId >= tileCount
+                || tileStore.getExit(tileId, direction) != -1 )
+                return false;
+            tileStore.setExit(tileId, direction, childId);
+
+            if( end == line.length() )
+                return true;
+            if( line.charAt(end) != ',' )
+                return false;
+            index = end + 1;
+        }
+    }
 
-                    // Newline
-                    stBsuilder.append(System.lineSeparator());
-                }
+    /*
+     * The name in names that line holds between from and to, or null.
+     */
+    private static String scanLazyName(String line, int from, int to, String[] names){
+        for( String name : names ) {
+            if( name.length() == to - from && line.regionMatches(from, name, 0, name.length()) )
+                return name;
+        }
+        return null;
+    }
 
-                bw.write(stBsuilder.toString());
+    /*
+     * Whether the Tile constructor accepts the blocks of stack. Checked once
+     * per distinct stack rather than once per tile; checkedStackSet and
+     * validStackSet remember the stacks checked so far.
+     */
+    private static boolean isLazyStackValid(int stack, BitSet checkedStackSet,
+        BitSet validStackSet){
+        if( !checkedStackSet.get(stack) ) {
+            try {
+                new Tile(PackedBlockStack.unpack(stack, true));
+                validStackSet.set(stack);
+            } catch(TooHighException e) {
+            }
+            checkedStackSet.set(stack);
+        }
+        return validStackSet.get(stack);
+    }
 
-                //(blank)
-                bw.newLine();
+    /**
+     *Construct a block world map from a base map file followed by a chain
+     *  of delta files written by saveDelta(). <br>
+     *
+     *  The base map is loaded as with WorldMap(String, int), then each delta
+     *  is applied in order.
+     * @param filename the name of the base map file
+     * @param deltaFilenames the delta files, oldest first
+     * @param loadFlags a combination of the LOAD_* flags, or 0
+     * @throws WorldMapFormatException if the base map or a delta is
+     *          incorrectly formatted, or a delta does not fit the base map
+     * @throws WorldMapInconsistentException if the base map has
+     *          inconsistencies (such as overlapping tiles)
+     * @throws java.io.FileNotFoundException if a file does not exist
+     */
+    public WorldMap(String filename, List<String> deltaFilenames, int loadFlags)
+        throws WorldMapFormatException,
+        WorldMapInconsistentException,
+        java.io.FileNotFoundException{
+        this(filename, loadFlags);
 
-                //exits
-                bw.write("exits");
-                bw.newLine();
+        for(String deltaFilename : deltaFilenames) {
+            applyDelta(deltaFilename);
+        }
+    }
 
-                //<tile0 id> <name1>:<id1>,<name2>:<id2>, ... ,<nameN>:<idN>
-                stBsuilder = new StringBuilder();
-                tileId  =   0;
-
-                for(Tile tile : tileList) {
-                    // Tile id
-                    stBsuilder.append(String.valueOf(tileId++));
-
-                    // Space
-                    stBsuilder.append(' ');
-
-                    Tile neighborTile = null;
-                    Integer neighborTileId = null;
-                    int commaChecker = 0;
-
-                    // Exits
-                    //  "north"
-                    neighborTile    =   tile.getExits().get(NORTH_EXIT_NAME);
-                    if( (neighborTileId = tile2IntegerMap.get(neighborTile)) != null ) {
-                        stBsuilder.append(NORTH_EXIT_NAME);
-                        stBsuilder.append(":");
-                        stBsuilder.append(String.valueOf(neighborTileId.intValue()));
-                        commaChecker++;
-                    }
+    /**
+     * Load a base map and its deltas, and save them as a single new base
+     * map, so that later loads do not have to replay the deltas.
+     * @param filename the name of the base map file
+     * @param deltaFilenames the delta files, oldest first
+     * @param compactedFilename the file to write the new base map to
+     * @throws WorldMapFormatException if the base map or a delta is
+     *          incorrectly formatted
+     * @throws WorldMapInconsistentException if the base map has
+     *          inconsistencies
+     * @throws java.io.IOException if a file cannot be read or written
+     */
+    public static void compact(String filename, List<String> deltaFilenames,
+        String compactedFilename)
+        throws WorldMapFormatException,
+        WorldMapInconsistentException,
+        java.io.IOException{
+        new WorldMap(filename, deltaFilenames, 0).saveMap(compactedFilename);
+    }
 
-                    //  "east"
-                    neighborTile    =   tile.getExits().get(EAST_EXIT_NAME);
-                    if( (neighborTileId = tile2IntegerMap.get(neighborTile)) != null ) {
-                        if( commaChecker > 0 ) {
-                            stBsuilder.append(",");
-                            commaChecker--;
-                        }
-                        stBsuilder.append(EAST_EXIT_NAME);
-                        stBsuilder.append(":");
-                        stBsuilder.append(String.valueOf(neighborTileId.intValue()));
-                        commaChecker++;
-                    }
+    private void createRegionInstance(String directoryName)
+        throws WorldMapFormatException,
+        java.io.FileNotFoundException{
+        FileReader fr = null;
+        BufferedReader br;
+        AbstractParser	schemaSectionParser = new SchemaSectionParser();
+        String currentLine = "";
 
-                    //  "south"
-                    neighborTile    =   tile.getExits().get(SOUTH_EXIT_NAME);
-                    if( (neighborTileId = tile2IntegerMap.get(neighborTile)) != null ) {
-                        if( commaChecker > 0 ) {
-                            stBsuilder.append(",");
-                            commaChecker--;
-                        }
-                        stBsuilder.append(SOUTH_EXIT_NAME);
-                        stBsuilder.append(":");
-                        stBsuilder.append(String.valueOf(neighborTileId.intValue()));
-                        commaChecker++;
-                    }
+        // Builder and starting position
+        try {
+            fr = new FileReader(new java.io.File(directoryName, REGION_BUILDER_FILE_NAME));
+            br = new BufferedReader(fr);
 
-                    //  "west"
-                    neighborTile    =   tile.getExits().get(WEST_EXIT_NAME);
-                    if( (neighborTileId = tile2IntegerMap.get(neighborTile)) != null ) {
-                        if( commaChecker > 0 ) {
-                            stBsuilder.append(",");
-                            commaChecker--;
-                        }
-                        stBsuilder.append(WEST_EXIT_NAME);
-                        stBsuilder.append(":");
-                        stBsuilder.append(String.valueOf(neighborTileId.intValue()));
-                        commaChecker++;
+            try {
+                while( !schemaSectionParser.isEndState() ) {
+                    if( (currentLine = br.readLine()) == null ){
+                        throw new WorldMapFormatException();
                     }
-
-                    // Newline
-                    stBsuilder.append(System.lineSeparator());
+                    schemaSectionParser.doParsing(currentLine);
+                    if(  schemaSectionParser.isFormatWrong() )
+                        throw new WorldMapFormatException(currentLine);
                 }
-
-                bw.write(stBsuilder.toString());
-                bw.flush();
-                bw.close();
             } catch (IOException ioe) {
-                throw ioe;
+                throw new WorldMapFormatException();
             }
-        } catch(FileNotFoundException e) {
-            throw e;
         } finally {
-            if( fw != null) {
+            if( fr != null) {
                 try {
-                    fw.close();
+                    fr.close();
                 }catch(IOException e) {
 
                 }
             }
         }
 
-    }
+        if( !builderParserResult.isFormatCorrect() )
+            throw new WorldMapFormatException(currentLine);
 
-    private class BuilderParserResult{
-        private	int	startingX	=	-1;
-        private	int	startingY	=	-1;
+        RegionTileStore regionStore;
+        try {
+            regionStore = new RegionTileStore(directoryName);
+        } catch (java.io.FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new WorldMapFormatException(e.getMessage());
+        }
+        regionStore.setSharingBlocks(isSharingBlocks);
+        regionDirectoryName = directoryName;
+
+        if( regionStore.getTileCount() == 0 )
+            throw new WorldMapFormatException(directoryName);
+
+        sparseTileArray = new SparseTileArray();
+        sparseTileArray.addStoredTiles(regionStore);
+
+        startPositionSaved = regionStore.getPositionAt(0);
+        startingTileSaved = regionStore.getTileAt(0);
+        regionStore.linkView(startingTileSaved);
+        builderParserResult.setTile(startingTileSaved);
+        builderSaved = builderParserResult.generateBuilder();
+    }
+
+    /**
+     * Set how many bytes of region data may stay loaded for a map loaded
+     * with LOAD_REGIONS. Does nothing for other maps.
+     * @param memoryBudget the budget in bytes
+     */
+    public void setRegionMemoryBudget(long memoryBudget){
+        TileStore tileStore = sparseTileArray.getTileStore();
+        if( tileStore instanceof RegionTileStore ) {
+            ((RegionTileStore)tileStore).setMemoryBudget(memoryBudget);
+        }
+    }
+
+    /**
+     * Save this world as region files that can be loaded with LOAD_REGIONS.
+     * The directory is created if needed. It must not be the directory this
+     * map was loaded from; use saveMap() to write changes back to that one.
+     * @param directoryName the directory to write to
+     * @param regionSize the width and height of each region
+     * @throws java.io.IOException if the files cannot be written
+     */
+    public void saveRegions(String directoryName, int regionSize)
+        throws java.io.IOException{
+        RegionTileStore.writeRegions(directoryName, regionSize, sparseTileArray);
+        writeRegionBuilderFile(directoryName);
+    }
+
+    /**
+     * Convert a map file into region files that can be loaded with
+     * LOAD_REGIONS, without building a Tile object per tile. <br>
+     *
+     *  The positions of the tiles come from the exits, which follow the tile
+     *  lines, so the file is read once into an OffHeapTileStore (as with
+     *  LOAD_OFF_HEAP), and the regions are then written one at a time.
+     * @param filename the map file to convert
+     * @param directoryName the directory to write to
+     * @param regionSize the width and height of each region
+     * @throws WorldMapFormatException if the map file is incorrectly
+     *          formatted
+     * @throws WorldMapInconsistentException if the map file has
+     *          inconsistencies
+     * @throws java.io.IOException if a file cannot be read or written
+     */
+    public static void convertToRegions(String filename, String directoryName,
+        int regionSize)
+        throws WorldMapFormatException,
+        WorldMapInconsistentException,
+        java.io.IOException{
+        new WorldMap(filename, LOAD_OFF_HEAP).saveRegions(directoryName, regionSize);
+    }
+
+    /**
+     *Save the changes made by actions since the last checkpoint (the last
+     *  saveMap() or saveDelta()), and start a new checkpoint. <br>
+     *
+     *  Only the changed tiles are written, so the cost depends on how much
+     *  changed rather than on the size of the world. Actions never change
+     *  exits, so a delta holds tiles and the inventory only; after a
+     *  transaction changes exits or adds tiles, save the whole map with
+     *  saveMap() instead. The format is:
+     *  <pre>delta
+     * total:&lt;number of tiles in the map&gt;
+     * inventory:&lt;inventory1&gt;,&lt;inventory2&gt;, ... ,&lt;inventoryN&gt;
+     * changed:&lt;number of changed tiles&gt;
+     * &lt;tile id&gt; &lt;block1&gt;,&lt;block2&gt;, ... ,&lt;blockN&gt;
+     *     ...
+     * </pre>
+     *
+     *  The inventory line is only written if the inventory changed. Tile
+     *  IDs are the ordering of tiles returned by getTiles(), as in
+     *  saveMap(). Use WorldMap(String, List, int) to load a base map and its
+     *  deltas, and compact() to merge them into a new base map.
+     * @param filename the filename to be written to
+     * @throws java.io.IOException if the file cannot be opened or written to,
+     *          or exits changed since the map was last saved
+     */
+    public void saveDelta(String filename)
+        throws java.io.IOException{
+        if( isExitsChanged )
+            throw new IOException("Exits changed since the last saveMap()");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(filename));
+        try {
+            StringBuilder stBsuilder = new StringBuilder();
+
+            stBsuilder.append(DELTA_HEADER);
+            stBsuilder.append(System.lineSeparator());
+            stBsuilder.append("total:");
+            stBsuilder.append(String.valueOf(sparseTileArray.getTileCount()));
+            stBsuilder.append(System.lineSeparator());
+
+            if( isInventoryChanged ) {
+                stBsuilder.append("inventory:");
+                boolean isFirstEnter = true;
+                for(Block block : builderSaved.getInventory()) {
+                    if( isFirstEnter ) {
+                        isFirstEnter = false;
+                    } else {
+                        stBsuilder.append(',');
+                    }
+                    stBsuilder.append(block.getBlockType());
+                }
+                stBsuilder.append(System.lineSeparator());
+            }
+
+            stBsuilder.append("changed:");
+            stBsuilder.append(String.valueOf(changedTileCount));
+            stBsuilder.append(System.lineSeparator());
+
+            for(int i = 0; i < changedTileCount; i++) {
+                int ordinal = changedOrdinals[i];
+                stBsuilder.append(String.valueOf(ordinal));
+                stBsuilder.append(' ');
+                PackedBlockStack.appendBlockTypes(stBsuilder, sparseTileArray.getStackAt(ordinal));
+                stBsuilder.append(System.lineSeparator());
+            }
+
+            bw.write(stBsuilder.toString());
+            bw.flush();
+        } finally {
+            bw.close();
+        }
+        clearChanges();
+    }
+
+    /*
+     * Apply one delta written by saveDelta() to this map.
+     */
+    private void applyDelta(String deltaFilename)
+        throws WorldMapFormatException,
+        java.io.FileNotFoundException{
+        FileReader fr = null;
+        BufferedReader br;
+        String currentLine = "";
+        Matcher matcher;
+
+        try {
+            fr = new FileReader(deltaFilename);
+            br = new BufferedReader(fr);
+
+            try {
+                // delta
+                currentLine = br.readLine();
+                if( currentLine == null || !currentLine.equals(DELTA_HEADER) )
+                    throw new WorldMapFormatException(currentLine);
+
+                // total:<number of tiles>
+                currentLine = br.readLine();
+                matcher = patternDeltaTotal.matcher(currentLine == null ? "" : currentLine);
+                if( !matcher.find()
+                    || parseDeltaInt(matcher.group(1)) != sparseTileArray.getTileCount() )
+                    throw new WorldMapFormatException(currentLine);
+
+                // inventory:<inventory1>,<inventory2>, ... (optional)
+                currentLine = br.readLine();
+                if( currentLine == null )
+                    throw new WorldMapFormatException();
+                matcher = patternDeltaInventory.matcher(currentLine);
+                if( matcher.find() ) {
+                    applyDeltaInventory(matcher.group(1));
+                    currentLine = br.readLine();
+                }
+
+                // changed:<number of changed tiles>
+                matcher = patternDeltaChanged.matcher(currentLine == null ? "" : currentLine);
+                if( !matcher.find() )
+                    throw new WorldMapFormatException(currentLine);
+                int changedCount = parseDeltaInt(matcher.group(1));
+
+                // <tile id> <block1>,<block2>, ... ,<blockN>
+                for(int i = 0; i < changedCount; i++) {
+                    currentLine = br.readLine();
+                    matcher = patternDeltaTile.matcher(currentLine == null ? "" : currentLine);
+                    if( !matcher.find() )
+                        throw new WorldMapFormatException(currentLine);
+                    int ordinal = parseDeltaInt(matcher.group(1));
+                    if( ordinal >= sparseTileArray.getTileCount() )
+                        throw new WorldMapFormatException(currentLine);
+                    applyDeltaTile(sparseTileArray.getTileAt(ordinal),
+                        matcher.group(2) == null ? "" : matcher.group(2));
+                    tileStackChanged(ordinal);
+                }
+
+                if( (currentLine = br.readLine()) != null )
+                    throw new WorldMapFormatException(currentLine);
+            } catch (IOException ioe) {
+                throw new WorldMapFormatException();
+            }
+        } finally {
+            if( fr != null) {
+                try {
+                    fr.close();
+                }catch(IOException e) {
+
+                }
+            }
+        }
+    }
+
+    private int parseDeltaInt(String digits)
+        throws WorldMapFormatException{
+        try {
+            return Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            throw new WorldMapFormatException(digits);
+        }
+    }
+
+    private List<Block> parseDeltaBlocks(String blockTypes)
+        throws WorldMapFormatException{
+        List<Block> blocks = new ArrayList<Block>();
+        if( blockTypes.isEmpty() )
+            return blocks;
+
+        for(String blockType : blockTypes.split(",")) {
+            int blockCode = PackedBlockStack.blockCodeOf(blockType);
+            if( blockCode < 0 )
+                throw new WorldMapFormatException(blockTypes);
+            blocks.add(PackedBlockStack.createBlock(blockCode, isSharingBlocks));
+        }
+        return blocks;
+    }
+
+    private void applyDeltaInventory(String blockTypes)
+        throws WorldMapFormatException{
+        List<Block> inventory = parseDeltaBlocks(blockTypes);
+        Tile currentTile = builderSaved.getCurrentTile();
+
+        if( inventory.size() == 0 ) {
+            builderSaved = new Builder(builderSaved.getName(), currentTile);
+            return;
+        }
+        try {
+            builderSaved = new Builder(builderSaved.getName(), currentTile, inventory);
+        } catch (InvalidBlockException e) {
+            throw new WorldMapFormatException(blockTypes);
+        }
+    }
+
+    private void applyDeltaTile(Tile tile, String blockTypes)
+        throws WorldMapFormatException{
+        List<Block> blocks = parseDeltaBlocks(blockTypes);
+
+        try {
+            while( tile.getBlocks().size() > 0 ) {
+                tile.removeTopBlock();
+            }
+            for(Block block : blocks) {
+                tile.placeBlock(block);
+            }
+        } catch (BlockWorldException e) {
+            // Too high, too low, or a block the tile cannot hold
+            throw new WorldMapFormatException(blockTypes);
+        }
+    }
+
+    private void writeRegionBuilderFile(String directoryName)
+        throws IOException{
+        BufferedWriter bw = new BufferedWriter(
+            new FileWriter(new java.io.File(directoryName, REGION_BUILDER_FILE_NAME)));
+        try {
+            writeBuilderSection(bw);
+        } finally {
+            bw.close();
+        }
+    }
+
+    /**
+     * Get the tile at the exit of the given tile. The exits of the builder's
+     * tile are read from the exit cache by ordinal (see exitsChanged());
+     * other tiles use Tile.getExits().
+     * @param tile the tile to leave
+     * @param direction the exit to take
+     * @return the tile at that exit, or null if there is no such exit
+     */
+    Tile getExit(Tile tile, Direction direction){
+        if( builderOrdinal >= 0 && builderOrdinal < sparseTileArray.getTileCount()
+            && sparseTileArray.getTileAt(builderOrdinal) == tile ) {
+            int exitOrdinal = sparseTileArray.getExitOrdinal(builderOrdinal, direction);
+            if( exitOrdinal < 0 )
+                return null;
+            return sparseTileArray.getTileAt(exitOrdinal);
+        }
+        return tile.getExits().get(direction.getExitName());
+    }
+
+    /**
+     * Record that the builder moved through the given exit onto tile. Tiles
+     * stored off-heap get their exits linked here, since they are only linked
+     * once they are used.
+     * @param tile the tile which the builder is now standing on
+     * @param direction the exit the builder took
+     */
+    void builderMoved(Tile tile, Direction direction){
+        sparseTileArray.linkTile(tile);
+
+        if( builderOrdinal >= 0 && builderOrdinal < sparseTileArray.getTileCount() ) {
+            builderOrdinal = sparseTileArray.getExitOrdinal(builderOrdinal, direction);
+        }
+    }
+
+    /**
+     * Get the position of the tile the builder is on.
+     * @return the position, or null if the builder is not on a tile of
+     *          this map
+     */
+    Position getBuilderPosition(){
+        int builderTileOrdinal = getBuilderOrdinal();
+        if( builderTileOrdinal < 0 )
+            return null;
+        return sparseTileArray.getPositionAt(builderTileOrdinal);
+    }
+
+    /*
+     * Update the pathfinder, the attribute index, the aggregates and the
+     * versions after the blocks on the tile at ordinal changed.
+     */
+    private void tileStackChanged(int ordinal){
+        if( pathfinder != null )
+            pathfinder.tileChanged(ordinal);
+        if( attributeIndex != null )
+            attributeIndex.tileChanged(ordinal);
+        if( tileAggregates != null )
+            tileAggregates.tileChanged(ordinal);
+        if( worldVersions != null )
+            worldVersions.tileChanged(ordinal);
+    }
+
+    /**
+     * Get the ordinal (index in getTiles()) of the tile the builder is on.
+     * @return the ordinal, or -1 if the builder is not on a tile of this map
+     */
+    int getBuilderOrdinal(){
+        Tile currentTile = builderSaved.getCurrentTile();
+        if( builderOrdinal >= 0 && builderOrdinal < sparseTileArray.getTileCount()
+            && sparseTileArray.getTileAt(builderOrdinal) == currentTile ) {
+            return builderOrdinal;
+        }
+        return sparseTileArray.getOrdinalOf(currentTile);
+    }
+
+    /**
+     * Move the builder back to the tile at ordinal, which it came from.
+     * Uses Builder.moveTo() when the builder can enter the tile, and
+     * placeBuilder() when it cannot (a one-way exit).
+     * @param ordinal the ordinal (index in getTiles()) of the tile
+     */
+    void returnBuilder(int ordinal){
+        Tile tile = sparseTileArray.getTileAt(ordinal);
+        try {
+            builderSaved.moveTo(tile);
+        } catch (NoExitException e) {
+            placeBuilder(ordinal);
+            return;
+        }
+        sparseTileArray.linkTile(tile);
+        builderOrdinal = ordinal;
+    }
+
+    Tile getTileAt(int ordinal){
+        return sparseTileArray.getTileAt(ordinal);
+    }
+
+    /**
+     * Put the builder on the tile at ordinal, keeping its name and
+     * inventory. Used to restore a snapshot, where the saved map only
+     * records the starting position.
+     * @param ordinal the ordinal (index in getTiles()) of the tile
+     */
+    void placeBuilder(int ordinal){
+        Tile tile = sparseTileArray.getTileAt(ordinal);
+        List<Block> inventory = new ArrayList<Block>(builderSaved.getInventory());
+
+        sparseTileArray.linkTile(tile);
+        if( inventory.size() == 0 ) {
+            builderSaved = new Builder(builderSaved.getName(), tile);
+        } else {
+            try {
+                builderSaved = new Builder(builderSaved.getName(), tile, inventory);
+            } catch (InvalidBlockException e) {
+                // The inventory came from a builder, so it is already valid
+                throw new IllegalStateException(e);
+            }
+        }
+        builderOrdinal = ordinal;
+    }
+
+    /**
+     * Record that an action changed the blocks on a tile, so that the next
+     * saveDelta() writes it. The tile is found from the builder's tile and
+     * its exits when possible.
+     * @param tile the tile whose blocks changed
+     */
+    void tileChanged(Tile tile){
+        int ordinal = -1;
+
+        if( builderOrdinal >= 0 && builderOrdinal < sparseTileArray.getTileCount() ) {
+            if( sparseTileArray.getTileAt(builderOrdinal) == tile ) {
+                ordinal = builderOrdinal;
+            } else {
+                for(Direction direction : Direction.all()) {
+                    int exitOrdinal = sparseTileArray.getExitOrdinal(builderOrdinal, direction);
+                    if( exitOrdinal >= 0 && sparseTileArray.getTileAt(exitOrdinal) == tile ) {
+                        ordinal = exitOrdinal;
+                        break;
+                    }
+                }
+            }
+        }
+        if( ordinal < 0 ) {
+            ordinal = sparseTileArray.getOrdinalOf(tile);
+            if( ordinal < 0 )
+                return;
+        }
+        tileChanged(ordinal);
+    }
+
+    /**
+     * Record that the blocks on the tile at ordinal have changed, as
+     * tileChanged(Tile) does.
+     * @param ordinal the index of the tile in getTiles()
+     */
+    void tileChanged(int ordinal){
+        tileStackChanged(ordinal);
+
+        if( changedTileSet.get(ordinal) )
+            return;
+        changedTileSet.set(ordinal);
+        if( changedTileCount == changedOrdinals.length ) {
+            changedOrdinals = java.util.Arrays.copyOf(changedOrdinals, changedTileCount * 2);
+        }
+        changedOrdinals[changedTileCount++] = ordinal;
+    }
+
+    /**
+     * Record that an action changed the builder's inventory, so that the
+     * next saveDelta() writes it.
+     */
+    void inventoryChanged(){
+        isInventoryChanged = true;
+    }
+
+    /**
+     * Get the number of tiles changed since the last checkpoint.
+     * @return the number of tiles saveDelta() would write
+     */
+    int getChangedTileCount(){
+        return changedTileCount;
+    }
+
+    private void clearChanges(){
+        for(int i = 0; i < changedTileCount; i++) {
+            changedTileSet.clear(changedOrdinals[i]);
+        }
+        changedTileCount = 0;
+        isInventoryChanged = false;
+        isExitsChanged = false;
+    }
+
+    /**
+     *Reload the exit cache, which moving the builder and saveMap() read,
+     *  and drop everything built from the exits (the tile graph, the
+     *  pathfinder, the attribute index and the aggregates) after exits
+     *  changed or tiles were added. Each is built again when it is next
+     *  used. <br>
+     *
+     *  Transactions call this themselves. Code that changes the exits of
+     *  this map's tiles directly, with Tile.addExit() or Tile.removeExit(),
+     *  must call it afterwards; until then the old exits are used.
+     */
+    public void exitsChanged(){
+        exitsChanged(false);
+    }
+
+    /**
+     * Drop everything built from the exits, as exitsChanged() does.
+     * @param isExitCacheRefreshed whether the caller has already called
+     *          SparseTileArray.refreshExits() for every tile whose exits
+     *          changed, so that the whole exit cache need not be reloaded
+     */
+    void exitsChanged(boolean isExitCacheRefreshed){
+        if( !isExitCacheRefreshed )
+            sparseTileArray.refreshAllExits();
+        tileGraph = null;
+        pathfinder = null;
+        attributeIndex = null;
+        tileAggregates = null;
+        isExitsChanged = true;
+        if( worldVersions != null )
+            worldVersions.tilesAdded();
+    }
+
+    /**
+     * Check whether transactions can add tiles and change exits, i.e.
+     * whether the tiles are kept on the heap.
+     * @return true if exits can be changed
+     */
+    boolean canChangeExits(){
+        return sparseTileArray.getTileStore() == null;
+    }
+
+    SparseTileArray getSparseTileArray(){
+        return sparseTileArray;
+    }
+
+    boolean isSharingBlocks(){
+        return isSharingBlocks;
+    }
+
+    /**
+     * Gets the builder associated with this block world.
+     * @return the builder object
+     */
+    public Builder getBuilder(){
+        return builderSaved;
+    }
+
+    /**
+     * Gets the starting position.
+     * @return the starting position.
+     */
+    public Position getStartPosition(){
+        return startPositionSaved;
+    }
+
+    /**
+     *Get a tile by position. <br>
+     *  Hint: call SparseTileArray.getTile()
+     * @param position get the Tile at this position
+     * @return the tile at that positions
+     */
+    public Tile getTile(Position position){
+        return sparseTileArray.getTile(position);
+    }
+
+    /**
+     *Get a list of tiles in a breadth-first-search
+     *  order (see <a href="../../../csse2002/block/world/SparseTileArray.html" title="class in csse2002.block.world"><code>SparseTileArray.getTiles()</code></a>
+     *  for details). <br>
+     *  Hint: call SparseTileArray.getTiles().
+     * @return a list of ordered tiless
+     */
+    public List<Tile>	getTiles(){
+        return sparseTileArray.getTiles();
+    }
+
+    /**
+     *Get the tiles in the rectangle whose opposite corners are corner1 and
+     *  corner2 (both included). See SparseTileArray.getTilesInRange().
+     * @param corner1 one corner of the rectangle
+     * @param corner2 the opposite corner of the rectangle
+     * @return the tiles in the rectangle
+     */
+    public List<Tile> getTilesInRange(Position corner1, Position corner2){
+        return sparseTileArray.getTilesInRange(corner1, corner2);
+    }
+
+    /**
+     *Get the tiles at most radius away from centre, by straight line
+     *  distance. See SparseTileArray.getTilesWithinRadius().
+     * @param centre the position at the centre of the circle
+     * @param radius the largest distance from centre
+     * @return the tiles in the circle
+     */
+    public List<Tile> getTilesWithinRadius(Position centre, int radius){
+        return sparseTileArray.getTilesWithinRadius(centre, radius);
+    }
+
+    /**
+     *Get the tiles at most radius away from the builder's tile.
+     * @param radius the largest distance from the builder
+     * @return the tiles in the circle, or an empty list if the builder is
+     *          not on a tile of this map
+     */
+    public List<Tile> getTilesNearBuilder(int radius){
+        int builderTileOrdinal = getBuilderOrdinal();
+        if( builderTileOrdinal < 0 )
+            return new ArrayList<Tile>();
+        return sparseTileArray.getTilesWithinRadius(
+            sparseTileArray.getPositionAt(builderTileOrdinal), radius);
+    }
+
+    /**
+     *Get the tiles with the given number of blocks, in no particular
+     *  order. Uses the height index, so takes time in proportion to the
+     *  number of tiles returned.
+     * @param height the number of blocks
+     * @return the tiles with that many blocks
+     */
+    public List<Tile> getTilesWithHeight(int height){
+        return getTilesAt(getAttributeIndex().findWithHeight(height));
+    }
+
+    /**
+     *Get the tiles with more than the given number of blocks, in no
+     *  particular order. Uses the height index.
+     * @param height the number of blocks
+     * @return the tiles with more blocks than height
+     */
+    public List<Tile> getTilesTallerThan(int height){
+        return getTilesAt(getAttributeIndex().findTallerThan(height));
+    }
+
+    /**
+     *Get the tiles whose top block has the given type, in no particular
+     *  order. Uses the top block index.
+     * @param blockType one of "soil", "grass", "stone" or "wood"
+     * @return the tiles with that type of block on top
+     */
+    public List<Tile> getTilesWithTopBlock(String blockType){
+        if( blockType == null )
+            return new ArrayList<Tile>();
+        return getTilesAt(getAttributeIndex().findWithTopBlock(blockType));
+    }
+
+    /**
+     *Get the tiles at most radius away from the builder's tile whose top
+     *  block can be dug.
+     * @param radius the largest distance from the builder
+     * @return the diggable tiles in the circle, or an empty list if the
+     *          builder is not on a tile of this map
+     */
+    public List<Tile> getDiggableTilesNearBuilder(int radius){
+        int builderTileOrdinal = getBuilderOrdinal();
+        if( builderTileOrdinal < 0 )
+            return new ArrayList<Tile>();
+
+        TileAttributeIndex index = getAttributeIndex();
+        int[] ordinals = sparseTileArray.getOrdinalsWithinRadius(
+            sparseTileArray.getPositionAt(builderTileOrdinal), radius);
+        List<Tile> tiles = new ArrayList<Tile>();
+        for(int ordinal : ordinals) {
+            if( index.isDiggable(ordinal) )
+                tiles.add(sparseTileArray.getTileAt(ordinal));
+        }
+        return tiles;
+    }
+
+    /**
+     *Start a transaction that stages edits to the tiles and exits of this
+     *  world, and applies them together with one consistency check. See
+     *  WorldMapTransaction.
+     * @return a new, empty transaction
+     */
+    public WorldMapTransaction beginTransaction(){
+        return new WorldMapTransaction(this);
+    }
+
+    /**
+     *Get the connected components of the tiles in the map file this world
+     *  was loaded from. Tiles not connected to tile 0 are not part of the
+     *  world, and are left out altogether with LOAD_DROP_UNREACHABLE.
+     * @return the components, or null if the world was not loaded from a
+     *          map file (or was loaded with LOAD_REGIONS)
+     */
+    public TileComponents getTileComponents(){
+        return tileComponents;
+    }
+
+    /**
+     *Set the tracker that Action.processAction() records the builder's
+     *  tile to, for every DIG, DROP and MOVE_BLOCK action.
+     * @param heatTracker the tracker, or null to stop tracking
+     */
+    public void setHeatTracker(TileHeatTracker heatTracker){
+        this.heatTracker = heatTracker;
+    }
+
+    /**
+     *Get the tracker set by setHeatTracker().
+     * @return the tracker, or null if actions are not tracked
+     */
+    public TileHeatTracker getHeatTracker(){
+        return heatTracker;
+    }
+
+    /**
+     *Set the history that Action.processAction() records every successful
+     *  action to, so that it can be undone and redone (see ActionHistory).
+     * @param actionHistory the history, or null to stop recording
+     */
+    public void setActionHistory(ActionHistory actionHistory){
+        this.actionHistory = actionHistory;
+    }
+
+    /**
+     *Get the history set by setActionHistory().
+     * @return the history, or null if actions are not recorded
+     */
+    public ActionHistory getActionHistory(){
+        return actionHistory;
+    }
+
+    /**
+     *Start keeping past versions of the tiles of this world, which
+     *  Action.processAction() adds one to for every action (see
+     *  WorldVersions).
+     * @param worldVersions the versions, or null to stop keeping them
+     * @throws IllegalStateException if worldVersions was already set on a
+     *          map
+     */
+    public void setWorldVersions(WorldVersions worldVersions){
+        if( worldVersions != null )
+            worldVersions.start(sparseTileArray);
+        this.worldVersions = worldVersions;
+    }
+
+    /**
+     *Get the versions set by setWorldVersions().
+     * @return the versions, or null if past versions are not kept
+     */
+    public WorldVersions getWorldVersions(){
+        return worldVersions;
+    }
+
+    /**
+     *Get the totals of the whole world: tiles, blocks of each type, stack
+     *  heights and exits in each direction. <br>
+     *  The totals are kept per chunk of 16 by 16 positions and rolled up,
+     *  so after the first call they are not recounted from the tiles.
+     * @return the world totals
+     */
+    public WorldStatistics getStatistics(){
+        return getTileAggregates().getStatistics();
+    }
+
+    /**
+     *Get the totals of the tiles in the rectangle whose opposite corners
+     *  are corner1 and corner2 (both included). Only the chunks along the
+     *  edges of the rectangle are counted tile by tile.
+     * @param corner1 one corner of the rectangle
+     * @param corner2 the opposite corner of the rectangle
+     * @return the totals of the tiles in the rectangle
+     */
+    public WorldStatistics getStatistics(Position corner1, Position corner2){
+        return getTileAggregates().getStatistics(
+            Math.min(corner1.getX(), corner2.getX()),
+            Math.min(corner1.getY(), corner2.getY()),
+            Math.max(corner1.getX(), corner2.getX()),
+            Math.max(corner1.getY(), corner2.getY()));
+    }
+
+    private TileAggregates getTileAggregates(){
+        if( tileAggregates == null ) {
+            tileAggregates = new TileAggregates(sparseTileArray, getTileGraph());
+        }
+        return tileAggregates;
+    }
+
+    private TileAttributeIndex getAttributeIndex(){
+        if( attributeIndex == null ) {
+            attributeIndex = new TileAttributeIndex(sparseTileArray);
+        }
+        return attributeIndex;
+    }
+
+    private List<Tile> getTilesAt(int[] ordinals){
+        List<Tile> tiles = new ArrayList<Tile>(ordinals.length);
+        for(int ordinal : ordinals) {
+            tiles.add(sparseTileArray.getTileAt(ordinal));
+        }
+        return tiles;
+    }
+
+    /**
+     *Get the exits between the tiles as a compressed sparse row graph,
+     *  with the tiles identified by their index in getTiles(). <br>
+     *  The graph is built on the first call, without creating Tile objects
+     *  for tiles kept in a tile store.
+     * @return the tile graph
+     */
+    public TileGraph getTileGraph(){
+        if( tileGraph == null ) {
+            tileGraph = new TileGraph(sparseTileArray);
+        }
+        return tileGraph;
+    }
+
+    /**
+     *Get the pathfinder for the builder in this world. It is built on the
+     *  first call, and kept up to date with the tiles changed by actions.
+     * @return the pathfinder
+     */
+    public BuilderPathfinder getPathfinder(){
+        if( pathfinder == null ) {
+            pathfinder = new BuilderPathfinder(sparseTileArray, getTileGraph());
+        }
+        return pathfinder;
+    }
+
+    /**
+     *Find the shortest path that takes the builder from its current tile
+     *  to the tile at target. See BuilderPathfinder.
+     * @param target the position to get to
+     * @return the exits to take in order, or null if there is no tile at
+     *          target or the builder cannot get there
+     */
+    public List<Direction> findBuilderPath(Position target){
+        int fromOrdinal = getBuilderOrdinal();
+        int toOrdinal = sparseTileArray.getOrdinalAt(target);
+        if( fromOrdinal < 0 || toOrdinal < 0 )
+            return null;
+        return getPathfinder().findPath(fromOrdinal, toOrdinal);
+    }
+
+    /**
+     *Saves the given WorldMap to a file specified by the filename. <br>
+     *  See the WorldMap(filename) constructor for the format of the map. <br>
+     *  The Tile IDs need to relate to the ordering of tiles returned by getTiles()
+     *  i.e. tile 0 is getTiles().get(0) <br>
+     *  The function should do the following:
+     *  <ol>
+     *      <li> Open the filename and write a map in the format
+     *      given in the WorldMap constructor. </li>
+     *      <li> Write the starting position (given by getStartPosition())
+     *      </li>
+     *      <li> Write the current builder's (given by getBuilder()) name
+     *      and inventory.</li>
+     *      <li> Write the number of tiles </li>
+     *      <li> Write the index, and then each tile as given by
+     *      getTiles() (in the same order). </li>
+     *      <li> Write each tile's exits, as given by
+     *      getTiles().get(id).getExits() </li>
+     *      <li> Throw an IOException if the file cannot be opened for
+     *      writing, or if writing fails. </li>
+     *
+     *  </ol>
+     *
+     *  Hint: call getTiles()
+     * @param filename the filename to be written to
+     * @throws java.io.IOException if the file cannot be opened or written to.
+     */
+    public void saveMap(String filename)
+        throws java.io.IOException{
+        java.io.Writer fw = null;
+        BufferedWriter bw;
+
+        if( isParallelSaveUsed(filename) ) {
+            saveMapInParallel(filename);
+            clearChanges();
+            return;
+        }
+
+        try {
+            fw = new java.io.OutputStreamWriter(MapFileCompression.openOutput(filename));
+            bw = new BufferedWriter(fw);
+
+            try {
+
+                writeBuilderSection(bw);
+
+                //(blank)
+                bw.newLine();
+
+                //total:<number of tiles>
+                bw.write("total:" + String.valueOf(sparseTileArray.getTileCount()));
+                bw.newLine();
+
+                //<tile0 id> <block1>,<block2>, ... ,<blockN>
+                writeTileLines(bw);
+
+                //(blank)
+                bw.newLine();
+
+                //exits
+                bw.write("exits");
+                bw.newLine();
+
+                //<tile0 id> <name1>:<id1>,<name2>:<id2>, ... ,<nameN>:<idN>
+                writeExitLines(bw);
+
+                bw.flush();
+                bw.close();
+
+                // Region worlds also write their changes back
+                TileStore tileStore = sparseTileArray.getTileStore();
+                if( tileStore instanceof RegionTileStore ) {
+                    RegionTileStore regionStore = (RegionTileStore)tileStore;
+                    regionStore.flush();
+                    writeRegionBuilderFile(regionDirectoryName);
+                }
+                clearChanges();
+            } catch (IOException ioe) {
+                throw ioe;
+            }
+        } catch(FileNotFoundException e) {
+            throw e;
+        } finally {
+            if( fw != null) {
+                try {
+                    fw.close();
+                }catch(IOException e) {
+
+                }
+            }
+        }
+
+    }
+
+    /*
+     * Write the starting position, and the builder's name and inventory.
+     */
+    private void writeBuilderSection(BufferedWriter bw)
+        throws IOException{
+        // StartinxX StartingY
+        bw.write(String.valueOf(startPositionSaved.getX()));
+        bw.newLine();
+
+        bw.write(String.valueOf(startPositionSaved.getY()));
+        bw.newLine();
+
+        // Builder's name
+        bw.write(builderSaved.getName());
+        bw.newLine();
+
+        //inventory
+        StringBuilder stBsuilder = new StringBuilder();
+        boolean isFirstEnter = true;
+
+        for(Block block : builderSaved.getInventory()) {
+            if( isFirstEnter ) {
+                isFirstEnter = false;
+            } else {
+                stBsuilder.append(',');
+            }
+            stBsuilder.append(block.getBlockType());
+        }
+        bw.write(stBsuilder.toString());
+        bw.newLine();
+    }
+
+    /*
+     * Write one block line per tile. Output is written in chunks, so the
+     * whole world is never formatted in memory at once.
+     */
+    private void writeTileLines(BufferedWriter bw)
+        throws IOException{
+        StringBuilder stBsuilder = new StringBuilder();
+        int tileCount = sparseTileArray.getTileCount();
+
+        for(int ordinal = 0; ordinal < tileCount; ordinal++) {
+            appendTileLines(stBsuilder, ordinal, ordinal + 1);
+
+            if( stBsuilder.length() >= WRITE_CHUNK_SIZE ) {
+                bw.write(stBsuilder.toString());
+                stBsuilder.setLength(0);
+            }
+        }
+        bw.write(stBsuilder.toString());
+    }
+
+    /*
+     * Write one exit line per tile, in chunks like writeTileLines().
+     */
+    private void writeExitLines(BufferedWriter bw)
+        throws IOException{
+        StringBuilder stBsuilder = new StringBuilder();
+        int tileCount = sparseTileArray.getTileCount();
+
+        for(int ordinal = 0; ordinal < tileCount; ordinal++) {
+            appendExitLines(stBsuilder, ordinal, ordinal + 1);
+
+            if( stBsuilder.length() >= WRITE_CHUNK_SIZE ) {
+                bw.write(stBsuilder.toString());
+                stBsuilder.setLength(0);
+            }
+        }
+        bw.write(stBsuilder.toString());
+    }
+
+    /*
+     * Format the block lines of tiles fromOrdinal (inclusive) to toOrdinal
+     * (exclusive). Tiles of a tile store that have been handed out are read
+     * from their views, since actions may have changed their blocks.
+     */
+    private void appendTileLines(StringBuilder stBsuilder, int fromOrdinal,
+        int toOrdinal){
+        TileStore tileStore = sparseTileArray.getTileStore();
+
+        for(int ordinal = fromOrdinal; ordinal < toOrdinal; ordinal++) {
+            Tile tile = tileStore == null
+                ? sparseTileArray.getTileAt(ordinal)
+                : tileStore.getExistingTileAt(ordinal);
+
+            // Tile id
+            stBsuilder.append(String.valueOf(ordinal));
+
+            // Space
+            stBsuilder.append(' ');
+
+            // Block lists
+            if( tile != null ) {
+                List<Block> blocks = tile.getBlocks();
+                for(int i = 0; i < blocks.size(); i++) {
+                    if( i > 0 )
+                        stBsuilder.append(',');
+                    stBsuilder.append(blocks.get(i).getBlockType());
+                }
+            } else {
+                PackedBlockStack.appendBlockTypes(stBsuilder, tileStore.getStackAt(ordinal));
+            }
+
+            // Newline
+            stBsuilder.append(System.lineSeparator());
+        }
+    }
+
+    /*
+     * Format the exit lines of tiles fromOrdinal (inclusive) to toOrdinal
+     * (exclusive). The exit ordinals come from the exit cache of the sparse
+     * tile array, which checks them against each tile's exits.
+     */
+    private void appendExitLines(StringBuilder stBsuilder, int fromOrdinal,
+        int toOrdinal){
+        for(int ordinal = fromOrdinal; ordinal < toOrdinal; ordinal++) {
+            boolean isFirstEnter = true;
+
+            // Tile id
+            stBsuilder.append(String.valueOf(ordinal));
+
+            // Space
+            stBsuilder.append(' ');
+
+            // Exits
+            for(Direction direction : Direction.all()) {
+                int exitOrdinal = sparseTileArray.getExitOrdinal(ordinal, direction);
+                if( exitOrdinal < 0 )
+                    continue;
+                if( isFirstEnter ) {
+                    isFirstEnter = false;
+                } else {
+                    stBsuilder.append(',');
+                }
+                stBsuilder.append(direction.getExitName());
+                stBsuilder.append(':');
+                stBsuilder.append(String.valueOf(exitOrdinal));
+            }
+
+            // Newline
+            stBsuilder.append(System.lineSeparator());
+        }
+    }
+
+    /*
+     * Parallel saves write the file directly, so they are only used for
+     * large uncompressed worlds whose tiles can be read from several
+     * threads (region stores load regions as they are read, so they can't).
+     */
+    private boolean isParallelSaveUsed(String filename){
+        TileStore tileStore = sparseTileArray.getTileStore();
+
+        return sparseTileArray.getTileCount() >= parallelSaveMinTiles
+            && getParallelSavePool().getParallelism() > 1
+            && (tileStore == null || tileStore instanceof OffHeapTileStore)
+            && !filename.endsWith(MapFileCompression.GZIP_SUFFIX)
+            && !filename.endsWith(MapFileCompression.DEFLATE_SUFFIX);
+    }
+
+    /**
+     * Set how saveMap() splits the work of saving a large world.
+     * @param pool the pool to format on, or null for the common pool
+     * @param minTiles worlds with fewer tiles are saved on one thread
+     * @param rangeTiles the number of tiles formatted by one task
+     */
+    void setParallelSave(ForkJoinPool pool, int minTiles, int rangeTiles){
+        parallelSavePool = pool;
+        parallelSaveMinTiles = minTiles;
+        parallelSaveRangeTiles = Math.max(1, rangeTiles);
+    }
+
+    private ForkJoinPool getParallelSavePool(){
+        return parallelSavePool == null ? ForkJoinPool.commonPool() : parallelSavePool;
+    }
+
+    /*
+     * Save the map with the tile and exit lines formatted in ranges on the
+     * fork/join pool, each range into its own buffer, then write all the
+     * buffers in order with gathering writes. The bytes are the same as
+     * those saveMap() writes on one thread.
+     */
+    private void saveMapInParallel(String filename)
+        throws IOException{
+        int tileCount = sparseTileArray.getTileCount();
+        int rangeCount = (tileCount + parallelSaveRangeTiles - 1) / parallelSaveRangeTiles;
+        Charset charset = Charset.defaultCharset();
+
+        // Header, tile ranges, "exits" line, exit ranges
+        final ByteBuffer[] buffers = new ByteBuffer[2 * rangeCount + 2];
+
+        StringWriter headerWriter = new StringWriter();
+        BufferedWriter bw = new BufferedWriter(headerWriter);
+        writeBuilderSection(bw);
+        bw.newLine();
+        bw.write("total:" + String.valueOf(tileCount));
+        bw.newLine();
+        bw.flush();
+        buffers[0] = ByteBuffer.wrap(headerWriter.toString().getBytes(charset));
+
+        headerWriter = new StringWriter();
+        bw = new BufferedWriter(headerWriter);
+        bw.newLine();
+        bw.write("exits");
+        bw.newLine();
+        bw.flush();
+        buffers[rangeCount + 1] = ByteBuffer.wrap(headerWriter.toString().getBytes(charset));
+
+        getParallelSavePool().invoke(new FormatRangesTask(buffers, 0, 2 * rangeCount,
+            rangeCount, charset));
+
+        long totalBytes = 0;
+        for(ByteBuffer buffer : buffers) {
+            totalBytes += buffer.remaining();
+        }
+
+        FileOutputStream fos = new FileOutputStream(filename);
+        try {
+            FileChannel channel = fos.getChannel();
+            long writtenBytes = 0;
+            int firstBuffer = 0;
+            while( writtenBytes < totalBytes ) {
+                while( !buffers[firstBuffer].hasRemaining() )
+                    firstBuffer++;
+                writtenBytes += channel.write(buffers, firstBuffer, buffers.length - firstBuffer);
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    /*
+     * Formats ranges of tile lines (range indexes 0 to rangeCount - 1) and
+     * exit lines (rangeCount to 2 * rangeCount - 1) into buffers, splitting
+     * the range indexes in half until one range is left.
+     */
+    private class FormatRangesTask extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer[] buffers;
+        private final int fromRange;
+        private final int toRange;
+        private final int rangeCount;
+        private final Charset charset;
+
+        FormatRangesTask(ByteBuffer[] buffers, int fromRange, int toRange,
+            int rangeCount, Charset charset){
+            this.buffers = buffers;
+            this.fromRange = fromRange;
+            this.toRange = toRange;
+            this.rangeCount = rangeCount;
+            this.charset = charset;
+        }
+
+        @Override
+        protected void compute(){
+            if( toRange - fromRange > 1 ) {
+                int middleRange = (fromRange + toRange) >>> 1;
+                invokeAll(new FormatRangesTask(buffers, fromRange, middleRange, rangeCount, charset),
+                    new FormatRangesTask(buffers, middleRange, toRange, rangeCount, charset));
+                return;
+            }
+
+            boolean isExitRange = fromRange >= rangeCount;
+            int range = isExitRange ? fromRange - rangeCount : fromRange;
+            int fromOrdinal = range * parallelSaveRangeTiles;
+            int toOrdinal = Math.min(fromOrdinal + parallelSaveRangeTiles,
+                sparseTileArray.getTileCount());
+
+            StringBuilder stBsuilder = new StringBuilder();
+            if( isExitRange ) {
+                appendExitLines(stBsuilder, fromOrdinal, toOrdinal);
+                buffers[rangeCount + 2 + range] =
+                    ByteBuffer.wrap(stBsuilder.toString().getBytes(charset));
+            } else {
+                appendTileLines(stBsuilder, fromOrdinal, toOrdinal);
+                buffers[1 + range] = ByteBuffer.wrap(stBsuilder.toString().getBytes(charset));
+            }
+        }
+    }
+
+    private class BuilderParserResult{
+        private	int	startingX	=	-1;
+        private	int	startingY	=	-1;
         private	String	builderName	=	null;
         private	boolean	isTotalFormatCorrect	=	true;
         private List<Block> inventoryBlock	=	null;
@@ -535,14 +2108,9 @@ public class WorldMap {
         }
 
         public void addOneStartingBlock(String blockType){
-            if ( blockType.equals("soil")) {
-                inventoryBlock.add(new SoilBlock());
-            } else if (blockType.equals("grass")){
-                inventoryBlock.add(new GrassBlock());
-            } else if (blockType.equals("stone")){
-                inventoryBlock.add(new StoneBlock());
-            } else if (blockType.equals("wood")){
-                inventoryBlock.add(new WoodBlock());
+            int blockCode = PackedBlockStack.blockCodeOf(blockType);
+            if( blockCode >= 0 ) {
+                inventoryBlock.add(PackedBlockStack.createBlock(blockCode, isSharingBlocks));
             }
         }
 
@@ -577,11 +2145,10 @@ public class WorldMap {
         private	boolean	isWestFormatCorrect	=	true;
         private	boolean	isTotalFormatCorrect	=	true;
 
-        private	List<Block>	startingBlock	=	null;
+        private	int	startingBlockStack	=	PackedBlockStack.EMPTY;
         private	Tile	selfTile		=	null;
 
         public TileParserResult(int selfTileIdInput){
-            startingBlock = new ArrayList<Block>();
             selfTileId = selfTileIdInput;
         }
 
@@ -613,15 +2180,18 @@ public class WorldMap {
             return selfTile;
         }
 
+        public int getStartingBlockStack(){
+            return startingBlockStack;
+        }
+
         public void addOneStartingBlock(String blockType){
-            if ( blockType.equals("soil")) {
-                startingBlock.add(new SoilBlock());
-            } else if (blockType.equals("grass")){
-                startingBlock.add(new GrassBlock());
-            } else if (blockType.equals("stone")){
-                startingBlock.add(new StoneBlock());
-            } else if (blockType.equals("wood")){
-                startingBlock.add(new WoodBlock());
+            if( PackedBlockStack.blockCodeOf(blockType) < 0 )
+                return;
+
+            // More blocks than a tile can hold
+            startingBlockStack = PackedBlockStack.push(startingBlockStack, blockType);
+            if( startingBlockStack == PackedBlockStack.INVALID ) {
+                isTotalFormatCorrect = false;
             }
         }
 
@@ -665,8 +2235,13 @@ public class WorldMap {
         }
 
         public Tile generateTile(){
+            if( startingBlockStack == PackedBlockStack.INVALID ) {
+                isTotalFormatCorrect = false;
+                return null;
+            }
+
             try {
-                selfTile = new Tile(startingBlock);
+                selfTile = new Tile(PackedBlockStack.unpack(startingBlockStack, isSharingBlocks));
             } catch(TooHighException e) {
                 isTotalFormatCorrect = false;
             }
@@ -674,6 +2249,61 @@ public class WorldMap {
             return selfTile;
         }
 
+        /*
+         * Check the blocks as generateTile() does, without keeping a Tile.
+         */
+        public void checkTile(BitSet checkedStackSet, BitSet validStackSet){
+            if( startingBlockStack == PackedBlockStack.INVALID
+                || !isLazyStackValid(startingBlockStack, checkedStackSet, validStackSet) )
+                isTotalFormatCorrect = false;
+        }
+
+        public void copyBlocksToStore(OffHeapTileStore tileStore, int[] storeIds,
+            BitSet checkedStackSet, BitSet validStackSet){
+            checkTile(checkedStackSet, validStackSet);
+            if( !isFormatCorrect() )
+                return;
+
+            if( storeIds == null )
+                tileStore.setStack(selfTileId, startingBlockStack);
+            else if( storeIds[selfTileId] >= 0 )
+                tileStore.setStack(storeIds[selfTileId], startingBlockStack);
+        }
+
+        public void copyNeighborToStore(OffHeapTileStore tileStore, int[] storeIds){
+            copyOneNeighborToStore(tileStore, storeIds, Direction.NORTH, northId);
+            copyOneNeighborToStore(tileStore, storeIds, Direction.EAST, eastId);
+            copyOneNeighborToStore(tileStore, storeIds, Direction.SOUTH, southId);
+            copyOneNeighborToStore(tileStore, storeIds, Direction.WEST, westId);
+        }
+
+        private void copyOneNeighborToStore(OffHeapTileStore tileStore, int[] storeIds, Direction direction, int childId){
+            if( childId == -1 )
+                return;
+            if( tileParserResultHashMap.get(childId) == null ) {
+                isTotalFormatCorrect = false;
+                return;
+            }
+            if( storeIds == null )
+                tileStore.setExit(selfTileId, direction, childId);
+            else if( storeIds[selfTileId] >= 0 )
+                tileStore.setExit(storeIds[selfTileId], direction, storeIds[childId]);
+        }
+
+        /*
+         * Check the exits as generateNeighbor() does, without linking them.
+         */
+        public void checkNeighbor(){
+            if( westId != -1 && tileParserResultHashMap.get(westId) == null )
+                isWestFormatCorrect = false;
+            if( southId != -1 && tileParserResultHashMap.get(southId) == null )
+                isSouthFormatCorrect = false;
+            if( eastId != -1 && tileParserResultHashMap.get(eastId) == null )
+                isEastFormatCorrect = false;
+            if( northId != -1 && tileParserResultHashMap.get(northId) == null )
+                isNorthFormatCorrect = false;
+        }
+
         public void generateNeighbor(){
             if( isFormatCorrect() ) {
                 // west
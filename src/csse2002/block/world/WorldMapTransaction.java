@@ -0,0 +1,467 @@
+package csse2002.block.world;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of edits to the tiles and exits of a WorldMap, applied together by commit(). <br> Get
+ * one from WorldMap.beginTransaction(). Edits are staged in order and nothing changes until the
+ * commit. The commit checks the whole batch first, and then either applies all of it or throws a
+ * WorldMapInconsistentException and leaves the map as it was. <br>
+ *
+ * The check only looks at the tiles the batch touches. Every exit it adds must lead to the
+ * neighbouring position in its direction, which keeps the world geometrically consistent without
+ * linking it again (see SparseTileArray.addLinkedTiles()). Added tiles must not overlap other
+ * tiles and must be reachable through the exits of the batch, and every stack must be one a Tile
+ * can hold. A batch that removes exits also checks, in one pass over the exits, that every tile
+ * can still be reached from the starting tile. <br>
+ *
+ * Added tiles come after the existing tiles in WorldMap.getTiles(). Only maps that keep their
+ * tiles on the heap can have tiles and exits added or removed; any map can have its blocks set.
+ */
+public class WorldMapTransaction {
+
+    private static final int SET_BLOCKS = 0;
+    private static final int ADD_TILE = 1;
+    private static final int ADD_EXIT = 2;
+    private static final int REMOVE_EXIT = 3;
+
+    private final WorldMap map;
+    private final List<Edit> edits = new ArrayList<Edit>();
+    private boolean isFinished = false;
+
+    /**
+     * Start an empty transaction on a map.
+     *
+     * @param map the map to edit
+     */
+    WorldMapTransaction(WorldMap map) {
+        this.map = map;
+    }
+
+    /**
+     * Stage replacing the blocks of a tile.
+     *
+     * @param position the position of the tile, which may be added by this transaction
+     * @param blockTypes the types of the new blocks, from bottom to top
+     * @throws IllegalStateException if the transaction was committed or rolled back
+     */
+    public void setBlocks(Position position, List<String> blockTypes) {
+        stage(new Edit(SET_BLOCKS, position, null, null, blockTypes));
+    }
+
+    /**
+     * Stage adding a tile without exits. Exits to and from it are added by addExit().
+     *
+     * @param position the position of the new tile
+     * @param blockTypes the types of its blocks, from bottom to top
+     * @throws IllegalStateException if the transaction was committed or rolled back
+     * @throws UnsupportedOperationException if the map does not keep its tiles on the heap
+     */
+    public void addTile(Position position, List<String> blockTypes) {
+        checkExitsCanChange();
+        stage(new Edit(ADD_TILE, position, null, null, blockTypes));
+    }
+
+    /**
+     * Stage adding (or replacing) an exit of a tile.
+     *
+     * @param position the position of the tile
+     * @param direction the direction of the exit
+     * @param target the position of the tile the exit leads to, which must be the neighbouring
+     * position in that direction
+     * @throws IllegalStateException if the transaction was committed or rolled back
+     * @throws UnsupportedOperationException if the map does not keep its tiles on the heap
+     */
+    public void addExit(Position position, Direction direction, Position target) {
+        checkExitsCanChange();
+        stage(new Edit(ADD_EXIT, position, direction, target, null));
+    }
+
+    /**
+     * Stage removing an exit of a tile. Removing an exit the tile does not have does nothing.
+     *
+     * @param position the position of the tile
+     * @param direction the direction of the exit
+     * @throws IllegalStateException if the transaction was committed or rolled back
+     * @throws UnsupportedOperationException if the map does not keep its tiles on the heap
+     */
+    public void removeExit(Position position, Direction direction) {
+        checkExitsCanChange();
+        stage(new Edit(REMOVE_EXIT, position, direction, null, null));
+    }
+
+    /**
+     * Get the number of edits staged.
+     *
+     * @return the number of edits
+     */
+    public int getEditCount() {
+        return edits.size();
+    }
+
+    /**
+     * Discard the staged edits. The transaction cannot be used afterwards.
+     */
+    public void rollback() {
+        edits.clear();
+        isFinished = true;
+    }
+
+    /**
+     * Check the staged edits, and apply all of them to the map if they are consistent. The
+     * transaction cannot be used afterwards.
+     *
+     * @throws WorldMapInconsistentException if an edit refers to a position without a tile, adds
+     * a tile where there is one, adds an exit that does not lead to the neighbouring position,
+     * leaves a tile unreachable or gives a tile blocks it cannot hold. The map is not changed.
+     * @throws IllegalStateException if the transaction was committed or rolled back
+     */
+    public void commit() throws WorldMapInconsistentException {
+        checkOpen();
+        isFinished = true;
+
+        SparseTileArray tiles = map.getSparseTileArray();
+        Map<Position, StagedTile> stagedTiles = new LinkedHashMap<Position, StagedTile>();
+        List<StagedTile> addedTiles = new ArrayList<StagedTile>();
+        boolean isExitRemoved = false;
+
+        for (Edit edit : edits) {
+            StagedTile stagedTile = getStagedTile(tiles, stagedTiles, edit.position);
+            switch (edit.kind) {
+                case SET_BLOCKS:
+                    if (stagedTile == null) {
+                        throw new WorldMapInconsistentException("No tile at " + edit.position);
+                    }
+                    stagedTile.tile = createTile(edit.blockTypes);
+                    stagedTile.isStackChanged = true;
+                    break;
+
+                case ADD_TILE:
+                    if (stagedTile != null) {
+                        throw new WorldMapInconsistentException(
+                            "Tile already at " + edit.position);
+                    }
+                    stagedTile = new StagedTile(edit.position,
+                        tiles.getTileCount() + addedTiles.size());
+                    stagedTile.isAdded = true;
+                    stagedTile.tile = createTile(edit.blockTypes);
+                    stagedTiles.put(edit.position, stagedTile);
+                    addedTiles.add(stagedTile);
+                    break;
+
+                case ADD_EXIT:
+                    if (stagedTile == null
+                        || getStagedTile(tiles, stagedTiles, edit.target) == null) {
+                        throw new WorldMapInconsistentException(
+                            "No tile at " + edit.position + " or " + edit.target);
+                    }
+                    if (!edit.target.equals(step(edit.position, edit.direction))) {
+                        throw new WorldMapInconsistentException(
+                            edit.target + " is not " + edit.direction.getExitName() + " of "
+                                + edit.position);
+                    }
+                    stagedTile.setExit(edit.direction, edit.target);
+                    break;
+
+                case REMOVE_EXIT:
+                default:
+                    if (stagedTile == null) {
+                        throw new WorldMapInconsistentException("No tile at " + edit.position);
+                    }
+                    if (stagedTile.exits[edit.direction.ordinal()] != null) {
+                        stagedTile.setExit(edit.direction, null);
+                        isExitRemoved = true;
+                    }
+                    break;
+            }
+        }
+
+        if (isExitRemoved) {
+            checkAllReachable(tiles, stagedTiles, addedTiles);
+        } else {
+            checkAddedReachable(stagedTiles, addedTiles);
+        }
+
+        apply(tiles, stagedTiles, addedTiles);
+    }
+
+    /*
+     * Apply checked edits: add the new tiles, then change exits, then blocks.
+     */
+    private void apply(SparseTileArray tiles, Map<Position, StagedTile> stagedTiles,
+        List<StagedTile> addedTiles) {
+        for (StagedTile addedTile : addedTiles) {
+            tiles.appendTile(addedTile.tile, addedTile.position);
+        }
+
+        boolean isStructureChanged = !addedTiles.isEmpty();
+        for (StagedTile stagedTile : stagedTiles.values()) {
+            if (stagedTile.changedDirections == 0) {
+                continue;
+            }
+            Tile tile = tiles.getTileAt(stagedTile.ordinal);
+            for (Direction direction : Direction.all()) {
+                if ((stagedTile.changedDirections & (0x1 << direction.ordinal())) == 0) {
+                    continue;
+                }
+                Position target = stagedTile.exits[direction.ordinal()];
+                try {
+                    if (target == null) {
+                        tile.removeExit(direction.getExitName());
+                    } else {
+                        tile.addExit(direction.getExitName(),
+                            tiles.getTileAt(stagedTiles.get(target).ordinal));
+                    }
+                } catch (NoExitException e) {
+                    // Only removing an exit the tile lacks throws, which changes nothing
+                }
+            }
+            isStructureChanged = true;
+        }
+        for (StagedTile stagedTile : stagedTiles.values()) {
+            if (stagedTile.changedDirections != 0) {
+                tiles.refreshExits(stagedTile.ordinal);
+            }
+        }
+        if (isStructureChanged) {
+            map.exitsChanged(true);
+        }
+
+        for (StagedTile stagedTile : stagedTiles.values()) {
+            if (!stagedTile.isStackChanged || stagedTile.isAdded) {
+                continue;
+            }
+            Tile tile = tiles.getTileAt(stagedTile.ordinal);
+            try {
+                while (!tile.getBlocks().isEmpty()) {
+                    tile.removeTopBlock();
+                }
+                for (Block block : stagedTile.tile.getBlocks()) {
+                    tile.placeBlock(block);
+                }
+            } catch (TooLowException e) {
+                // Blocks are only removed while there are some
+                throw new IllegalStateException(e);
+            } catch (TooHighException e) {
+                // The stack was checked by building a Tile from it
+                throw new IllegalStateException(e);
+            } catch (InvalidBlockException e) {
+                throw new IllegalStateException(e);
+            }
+            map.tileChanged(stagedTile.ordinal);
+        }
+    }
+
+    /*
+     * Without removed exits every existing tile stays reachable, so only the added tiles need
+     * a path, through the exits of the staged tiles.
+     */
+    private static void checkAddedReachable(Map<Position, StagedTile> stagedTiles,
+        List<StagedTile> addedTiles) throws WorldMapInconsistentException {
+        if (addedTiles.isEmpty()) {
+            return;
+        }
+
+        Deque<StagedTile> queue = new ArrayDeque<StagedTile>();
+        for (StagedTile stagedTile : stagedTiles.values()) {
+            if (!stagedTile.isAdded) {
+                stagedTile.isReached = true;
+                queue.add(stagedTile);
+            }
+        }
+        int reachedCount = 0;
+        while (!queue.isEmpty()) {
+            for (Position target : queue.poll().exits) {
+                StagedTile targetTile = target == null ? null : stagedTiles.get(target);
+                if (targetTile != null && !targetTile.isReached) {
+                    targetTile.isReached = true;
+                    reachedCount++;
+                    queue.add(targetTile);
+                }
+            }
+        }
+        if (reachedCount < addedTiles.size()) {
+            throw new WorldMapInconsistentException("An added tile cannot be reached");
+        }
+    }
+
+    /*
+     * Search the exits from the starting tile (ordinal 0), taking staged exits in place of the
+     * cached ones, and check that every tile is found. Added tiles get ordinals after the
+     * existing ones.
+     */
+    private static void checkAllReachable(SparseTileArray tiles,
+        Map<Position, StagedTile> stagedTiles, List<StagedTile> addedTiles)
+        throws WorldMapInconsistentException {
+        int tileCount = tiles.getTileCount() + addedTiles.size();
+        Map<Integer, StagedTile> stagedOrdinals = new HashMap<Integer, StagedTile>();
+        for (StagedTile stagedTile : stagedTiles.values()) {
+            stagedOrdinals.put(stagedTile.ordinal, stagedTile);
+        }
+
+        BitSet reachedSet = new BitSet(tileCount);
+        int[] queue = new int[tileCount];
+        int queueEnd = 0;
+        reachedSet.set(0);
+        queue[queueEnd++] = 0;
+        for (int head = 0; head < queueEnd; head++) {
+            int ordinal = queue[head];
+            StagedTile stagedTile = stagedOrdinals.get(ordinal);
+            for (Direction direction : Direction.all()) {
+                int target;
+                if (stagedTile == null) {
+                    target = tiles.getExitOrdinal(ordinal, direction);
+                } else {
+                    Position targetPosition = stagedTile.exits[direction.ordinal()];
+                    target = targetPosition == null ? -1
+                        : getOrdinal(tiles, stagedTiles, targetPosition);
+                }
+                if (target >= 0 && !reachedSet.get(target)) {
+                    reachedSet.set(target);
+                    queue[queueEnd++] = target;
+                }
+            }
+        }
+        if (queueEnd < tileCount) {
+            throw new WorldMapInconsistentException(
+                (tileCount - queueEnd) + " tiles cannot be reached");
+        }
+    }
+
+    /*
+     * The ordinal of a tile that is staged, or existing and untouched.
+     */
+    private static int getOrdinal(SparseTileArray tiles, Map<Position, StagedTile> stagedTiles,
+        Position position) {
+        StagedTile stagedTile = stagedTiles.get(position);
+        return stagedTile == null ? tiles.getOrdinalAt(position) : stagedTile.ordinal;
+    }
+
+    /*
+     * The staged state of the tile at position, starting from its current exits, or null if
+     * there is no tile there.
+     */
+    private static StagedTile getStagedTile(SparseTileArray tiles,
+        Map<Position, StagedTile> stagedTiles, Position position) {
+        StagedTile stagedTile = stagedTiles.get(position);
+        if (stagedTile != null) {
+            return stagedTile;
+        }
+        int ordinal = tiles.getOrdinalAt(position);
+        if (ordinal < 0) {
+            return null;
+        }
+
+        stagedTile = new StagedTile(position, ordinal);
+        for (Direction direction : Direction.all()) {
+            int exitOrdinal = tiles.getExitOrdinal(ordinal, direction);
+            if (exitOrdinal >= 0) {
+                stagedTile.exits[direction.ordinal()] = step(position, direction);
+            }
+        }
+        stagedTiles.put(position, stagedTile);
+        return stagedTile;
+    }
+
+    /*
+     * Build a tile with the given blocks, which also checks that a tile can hold them.
+     */
+    private Tile createTile(List<String> blockTypes) throws WorldMapInconsistentException {
+        int stack = PackedBlockStack.EMPTY;
+        for (String blockType : blockTypes) {
+            stack = PackedBlockStack.push(stack, blockType);
+        }
+        if (stack == PackedBlockStack.INVALID) {
+            throw new WorldMapInconsistentException("Invalid blocks " + blockTypes);
+        }
+        try {
+            return new Tile(PackedBlockStack.unpack(stack, map.isSharingBlocks()));
+        } catch (TooHighException e) {
+            throw new WorldMapInconsistentException("Invalid blocks " + blockTypes);
+        }
+    }
+
+    private static Position step(Position position, Direction direction) {
+        return new Position(position.getX() + direction.getDeltaX(),
+            position.getY() + direction.getDeltaY());
+    }
+
+    private void stage(Edit edit) {
+        checkOpen();
+        if (edit.position == null || (edit.kind >= ADD_EXIT && edit.direction == null)
+            || (edit.kind == ADD_EXIT && edit.target == null)
+            || (edit.kind <= ADD_TILE && edit.blockTypes == null)) {
+            throw new IllegalArgumentException();
+        }
+        edits.add(edit);
+    }
+
+    private void checkOpen() {
+        if (isFinished) {
+            throw new IllegalStateException("Transaction already finished");
+        }
+    }
+
+    private void checkExitsCanChange() {
+        if (!map.canChangeExits()) {
+            throw new UnsupportedOperationException(
+                "Exits can only change on maps that keep their tiles on the heap");
+        }
+    }
+
+    /*
+     * One staged edit.
+     */
+    private static final class Edit {
+
+        final int kind;
+        final Position position;
+        final Direction direction;
+        final Position target;
+        final List<String> blockTypes;
+
+        Edit(int kind, Position position, Direction direction, Position target,
+            List<String> blockTypes) {
+            this.kind = kind;
+            this.position = position;
+            this.direction = direction;
+            this.target = target;
+            this.blockTypes = blockTypes == null ? null : new ArrayList<String>(blockTypes);
+        }
+    }
+
+    /*
+     * A tile touched by the transaction, with its exits (as target positions) after the edits
+     * staged so far.
+     */
+    private static final class StagedTile {
+
+        final Position position;
+        // Ordinal in getTiles(); added tiles get theirs in the order they were added
+        final int ordinal;
+        final Position[] exits = new Position[Direction.all().length];
+        int changedDirections = 0;
+        boolean isAdded = false;
+        // The new blocks, held by a Tile that checked them; an added tile is this Tile
+        Tile tile = null;
+        boolean isStackChanged = false;
+        boolean isReached = false;
+
+        StagedTile(Position position, int ordinal) {
+            this.position = position;
+            this.ordinal = ordinal;
+        }
+
+        void setExit(Direction direction, Position target) {
+            exits[direction.ordinal()] = target;
+            changedDirections |= 0x1 << direction.ordinal();
+        }
+    }
+}
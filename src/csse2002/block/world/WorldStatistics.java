@@ -0,0 +1,152 @@
+package csse2002.block.world;
+
+/**
+ * Totals over a set of tiles: the number of tiles, blocks of each type, the spread of stack
+ * heights, and the number of tiles with an exit in each direction. <br> Returned by
+ * WorldMap.getStatistics(); later changes to the world do not change a returned instance.
+ */
+public final class WorldStatistics {
+
+    private static final int BLOCK_TYPE_COUNT = 4;
+
+    private int tileCount = 0;
+    private final int[] heightCounts = new int[PackedBlockStack.MAX_BLOCKS + 1];
+    private final long[] blockCounts = new long[BLOCK_TYPE_COUNT];
+    private final int[] exitCounts = new int[Direction.all().length];
+
+    WorldStatistics() {
+    }
+
+    /**
+     * Get the number of tiles.
+     *
+     * @return the number of tiles
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Get the number of tiles with a given number of blocks.
+     *
+     * @param height the number of blocks
+     * @return the number of tiles with that many blocks
+     */
+    public int getTileCount(int height) {
+        if (height < 0 || height >= heightCounts.length) {
+            return 0;
+        }
+        return heightCounts[height];
+    }
+
+    /**
+     * Get the number of blocks of a type on all the tiles.
+     *
+     * @param blockType one of "soil", "grass", "stone" or "wood"
+     * @return the number of blocks of that type, or 0 if the type is unknown
+     */
+    public long getBlockCount(String blockType) {
+        int blockCode = PackedBlockStack.blockCodeOf(blockType);
+        return blockCode < 0 ? 0 : blockCounts[blockCode];
+    }
+
+    /**
+     * Get the number of blocks on all the tiles.
+     *
+     * @return the number of blocks
+     */
+    public long getTotalBlockCount() {
+        long total = 0;
+        for (long blockCount : blockCounts) {
+            total += blockCount;
+        }
+        return total;
+    }
+
+    /**
+     * Get the average number of blocks per tile.
+     *
+     * @return the average height, or 0 if there are no tiles
+     */
+    public double getAverageHeight() {
+        return tileCount == 0 ? 0 : (double) getTotalBlockCount() / tileCount;
+    }
+
+    /**
+     * Get the largest number of blocks on one tile.
+     *
+     * @return the maximum height, or 0 if there are no tiles
+     */
+    public int getMaxHeight() {
+        for (int height = heightCounts.length - 1; height > 0; height--) {
+            if (heightCounts[height] > 0) {
+                return height;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the number of tiles with an exit in a direction.
+     *
+     * @param direction the exit direction
+     * @return the number of tiles with that exit
+     */
+    public int getExitCount(Direction direction) {
+        return exitCounts[direction.ordinal()];
+    }
+
+    /**
+     * Count a tile in (sign 1) or out of (sign -1) the totals.
+     *
+     * @param stack the packed stack of the tile
+     * @param exitMask bit d is set when the tile has an exit in Direction d
+     * @param sign 1 to add the tile, -1 to remove it
+     */
+    void addTile(int stack, int exitMask, int sign) {
+        tileCount += sign;
+        addStack(stack, sign);
+        for (int direction = 0; direction < exitCounts.length; direction++) {
+            if ((exitMask & (0x1 << direction)) != 0) {
+                exitCounts[direction] += sign;
+            }
+        }
+    }
+
+    /**
+     * Replace the stack of a tile already counted.
+     *
+     * @param oldStack the packed stack counted so far
+     * @param newStack the packed stack to count instead
+     */
+    void replaceStack(int oldStack, int newStack) {
+        addStack(oldStack, -1);
+        addStack(newStack, 1);
+    }
+
+    /**
+     * Add the totals of other to these totals.
+     *
+     * @param other the totals to add
+     */
+    void add(WorldStatistics other) {
+        tileCount += other.tileCount;
+        for (int i = 0; i < heightCounts.length; i++) {
+            heightCounts[i] += other.heightCounts[i];
+        }
+        for (int i = 0; i < blockCounts.length; i++) {
+            blockCounts[i] += other.blockCounts[i];
+        }
+        for (int i = 0; i < exitCounts.length; i++) {
+            exitCounts[i] += other.exitCounts[i];
+        }
+    }
+
+    private void addStack(int stack, int sign) {
+        int height = PackedBlockStack.getHeight(stack);
+        heightCounts[height] += sign;
+        for (int i = 0; i < height; i++) {
+            blockCounts[PackedBlockStack.getBlockCode(stack, i)] += sign;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package csse2002.block.world;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Past versions of the tiles of a WorldMap, for reading the world as it was a number of actions
+ * ago while actions keep being applied. <br> Set with WorldMap.setWorldVersions(). Version 0 is
+ * the world when it was set, and every action Action.processAction() handles (whether or not it
+ * succeeds) makes a new version, so version n is the world after the first n actions. Changes made
+ * between actions, by a WorldMapTransaction or an ActionHistory, belong to the version of the
+ * next action. pin() gives a Version that can be read until it is closed. <br>
+ *
+ * The live tiles are the newest version. Older versions share them, and a tile that changed keeps
+ * a chain of its earlier stacks, newest first, each with the last version it was current in. A
+ * version is read by walking one tile's chain back to it, so memory grows with the number of
+ * changes retained rather than with the size of the world times the number of versions. <br>
+ *
+ * The retention policy keeps the latest getRetainedVersionCount() versions, and any older
+ * version that is pinned. Chain entries are created in version order, so they are kept in one
+ * ring, and pruning drops entries from its old end. <br>
+ *
+ * Methods synchronize on the WorldVersions, so versions can be read on other threads while
+ * actions are processed, as long as no transaction adds tiles at the same time.
+ */
+public class WorldVersions {
+
+    private static final int INITIAL_CAPACITY = 64;
+    // Stack recorded for a tile that did not exist yet
+    private static final int NO_TILE = PackedBlockStack.INVALID;
+
+    private final int retainedVersionCount;
+    private SparseTileArray tiles = null;
+    private long latestVersion = 0;
+    // Pinned versions and the number of pins on each
+    private final TreeMap<Long, Integer> pinCounts = new TreeMap<Long, Integer>();
+
+    // Live stack, and the sequence number of the newest chain entry, of each tile
+    private int[] stacks = null;
+    private long[] chainHeads = null;
+
+    // Ring of chain entries, indexed by sequence number modulo its capacity; entries from
+    // firstSequence up to nextSequence are live
+    private long[] entryVersionEnds = new long[INITIAL_CAPACITY];
+    private int[] entryStacks = new int[INITIAL_CAPACITY];
+    private long[] entryNexts = new long[INITIAL_CAPACITY];
+    private long firstSequence = 0;
+    private long nextSequence = 0;
+
+    /**
+     * Create versions that keep a number of the latest versions.
+     *
+     * @param retainedVersionCount the number of latest versions that can always be pinned
+     * @throws IllegalArgumentException if retainedVersionCount is not positive
+     */
+    public WorldVersions(int retainedVersionCount) {
+        if (retainedVersionCount <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.retainedVersionCount = retainedVersionCount;
+    }
+
+    /**
+     * Get the number of latest versions that can always be pinned.
+     *
+     * @return the retained version count
+     */
+    public int getRetainedVersionCount() {
+        return retainedVersionCount;
+    }
+
+    /**
+     * Get the newest version, the one of the live world.
+     *
+     * @return the number of actions processed since the versions were set
+     */
+    public synchronized long getLatestVersion() {
+        return latestVersion;
+    }
+
+    /**
+     * Get the oldest version that can be pinned.
+     *
+     * @return the oldest retained or pinned version
+     */
+    public synchronized long getOldestVersion() {
+        long oldestVersion = Math.max(0, latestVersion - retainedVersionCount + 1);
+        if (!pinCounts.isEmpty()) {
+            oldestVersion = Math.min(oldestVersion, pinCounts.firstKey());
+        }
+        return oldestVersion;
+    }
+
+    /**
+     * Get the number of earlier stacks kept for all the tiles.
+     *
+     * @return the number of chain entries
+     */
+    public synchronized long getEntryCount() {
+        return nextSequence - firstSequence;
+    }
+
+    /**
+     * Pin a version, so that it is kept until the returned Version is closed.
+     *
+     * @param version the version to pin, from getOldestVersion() to getLatestVersion()
+     * @return the pinned version
+     * @throws IllegalArgumentException if the version is not kept
+     * @throws IllegalStateException if the versions have not been set on a map
+     */
+    public synchronized Version pin(long version) {
+        if (tiles == null) {
+            throw new IllegalStateException("Not set on a map");
+        }
+        if (version < getOldestVersion() || version > latestVersion) {
+            throw new IllegalArgumentException("Version " + version + " is not kept");
+        }
+        Integer pinCount = pinCounts.get(version);
+        pinCounts.put(version, pinCount == null ? 1 : pinCount + 1);
+        return new Version(version);
+    }
+
+    /**
+     * Start keeping versions of the tiles of a map.
+     *
+     * @param tiles the tiles of the map
+     * @throws IllegalStateException if the versions were already set on a map
+     */
+    synchronized void start(SparseTileArray tiles) {
+        if (this.tiles != null) {
+            throw new IllegalStateException("Already set on a map");
+        }
+        this.tiles = tiles;
+        int tileCount = tiles.getTileCount();
+        stacks = new int[tileCount];
+        chainHeads = new long[tileCount];
+        for (int ordinal = 0; ordinal < tileCount; ordinal++) {
+            stacks[ordinal] = tiles.getStackAt(ordinal);
+        }
+        Arrays.fill(chainHeads, -1);
+    }
+
+    /**
+     * Record that the blocks on a tile changed.
+     *
+     * @param ordinal the index of the tile in getTiles()
+     */
+    synchronized void tileChanged(int ordinal) {
+        if (ordinal >= stacks.length) {
+            tilesAdded();
+        }
+        int stack = tiles.getStackAt(ordinal);
+        if (stack != stacks[ordinal]) {
+            keepStack(ordinal);
+            stacks[ordinal] = stack;
+        }
+    }
+
+    /**
+     * Start keeping versions of tiles added since the last call, which did not exist in the
+     * earlier versions.
+     */
+    synchronized void tilesAdded() {
+        int oldCount = stacks.length;
+        int tileCount = tiles.getTileCount();
+        if (tileCount <= oldCount) {
+            return;
+        }
+        stacks = Arrays.copyOf(stacks, tileCount);
+        chainHeads = Arrays.copyOf(chainHeads, tileCount);
+        for (int ordinal = oldCount; ordinal < tileCount; ordinal++) {
+            stacks[ordinal] = NO_TILE;
+            chainHeads[ordinal] = -1;
+            keepStack(ordinal);
+            stacks[ordinal] = tiles.getStackAt(ordinal);
+        }
+    }
+
+    /**
+     * Make a new version, after an action was processed.
+     */
+    synchronized void nextVersion() {
+        latestVersion++;
+        prune();
+    }
+
+    /*
+     * Add the live stack of a tile to its chain, as current up to the latest version, unless an
+     * entry already records its stack in that version.
+     */
+    private void keepStack(int ordinal) {
+        long head = chainHeads[ordinal];
+        if (head >= firstSequence && entryVersionEnds[slotOf(head)] == latestVersion) {
+            return;
+        }
+
+        if (nextSequence - firstSequence == entryStacks.length) {
+            grow();
+        }
+        int slot = slotOf(nextSequence);
+        entryVersionEnds[slot] = latestVersion;
+        entryStacks[slot] = stacks[ordinal];
+        entryNexts[slot] = head;
+        chainHeads[ordinal] = nextSequence++;
+    }
+
+    /*
+     * Drop the entries only needed by versions older than any that can be pinned. An entry is
+     * needed while the last version it was current in can be pinned.
+     */
+    private void prune() {
+        long oldestVersion = getOldestVersion();
+        while (firstSequence < nextSequence
+            && entryVersionEnds[slotOf(firstSequence)] < oldestVersion) {
+            firstSequence++;
+        }
+    }
+
+    private void grow() {
+        int capacity = entryStacks.length * 2;
+        long[] versionEnds = new long[capacity];
+        int[] entryStacks = new int[capacity];
+        long[] nexts = new long[capacity];
+        for (long sequence = firstSequence; sequence < nextSequence; sequence++) {
+            int oldSlot = slotOf(sequence);
+            int newSlot = (int) (sequence % capacity);
+            versionEnds[newSlot] = entryVersionEnds[oldSlot];
+            entryStacks[newSlot] = this.entryStacks[oldSlot];
+            nexts[newSlot] = entryNexts[oldSlot];
+        }
+        entryVersionEnds = versionEnds;
+        this.entryStacks = entryStacks;
+        entryNexts = nexts;
+    }
+
+    private int slotOf(long sequence) {
+        return (int) (sequence % entryStacks.length);
+    }
+
+    /*
+     * The stack of a tile in a version: the oldest entry still current in that version, or the
+     * live stack if no entry is.
+     */
+    private int getStack(int ordinal, long version) {
+        int stack = stacks[ordinal];
+        for (long sequence = chainHeads[ordinal]; sequence >= firstSequence;
+            sequence = entryNexts[slotOf(sequence)]) {
+            int slot = slotOf(sequence);
+            if (entryVersionEnds[slot] < version) {
+                break;
+            }
+            stack = entryStacks[slot];
+        }
+        return stack;
+    }
+
+    private synchronized void unpin(long version) {
+        int pinCount = pinCounts.get(version);
+        if (pinCount == 1) {
+            pinCounts.remove(version);
+            prune();
+        } else {
+            pinCounts.put(version, pinCount - 1);
+        }
+    }
+
+    /**
+     * A pinned version of the world. Reading it gives the same result however the live world
+     * changes, until it is closed.
+     */
+    public final class Version implements AutoCloseable {
+
+        private final long version;
+        private boolean isClosed = false;
+
+        private Version(long version) {
+            this.version = version;
+        }
+
+        /**
+         * Get the number of this version.
+         *
+         * @return the number of actions processed before this version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the types of the blocks on a tile in this version.
+         *
+         * @param position the position of the tile
+         * @return the block types, from bottom to top, or null if there was no tile there
+         * @throws IllegalStateException if the version was closed
+         */
+        public List<String> getBlockTypes(Position position) {
+            synchronized (WorldVersions.this) {
+                if (isClosed) {
+                    throw new IllegalStateException("Version closed");
+                }
+                int ordinal = tiles.getOrdinalAt(position);
+                if (ordinal < 0) {
+                    return null;
+                }
+                if (ordinal >= stacks.length) {
+                    tilesAdded();
+                }
+                int stack = getStack(ordinal, version);
+                if (stack == NO_TILE) {
+                    return null;
+                }
+                String[] blockTypes = new String[PackedBlockStack.getHeight(stack)];
+                for (int i = 0; i < blockTypes.length; i++) {
+                    blockTypes[i] = PackedBlockStack.getBlockType(stack, i);
+                }
+                return Arrays.asList(blockTypes);
+            }
+        }
+
+        /**
+         * Release the version, so that it can be pruned. Closing it again does nothing.
+         */
+        @Override
+        public void close() {
+            synchronized (WorldVersions.this) {
+                if (!isClosed) {
+                    isClosed = true;
+                    unpin(version);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package csse2002.block.world;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActionFileFollowerTest {
+
+    private File directory = null;
+    private String mapFilename = null;
+    private String actionsFilename = null;
+    private String outputFilename = null;
+    private PrintStream out = null;
+
+    @Before
+    public void setup() throws Exception {
+        directory = File.createTempFile("follow", "");
+        directory.delete();
+        directory.mkdirs();
+        mapFilename = new File(directory, "map.txt").getPath();
+        actionsFilename = new File(directory, "actions.txt").getPath();
+        outputFilename = new File(directory, "output.txt").getPath();
+
+        /*
+            starting_tile -- east_tile
+         */
+        Tile startingTile = new Tile();
+        Tile eastTile = new Tile();
+        startingTile.addExit("east", eastTile);
+        eastTile.addExit("west", startingTile);
+        new WorldMap(startingTile, new Position(0, 0), new Builder("Bob", startingTile,
+            PackedBlockStack.unpack(PackedBlockStack.push(PackedBlockStack.push(
+                PackedBlockStack.EMPTY, "wood"), "wood"), false)))
+            .saveMap(mapFilename);
+
+        out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    @After
+    public void reset() {
+        System.setOut(out);
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void onlyWholeLinesArePerformed() throws Exception {
+        WorldMap map = new WorldMap(mapFilename);
+        ActionFileFollower follower = new ActionFileFollower(map, actionsFilename,
+            outputFilename, 0);
+        Assert.assertEquals(0, follower.poll());
+
+        append("DROP 0\r\nMOVE_BUILDER east\nDR");
+        Assert.assertEquals(2, follower.poll());
+        Assert.assertEquals("DROP 0\r\nMOVE_BUILDER east\n".length(), follower.getOffset());
+        Assert.assertEquals(4, map.getTiles().get(0).getBlocks().size());
+        Assert.assertEquals(3, map.getBuilder().getCurrentTile().getBlocks().size());
+
+        append("OP 0\n");
+        Assert.assertEquals(1, follower.poll());
+        Assert.assertEquals(4, map.getBuilder().getCurrentTile().getBlocks().size());
+        Assert.assertEquals(3, follower.getProcessedCount());
+        follower.close();
+    }
+
+    @Test
+    public void restartResumesAfterCheckpoint() throws Exception {
+        append("DROP 0\nMOVE_BUILDER east\nDROP 0\n");
+        ActionFileFollower follower = new ActionFileFollower(new WorldMap(mapFilename),
+            actionsFilename, outputFilename, 0);
+        follower.setCheckpointSchedule(60000, 2);
+        Assert.assertNull(ActionFileFollower.readCheckpoint(outputFilename));
+        Assert.assertEquals(3, follower.poll());
+        follower.close();
+
+        // The checkpoint was made after two actions, with the builder on east_tile
+        ActionFileFollower.Checkpoint checkpoint =
+            ActionFileFollower.readCheckpoint(outputFilename);
+        Assert.assertEquals("DROP 0\nMOVE_BUILDER east\n".length(), checkpoint.getOffset());
+        Assert.assertEquals(1, checkpoint.getBuilderTileId());
+        WorldMap resumedMap = new WorldMap(outputFilename);
+        resumedMap.placeBuilder(checkpoint.getBuilderTileId());
+        follower = new ActionFileFollower(resumedMap, actionsFilename, outputFilename,
+            checkpoint.getOffset());
+        Assert.assertEquals(1, follower.poll());
+        follower.checkpoint();
+        follower.close();
+
+        WorldMap expectedMap = new WorldMap(mapFilename);
+        Action.processActions(Files.newBufferedReader(new File(actionsFilename).toPath(),
+            StandardCharsets.UTF_8), expectedMap);
+        File expectedFile = new File(directory, "expected.txt");
+        expectedMap.saveMap(expectedFile.getPath());
+        Assert.assertArrayEquals(Files.readAllBytes(expectedFile.toPath()),
+            Files.readAllBytes(new File(outputFilename).toPath()));
+        Assert.assertEquals(new File(actionsFilename).length(),
+            ActionFileFollower.readCheckpoint(outputFilename).getOffset());
+    }
+
+    @Test
+    public void followPerformsAppendedActions() throws Exception {
+        final ActionFileFollower follower = new ActionFileFollower(new WorldMap(mapFilename),
+            actionsFilename, outputFilename, 0);
+        final Exception[] failure = new Exception[1];
+        Thread followThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    follower.follow();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        followThread.start();
+
+        append("DROP 0\n");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (follower.getProcessedCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        follower.stop();
+        followThread.join();
+        follower.close();
+
+        Assert.assertNull(failure[0]);
+        Assert.assertEquals(1, follower.getProcessedCount());
+        Assert.assertEquals(7, ActionFileFollower.readCheckpoint(outputFilename).getOffset());
+    }
+
+    private void append(String text) throws IOException {
+        FileOutputStream stream = new FileOutputStream(actionsFilename, true);
+        stream.write(text.getBytes(StandardCharsets.UTF_8));
+        stream.close();
+    }
+}
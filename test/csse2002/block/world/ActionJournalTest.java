@@ -0,0 +1,183 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActionJournalTest {
+
+    private static final String MAP_NAME = "map.txt";
+
+    private File journalFile = null;
+
+    @Before
+    public void setup() throws IOException {
+        journalFile = File.createTempFile("actions", ".journal");
+        journalFile.delete();
+    }
+
+    @After
+    public void reset() {
+        journalFile.delete();
+    }
+
+    @Test
+    public void reopenKeepsActionsUntilCheckpoint() throws IOException {
+        ActionJournal journal = new ActionJournal(journalFile.getPath(), MAP_NAME);
+        journal.append(new Action(Action.MOVE_BUILDER, "north"));
+        journal.append(new Action(Action.DIG, ""));
+        journal.append(new Action(Action.DROP, "1"));
+        journal.close();
+
+        journal = new ActionJournal(journalFile.getPath(), MAP_NAME);
+        List<Action> actions = journal.getPendingActions();
+        Assert.assertEquals(3, actions.size());
+        Assert.assertEquals(Action.MOVE_BUILDER, actions.get(0).getPrimaryAction());
+        Assert.assertEquals("north", actions.get(0).getSecondaryAction());
+        Assert.assertEquals(Action.DIG, actions.get(1).getPrimaryAction());
+        Assert.assertEquals("1", actions.get(2).getSecondaryAction());
+
+        journal.checkpoint();
+        journal.close();
+
+        journal = new ActionJournal(journalFile.getPath(), MAP_NAME);
+        Assert.assertEquals(0, journal.getPendingActions().size());
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws IOException {
+        ActionJournal journal = new ActionJournal(journalFile.getPath(), MAP_NAME);
+        journal.append(new Action(Action.MOVE_BLOCK, "east"));
+        journal.close();
+        long validLength = journalFile.length();
+
+        // Half of a second record, as if the process died while writing it
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[] {1, 0, 0, 5, 'w', 'e'});
+        out.close();
+
+        journal = new ActionJournal(journalFile.getPath(), MAP_NAME);
+        Assert.assertEquals(1, journal.getPendingActions().size());
+        Assert.assertEquals(validLength, journalFile.length());
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void journalOfOtherMapIsRejected() throws IOException {
+        new ActionJournal(journalFile.getPath(), MAP_NAME).close();
+        new ActionJournal(journalFile.getPath(), "other.txt");
+    }
+
+    @Test
+    public void processedActionsAreCommittedOnReturn() throws Exception {
+        File mapFile = createMapFile();
+        PrintStream out = System.out;
+        ActionJournal journal = new ActionJournal(journalFile.getPath(), MAP_NAME);
+        try {
+            // Long enough that nothing is forced before processActions() commits
+            journal.setGroupCommit(1000, 60000);
+            System.setOut(new PrintStream(new ByteArrayOutputStream()));
+            Action.processActions(new BufferedReader(new StringReader(
+                "MOVE_BUILDER east\nMOVE_BUILDER west\nDIG\n")),
+                new WorldMap(mapFile.getPath()), journal);
+
+            ActionJournal reopened = new ActionJournal(journalFile.getPath(), MAP_NAME);
+            Assert.assertEquals(3, reopened.getPendingActions().size());
+            reopened.close();
+        } finally {
+            System.setOut(out);
+            journal.close();
+            mapFile.delete();
+        }
+    }
+
+    @Test
+    public void resumedRunSkipsJournaledLines() throws Exception {
+        File mapFile = createMapFile();
+        File actionsFile = File.createTempFile("actions", ".txt");
+        File expectedFile = File.createTempFile("expected", ".txt");
+        File outputFile = File.createTempFile("output", ".txt");
+        File outputJournalFile = new File(outputFile.getPath() + ".journal");
+        PrintStream out = System.out;
+        try {
+            FileWriter writer = new FileWriter(actionsFile);
+            writer.write("DIG\nMOVE_BUILDER east\nDIG\n");
+            writer.close();
+            System.setOut(new PrintStream(new ByteArrayOutputStream()));
+            String[] args = {mapFile.getPath(), actionsFile.getPath(), expectedFile.getPath()};
+            Assert.assertEquals(0, Main.run(args, System.err));
+
+            // A run killed after performing the first two actions
+            ActionJournal journal = new ActionJournal(outputJournalFile.getPath(),
+                mapFile.getPath());
+            journal.append(new Action(Action.DIG, ""));
+            journal.append(new Action(Action.MOVE_BUILDER, "east"));
+            journal.close();
+
+            args[2] = outputFile.getPath();
+            Assert.assertEquals(0, Main.run(args, System.err));
+            Assert.assertArrayEquals(Files.readAllBytes(expectedFile.toPath()),
+                Files.readAllBytes(outputFile.toPath()));
+            Assert.assertFalse(outputJournalFile.exists());
+        } finally {
+            System.setOut(out);
+            mapFile.delete();
+            actionsFile.delete();
+            expectedFile.delete();
+            outputFile.delete();
+            outputJournalFile.delete();
+        }
+    }
+
+    @Test
+    public void failedRunRemovesJournal() throws Exception {
+        File mapFile = createMapFile();
+        File actionsFile = File.createTempFile("actions", ".txt");
+        File outputFile = File.createTempFile("output", ".txt");
+        File outputJournalFile = new File(outputFile.getPath() + ".journal");
+        PrintStream out = System.out;
+        try {
+            FileWriter writer = new FileWriter(actionsFile);
+            writer.write("DIG\nJUMP\n");
+            writer.close();
+            System.setOut(new PrintStream(new ByteArrayOutputStream()));
+            Assert.assertEquals(4, Main.run(new String[] {mapFile.getPath(),
+                actionsFile.getPath(), outputFile.getPath()},
+                new PrintStream(new ByteArrayOutputStream())));
+            Assert.assertFalse(outputJournalFile.exists());
+        } finally {
+            System.setOut(out);
+            mapFile.delete();
+            actionsFile.delete();
+            outputFile.delete();
+            outputJournalFile.delete();
+        }
+    }
+
+    /*
+     * A map of two tiles, starting_tile -- east_tile, with the builder on starting_tile.
+     */
+    private static File createMapFile() throws Exception {
+        Tile startingTile = new Tile();
+        Tile eastTile = new Tile();
+        startingTile.addExit("east", eastTile);
+        eastTile.addExit("west", startingTile);
+        File mapFile = File.createTempFile("map", ".txt");
+        new WorldMap(startingTile, new Position(0, 0), new Builder("Bob", startingTile))
+            .saveMap(mapFile.getPath());
+        return mapFile;
+    }
+}
@@ -0,0 +1,110 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActionReplayTest {
+
+    private static final String[] ACTIONS = {"DIG", "MOVE_BUILDER east", "DIG", "MOVE_BLOCK west",
+        "MOVE_BUILDER west", "DROP 0", "MOVE_BUILDER east"};
+
+    private static final int SNAPSHOT_INTERVAL = 3;
+
+    private File directory = null;
+    private PrintStream savedOut = null;
+    private ByteArrayOutputStream output = null;
+
+    @Before
+    public void setup() throws Exception {
+        savedOut = System.out;
+        output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output));
+
+        directory = File.createTempFile("replay", "");
+        directory.delete();
+        directory.mkdirs();
+
+        /*
+            starting_tile -- east_tile
+         */
+        Tile startingTile = new Tile();
+        Tile eastTile = new Tile();
+        startingTile.addExit("east", eastTile);
+        eastTile.addExit("west", startingTile);
+        new WorldMap(startingTile, new Position(0, 0), new Builder("Bob", startingTile))
+            .saveMap(new File(directory, "map.txt").getPath());
+
+        FileWriter fw = new FileWriter(new File(directory, "actions.txt"));
+        for (String action : ACTIONS) {
+            fw.write(action + "\r\n");
+        }
+        fw.close();
+    }
+
+    @After
+    public void reset() {
+        System.setOut(savedOut);
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void seekMatchesReplayFromStart() throws Exception {
+        String mapFilename = new File(directory, "map.txt").getPath();
+        String actionsFilename = new File(directory, "actions.txt").getPath();
+        String indexDirectoryName = new File(directory, "index").getPath();
+
+        Assert.assertEquals(ACTIONS.length, ActionReplay.index(mapFilename, actionsFilename,
+            indexDirectoryName, SNAPSHOT_INTERVAL));
+        String indexOutput = output.toString();
+        Assert.assertTrue(new File(indexDirectoryName, "snapshot_3.txt.gz").isFile());
+
+        for (int actionNumber = 0; actionNumber <= ACTIONS.length; actionNumber++) {
+            // Replay from the start
+            WorldMap expected = new WorldMap(mapFilename);
+            BufferedReader reader = new BufferedReader(new FileReader(actionsFilename));
+            output.reset();
+            for (int i = 0; i < actionNumber; i++) {
+                Action.processAction(Action.loadAction(reader), expected);
+            }
+            reader.close();
+            if (actionNumber == ACTIONS.length) {
+                Assert.assertEquals(output.toString(), indexOutput);
+            }
+
+            // Only the actions after the nearest snapshot are replayed
+            output.reset();
+            WorldMap actual = ActionReplay.seek(indexDirectoryName, actionsFilename,
+                actionNumber);
+            Assert.assertEquals(actionNumber % SNAPSHOT_INTERVAL,
+                output.toString().split(System.lineSeparator(), -1).length - 1);
+            Assert.assertEquals(expected.getBuilder().getInventory().size(),
+                actual.getBuilder().getInventory().size());
+            Assert.assertEquals(expected.getTiles().indexOf(expected.getBuilder().getCurrentTile()),
+                actual.getTiles().indexOf(actual.getBuilder().getCurrentTile()));
+            for (int i = 0; i < expected.getTiles().size(); i++) {
+                Assert.assertEquals(expected.getTiles().get(i).getBlocks().size(),
+                    actual.getTiles().get(i).getBlocks().size());
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,111 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActionSchedulerTest {
+
+    private WorldMap map = null;
+    private PrintStream out = null;
+
+    @Before
+    public void setup() throws Exception {
+        Tile startingTile = new Tile();
+        map = new WorldMap(startingTile, new Position(0, 0), new Builder("Bob", startingTile));
+        // The actions fail and print messages, which are not checked here
+        out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    @After
+    public void reset() {
+        System.setOut(out);
+    }
+
+    @Test
+    public void heavySessionDoesNotStarveOthers() throws Exception {
+        ActionScheduler scheduler = new ActionScheduler(map, 1000, 4);
+        ActionScheduler.Session heavy = scheduler.openSession(1, 100);
+        ActionScheduler.Session light = scheduler.openSession(1, 100);
+        for (int i = 0; i < 100; i++) {
+            heavy.submit(new Action(Action.MOVE_BUILDER, "north"));
+        }
+        for (int i = 0; i < 3; i++) {
+            light.submit(new Action(Action.DIG, ""));
+        }
+
+        Assert.assertEquals(4, scheduler.runTick());
+        Assert.assertEquals(2, heavy.getProcessedCount());
+        Assert.assertEquals(2, light.getProcessedCount());
+        Assert.assertEquals(4, scheduler.runTick());
+        Assert.assertEquals(3, light.getProcessedCount());
+        Assert.assertEquals(5, heavy.getProcessedCount());
+        Assert.assertEquals(95, heavy.getQueuedCount());
+    }
+
+    @Test
+    public void weightsSetTheShares() throws Exception {
+        ActionScheduler scheduler = new ActionScheduler(map, 1000, 8);
+        ActionScheduler.Session heavy = scheduler.openSession(3, 100);
+        ActionScheduler.Session light = scheduler.openSession(1, 100);
+        for (int i = 0; i < 20; i++) {
+            heavy.submit(new Action(Action.DIG, ""));
+            light.submit(new Action(Action.DIG, ""));
+        }
+
+        scheduler.runTick();
+        Assert.assertEquals(6, heavy.getProcessedCount());
+        Assert.assertEquals(2, light.getProcessedCount());
+        scheduler.runTick();
+        Assert.assertEquals(12, heavy.getProcessedCount());
+        Assert.assertEquals(4, light.getProcessedCount());
+    }
+
+    @Test
+    public void fullQueueHoldsBackSubmitter() throws Exception {
+        final ActionScheduler scheduler = new ActionScheduler(map, 1, 2);
+        final ActionScheduler.Session session = scheduler.openSession(1, 2);
+        Assert.assertTrue(session.offer(new Action(Action.DIG, "")));
+        Assert.assertTrue(session.offer(new Action(Action.DIG, "")));
+        Assert.assertFalse(session.offer(new Action(Action.DIG, "")));
+
+        Thread ticker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.run();
+                } catch (InterruptedException e) {
+                    // Stop
+                }
+            }
+        };
+        ticker.start();
+        StringBuilder actions = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            actions.append("DIG").append(System.lineSeparator());
+        }
+        Assert.assertEquals(50,
+            session.submitAll(new BufferedReader(new StringReader(actions.toString()))));
+        session.close();
+        while (session.getProcessedCount() < 52) {
+            Thread.sleep(1);
+        }
+        scheduler.shutdown();
+        ticker.join();
+        Assert.assertTrue(scheduler.getTickCount() >= 26);
+
+        try {
+            session.offer(new Action(Action.DIG, ""));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Closed
+        }
+    }
+}
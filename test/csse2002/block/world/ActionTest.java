@@ -25,6 +25,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringReader;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -433,6 +434,82 @@ public class ActionTest {
         //End : <test TooHighException output>
     }
 
+    @Test
+    public void processActionTracksChangedTiles() throws Exception {
+        // Construct Tile map
+        /*
+            starting_tile -- east_tile
+         */
+        startingTile = new Tile(getBlockList(Arrays.asList("soil", "soil", "wood", "wood", "wood")));
+        Tile eastTile = new Tile();
+        startingTile.addExit("east", eastTile);
+        eastTile.addExit("west", startingTile);
+        sampleBuilder = new Builder("Bob", startingTile);
+        sampleWorldMap = new WorldMap(startingTile, new Position(0, 0), sampleBuilder);
+
+        simulateFileInput = new BufferedReader(new StringReader("DIG\nMOVE_BLOCK east\nDIG\n"));
+        for (int i = 0; i < 3; i++) {
+            Action.processAction(Action.loadAction(simulateFileInput), sampleWorldMap);
+        }
+        Assert.assertEquals(2, sampleWorldMap.getChangedTileCount());
+
+        File deltaFile = File.createTempFile("delta", ".txt");
+        try {
+            sampleWorldMap.saveDelta(deltaFile.getPath());
+            Assert.assertEquals(0, sampleWorldMap.getChangedTileCount());
+        } finally {
+            deltaFile.delete();
+        }
+    }
+
+    @Test
+    public void deltasReplayAndCompactToFullSave() throws Exception {
+        // Construct Tile map
+        /*
+            starting_tile -- east_tile
+         */
+        startingTile = new Tile(getBlockList(Arrays.asList("soil", "soil", "wood", "wood", "wood")));
+        Tile eastTile = new Tile();
+        startingTile.addExit("east", eastTile);
+        eastTile.addExit("west", startingTile);
+        sampleBuilder = new Builder("Bob", startingTile);
+        sampleWorldMap = new WorldMap(startingTile, new Position(0, 0), sampleBuilder);
+
+        File baseFile = File.createTempFile("base", ".txt");
+        File firstDeltaFile = File.createTempFile("delta", ".txt");
+        File secondDeltaFile = File.createTempFile("delta", ".txt");
+        File fullFile = File.createTempFile("full", ".txt");
+        File replayedFile = File.createTempFile("replayed", ".txt");
+        File compactedFile = File.createTempFile("compacted", ".txt");
+        try {
+            sampleWorldMap.saveMap(baseFile.getPath());
+
+            Action.processActions(new BufferedReader(
+                new StringReader("DIG\nMOVE_BLOCK east\n")), sampleWorldMap);
+            sampleWorldMap.saveDelta(firstDeltaFile.getPath());
+            Action.processActions(new BufferedReader(
+                new StringReader("DROP 0\nMOVE_BLOCK east\n")), sampleWorldMap);
+            sampleWorldMap.saveDelta(secondDeltaFile.getPath());
+            sampleWorldMap.saveMap(fullFile.getPath());
+
+            List<String> deltaFilenames = Arrays.asList(firstDeltaFile.getPath(),
+                secondDeltaFile.getPath());
+            new WorldMap(baseFile.getPath(), deltaFilenames, 0).saveMap(replayedFile.getPath());
+            WorldMap.compact(baseFile.getPath(), deltaFilenames, compactedFile.getPath());
+
+            byte[] expected = Files.readAllBytes(fullFile.toPath());
+            Assert.assertArrayEquals(expected, Files.readAllBytes(replayedFile.toPath()));
+            Assert.assertArrayEquals(expected, Files.readAllBytes(compactedFile.toPath()));
+        } finally {
+            baseFile.delete();
+            firstDeltaFile.delete();
+            secondDeltaFile.delete();
+            fullFile.delete();
+            replayedFile.delete();
+            compactedFile.delete();
+        }
+    }
+
     /*
                 Test MOVE_BLOCK fail case
           */
@@ -0,0 +1,142 @@
+package csse2002.block.world;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchRunnerTest {
+
+    private File directory = null;
+    private String mapFilename = null;
+    private String actionsFilename = null;
+    private PrintStream out = null;
+
+    @Before
+    public void setup() throws Exception {
+        directory = File.createTempFile("batch", "");
+        directory.delete();
+        directory.mkdirs();
+        mapFilename = new File(directory, "map.txt").getPath();
+        actionsFilename = new File(directory, "actions.txt").getPath();
+
+        /*
+            starting_tile -- east_tile
+         */
+        Tile startingTile = new Tile();
+        Tile eastTile = new Tile();
+        startingTile.addExit("east", eastTile);
+        eastTile.addExit("west", startingTile);
+        new WorldMap(startingTile, new Position(0, 0), new Builder("Bob", startingTile))
+            .saveMap(mapFilename);
+        write(actionsFilename, "DIG\nMOVE_BUILDER east\nDROP 0\n");
+
+        out = System.out;
+    }
+
+    @After
+    public void reset() {
+        System.setOut(out);
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void reportHasOneLinePerJobInOrder() throws Exception {
+        String badActionsFilename = path("bad_actions.txt");
+        write(badActionsFilename, "DIG\nJUMP\n");
+        List<String> manifestLines = Arrays.asList(
+            "# map actions output",
+            job(mapFilename, actionsFilename, path("output1.txt")),
+            "",
+            job(path("missing_map.txt"), actionsFilename, path("output2.txt")),
+            job(mapFilename, path("missing_actions.txt"), path("output3.txt")),
+            job(mapFilename, badActionsFilename, path("output4.txt")),
+            job(mapFilename, actionsFilename),
+            job(mapFilename, actionsFilename, path("output7.txt")));
+        String reportFilename = path("report.txt");
+
+        PrintStream runOut = System.out;
+        Assert.assertEquals(4, BatchRunner.run(manifestLines, reportFilename, 2));
+        Assert.assertSame(runOut, System.out);
+
+        List<String> report = Files.readAllLines(new File(reportFilename).toPath(),
+            StandardCharsets.UTF_8);
+        Assert.assertEquals(6, report.size());
+        int[] expectedStatuses = {0, 2, 3, 4, 1, 0};
+        int[] expectedLineNumbers = {2, 4, 5, 6, 7, 8};
+        for (int i = 0; i < report.size(); i++) {
+            String[] fields = report.get(i).split("\t", -1);
+            Assert.assertEquals(4, fields.length);
+            Assert.assertEquals(expectedStatuses[i], Integer.parseInt(fields[0]));
+            Assert.assertEquals(expectedLineNumbers[i], Integer.parseInt(fields[1]));
+            Assert.assertEquals(manifestLines.get(expectedLineNumbers[i] - 1), fields[2]);
+            Assert.assertEquals(expectedStatuses[i] == 0, fields[3].isEmpty());
+        }
+        Assert.assertTrue(report.get(3).contains("ActionFormatException"));
+
+        // Failed jobs leave no journal for a later run of Main to replay
+        for (String name : directory.list()) {
+            Assert.assertFalse(name, name.endsWith(".journal"));
+        }
+    }
+
+    @Test
+    public void jobsMatchSeparateRuns() throws Exception {
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        Assert.assertEquals(0, Main.run(new String[] {mapFilename, actionsFilename,
+            path("expected.txt")}, new PrintStream(err)));
+        Assert.assertEquals(0, err.size());
+        byte[] expected = Files.readAllBytes(new File(path("expected.txt")).toPath());
+
+        String[] manifestLines = new String[16];
+        for (int i = 0; i < manifestLines.length; i++) {
+            manifestLines[i] = job(mapFilename, actionsFilename, path("output" + i + ".txt"));
+        }
+        Assert.assertEquals(0, BatchRunner.run(Arrays.asList(manifestLines),
+            path("report.txt"), 4));
+
+        for (int i = 0; i < manifestLines.length; i++) {
+            Assert.assertArrayEquals(expected,
+                Files.readAllBytes(new File(path("output" + i + ".txt")).toPath()));
+            Assert.assertFalse(new File(path("output" + i + ".txt.journal")).exists());
+        }
+    }
+
+    private String path(String filename) {
+        return new File(directory, filename).getPath();
+    }
+
+    private static String job(String... args) {
+        StringBuilder line = new StringBuilder();
+        for (String arg : args) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(arg);
+        }
+        return line.toString();
+    }
+
+    private static void write(String filename, String text) throws IOException {
+        FileWriter writer = new FileWriter(filename);
+        writer.write(text);
+        writer.close();
+    }
+}
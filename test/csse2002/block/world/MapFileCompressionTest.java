@@ -0,0 +1,72 @@
+package csse2002.block.world;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MapFileCompressionTest {
+
+    @Test
+    public void compressedMapsRoundTrip() throws IOException {
+        // Larger than one chunk, so that several chunks are compressed in the background
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append(i).append(" stone,stone,grass").append(System.lineSeparator());
+        }
+        byte[] expected = text.toString().getBytes("UTF-8");
+
+        String[] suffixes = {".txt", MapFileCompression.GZIP_SUFFIX,
+            MapFileCompression.DEFLATE_SUFFIX};
+        for (String suffix : suffixes) {
+            File file = File.createTempFile("map", suffix);
+            try {
+                OutputStream out = MapFileCompression.openOutput(file.getPath());
+                out.write(expected);
+                out.close();
+
+                // Only the compressed files should be smaller, and all should read back the same
+                Assert.assertEquals(suffix.equals(".txt"), file.length() == expected.length);
+                Assert.assertArrayEquals(expected, readAll(MapFileCompression.openInput(
+                    file.getPath())));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void plainMapStartingWithDigitsIsNotInflated() throws IOException {
+        File file = File.createTempFile("map", ".txt");
+        try {
+            // "80" is a valid zlib header apart from its compression info
+            OutputStream out = MapFileCompression.openOutput(file.getPath());
+            out.write("80\n1\n".getBytes("UTF-8"));
+            out.close();
+
+            Assert.assertArrayEquals(readAll(new FileInputStream(file)),
+                readAll(MapFileCompression.openInput(file.getPath())));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        try {
+            while ((length = in.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}
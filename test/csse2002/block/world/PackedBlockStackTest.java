@@ -0,0 +1,80 @@
+package csse2002.block.world;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class PackedBlockStackTest {
+
+    private List<Block> getBlockList(List<String> inputBlockTypeStringList){
+        List<Block> testBlockList = new ArrayList<Block>();
+        for (String blockType: inputBlockTypeStringList) {
+            if ( blockType.equals("soil")) {
+                testBlockList.add(new SoilBlock());
+            } else if (blockType.equals("grass")){
+                testBlockList.add(new GrassBlock());
+            } else if (blockType.equals("stone")){
+                testBlockList.add(new StoneBlock());
+            } else if (blockType.equals("wood")){
+                testBlockList.add(new WoodBlock());
+            }
+        }
+        return testBlockList;
+    }
+
+    @Test
+    public void packAndUnpack() {
+        List<String> blockTypes = Arrays.asList("soil","grass","stone","wood","wood","stone","grass","soil");
+        int stack = PackedBlockStack.pack(getBlockList(blockTypes));
+
+        Assert.assertEquals(8, PackedBlockStack.getHeight(stack));
+        for (int i = 0; i < blockTypes.size(); i++) {
+            Assert.assertEquals(blockTypes.get(i), PackedBlockStack.getBlockType(stack, i));
+        }
+        Assert.assertEquals("soil", PackedBlockStack.getTopBlockType(stack));
+
+        List<Block> unpacked = PackedBlockStack.unpack(stack, false);
+        Assert.assertEquals(blockTypes.size(), unpacked.size());
+        for (int i = 0; i < blockTypes.size(); i++) {
+            Assert.assertEquals(blockTypes.get(i), unpacked.get(i).getBlockType());
+        }
+
+        StringBuilder stBuilder = new StringBuilder();
+        PackedBlockStack.appendBlockTypes(stBuilder, stack);
+        Assert.assertEquals("soil,grass,stone,wood,wood,stone,grass,soil", stBuilder.toString());
+    }
+
+    @Test
+    public void emptyStack() {
+        Assert.assertEquals(0, PackedBlockStack.getHeight(PackedBlockStack.EMPTY));
+        Assert.assertNull(PackedBlockStack.getTopBlockType(PackedBlockStack.EMPTY));
+        Assert.assertTrue(PackedBlockStack.unpack(PackedBlockStack.EMPTY, true).isEmpty());
+    }
+
+    @Test
+    public void pushFailsWhenFullOrUnknown() {
+        int stack = PackedBlockStack.EMPTY;
+        for (int i = 0; i < PackedBlockStack.MAX_BLOCKS; i++) {
+            stack = PackedBlockStack.push(stack, "wood");
+        }
+        Assert.assertEquals(PackedBlockStack.INVALID, PackedBlockStack.push(stack, "wood"));
+        Assert.assertEquals(PackedBlockStack.INVALID,
+            PackedBlockStack.push(PackedBlockStack.EMPTY, "sand"));
+    }
+
+    @Test
+    public void sharedBlocksAreReused() {
+        int stack = PackedBlockStack.push(PackedBlockStack.push(PackedBlockStack.EMPTY, "grass"), "grass");
+        List<Block> shared = PackedBlockStack.unpack(stack, true);
+        Assert.assertSame(shared.get(0), shared.get(1));
+
+        List<Block> fresh = PackedBlockStack.unpack(stack, false);
+        Assert.assertNotSame(fresh.get(0), fresh.get(1));
+    }
+}
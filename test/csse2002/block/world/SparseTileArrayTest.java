@@ -9,9 +9,13 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringReader;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -89,6 +93,37 @@ tile(-2,0)  -- tile(-1,0)  --  starting_tile(0,0) -- tile(1,0)
         }
     }
 
+    @Test
+    public void rangeQueriesFindTilesByPosition() throws Exception {
+        /*
+            A row of 40 tiles from (-20, 5) to (19, 5), each linked to the next
+         */
+        Tile[] row = new Tile[40];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = new Tile();
+            if (i > 0) {
+                row[i - 1].addExit("east", row[i]);
+                row[i].addExit("west", row[i - 1]);
+            }
+        }
+        sparseTileArray = new SparseTileArray();
+        sparseTileArray.addLinkedTiles(row[0], -20, 5);
+
+        List<Tile> inRange = sparseTileArray.getTilesInRange(new Position(3, 9),
+            new Position(-2, 5));
+        Assert.assertEquals(6, inRange.size());
+        for (int i = 18; i <= 23; i++) {
+            Assert.assertTrue(inRange.contains(row[i]));
+        }
+        Assert.assertEquals(0,
+            sparseTileArray.getTilesInRange(new Position(-5, 4), new Position(5, 0)).size());
+
+        List<Tile> nearby = sparseTileArray.getTilesWithinRadius(new Position(0, 8), 5);
+        Assert.assertEquals(9, nearby.size());
+        Assert.assertTrue(nearby.contains(row[16]));
+        Assert.assertFalse(nearby.contains(row[15]));
+    }
+
     @Test
     public void addLinkedTilesFailByWorldMapInconsistentExceptionCase1() {
         // Construct Tile map
@@ -175,4 +210,378 @@ tile(-2,0)  -- tile(-1,0)  --  starting_tile(0,0) -- tile(1,0)
         } catch (WorldMapInconsistentException e) {
         }
     }
+
+    @Test
+    public void tileReachedFromTwoParentsIsListedWithTheFirst() throws Exception {
+        /*
+              westTile -- northTile -- sharedTile
+                              |            |
+                         startingTile -- eastTile
+         */
+        startingTile = new Tile();
+        Tile northTile = new Tile();
+        Tile eastTile = new Tile();
+        Tile westTile = new Tile();
+        Tile sharedTile = new Tile();
+        startingTile.addExit("north", northTile);
+        startingTile.addExit("east", eastTile);
+        northTile.addExit("west", westTile);
+        northTile.addExit("east", sharedTile);
+        eastTile.addExit("north", sharedTile);
+
+        sparseTileArray = new SparseTileArray();
+        sparseTileArray.addLinkedTiles(startingTile, 0, 0);
+
+        // sharedTile is an exit of northTile, before northTile's west exit
+        Assert.assertEquals(
+            Arrays.asList(startingTile, northTile, eastTile, sharedTile, westTile),
+            sparseTileArray.getTiles());
+    }
+
+    @Test
+    public void tileAtTwoPositionsThrows() throws Exception {
+        /*
+          twiceTile -- startingTile -- eastTile -- (twiceTile again)
+         */
+        startingTile = new Tile();
+        Tile twiceTile = new Tile();
+        Tile eastTile = new Tile();
+        startingTile.addExit("west", twiceTile);
+        startingTile.addExit("east", eastTile);
+        eastTile.addExit("east", twiceTile);
+
+        sparseTileArray = new SparseTileArray();
+        try {
+            sparseTileArray.addLinkedTiles(startingTile, 0, 0);
+            fail();
+        } catch (WorldMapInconsistentException e) {
+        }
+        Assert.assertNull(sparseTileArray.getTile(new Position(0, 0)));
+        Assert.assertEquals(0, sparseTileArray.getTiles().size());
+    }
+
+    @Test
+    public void parallelLevelsMatchSequentialOrder() throws Exception {
+        Tile[][] ball = createBall();
+        int radius = ball.length / 2;
+
+        ForkJoinPool sequentialPool = new ForkJoinPool(1);
+        ForkJoinPool parallelPool = new ForkJoinPool(4);
+        SparseTileArray sequentialArray = new SparseTileArray();
+        try {
+            sequentialArray.setLevelPool(sequentialPool);
+            sequentialArray.addLinkedTiles(ball[radius][radius], 0, 0);
+            sparseTileArray = new SparseTileArray();
+            sparseTileArray.setLevelPool(parallelPool);
+            sparseTileArray.addLinkedTiles(ball[radius][radius], 0, 0);
+        } finally {
+            sequentialPool.shutdown();
+            parallelPool.shutdown();
+        }
+
+        List<Tile> expectedTiles = sequentialArray.getTiles();
+        List<Tile> tiles = sparseTileArray.getTiles();
+        Assert.assertEquals(2 * radius * (radius + 1) + 1, tiles.size());
+        Assert.assertEquals(expectedTiles.size(), tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            Assert.assertSame(expectedTiles.get(i), tiles.get(i));
+        }
+        Assert.assertSame(ball[radius][2 * radius],
+            sparseTileArray.getTile(new Position(radius, 0)));
+    }
+
+    @Test(expected = WorldMapInconsistentException.class)
+    public void parallelLevelFindsInconsistency() throws Exception {
+        Tile[][] ball = createBall();
+        int radius = ball.length / 2;
+
+        // The easternmost tile, in the last level, leads north to the starting tile
+        ball[radius][2 * radius].addExit("north", ball[radius][radius]);
+
+        ForkJoinPool parallelPool = new ForkJoinPool(4);
+        try {
+            sparseTileArray = new SparseTileArray();
+            sparseTileArray.setLevelPool(parallelPool);
+            sparseTileArray.addLinkedTiles(ball[radius][radius], 0, 0);
+        } finally {
+            parallelPool.shutdown();
+        }
+    }
+
+    @Test
+    public void retainedHeapWithinBudget() throws Exception {
+        // Agreed budget for indexing one tile (Tile objects excluded)
+        final int BYTES_PER_TILE_BUDGET = 64;
+        final int GRID_WIDTH = 200;
+
+        // Construct a fully linked GRID_WIDTH x GRID_WIDTH grid of tiles
+        Tile[][] grid = new Tile[GRID_WIDTH][GRID_WIDTH];
+        for (int y = 0; y < GRID_WIDTH; y++) {
+            for (int x = 0; x < GRID_WIDTH; x++) {
+                grid[y][x] = new Tile();
+            }
+        }
+        try {
+            for (int y = 0; y < GRID_WIDTH; y++) {
+                for (int x = 0; x < GRID_WIDTH; x++) {
+                    if (y > 0) {
+                        grid[y][x].addExit("north", grid[y - 1][x]);
+                    }
+                    if (x < GRID_WIDTH - 1) {
+                        grid[y][x].addExit("east", grid[y][x + 1]);
+                    }
+                    if (y < GRID_WIDTH - 1) {
+                        grid[y][x].addExit("south", grid[y + 1][x]);
+                    }
+                    if (x > 0) {
+                        grid[y][x].addExit("west", grid[y][x - 1]);
+                    }
+                }
+            }
+        } catch (NoExitException e) {
+            fail();
+        }
+
+        try {
+            sparseTileArray = new SparseTileArray();
+            sparseTileArray.addLinkedTiles(grid[0][0], 0, 0);
+        } catch (WorldMapInconsistentException e) {
+            fail();
+        }
+
+        int tileCount = GRID_WIDTH * GRID_WIDTH;
+        Assert.assertEquals(tileCount, sparseTileArray.getTiles().size());
+        Assert.assertEquals(grid[GRID_WIDTH - 1][GRID_WIDTH - 1],
+            sparseTileArray.getTile(new Position(GRID_WIDTH - 1, GRID_WIDTH - 1)));
+
+        // Only arrays of primitives and tile references are kept, none with an object per tile
+        long bytesPerTile = getRetainedArrayBytes(sparseTileArray) / tileCount;
+        Assert.assertTrue("Array retains " + bytesPerTile + " bytes per tile",
+            bytesPerTile <= BYTES_PER_TILE_BUDGET);
+    }
+
+    @Test
+    public void regionStoreEvictsAndReloads() throws Exception {
+        final int GRID_WIDTH = 20;
+        final int REGION_SIZE = 4;
+
+        // Construct a fully linked grid with a stone on each tile in the first column
+        Tile[][] grid = new Tile[GRID_WIDTH][GRID_WIDTH];
+        for (int y = 0; y < GRID_WIDTH; y++) {
+            for (int x = 0; x < GRID_WIDTH; x++) {
+                grid[y][x] = new Tile();
+            }
+            grid[y][0].placeBlock(new StoneBlock());
+        }
+        for (int y = 0; y < GRID_WIDTH; y++) {
+            for (int x = 0; x < GRID_WIDTH; x++) {
+                if (x < GRID_WIDTH - 1) {
+                    grid[y][x].addExit("east", grid[y][x + 1]);
+                    grid[y][x + 1].addExit("west", grid[y][x]);
+                }
+                if (y < GRID_WIDTH - 1) {
+                    grid[y][x].addExit("south", grid[y + 1][x]);
+                    grid[y + 1][x].addExit("north", grid[y][x]);
+                }
+            }
+        }
+        SparseTileArray source = new SparseTileArray();
+        source.addLinkedTiles(grid[0][0], 0, 0);
+
+        File directory = File.createTempFile("regions", "");
+        directory.delete();
+        try {
+            RegionTileStore.writeRegions(directory.getPath(), REGION_SIZE, source);
+
+            RegionTileStore store = new RegionTileStore(directory.getPath());
+            // The walk below makes 2 * REGION_SIZE views in each region it passes through. Keep
+            // three such regions of the five, and the records of the views of the other two
+            long walkedRegionBytes = REGION_SIZE * REGION_SIZE * RegionTileStore.BYTES_PER_SLOT
+                + 2 * REGION_SIZE * RegionTileStore.BYTES_PER_VIEW;
+            store.setMemoryBudget(3 * walkedRegionBytes
+                + 2 * 2 * REGION_SIZE * RegionTileStore.BYTES_PER_DETACHED_VIEW
+                + RegionTileStore.BYTES_PER_VIEW);
+            sparseTileArray = new SparseTileArray();
+            sparseTileArray.addStoredTiles(store);
+            Assert.assertEquals(GRID_WIDTH * GRID_WIDTH, sparseTileArray.getTiles().size());
+
+            // Walk down the first column, which crosses every region row
+            Tile tile = sparseTileArray.getTile(new Position(0, 0));
+            Tile firstTile = tile;
+            Tile secondRegionTile = null;
+            for (int y = 0; y < GRID_WIDTH; y++) {
+                Assert.assertEquals(4, tile.getBlocks().size());
+                Assert.assertEquals("stone", tile.getTopBlock().getBlockType());
+                Assert.assertEquals(tile, sparseTileArray.getTile(new Position(0, y)));
+                if (y == REGION_SIZE) {
+                    secondRegionTile = tile;
+                }
+                if (y < GRID_WIDTH - 1) {
+                    tile = tile.getExits().get("south");
+                    store.linkView(tile);
+                }
+            }
+            Assert.assertNull(tile.getExits().get("south"));
+            Assert.assertTrue(store.getResidentRegionCount() < GRID_WIDTH / REGION_SIZE * 2);
+
+            // Held views of evicted regions lose their exits, and come back linked
+            Assert.assertTrue(firstTile.getExits().isEmpty());
+            Assert.assertTrue(secondRegionTile.getExits().isEmpty());
+            firstTile.removeTopBlock();
+            Assert.assertSame(firstTile, sparseTileArray.getTile(new Position(0, 0)));
+            Assert.assertNotNull(firstTile.getExits().get("south"));
+
+            // Changes survive eviction once flushed, even to views of evicted regions
+            tile.removeTopBlock();
+            secondRegionTile.removeTopBlock();
+            store.flush();
+            store.close();
+            store = new RegionTileStore(directory.getPath());
+            sparseTileArray = new SparseTileArray();
+            sparseTileArray.addStoredTiles(store);
+            for (int y : new int[] {0, REGION_SIZE, GRID_WIDTH - 1}) {
+                Assert.assertEquals(3, sparseTileArray.getTile(new Position(0, y))
+                    .getBlocks().size());
+            }
+
+            // Regions without tiles are never loaded
+            store.setMemoryBudget(RegionTileStore.DEFAULT_MEMORY_BUDGET);
+            int residentCount = store.getResidentRegionCount();
+            for (int i = 1; i <= 10; i++) {
+                Assert.assertEquals(-1, store.lookupOrdinal(-i * REGION_SIZE, 0));
+            }
+            Assert.assertEquals(residentCount, store.getResidentRegionCount());
+            store.close();
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void regionStoreBudgetCountsViews() throws Exception {
+        final int GRID_WIDTH = 32;
+        final int REGION_SIZE = 4;
+        final int BUDGET_REGIONS = 8;
+
+        Tile[][] grid = new Tile[GRID_WIDTH][GRID_WIDTH];
+        for (int y = 0; y < GRID_WIDTH; y++) {
+            for (int x = 0; x < GRID_WIDTH; x++) {
+                grid[y][x] = new Tile();
+                if (x > 0) {
+                    grid[y][x - 1].addExit("east", grid[y][x]);
+                    grid[y][x].addExit("west", grid[y][x - 1]);
+                }
+                if (y > 0) {
+                    grid[y - 1][x].addExit("south", grid[y][x]);
+                    grid[y][x].addExit("north", grid[y - 1][x]);
+                }
+            }
+        }
+        SparseTileArray source = new SparseTileArray();
+        source.addLinkedTiles(grid[0][0], 0, 0);
+
+        File directory = File.createTempFile("regions", "");
+        directory.delete();
+        try {
+            RegionTileStore.writeRegions(directory.getPath(), REGION_SIZE, source);
+            RegionTileStore store = new RegionTileStore(directory.getPath());
+            // Room for BUDGET_REGIONS regions with a view of every tile, of 64 regions
+            long budget = (long) BUDGET_REGIONS * REGION_SIZE * REGION_SIZE
+                * (RegionTileStore.BYTES_PER_SLOT + RegionTileStore.BYTES_PER_VIEW);
+            store.setMemoryBudget(budget);
+
+            // Counting only the packed tiles, every region would fit
+            for (int ordinal = 0; ordinal < store.getTileCount(); ordinal++) {
+                Assert.assertNotNull(store.getTileAt(ordinal));
+                Assert.assertTrue(store.getResidentBytes() <= budget);
+            }
+            Assert.assertTrue(store.getResidentRegionCount() < GRID_WIDTH * GRID_WIDTH
+                / (REGION_SIZE * REGION_SIZE));
+            store.close();
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /*
+     * Linked tiles at every position within a Manhattan distance of radius of the centre,
+     * indexed [y + radius][x + radius]. A search from the centre finds 4 * d tiles at distance
+     * d, so the last level has PARALLEL_LEVEL_MIN_TILES tiles and is read in parallel.
+     */
+    private static Tile[][] createBall() throws Exception {
+        int radius = SparseTileArray.PARALLEL_LEVEL_MIN_TILES / 4;
+        int width = 2 * radius + 1;
+        Tile[][] ball = new Tile[width][width];
+        for (int y = 0; y < width; y++) {
+            for (int x = 0; x < width; x++) {
+                if (Math.abs(x - radius) + Math.abs(y - radius) <= radius) {
+                    ball[y][x] = new Tile(new ArrayList<Block>());
+                }
+            }
+        }
+        for (int y = 0; y < width; y++) {
+            for (int x = 0; x < width; x++) {
+                if (ball[y][x] == null) {
+                    continue;
+                }
+                if (y > 0 && ball[y - 1][x] != null) {
+                    ball[y][x].addExit("north", ball[y - 1][x]);
+                }
+                if (x < width - 1 && ball[y][x + 1] != null) {
+                    ball[y][x].addExit("east", ball[y][x + 1]);
+                }
+                if (y < width - 1 && ball[y + 1][x] != null) {
+                    ball[y][x].addExit("south", ball[y + 1][x]);
+                }
+                if (x > 0 && ball[y][x - 1] != null) {
+                    ball[y][x].addExit("west", ball[y][x - 1]);
+                }
+            }
+        }
+        return ball;
+    }
+
+    /*
+     * The size of the arrays held by the fields of an array, counting 8 bytes per reference.
+     * Fails if a field holds anything else, such as a collection or an object per tile.
+     */
+    private static long getRetainedArrayBytes(SparseTileArray array) throws Exception {
+        long bytes = 0;
+        for (Field field : SparseTileArray.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                continue;
+            }
+            field.setAccessible(true);
+            Object value = field.get(array);
+            if (value == null) {
+                continue;
+            }
+            Class<?> elementType = value.getClass().getComponentType();
+            Assert.assertTrue(field.getName() + " is not an array of primitives or tiles",
+                elementType != null && (elementType.isPrimitive() || elementType == Tile.class));
+
+            int elementBytes = 8;
+            if (elementType == int.class || elementType == float.class) {
+                elementBytes = 4;
+            } else if (elementType == short.class || elementType == char.class) {
+                elementBytes = 2;
+            } else if (elementType == byte.class || elementType == boolean.class) {
+                elementBytes = 1;
+            }
+            bytes += (long) elementBytes * Array.getLength(value);
+        }
+        return bytes;
+    }
 }
@@ -0,0 +1,486 @@
+package csse2002.block.world;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorldMapTest {
+
+    private static final String[] MAP_LINES = {"1", "2", "Bob", "wood,wood,wood,soil", "",
+        "total:4", "0 soil,soil,grass,wood", "1 grass,grass,soil", "2 soil,soil,soil,wood",
+        "3 ", "", "exits", "0 east:2,north:1,west:3", "1 south:0", "2 west:0", "3 east:0"};
+
+    private File directory = null;
+
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile("worldmap", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void reset() {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void lazyLoadMatchesRegularLoad() throws Exception {
+        String mapFilename = writeMap("map.txt", MAP_LINES);
+
+        WorldMap lazyMap = new WorldMap(mapFilename, WorldMap.LOAD_LAZY);
+        Assert.assertEquals(4, lazyMap.getTiles().size());
+        Assert.assertEquals(4, lazyMap.getTile(new Position(1, 2)).getBlocks().size());
+        Assert.assertEquals(0, lazyMap.getTile(new Position(0, 2)).getBlocks().size());
+        Assert.assertEquals(4, lazyMap.getBuilder().getInventory().size());
+        Assert.assertArrayEquals(save(new WorldMap(mapFilename), "regular.txt"),
+            save(lazyMap, "lazy.txt"));
+    }
+
+    @Test
+    public void lazyLoadFallsBackForUnusualLines() throws Exception {
+        // A tab is a valid separator, but not one saveMap() writes
+        String[] lines = MAP_LINES.clone();
+        lines[7] = "1\tgrass,grass,soil";
+        String mapFilename = writeMap("map.txt", lines);
+
+        Assert.assertArrayEquals(save(new WorldMap(mapFilename), "regular.txt"),
+            save(new WorldMap(mapFilename, WorldMap.LOAD_LAZY), "lazy.txt"));
+    }
+
+    @Test(expected = WorldMapFormatException.class)
+    public void lazyLoadRejectsDuplicateTile() throws Exception {
+        String[] lines = MAP_LINES.clone();
+        lines[8] = "1 soil";
+        new WorldMap(writeMap("map.txt", lines), WorldMap.LOAD_LAZY);
+    }
+
+    @Test
+    public void offHeapLoadRoundTrips() throws Exception {
+        String[] unusualLines = MAP_LINES.clone();
+        unusualLines[7] = "1\tgrass,grass,soil";
+        // Scanned straight into the store, then through the regular parser
+        for (String[] lines : new String[][] {MAP_LINES, unusualLines}) {
+            String mapFilename = writeMap("map.txt", lines);
+            WorldMap regularMap = new WorldMap(mapFilename);
+            WorldMap offHeapMap = new WorldMap(mapFilename, WorldMap.LOAD_OFF_HEAP);
+            Assert.assertArrayEquals(save(regularMap, "regular.txt"),
+                save(offHeapMap, "offheap.txt"));
+
+            String[] actions = {"DIG", "MOVE_BUILDER east", "DROP 0", "MOVE_BUILDER west",
+                "MOVE_BLOCK north", "MOVE_BUILDER north", "DIG"};
+            runActions(regularMap, actions);
+            runActions(offHeapMap, actions);
+            Assert.assertArrayEquals(save(regularMap, "regular.txt"),
+                save(offHeapMap, "offheap.txt"));
+            Assert.assertArrayEquals(save(offHeapMap, "offheap.txt"),
+                save(new WorldMap(new File(directory, "offheap.txt").getPath(),
+                    WorldMap.LOAD_OFF_HEAP), "reloaded.txt"));
+        }
+    }
+
+    @Test
+    public void exitChangesAfterLoadingAreSavedAndFollowed() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES));
+        Tile startingTile = map.getTiles().get(0);
+        Tile eastTile = map.getTiles().get(2);
+        Assert.assertEquals(6, map.getTileGraph().getEdgeCount());
+
+        startingTile.removeExit("east");
+        map.exitsChanged();
+        Assert.assertEquals(5, map.getTileGraph().getEdgeCount());
+        save(map, "changed.txt");
+        List<String> savedLines = Files.readAllLines(new File(directory, "changed.txt").toPath());
+        Assert.assertEquals("0 north:1,west:3", savedLines.get(12));
+        Assert.assertEquals("2 west:0", savedLines.get(14));
+        runActions(map, "MOVE_BUILDER east");
+        Assert.assertSame(startingTile, map.getBuilder().getCurrentTile());
+
+        startingTile.addExit("east", eastTile);
+        runActions(map, "MOVE_BUILDER east");
+        // Not seen until exitsChanged()
+        Assert.assertSame(startingTile, map.getBuilder().getCurrentTile());
+        map.exitsChanged();
+        runActions(map, "MOVE_BUILDER east");
+        Assert.assertSame(eastTile, map.getBuilder().getCurrentTile());
+        Assert.assertEquals(new Position(2, 2), map.getBuilderPosition());
+        Assert.assertArrayEquals(save(new WorldMap(writeMap("map.txt", MAP_LINES)),
+            "expected.txt"), save(map, "changed.txt"));
+    }
+
+    @Test
+    public void parallelSaveMatchesSequentialSave() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int loadFlags : new int[] {0, WorldMap.LOAD_OFF_HEAP}) {
+                WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES), loadFlags);
+                byte[] expected = save(map, "sequential.txt");
+
+                // One tile per task, so every range is formatted separately
+                map.setParallelSave(pool, 1, 1);
+                Assert.assertArrayEquals(expected, save(map, "parallel.txt"));
+                map.setParallelSave(pool, 1, 3);
+                Assert.assertArrayEquals(expected, save(map, "parallel.txt"));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void convertedRegionsMatchSavedRegions() throws Exception {
+        String mapFilename = writeMap("map.txt", MAP_LINES);
+        File savedDirectory = new File(directory, "saved");
+        File convertedDirectory = new File(directory, "converted");
+        try {
+            new WorldMap(mapFilename).saveRegions(savedDirectory.getPath(), 2);
+            WorldMap.convertToRegions(mapFilename, convertedDirectory.getPath(), 2);
+
+            String[] names = savedDirectory.list();
+            Arrays.sort(names);
+            String[] convertedNames = convertedDirectory.list();
+            Arrays.sort(convertedNames);
+            Assert.assertArrayEquals(names, convertedNames);
+            for (String name : names) {
+                Assert.assertArrayEquals(Files.readAllBytes(new File(savedDirectory, name).toPath()),
+                    Files.readAllBytes(new File(convertedDirectory, name).toPath()));
+            }
+            Assert.assertArrayEquals(save(new WorldMap(mapFilename), "regular.txt"),
+                save(new WorldMap(convertedDirectory.getPath(), WorldMap.LOAD_REGIONS),
+                    "regions.txt"));
+        } finally {
+            for (File child : directory.listFiles()) {
+                File[] grandchildren = child.listFiles();
+                if (grandchildren != null) {
+                    for (File grandchild : grandchildren) {
+                        grandchild.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tileGraphFollowsExits() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES), WorldMap.LOAD_LAZY);
+        TileGraph graph = map.getTileGraph();
+
+        // Tile 0 has exits north, east and west; the others lead back to it
+        Assert.assertEquals(4, graph.getTileCount());
+        Assert.assertEquals(6, graph.getEdgeCount());
+        Assert.assertEquals(3, graph.getEdgeEnd(0) - graph.getEdgeStart(0));
+        Assert.assertEquals(Direction.NORTH, graph.getEdgeDirection(graph.getEdgeStart(0)));
+        for (int ordinal = 0; ordinal < graph.getTileCount(); ordinal++) {
+            for (Direction direction : Direction.all()) {
+                Tile exit = map.getTiles().get(ordinal).getExits().get(direction.getExitName());
+                Assert.assertEquals(exit == null ? -1 : map.getTiles().indexOf(exit),
+                    graph.getExit(ordinal, direction));
+            }
+        }
+        Assert.assertArrayEquals(new int[] {1, 0, 2, 2}, graph.getDistancesFrom(1));
+    }
+
+    @Test
+    public void builderPathRespectsHeights() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES));
+        BuilderPathfinder pathfinder = map.getPathfinder();
+
+        // The west tile has no blocks, four fewer than the starting tile
+        Assert.assertNull(map.findBuilderPath(new Position(0, 2)));
+        Assert.assertEquals(Arrays.asList(Direction.SOUTH, Direction.EAST),
+            pathfinder.findPath(new Position(1, 1), new Position(2, 2)));
+        // Asked twice, so the second answer comes from a distance field
+        Assert.assertEquals(2, pathfinder.getDistance(new Position(1, 1), new Position(2, 2)));
+
+        // Two blocks lower, the starting tile can no longer be left to the east
+        runActions(map, "DIG", "DIG");
+        Assert.assertNull(pathfinder.findPath(new Position(1, 1), new Position(2, 2)));
+
+        StringWriter actions = new StringWriter();
+        BuilderPathfinder.writeActions(map.findBuilderPath(new Position(1, 1)), actions);
+        Assert.assertEquals("MOVE_BUILDER north" + System.lineSeparator(), actions.toString());
+        runActions(map, actions.toString().trim());
+        Assert.assertSame(map.getTile(new Position(1, 1)), map.getBuilder().getCurrentTile());
+    }
+
+    @Test
+    public void attributeIndexesFollowActions() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES), WorldMap.LOAD_LAZY);
+        Tile startingTile = map.getTile(new Position(1, 2));
+
+        Assert.assertEquals(2, map.getTilesWithTopBlock("wood").size());
+        Assert.assertEquals(2, map.getTilesTallerThan(3).size());
+        Assert.assertEquals(Arrays.asList(map.getTile(new Position(0, 2))),
+            map.getTilesWithHeight(0));
+        Assert.assertEquals(3, map.getDiggableTilesNearBuilder(1).size());
+
+        // Digging the wood leaves grass on top of the starting tile
+        runActions(map, "DIG");
+        Assert.assertEquals(1, map.getTilesWithTopBlock("wood").size());
+        Assert.assertEquals(Arrays.asList(startingTile), map.getTilesWithTopBlock("grass"));
+        Assert.assertEquals(1, map.getTilesTallerThan(3).size());
+        Assert.assertEquals(2, map.getTilesWithHeight(3).size());
+    }
+
+    @Test
+    public void statisticsFollowActions() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES));
+        WorldStatistics statistics = map.getStatistics();
+        Assert.assertEquals(4, statistics.getTileCount());
+        Assert.assertEquals(6, statistics.getBlockCount("soil"));
+        Assert.assertEquals(2, statistics.getBlockCount("wood"));
+        Assert.assertEquals(11, statistics.getTotalBlockCount());
+        Assert.assertEquals(2.75, statistics.getAverageHeight(), 0);
+        Assert.assertEquals(4, statistics.getMaxHeight());
+        Assert.assertEquals(2, statistics.getExitCount(Direction.EAST));
+        Assert.assertEquals(1, statistics.getExitCount(Direction.SOUTH));
+
+        WorldStatistics row = map.getStatistics(new Position(1, 2), new Position(0, 2));
+        Assert.assertEquals(2, row.getTileCount());
+        Assert.assertEquals(1, row.getBlockCount("wood"));
+        Assert.assertEquals(1, row.getTileCount(0));
+        Assert.assertEquals(2, row.getExitCount(Direction.EAST));
+        Assert.assertEquals(0, row.getExitCount(Direction.SOUTH));
+
+        // Digging the wood off the starting tile changes the totals, but not earlier results
+        runActions(map, "DIG");
+        Assert.assertEquals(1, map.getStatistics().getBlockCount("wood"));
+        Assert.assertEquals(2, map.getStatistics().getTileCount(3));
+        Assert.assertEquals(0, map.getStatistics(new Position(0, 2), new Position(1, 2))
+            .getBlockCount("wood"));
+        Assert.assertEquals(2, statistics.getBlockCount("wood"));
+    }
+
+    @Test
+    public void heatTrackerCountsTileActions() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES));
+        TileHeatTracker tracker = new TileHeatTracker(2, 64);
+        map.setHeatTracker(tracker);
+
+        // Moving the builder is not counted; a failed DIG is
+        runActions(map, "DIG", "DIG", "MOVE_BUILDER north", "DIG", "DIG", "DIG", "DIG");
+        List<TileHeatTracker.HotSpot> hottestTiles = tracker.getHottestTiles();
+        Assert.assertEquals(2, hottestTiles.size());
+        Assert.assertEquals(new Position(1, 1), hottestTiles.get(0).getPosition());
+        Assert.assertEquals(4, hottestTiles.get(0).getCount());
+        Assert.assertEquals(new Position(1, 2), hottestTiles.get(1).getPosition());
+        Assert.assertEquals(2, hottestTiles.get(1).getCount());
+        Assert.assertEquals(new Position(0, 0), tracker.getHottestRegions().get(0).getPosition());
+        Assert.assertEquals(6, tracker.getHottestRegions().get(0).getCount());
+
+        // Once the window has slid past them, older actions are no longer counted
+        TileHeatTracker window = new TileHeatTracker(1, TileHeatTracker.WINDOW_STEPS);
+        for (int i = 0; i < 2 * TileHeatTracker.WINDOW_STEPS; i++) {
+            window.record(new Position(i < TileHeatTracker.WINDOW_STEPS ? -20 : 20, 0));
+        }
+        Assert.assertEquals(1, window.getHottestTiles().size());
+        Assert.assertEquals(new Position(20, 0), window.getHottestTiles().get(0).getPosition());
+        Assert.assertEquals(TileHeatTracker.WINDOW_STEPS,
+            window.getHottestRegions().get(0).getCount());
+    }
+
+    @Test
+    public void unreachableTilesAreReportedAndDropped() throws Exception {
+        // Tiles 4 and 5 only have exits to each other
+        String mapFilename = writeMap("map.txt", new String[] {"1", "2", "Bob",
+            "wood,wood,wood,soil", "", "total:6", "0 soil,soil,grass,wood",
+            "1 grass,grass,soil", "2 soil,soil,soil,wood", "3 ", "4 stone", "5 soil", "",
+            "exits", "0 east:2,north:1,west:3", "1 south:0", "2 west:0", "3 east:0",
+            "4 north:5", "5 south:4"});
+        byte[] expected = save(new WorldMap(writeMap("reachable.txt", MAP_LINES)),
+            "expected.txt");
+
+        WorldMap map = new WorldMap(mapFilename);
+        TileComponents components = map.getTileComponents();
+        Assert.assertEquals(6, components.getTileCount());
+        Assert.assertEquals(2, components.getComponentCount());
+        Assert.assertArrayEquals(new int[] {4, 5}, components.getUnreachableTileIds());
+        Assert.assertTrue(components.isReachable(3));
+        Assert.assertFalse(components.isReachable(5));
+        Assert.assertArrayEquals(expected, save(map, "regular.txt"));
+
+        for (int loadFlags : new int[] {0, WorldMap.LOAD_OFF_HEAP, WorldMap.LOAD_LAZY}) {
+            WorldMap droppedMap = new WorldMap(mapFilename,
+                loadFlags | WorldMap.LOAD_DROP_UNREACHABLE);
+            Assert.assertEquals(2, droppedMap.getTileComponents().getUnreachableTileCount());
+            Assert.assertEquals(4, droppedMap.getTiles().size());
+            Assert.assertArrayEquals(expected, save(droppedMap, "dropped.txt"));
+        }
+    }
+
+    @Test(expected = WorldMapFormatException.class)
+    public void droppedTilesAreStillChecked() throws Exception {
+        String[] lines = Arrays.copyOf(MAP_LINES, MAP_LINES.length + 2);
+        lines[5] = "total:5";
+        System.arraycopy(lines, 10, lines, 11, MAP_LINES.length - 10);
+        lines[10] = "4 soil";
+        lines[lines.length - 1] = "4 north:7";
+        new WorldMap(writeMap("map.txt", lines), WorldMap.LOAD_DROP_UNREACHABLE);
+    }
+
+    @Test
+    public void transactionAppliesEditsTogether() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES));
+        WorldMapTransaction transaction = map.beginTransaction();
+        transaction.addTile(new Position(2, 1), Arrays.asList("stone", "soil"));
+        transaction.addExit(new Position(2, 2), Direction.NORTH, new Position(2, 1));
+        transaction.addExit(new Position(2, 1), Direction.SOUTH, new Position(2, 2));
+        transaction.setBlocks(new Position(0, 2), Arrays.asList("grass"));
+        Assert.assertEquals(4, transaction.getEditCount());
+        transaction.commit();
+
+        String[] lines = {"1", "2", "Bob", "wood,wood,wood,soil", "", "total:5",
+            "0 soil,soil,grass,wood", "1 grass,grass,soil", "2 soil,soil,soil,wood", "3 grass",
+            "4 stone,soil", "", "exits", "0 east:2,north:1,west:3", "1 south:0",
+            "2 north:4,west:0", "3 east:0", "4 south:2"};
+        Assert.assertArrayEquals(save(new WorldMap(writeMap("expected.txt", lines)),
+            "expected-saved.txt"), save(map, "saved.txt"));
+        Assert.assertEquals(5, map.getTileGraph().getTileCount());
+        Assert.assertEquals(1, map.getStatistics().getTileCount(2));
+    }
+
+    @Test
+    public void inconsistentTransactionChangesNothing() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES));
+        byte[] expected = save(map, "expected.txt");
+        Position start = new Position(1, 2);
+
+        WorldMapTransaction[] transactions = new WorldMapTransaction[4];
+        for (int i = 0; i < transactions.length; i++) {
+            transactions[i] = map.beginTransaction();
+            transactions[i].setBlocks(start, Arrays.asList("stone"));
+        }
+        // Not the neighbour to the north, an unreachable tile, a cut-off tile, a bad stack
+        transactions[0].addExit(start, Direction.NORTH, new Position(2, 2));
+        transactions[1].addTile(new Position(5, 5), Arrays.asList("soil"));
+        transactions[2].removeExit(start, Direction.WEST);
+        transactions[3].setBlocks(new Position(0, 2),
+            Arrays.asList("stone", "stone", "stone", "grass"));
+        for (WorldMapTransaction transaction : transactions) {
+            try {
+                transaction.commit();
+                Assert.fail();
+            } catch (WorldMapInconsistentException e) {
+                // Expected
+            }
+            Assert.assertArrayEquals(expected, save(map, "saved.txt"));
+        }
+
+        WorldMapTransaction transaction = map.beginTransaction();
+        transaction.removeExit(new Position(0, 2), Direction.EAST);
+        transaction.commit();
+        Assert.assertEquals(5, map.getTileGraph().getEdgeCount());
+    }
+
+    @Test
+    public void historyUndoesAndRedoesActions() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES));
+        byte[] original = save(map, "original.txt");
+        map.setActionHistory(new ActionHistory(16));
+
+        // MOVE_BUILDER south has no exit, so it is not recorded
+        runActions(map, "DIG", "MOVE_BUILDER east", "DROP 0", "MOVE_BLOCK west",
+            "MOVE_BUILDER south", "MOVE_BUILDER west", "DIG", "MOVE_BUILDER north");
+        byte[] changed = save(map, "changed.txt");
+        ActionHistory history = map.getActionHistory();
+        Assert.assertEquals(7, history.getUndoCount());
+
+        while (history.undo(map)) {
+            // Undo everything
+        }
+        Assert.assertEquals(7, history.getRedoCount());
+        Assert.assertEquals(new Position(1, 2), map.getBuilderPosition());
+        Assert.assertArrayEquals(original, save(map, "undone.txt"));
+        Assert.assertEquals(4, map.getBuilder().getInventory().size());
+
+        while (history.redo(map)) {
+            // Redo everything
+        }
+        Assert.assertEquals(new Position(1, 1), map.getBuilderPosition());
+        Assert.assertArrayEquals(changed, save(map, "redone.txt"));
+
+        Assert.assertTrue(history.undo(map));
+        runActions(map, "DIG");
+        Assert.assertEquals(0, history.getRedoCount());
+        Assert.assertEquals(7, history.getUndoCount());
+    }
+
+    @Test
+    public void versionsReadPastTiles() throws Exception {
+        WorldMap map = new WorldMap(writeMap("map.txt", MAP_LINES));
+        WorldVersions versions = new WorldVersions(2);
+        map.setWorldVersions(versions);
+        Position start = new Position(1, 2);
+        WorldVersions.Version original = versions.pin(0);
+
+        runActions(map, "DIG", "MOVE_BUILDER south", "DIG", "DROP 0");
+        Assert.assertEquals(4, versions.getLatestVersion());
+        Assert.assertEquals(0, versions.getOldestVersion());
+        Assert.assertEquals(Arrays.asList("soil", "soil", "grass", "wood"),
+            original.getBlockTypes(start));
+        Assert.assertNull(original.getBlockTypes(new Position(5, 5)));
+        try (WorldVersions.Version afterDig = versions.pin(2)) {
+            Assert.assertEquals(Arrays.asList("soil", "soil", "grass"),
+                afterDig.getBlockTypes(start));
+        }
+        try (WorldVersions.Version latest = versions.pin(4)) {
+            Assert.assertEquals(Arrays.asList("soil", "soil", "wood"),
+                latest.getBlockTypes(start));
+        }
+
+        // Without the pin only the latest two versions are kept
+        original.close();
+        Assert.assertEquals(3, versions.getOldestVersion());
+        Assert.assertEquals(1, versions.getEntryCount());
+    }
+
+    private static void runActions(WorldMap map, String... lines) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append(System.lineSeparator());
+        }
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            Action.processActions(new BufferedReader(new StringReader(text.toString())), map);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    private String writeMap(String name, String[] lines) throws IOException {
+        File file = new File(directory, name);
+        FileWriter fw = new FileWriter(file);
+        for (String line : lines) {
+            fw.write(line + System.lineSeparator());
+        }
+        fw.close();
+        return file.getPath();
+    }
+
+    private byte[] save(WorldMap map, String name) throws IOException {
+        File file = new File(directory, name);
+        map.saveMap(file.getPath());
+        return Files.readAllBytes(file.toPath());
+    }
+}